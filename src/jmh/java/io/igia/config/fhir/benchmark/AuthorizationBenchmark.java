@@ -0,0 +1,151 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.benchmark;
+
+import java.io.Serializable;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor.Verdict;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.igia.config.fhir.interceptor.AuthorizationRuleCache;
+import io.igia.config.fhir.interceptor.ResourceTypeRegistry;
+import io.igia.config.fhir.interceptor.ScopeBasedAuthorizationInterceptor;
+import io.igia.config.fhir.interceptor.ScopeBasedAuthorizationInterceptor.Evaluator;
+import io.igia.config.fhir.interceptor.VerifiedTokenCache;
+
+/**
+ * Rule list compilation and end-to-end rule evaluation of {@link ScopeBasedAuthorizationInterceptor}
+ * for a read of an Observation in the in-context patient's compartment, using an in-memory token store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthorizationBenchmark {
+	private static final String PATIENT_ID = "123";
+	private static final String TOKEN_VALUE = "benchmark-token";
+
+	@Param({ "1", "10", "100", "1000" })
+	public int scopeCount;
+
+	@Param({ "patient", "user" })
+	public String context;
+
+	@Param({ "RULES", "TABLE" })
+	public Evaluator evaluator;
+
+	@Param({ "false", "true" })
+	public boolean cached;
+
+	private ScopeBasedAuthorizationInterceptor interceptor;
+	private ServletRequestDetails requestDetails;
+	private Observation observation;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		ResourceTypeRegistry registry = new ResourceTypeRegistry(FhirContext.forDstu3());
+		Set<String> scopes = BenchmarkScopes.create(registry, context, scopeCount);
+
+		DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(TOKEN_VALUE);
+		accessToken.setScope(scopes);
+		accessToken.setExpiration(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)));
+		Map<String, Object> additionalInformation = new HashMap<>();
+		additionalInformation.put(ScopeBasedAuthorizationInterceptor.LAUNCH_CONTEXT_PATIENT_PARAM_NAME, PATIENT_ID);
+		accessToken.setAdditionalInformation(additionalInformation);
+
+		OAuth2Request request = new OAuth2Request(Collections.<String, String>emptyMap(), "benchmark-client",
+				AuthorityUtils.createAuthorityList("Everything"), true, scopes, Collections.<String>emptySet(), null,
+				Collections.<String>emptySet(), Collections.<String, Serializable>emptyMap());
+		OAuth2Authentication authentication = new OAuth2Authentication(request, null);
+
+		InMemoryTokenStore tokenStore = new InMemoryTokenStore();
+		tokenStore.storeAccessToken(accessToken, authentication);
+		OAuth2RestTemplate restTemplate = new OAuth2RestTemplate(new ClientCredentialsResourceDetails(),
+				new DefaultOAuth2ClientContext(accessToken));
+
+		interceptor = new ScopeBasedAuthorizationInterceptor(tokenStore, restTemplate, registry);
+		interceptor.setPrincipalExtractor(map -> "benchmark-user");
+		interceptor.setAuthoritiesExtractor(map -> AuthorityUtils.NO_AUTHORITIES);
+		interceptor.setEvaluator(evaluator);
+		if (cached) {
+			interceptor.setRuleCache(new AuthorizationRuleCache(1000, Duration.ofMinutes(5)));
+			interceptor.setTokenCache(new VerifiedTokenCache(1000, Duration.ofMinutes(5)));
+		}
+
+		// setup and benchmark methods may run on different threads
+		SecurityContextHolder.setStrategyName(SecurityContextHolder.MODE_GLOBAL);
+		SecurityContextHolder.getContext().setAuthentication(authentication);
+
+		requestDetails = new ServletRequestDetails();
+		requestDetails.setRestOperationType(RestOperationTypeEnum.READ);
+		requestDetails.setResourceName("Observation");
+		requestDetails.setId(new IdType("Observation", "1"));
+
+		observation = new Observation();
+		observation.setId("Observation/1");
+		observation.setSubject(new Reference("Patient/" + PATIENT_ID));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Benchmark
+	public List<IAuthRule> buildRuleList() {
+		return interceptor.buildRuleList(requestDetails);
+	}
+
+	@Benchmark
+	public Verdict evaluateRead() {
+		return interceptor.applyRulesAndReturnDecision(RestOperationTypeEnum.READ, requestDetails, null, null, observation);
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import io.igia.config.fhir.interceptor.ResourceTypeRegistry;
+
+/**
+ * Deterministic SMART scope sets for benchmarks. The first scope always grants read access
+ * to Observation, so the benchmarked requests are allowed.
+ */
+final class BenchmarkScopes {
+	private static final List<String> OPERATIONS = new ArrayList<>();
+
+	static {
+		OPERATIONS.add("read");
+		OPERATIONS.add("write");
+		OPERATIONS.add("*");
+		// every SMART v2 permission string
+		String permissions = "cruds";
+		for (int mask = 1; mask < 1 << permissions.length(); mask++) {
+			StringBuilder operation = new StringBuilder();
+			for (int i = 0; i < permissions.length(); i++) {
+				if ((mask & 1 << i) != 0) {
+					operation.append(permissions.charAt(i));
+				}
+			}
+			OPERATIONS.add(operation.toString());
+		}
+	}
+
+	private BenchmarkScopes() {
+	}
+
+	static Set<String> create(ResourceTypeRegistry registry, String context, int count) {
+		List<String> resources = new ArrayList<>(new TreeSet<>(registry.getResourceNames()));
+		resources.remove("Observation");
+		Set<String> scopes = new LinkedHashSet<>();
+		scopes.add(context + "/Observation.read");
+		for (int i = 0; scopes.size() < count; i++) {
+			String resource = resources.get(i % resources.size());
+			String operation = OPERATIONS.get((i / resources.size()) % OPERATIONS.size());
+			scopes.add(context + "/" + resource + "." + operation);
+		}
+		return scopes;
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Servlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletConfig;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.springframework.web.servlet.mvc.ServletWrappingController;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Read;
+import ca.uhn.fhir.rest.server.HardcodedServerAddressStrategy;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+
+/**
+ * A FHIR read dispatched the two ways {@code hapi.fhir.server.registration} offers: through
+ * the Spring MVC dispatcher and a servlet wrapping controller like {@code IgiaFhirController},
+ * or straight to a servlet registered on the server path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServletRegistrationBenchmark {
+	private static final String SERVER_PATH = "/api";
+
+	@Param({ "controller", "servlet" })
+	public String registration;
+
+	private AnnotationConfigWebApplicationContext applicationContext;
+	private Servlet servlet;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		MockServletContext servletContext = new MockServletContext();
+		if ("servlet".equals(registration)) {
+			servlet = new BenchmarkFhirServer();
+			servlet.init(new MockServletConfig(servletContext, "fhir"));
+			return;
+		}
+		applicationContext = new AnnotationConfigWebApplicationContext();
+		applicationContext.setServletContext(servletContext);
+		applicationContext.register(ControllerConfiguration.class);
+		applicationContext.refresh();
+		servlet = new DispatcherServlet(applicationContext);
+		servlet.init(new MockServletConfig(servletContext, "dispatcher"));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		servlet.destroy();
+		if (applicationContext != null) {
+			applicationContext.close();
+		}
+	}
+
+	@Benchmark
+	public MockHttpServletResponse read() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", SERVER_PATH + "/Patient/1");
+		if ("servlet".equals(registration)) {
+			request.setServletPath(SERVER_PATH);
+			request.setPathInfo("/Patient/1");
+		}
+		request.addHeader("Accept", "application/fhir+json");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		servlet.service(request, response);
+		return response;
+	}
+
+	public static class BenchmarkFhirServer extends RestfulServer {
+		private static final long serialVersionUID = 1L;
+
+		public BenchmarkFhirServer() {
+			super(FhirContext.forDstu3());
+		}
+
+		@Override
+		protected void initialize() {
+			setServerAddressStrategy(new HardcodedServerAddressStrategy("http://localhost" + SERVER_PATH));
+			registerProvider(new PatientProvider());
+		}
+	}
+
+	public static class PatientProvider implements IResourceProvider {
+		@Override
+		public Class<? extends IBaseResource> getResourceType() {
+			return Patient.class;
+		}
+
+		@Read
+		public Patient read(@IdParam IdType id) {
+			Patient patient = new Patient();
+			patient.setId(id.getIdPart());
+			patient.addName().setFamily("Benchmark");
+			return patient;
+		}
+	}
+
+	/**
+	 * Same dispatch as IgiaFhirController, without its Spring Boot wiring.
+	 */
+	public static class BenchmarkController extends ServletWrappingController {
+		public BenchmarkController() {
+			setServletClass(BenchmarkFhirServer.class);
+			setServletName("fhir");
+		}
+
+		@RequestMapping({ SERVER_PATH, SERVER_PATH + "/**" })
+		public void handle(HttpServletRequest request, HttpServletResponse response) throws Exception {
+			HttpServletRequestWrapper wrapper = new HttpServletRequestWrapper(request) {
+				@Override
+				public String getServletPath() {
+					return SERVER_PATH;
+				}
+			};
+			handleRequest(wrapper, response);
+		}
+	}
+
+	@Configuration
+	@EnableWebMvc
+	public static class ControllerConfiguration {
+		@Bean
+		public BenchmarkController benchmarkController() {
+			return new BenchmarkController();
+		}
+	}
+}
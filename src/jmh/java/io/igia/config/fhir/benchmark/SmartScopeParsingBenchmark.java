@@ -0,0 +1,83 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.benchmark;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.igia.config.fhir.interceptor.IgiaSmartScope;
+import io.igia.config.fhir.interceptor.ResourceTypeRegistry;
+import io.igia.config.fhir.interceptor.SmartScopeDescriptor;
+import io.igia.config.fhir.interceptor.SmartScopeParser;
+
+/**
+ * Cost of turning a token's scope strings into scope objects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartScopeParsingBenchmark {
+
+	@Param({ "1", "10", "100", "1000" })
+	public int scopeCount;
+
+	@Param({ "patient", "user" })
+	public String context;
+
+	private ResourceTypeRegistry registry;
+	private SmartScopeParser internedParser;
+	private Set<String> scopes;
+
+	@Setup
+	public void setup() {
+		registry = new ResourceTypeRegistry(FhirContext.forDstu3());
+		internedParser = new SmartScopeParser(registry);
+		scopes = BenchmarkScopes.create(registry, context, scopeCount);
+		internedParser.parseAll(scopes);
+	}
+
+	@Benchmark
+	public void igiaSmartScope(Blackhole blackhole) {
+		for (String scope : scopes) {
+			blackhole.consume(new IgiaSmartScope(scope));
+		}
+	}
+
+	@Benchmark
+	public List<SmartScopeDescriptor> descriptorsInterned() {
+		return internedParser.parseAll(scopes);
+	}
+
+	@Benchmark
+	public List<SmartScopeDescriptor> descriptorsUncached() {
+		return new SmartScopeParser(registry).parseAll(scopes);
+	}
+}
@@ -19,7 +19,14 @@ package io.igia.config.fhir;
  */
 
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 import ca.uhn.fhir.context.FhirVersionEnum;
+import io.igia.config.fhir.audit.RingBufferAuditSink.OverflowPolicy;
+import io.igia.config.fhir.interceptor.ScopeBasedAuthorizationInterceptor.Evaluator;
+import io.igia.config.fhir.server.FhirContextWarmup.ResourceTypes;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
@@ -32,6 +39,22 @@ public class FhirProperties {
 
     private Validation validation = new Validation();
 
+    private Authorization authorization = new Authorization();
+
+    private MetadataCache metadataCache = new MetadataCache();
+
+    private Warmup warmup = new Warmup();
+
+    private SmartConfiguration smartConfiguration = new SmartConfiguration();
+
+    private Rest rest = new Rest();
+
+    private Compression compression = new Compression();
+
+    private ReadCache readCache = new ReadCache();
+
+    private Paging paging = new Paging();
+
     public FhirVersionEnum getVersion() {
         return version;
     }
@@ -56,12 +79,86 @@ public class FhirProperties {
         this.validation = validation;
     }
 
+    public Authorization getAuthorization() {
+        return authorization;
+    }
+
+    public void setAuthorization(Authorization authorization) {
+        this.authorization = authorization;
+    }
+
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    public void setMetadataCache(MetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    public Warmup getWarmup() {
+        return warmup;
+    }
+
+    public void setWarmup(Warmup warmup) {
+        this.warmup = warmup;
+    }
+
+    public SmartConfiguration getSmartConfiguration() {
+        return smartConfiguration;
+    }
+
+    public void setSmartConfiguration(SmartConfiguration smartConfiguration) {
+        this.smartConfiguration = smartConfiguration;
+    }
+
+    public Rest getRest() {
+        return rest;
+    }
+
+    public void setRest(Rest rest) {
+        this.rest = rest;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public ReadCache getReadCache() {
+        return readCache;
+    }
+
+    public void setReadCache(ReadCache readCache) {
+        this.readCache = readCache;
+    }
+
+    public Paging getPaging() {
+        return paging;
+    }
+
+    public void setPaging(Paging paging) {
+        this.paging = paging;
+    }
+
     public static class Server {
 
+        /**
+         * How the FHIR servlet is exposed: through the Spring MVC dispatcher or registered
+         * directly with the servlet container on the server path.
+         */
+        public enum Registration {
+            CONTROLLER, SERVLET
+        }
+
         private String url;
 
         private String path = "/fhir/*";
 
+        private Registration registration = Registration.CONTROLLER;
+
         public String getUrl() {
             return url;
         }
@@ -77,6 +174,14 @@ public class FhirProperties {
         public void setPath(String path) {
             this.path = path;
         }
+
+        public Registration getRegistration() {
+            return registration;
+        }
+
+        public void setRegistration(Registration registration) {
+            this.registration = registration;
+        }
     }
 
     public static class Validation {
@@ -101,5 +206,912 @@ public class FhirProperties {
             this.requestOnly = requestOnly;
         }
     }
-}
 
+    public static class Authorization {
+
+        private RuleCache ruleCache = new RuleCache();
+
+        private TokenCache tokenCache = new TokenCache();
+
+        private Keys keys = new Keys();
+
+        private Introspection introspection = new Introspection();
+
+        private Evaluator evaluator = Evaluator.RULES;
+
+        private boolean compartmentSearchNarrowing = false;
+
+        private boolean transactionAuthorization = false;
+
+        private Audit audit = new Audit();
+
+        public RuleCache getRuleCache() {
+            return ruleCache;
+        }
+
+        public void setRuleCache(RuleCache ruleCache) {
+            this.ruleCache = ruleCache;
+        }
+
+        public TokenCache getTokenCache() {
+            return tokenCache;
+        }
+
+        public void setTokenCache(TokenCache tokenCache) {
+            this.tokenCache = tokenCache;
+        }
+
+        public Keys getKeys() {
+            return keys;
+        }
+
+        public void setKeys(Keys keys) {
+            this.keys = keys;
+        }
+
+        public Introspection getIntrospection() {
+            return introspection;
+        }
+
+        public void setIntrospection(Introspection introspection) {
+            this.introspection = introspection;
+        }
+
+        public Evaluator getEvaluator() {
+            return evaluator;
+        }
+
+        public void setEvaluator(Evaluator evaluator) {
+            this.evaluator = evaluator;
+        }
+
+        public boolean isCompartmentSearchNarrowing() {
+            return compartmentSearchNarrowing;
+        }
+
+        public void setCompartmentSearchNarrowing(boolean compartmentSearchNarrowing) {
+            this.compartmentSearchNarrowing = compartmentSearchNarrowing;
+        }
+
+        public boolean isTransactionAuthorization() {
+            return transactionAuthorization;
+        }
+
+        public void setTransactionAuthorization(boolean transactionAuthorization) {
+            this.transactionAuthorization = transactionAuthorization;
+        }
+
+        public Audit getAudit() {
+            return audit;
+        }
+
+        public void setAudit(Audit audit) {
+            this.audit = audit;
+        }
+    }
+
+    public static class RuleCache {
+
+        private boolean enabled = true;
+
+        private int maximumSize = 1000;
+
+        private Duration timeToLive = Duration.ofMinutes(5);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaximumSize() {
+            return maximumSize;
+        }
+
+        public void setMaximumSize(int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        public Duration getTimeToLive() {
+            return timeToLive;
+        }
+
+        public void setTimeToLive(Duration timeToLive) {
+            this.timeToLive = timeToLive;
+        }
+    }
+
+    public static class TokenCache {
+
+        private boolean enabled = true;
+
+        private int maximumSize = 10000;
+
+        private Duration timeToLive = Duration.ofMinutes(5);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaximumSize() {
+            return maximumSize;
+        }
+
+        public void setMaximumSize(int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        public Duration getTimeToLive() {
+            return timeToLive;
+        }
+
+        public void setTimeToLive(Duration timeToLive) {
+            this.timeToLive = timeToLive;
+        }
+    }
+
+    public static class Keys {
+
+        private Duration refreshInterval = Duration.ofHours(1);
+
+        private Duration minimumRefreshInterval = Duration.ofSeconds(30);
+
+        private Duration connectTimeout = Duration.ofSeconds(2);
+
+        private Duration readTimeout = Duration.ofSeconds(5);
+
+        private String cacheFile;
+
+        public Duration getRefreshInterval() {
+            return refreshInterval;
+        }
+
+        public void setRefreshInterval(Duration refreshInterval) {
+            this.refreshInterval = refreshInterval;
+        }
+
+        public Duration getMinimumRefreshInterval() {
+            return minimumRefreshInterval;
+        }
+
+        public void setMinimumRefreshInterval(Duration minimumRefreshInterval) {
+            this.minimumRefreshInterval = minimumRefreshInterval;
+        }
+
+        public Duration getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public void setConnectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+
+        public Duration getReadTimeout() {
+            return readTimeout;
+        }
+
+        public void setReadTimeout(Duration readTimeout) {
+            this.readTimeout = readTimeout;
+        }
+
+        public String getCacheFile() {
+            return cacheFile;
+        }
+
+        public void setCacheFile(String cacheFile) {
+            this.cacheFile = cacheFile;
+        }
+    }
+
+    public static class Introspection {
+
+        private boolean enabled = false;
+
+        private int maximumSize = 10000;
+
+        private Duration maximumTimeToLive = Duration.ofMinutes(5);
+
+        private Duration negativeTimeToLive = Duration.ofSeconds(10);
+
+        private Duration connectTimeout = Duration.ofSeconds(2);
+
+        private Duration readTimeout = Duration.ofSeconds(5);
+
+        private int failureThreshold = 5;
+
+        private Duration openDuration = Duration.ofSeconds(30);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaximumSize() {
+            return maximumSize;
+        }
+
+        public void setMaximumSize(int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        public Duration getMaximumTimeToLive() {
+            return maximumTimeToLive;
+        }
+
+        public void setMaximumTimeToLive(Duration maximumTimeToLive) {
+            this.maximumTimeToLive = maximumTimeToLive;
+        }
+
+        public Duration getNegativeTimeToLive() {
+            return negativeTimeToLive;
+        }
+
+        public void setNegativeTimeToLive(Duration negativeTimeToLive) {
+            this.negativeTimeToLive = negativeTimeToLive;
+        }
+
+        public Duration getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public void setConnectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+
+        public Duration getReadTimeout() {
+            return readTimeout;
+        }
+
+        public void setReadTimeout(Duration readTimeout) {
+            this.readTimeout = readTimeout;
+        }
+
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+
+        public void setFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+        }
+
+        public Duration getOpenDuration() {
+            return openDuration;
+        }
+
+        public void setOpenDuration(Duration openDuration) {
+            this.openDuration = openDuration;
+        }
+    }
+
+    public static class Audit {
+
+        /**
+         * Where audit records are written: to rolling JSON lines files, or as AuditEvent
+         * resources to a FHIR server.
+         */
+        public enum Writer {
+            FILE, AUDIT_EVENT
+        }
+
+        private boolean enabled = false;
+
+        private int capacity = 8192;
+
+        private int batchSize = 256;
+
+        private Duration flushInterval = Duration.ofSeconds(1);
+
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+
+        private Duration blockTimeout = Duration.ofMillis(10);
+
+        private String directory = "logs";
+
+        private String fileName = "authorization-audit";
+
+        private long maximumFileSize = 100L * 1024 * 1024;
+
+        private int maximumHistory = 10;
+
+        private Writer writer = Writer.FILE;
+
+        private String serverUrl;
+
+        private String sourceId = "igia-fhir-api";
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public void setCapacity(int capacity) {
+            this.capacity = capacity;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public Duration getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(Duration flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public OverflowPolicy getOverflowPolicy() {
+            return overflowPolicy;
+        }
+
+        public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+        }
+
+        public Duration getBlockTimeout() {
+            return blockTimeout;
+        }
+
+        public void setBlockTimeout(Duration blockTimeout) {
+            this.blockTimeout = blockTimeout;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public void setFileName(String fileName) {
+            this.fileName = fileName;
+        }
+
+        public long getMaximumFileSize() {
+            return maximumFileSize;
+        }
+
+        public void setMaximumFileSize(long maximumFileSize) {
+            this.maximumFileSize = maximumFileSize;
+        }
+
+        public int getMaximumHistory() {
+            return maximumHistory;
+        }
+
+        public void setMaximumHistory(int maximumHistory) {
+            this.maximumHistory = maximumHistory;
+        }
+
+        public Writer getWriter() {
+            return writer;
+        }
+
+        public void setWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        public String getServerUrl() {
+            return serverUrl;
+        }
+
+        public void setServerUrl(String serverUrl) {
+            this.serverUrl = serverUrl;
+        }
+
+        public String getSourceId() {
+            return sourceId;
+        }
+
+        public void setSourceId(String sourceId) {
+            this.sourceId = sourceId;
+        }
+    }
+
+    public static class MetadataCache {
+
+        private boolean enabled = true;
+
+        private Duration maxAge = Duration.ofMinutes(10);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getMaxAge() {
+            return maxAge;
+        }
+
+        public void setMaxAge(Duration maxAge) {
+            this.maxAge = maxAge;
+        }
+    }
+
+    public static class Warmup {
+
+        private boolean enabled = false;
+
+        private ResourceTypes resourceTypes = ResourceTypes.PROVIDERS;
+
+        private int parallelism = 0;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public ResourceTypes getResourceTypes() {
+            return resourceTypes;
+        }
+
+        public void setResourceTypes(ResourceTypes resourceTypes) {
+            this.resourceTypes = resourceTypes;
+        }
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public void setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+        }
+    }
+
+    public static class SmartConfiguration {
+
+        private Duration maxAge = Duration.ofHours(24);
+
+        public Duration getMaxAge() {
+            return maxAge;
+        }
+
+        public void setMaxAge(Duration maxAge) {
+            this.maxAge = maxAge;
+        }
+    }
+
+    public static class Rest {
+
+        /**
+         * Where provider invocations run: on the container thread that received the request,
+         * on the request executor after the request is put in asynchronous mode, or likewise
+         * on a virtual thread of its own (Java 21 or later).
+         */
+        public enum Execution {
+            CONTAINER, ASYNC, VIRTUAL_THREADS
+        }
+
+        private Execution execution = Execution.CONTAINER;
+
+        private Duration requestTimeout = Duration.ofSeconds(30);
+
+        private RequestExecutor executor = new RequestExecutor();
+
+        private VirtualThreadExecution virtualThreads = new VirtualThreadExecution();
+
+        private StreamingBundles streaming = new StreamingBundles();
+
+        private ConditionalReads conditionalReads = new ConditionalReads();
+
+        public Execution getExecution() {
+            return execution;
+        }
+
+        public void setExecution(Execution execution) {
+            this.execution = execution;
+        }
+
+        public Duration getRequestTimeout() {
+            return requestTimeout;
+        }
+
+        public void setRequestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requestTimeout;
+        }
+
+        public RequestExecutor getExecutor() {
+            return executor;
+        }
+
+        public void setExecutor(RequestExecutor executor) {
+            this.executor = executor;
+        }
+
+        public VirtualThreadExecution getVirtualThreads() {
+            return virtualThreads;
+        }
+
+        public void setVirtualThreads(VirtualThreadExecution virtualThreads) {
+            this.virtualThreads = virtualThreads;
+        }
+
+        public StreamingBundles getStreaming() {
+            return streaming;
+        }
+
+        public void setStreaming(StreamingBundles streaming) {
+            this.streaming = streaming;
+        }
+
+        public ConditionalReads getConditionalReads() {
+            return conditionalReads;
+        }
+
+        public void setConditionalReads(ConditionalReads conditionalReads) {
+            this.conditionalReads = conditionalReads;
+        }
+    }
+
+    public static class RequestExecutor {
+
+        private int corePoolSize = 8;
+
+        private int maxPoolSize = 200;
+
+        private int queueCapacity = 100;
+
+        private Duration keepAlive = Duration.ofSeconds(60);
+
+        public int getCorePoolSize() {
+            return corePoolSize;
+        }
+
+        public void setCorePoolSize(int corePoolSize) {
+            this.corePoolSize = corePoolSize;
+        }
+
+        public int getMaxPoolSize() {
+            return maxPoolSize;
+        }
+
+        public void setMaxPoolSize(int maxPoolSize) {
+            this.maxPoolSize = maxPoolSize;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public Duration getKeepAlive() {
+            return keepAlive;
+        }
+
+        public void setKeepAlive(Duration keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    public static class VirtualThreadExecution {
+
+        private boolean pinningDetection = true;
+
+        private Duration pinnedThreshold = Duration.ofMillis(20);
+
+        public boolean isPinningDetection() {
+            return pinningDetection;
+        }
+
+        public void setPinningDetection(boolean pinningDetection) {
+            this.pinningDetection = pinningDetection;
+        }
+
+        public Duration getPinnedThreshold() {
+            return pinnedThreshold;
+        }
+
+        public void setPinnedThreshold(Duration pinnedThreshold) {
+            this.pinnedThreshold = pinnedThreshold;
+        }
+    }
+
+    public static class StreamingBundles {
+
+        private boolean enabled = false;
+
+        private int minimumEntries = 50;
+
+        private int bufferSize = 8192;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMinimumEntries() {
+            return minimumEntries;
+        }
+
+        public void setMinimumEntries(int minimumEntries) {
+            this.minimumEntries = minimumEntries;
+        }
+
+        public int getBufferSize() {
+            return bufferSize;
+        }
+
+        public void setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+    }
+
+    public static class Compression {
+
+        private boolean enabled = true;
+
+        private int minimumSize = 2048;
+
+        private int level = 6;
+
+        private int poolSize = 64;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMinimumSize() {
+            return minimumSize;
+        }
+
+        public void setMinimumSize(int minimumSize) {
+            this.minimumSize = minimumSize;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public void setLevel(int level) {
+            this.level = level;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+    }
+
+    public static class ReadCache {
+
+        private boolean enabled = false;
+
+        private long maximumBytes = 67108864;
+
+        private int maximumBodySize = 1048576;
+
+        private List<String> resourceTypes = new ArrayList<>();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMaximumBytes() {
+            return maximumBytes;
+        }
+
+        public void setMaximumBytes(long maximumBytes) {
+            this.maximumBytes = maximumBytes;
+        }
+
+        public int getMaximumBodySize() {
+            return maximumBodySize;
+        }
+
+        public void setMaximumBodySize(int maximumBodySize) {
+            this.maximumBodySize = maximumBodySize;
+        }
+
+        public List<String> getResourceTypes() {
+            return resourceTypes;
+        }
+
+        public void setResourceTypes(List<String> resourceTypes) {
+            this.resourceTypes = resourceTypes;
+        }
+    }
+
+    public static class ConditionalReads {
+
+        private boolean enabled = true;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+    }
+
+    public static class Paging {
+
+        /**
+         * Where result sets are kept for paging: on the heap, or in memory-mapped segment files.
+         */
+        public enum Store {
+            MEMORY, MMAP
+        }
+
+        private boolean enabled = false;
+
+        private int defaultPageSize = 10;
+
+        private int maximumPageSize = 50;
+
+        private long maximumBytes = 67108864;
+
+        private Duration timeToLive = Duration.ofMinutes(10);
+
+        private int estimatedResourceSize = 4096;
+
+        private Store store = Store.MEMORY;
+
+        private Mmap mmap = new Mmap();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getDefaultPageSize() {
+            return defaultPageSize;
+        }
+
+        public void setDefaultPageSize(int defaultPageSize) {
+            this.defaultPageSize = defaultPageSize;
+        }
+
+        public int getMaximumPageSize() {
+            return maximumPageSize;
+        }
+
+        public void setMaximumPageSize(int maximumPageSize) {
+            this.maximumPageSize = maximumPageSize;
+        }
+
+        public long getMaximumBytes() {
+            return maximumBytes;
+        }
+
+        public void setMaximumBytes(long maximumBytes) {
+            this.maximumBytes = maximumBytes;
+        }
+
+        public Duration getTimeToLive() {
+            return timeToLive;
+        }
+
+        public void setTimeToLive(Duration timeToLive) {
+            this.timeToLive = timeToLive;
+        }
+
+        public int getEstimatedResourceSize() {
+            return estimatedResourceSize;
+        }
+
+        public void setEstimatedResourceSize(int estimatedResourceSize) {
+            this.estimatedResourceSize = estimatedResourceSize;
+        }
+
+        public Store getStore() {
+            return store;
+        }
+
+        public void setStore(Store store) {
+            this.store = store;
+        }
+
+        public Mmap getMmap() {
+            return mmap;
+        }
+
+        public void setMmap(Mmap mmap) {
+            this.mmap = mmap;
+        }
+    }
+
+    public static class Mmap {
+
+        private String directory;
+
+        private long segmentSize = 67108864;
+
+        private long maximumBytes = 1073741824;
+
+        private boolean encodeEntries = false;
+
+        private Duration cleanupInterval = Duration.ofMinutes(1);
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public long getSegmentSize() {
+            return segmentSize;
+        }
+
+        public void setSegmentSize(long segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        public long getMaximumBytes() {
+            return maximumBytes;
+        }
+
+        public void setMaximumBytes(long maximumBytes) {
+            this.maximumBytes = maximumBytes;
+        }
+
+        public boolean isEncodeEntries() {
+            return encodeEntries;
+        }
+
+        public void setEncodeEntries(boolean encodeEntries) {
+            this.encodeEntries = encodeEntries;
+        }
+
+        public Duration getCleanupInterval() {
+            return cleanupInterval;
+        }
+
+        public void setCleanupInterval(Duration cleanupInterval) {
+            this.cleanupInterval = cleanupInterval;
+        }
+    }
+}
@@ -12,15 +12,26 @@
  */
 package io.igia.config.fhir;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 import javax.annotation.PostConstruct;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
@@ -29,22 +40,26 @@ import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
 import org.springframework.boot.autoconfigure.security.oauth2.resource.ResourceServerProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.oauth2.client.OAuth2RestTemplate;
 import org.springframework.security.oauth2.config.annotation.web.configuration.ResourceServerConfigurerAdapter;
+import org.springframework.security.oauth2.config.annotation.web.configurers.ResourceServerSecurityConfigurer;
 import org.springframework.security.oauth2.provider.token.TokenStore;
 import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
 import org.springframework.security.oauth2.provider.token.store.JwtTokenStore;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.support.HttpRequestHandlerServlet;
 import org.springframework.web.cors.CorsConfiguration;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.interceptor.CorsInterceptor;
@@ -52,10 +67,33 @@ import ca.uhn.fhir.rest.server.interceptor.ExceptionHandlingInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.LoggingInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
+import io.igia.config.fhir.audit.AuditEventBundlePoster;
+import io.igia.config.fhir.audit.AuditEventRecordWriter;
+import io.igia.config.fhir.audit.AuditRecordWriter;
+import io.igia.config.fhir.audit.AuditSink;
+import io.igia.config.fhir.audit.RingBufferAuditSink;
+import io.igia.config.fhir.audit.RollingFileAuditRecordWriter;
+import io.igia.config.fhir.interceptor.AuthorizationRuleCache;
+import io.igia.config.fhir.interceptor.CapabilityStatementCacheInterceptor;
 import io.igia.config.fhir.interceptor.IgiaExceptionHandlingInterceptor;
+import io.igia.config.fhir.interceptor.ReadResponseCacheInterceptor;
+import io.igia.config.fhir.interceptor.ResourceTypeRegistry;
+import io.igia.config.fhir.interceptor.ResponseCompressionInterceptor;
 import io.igia.config.fhir.interceptor.ScopeBasedAuthorizationInterceptor;
+import io.igia.config.fhir.interceptor.VerifiedTokenCache;
+import io.igia.config.fhir.paging.MappedPagingProvider;
+import io.igia.config.fhir.paging.MemoryAwarePagingProvider;
 import io.igia.config.fhir.rest.IgiaFhirController;
+import io.igia.config.fhir.rest.SmartConfigurationController;
+import io.igia.config.fhir.security.CachingTokenIntrospectionServices;
+import io.igia.config.fhir.security.KeyRotatingJwtAccessTokenConverter;
+import io.igia.config.fhir.security.VerifierKeyManager;
+import io.igia.config.fhir.server.AsyncRequestHandler;
+import io.igia.config.fhir.server.FhirContextWarmup;
 import io.igia.config.fhir.server.FhirRestfulServerCustomizer;
+import io.igia.config.fhir.server.IgiaFhirRestfulServer;
+import io.igia.config.fhir.server.VirtualThreadMonitor;
+import io.igia.config.fhir.server.VirtualThreads;
 
 @Configuration
 @ConditionalOnClass(IgiaFhirController.class)
@@ -88,12 +126,104 @@ public class IgiaFhirAutoConfiguration {
 		return fhirContext;
 	}
 
+	@Bean
+	@ConditionalOnMissingBean
+	@ConditionalOnProperty(value = "hapi.fhir.warmup.enabled", havingValue = "true", matchIfMissing = false)
+	/**
+	 * scans resource definitions and exercises parsers before the application reports ready
+	 */
+	public FhirContextWarmup fhirContextWarmup(FhirContext fhirContext, ResourceTypeRegistry resourceTypeRegistry,
+			ObjectProvider<List<IResourceProvider>> resourceProviders) {
+		FhirProperties.Warmup warmup = properties.getWarmup();
+		return new FhirContextWarmup(fhirContext, resourceTypeRegistry, resourceProviders.getIfAvailable(),
+				warmup.getResourceTypes(), warmup.getParallelism());
+	}
+
 	@Bean
 	@ConditionalOnMissingBean(name="fhirRestfulServerCustomizer")
 	public FhirRestfulServerCustomizer fhirRestfulServerCustomizer() {
 		return new IgiaRestfulServerCustomizer (this.properties);
 	}
 
+	@Bean
+	@ConditionalOnMissingBean(name="igiaFhirRestfulServerRegistration")
+	@ConditionalOnProperty(value = "hapi.fhir.server.registration", havingValue = "servlet")
+	/**
+	 * registers the FHIR servlet directly on the server path instead of routing requests through IgiaFhirController
+	 */
+	public ServletRegistrationBean<IgiaFhirRestfulServer> igiaFhirRestfulServerRegistration() {
+		ServletRegistrationBean<IgiaFhirRestfulServer> registration = new ServletRegistrationBean<>(
+				new IgiaFhirRestfulServer(), serverBasePath() + "/*");
+		registration.setName("igiaFhirRestfulServerConfiguration");
+		registration.setLoadOnStartup(1);
+		return registration;
+	}
+
+	@Bean
+	@ConditionalOnMissingBean(name="smartConfigurationServletRegistration")
+	@ConditionalOnProperty(value = "hapi.fhir.server.registration", havingValue = "servlet")
+	@ConditionalOnBean(SmartConfigurationController.class)
+	/**
+	 * the FHIR servlet mapping takes precedence over the dispatcher, so map the SMART discovery document on its exact path
+	 */
+	public ServletRegistrationBean<HttpRequestHandlerServlet> smartConfigurationServletRegistration() {
+		ServletRegistrationBean<HttpRequestHandlerServlet> registration = new ServletRegistrationBean<>(
+				new HttpRequestHandlerServlet(), serverBasePath() + "/.well-known/smart-configuration");
+		// HttpRequestHandlerServlet delegates to the bean named like the servlet
+		registration.setName("smartConfigurationController");
+		return registration;
+	}
+
+	@Bean
+	@ConditionalOnMissingBean(name="fhirRequestExecutor")
+	@ConditionalOnProperty(value = "hapi.fhir.rest.execution", havingValue = "async")
+	/**
+	 * runs provider invocations of asynchronous FHIR requests
+	 */
+	public ThreadPoolTaskExecutor fhirRequestExecutor() {
+		FhirProperties.RequestExecutor executor = properties.getRest().getExecutor();
+		ThreadPoolTaskExecutor taskExecutor = new ThreadPoolTaskExecutor();
+		taskExecutor.setThreadNamePrefix("fhir-request-");
+		taskExecutor.setCorePoolSize(executor.getCorePoolSize());
+		taskExecutor.setMaxPoolSize(executor.getMaxPoolSize());
+		taskExecutor.setQueueCapacity(executor.getQueueCapacity());
+		taskExecutor.setKeepAliveSeconds((int) executor.getKeepAlive().getSeconds());
+		return taskExecutor;
+	}
+
+	@Bean(name = "fhirRequestExecutor", destroyMethod = "shutdown")
+	@ConditionalOnMissingBean(name="fhirRequestExecutor")
+	@ConditionalOnProperty(value = "hapi.fhir.rest.execution", havingValue = "virtual-threads")
+	/**
+	 * starts a virtual thread for each asynchronous FHIR request, fails on Java versions without virtual threads
+	 */
+	public ExecutorService fhirVirtualThreadRequestExecutor() {
+		return VirtualThreads.newThreadPerTaskExecutor("fhir-request-");
+	}
+
+	@Bean
+	@ConditionalOnMissingBean
+	@ConditionalOnExpression("'${hapi.fhir.rest.execution:container}'=='async' || '${hapi.fhir.rest.execution:container}'=='virtual-threads'")
+	public AsyncRequestHandler asyncRequestHandler(@Qualifier("fhirRequestExecutor") Executor fhirRequestExecutor) {
+		return new AsyncRequestHandler(fhirRequestExecutor, properties.getRest().getRequestTimeout());
+	}
+
+	@Bean
+	@ConditionalOnMissingBean
+	@ConditionalOnProperty(value = "hapi.fhir.rest.execution", havingValue = "virtual-threads")
+	/**
+	 * reports synchronized interceptor and provider methods, pinned virtual threads and carrier thread use
+	 */
+	public VirtualThreadMonitor virtualThreadMonitor(ObjectProvider<List<IServerInterceptor>> interceptors,
+			ObjectProvider<List<IResourceProvider>> resourceProviders) {
+		List<Object> requestComponents = new ArrayList<>();
+		requestComponents.addAll(interceptors.getIfAvailable(Collections::emptyList));
+		requestComponents.addAll(resourceProviders.getIfAvailable(Collections::emptyList));
+		FhirProperties.VirtualThreadExecution virtualThreads = properties.getRest().getVirtualThreads();
+		return new VirtualThreadMonitor(requestComponents, virtualThreads.isPinningDetection(),
+				virtualThreads.getPinnedThreshold());
+	}
+
 	@Bean
 	@ConditionalOnMissingBean
 	public CorsInterceptor corsInterceptor() {
@@ -156,13 +286,162 @@ public class IgiaFhirAutoConfiguration {
 		return retVal;
 	}
 	
+	@Bean
+	@ConditionalOnMissingBean
+	@ConditionalOnProperty(value = "hapi.fhir.metadata-cache.enabled", havingValue = "true", matchIfMissing = true)
+	/**
+	 * serves /metadata from serialized capability statements with ETag and 304 support
+	 */
+	public CapabilityStatementCacheInterceptor capabilityStatementCacheInterceptor() {
+		return new CapabilityStatementCacheInterceptor(properties.getMetadataCache().getMaxAge());
+	}
+
+	@Bean
+	@ConditionalOnMissingBean
+	@ConditionalOnProperty(value = "hapi.fhir.compression.enabled", havingValue = "true", matchIfMissing = true)
+	@Order(Ordered.HIGHEST_PRECEDENCE)
+	/**
+	 * compresses responses above a minimum size with pooled deflaters, first in line to drop
+	 * what it held back when an exception is handled
+	 */
+	public ResponseCompressionInterceptor responseCompressionInterceptor() {
+		FhirProperties.Compression compression = properties.getCompression();
+		return new ResponseCompressionInterceptor(compression.getMinimumSize(), compression.getLevel(),
+				compression.getPoolSize());
+	}
+
+	@Bean
+	@ConditionalOnMissingBean
+	@ConditionalOnProperty(value = "hapi.fhir.read-cache.enabled", havingValue = "true", matchIfMissing = false)
+	/**
+	 * serves read and vread responses from encoded bodies, authorized again on every hit
+	 */
+	public ReadResponseCacheInterceptor readResponseCacheInterceptor() {
+		FhirProperties.ReadCache readCache = properties.getReadCache();
+		return new ReadResponseCacheInterceptor(readCache.getMaximumBytes(), readCache.getMaximumBodySize(),
+				readCache.getResourceTypes());
+	}
+
+	@Bean
+	@ConditionalOnMissingBean(IPagingProvider.class)
+	@ConditionalOnExpression("${hapi.fhir.paging.enabled:false} && '${hapi.fhir.paging.store:memory}'=='memory'")
+	/**
+	 * keeps search results for paging within a byte budget, as id lists where providers can load by id
+	 */
+	public MemoryAwarePagingProvider pagingProvider(FhirContext fhirContext,
+			ObjectProvider<List<IResourceProvider>> resourceProviders) {
+		FhirProperties.Paging paging = properties.getPaging();
+		MemoryAwarePagingProvider pagingProvider = new MemoryAwarePagingProvider(fhirContext,
+				resourceProviders.getIfAvailable(Collections::emptyList), paging.getMaximumBytes(),
+				paging.getTimeToLive().toMillis(), paging.getEstimatedResourceSize());
+		pagingProvider.setDefaultPageSize(paging.getDefaultPageSize());
+		pagingProvider.setMaximumPageSize(paging.getMaximumPageSize());
+		return pagingProvider;
+	}
+
+	@Bean
+	@ConditionalOnMissingBean(IPagingProvider.class)
+	@ConditionalOnExpression("${hapi.fhir.paging.enabled:false} && '${hapi.fhir.paging.store:memory}'=='mmap'")
+	/**
+	 * keeps search results for paging in memory-mapped segment files, in a new temporary
+	 * directory unless one is configured
+	 */
+	public MappedPagingProvider mappedPagingProvider(FhirContext fhirContext,
+			ObjectProvider<List<IResourceProvider>> resourceProviders) throws IOException {
+		FhirProperties.Paging paging = properties.getPaging();
+		FhirProperties.Mmap mmap = paging.getMmap();
+		Path directory = mmap.getDirectory() != null ? Paths.get(mmap.getDirectory())
+				: Files.createTempDirectory("igia-fhir-paging-");
+		MappedPagingProvider pagingProvider = new MappedPagingProvider(fhirContext,
+				resourceProviders.getIfAvailable(Collections::emptyList), directory, mmap.getSegmentSize(),
+				mmap.getMaximumBytes(), paging.getTimeToLive().toMillis(), mmap.isEncodeEntries(),
+				mmap.getCleanupInterval().toMillis());
+		pagingProvider.setDefaultPageSize(paging.getDefaultPageSize());
+		pagingProvider.setMaximumPageSize(paging.getMaximumPageSize());
+		return pagingProvider;
+	}
+
+	@Bean
+	@ConditionalOnMissingBean
+	public ResourceTypeRegistry resourceTypeRegistry(FhirContext fhirContext) {
+		return new ResourceTypeRegistry(fhirContext);
+	}
+	
 	@Bean
 	@ConditionalOnMissingBean(name="scopeBasedAuthorizationInterceptor")
 	@ConditionalOnExpression("'${hspc.platform.api.security.mode}'=='secured' || '${hspc.platform.api.security.mode}'=='mock'")
-	public ScopeBasedAuthorizationInterceptor scopeBasedAuthorizationInterceptor(TokenStore tokenStore, OAuth2RestTemplate oAuth2RestTemplate) {
-		return new ScopeBasedAuthorizationInterceptor(tokenStore, oAuth2RestTemplate);
+	public ScopeBasedAuthorizationInterceptor scopeBasedAuthorizationInterceptor(TokenStore tokenStore, OAuth2RestTemplate oAuth2RestTemplate,
+			ResourceTypeRegistry resourceTypeRegistry, ObjectProvider<CachingTokenIntrospectionServices> tokenIntrospectionServices,
+			ObjectProvider<AuditSink> auditSink) {
+		ScopeBasedAuthorizationInterceptor interceptor = new ScopeBasedAuthorizationInterceptor(tokenStore, oAuth2RestTemplate,
+				resourceTypeRegistry);
+		interceptor.setTokenServices(tokenIntrospectionServices.getIfAvailable());
+		interceptor.setAuditSink(auditSink.getIfAvailable());
+		FhirProperties.RuleCache ruleCache = properties.getAuthorization().getRuleCache();
+		if (ruleCache.isEnabled()) {
+			interceptor.setRuleCache(new AuthorizationRuleCache(ruleCache.getMaximumSize(), ruleCache.getTimeToLive()));
+		}
+		FhirProperties.TokenCache tokenCache = properties.getAuthorization().getTokenCache();
+		if (tokenCache.isEnabled()) {
+			interceptor.setTokenCache(new VerifiedTokenCache(tokenCache.getMaximumSize(), tokenCache.getTimeToLive()));
+		}
+		interceptor.setEvaluator(properties.getAuthorization().getEvaluator());
+		interceptor.setCompartmentSearchNarrowing(properties.getAuthorization().isCompartmentSearchNarrowing());
+		interceptor.setTransactionAuthorization(properties.getAuthorization().isTransactionAuthorization());
+		return interceptor;
 	}
 	
+    @Bean
+	@ConditionalOnMissingBean
+    @ConditionalOnExpression("${hapi.fhir.authorization.audit.enabled:false} && '${hapi.fhir.authorization.audit.writer:file}'=='file'")
+    public AuditRecordWriter auditRecordWriter() {
+        FhirProperties.Audit audit = properties.getAuthorization().getAudit();
+        return new RollingFileAuditRecordWriter(Paths.get(audit.getDirectory()), audit.getFileName(),
+            audit.getMaximumFileSize(), audit.getMaximumHistory());
+    }
+
+    @Bean
+	@ConditionalOnMissingBean
+    @ConditionalOnExpression("${hapi.fhir.authorization.audit.enabled:false} && '${hapi.fhir.authorization.audit.writer:file}'=='audit-event'")
+    /**
+     * posts each batch of audit records as a batch bundle of AuditEvent resources to the configured FHIR server
+     */
+    public AuditRecordWriter auditEventRecordWriter(FhirContext fhirContext) {
+        FhirProperties.Audit audit = properties.getAuthorization().getAudit();
+        if (audit.getServerUrl() == null || audit.getServerUrl().isEmpty()) {
+            throw new IllegalStateException("hapi.fhir.authorization.audit.server-url is required for the audit-event writer");
+        }
+        return new AuditEventRecordWriter(audit.getSourceId(),
+            new AuditEventBundlePoster(fhirContext, audit.getServerUrl(), new RestTemplate()));
+    }
+
+    @Bean
+	@ConditionalOnMissingBean
+    @ConditionalOnProperty(value = "hapi.fhir.authorization.audit.enabled", havingValue = "true", matchIfMissing = false)
+    public AuditSink auditSink(AuditRecordWriter auditRecordWriter) {
+        FhirProperties.Audit audit = properties.getAuthorization().getAudit();
+        return new RingBufferAuditSink(auditRecordWriter, audit.getCapacity(), audit.getBatchSize(),
+            audit.getFlushInterval(), audit.getOverflowPolicy(), audit.getBlockTimeout());
+    }
+
+    @Bean
+	@ConditionalOnMissingBean
+    @ConditionalOnProperty(value = "hapi.fhir.authorization.introspection.enabled", havingValue = "true", matchIfMissing = false)
+    public CachingTokenIntrospectionServices tokenIntrospectionServices() {
+        FhirProperties.Introspection introspection = properties.getAuthorization().getIntrospection();
+        return new CachingTokenIntrospectionServices(
+            resourceServerProperties.getTokenInfoUri(),
+            resourceServerProperties.getClientId(),
+            resourceServerProperties.getClientSecret(),
+            introspection.getMaximumSize(),
+            introspection.getMaximumTimeToLive(),
+            introspection.getNegativeTimeToLive(),
+            introspection.getConnectTimeout(),
+            introspection.getReadTimeout(),
+            introspection.getFailureThreshold(),
+            introspection.getOpenDuration());
+    }
+
     @Bean
 	@ConditionalOnMissingBean
     @ConditionalOnProperty("security.oauth2.resource.jwt.key-uri")
@@ -173,36 +452,57 @@ public class IgiaFhirAutoConfiguration {
     @Bean
 	@ConditionalOnMissingBean
     @ConditionalOnProperty("security.oauth2.resource.jwt.key-uri")
-    public JwtAccessTokenConverter jwtAccessTokenConverter() {
-        JwtAccessTokenConverter converter = new JwtAccessTokenConverter();
-        converter.setVerifierKey(getKeyFromAuthorizationServer());
-        return converter;
+    public VerifierKeyManager verifierKeyManager() {
+        FhirProperties.Keys keys = properties.getAuthorization().getKeys();
+        return new VerifierKeyManager(
+            resourceServerProperties.getJwt().getKeyUri(),
+            resourceServerProperties.getJwt().getKeyValue(),
+            Optional.ofNullable(keys.getCacheFile()).map(Paths::get).orElse(null),
+            keys.getRefreshInterval(),
+            keys.getMinimumRefreshInterval(),
+            keys.getConnectTimeout(),
+            keys.getReadTimeout());
     }
 
-    private String getKeyFromAuthorizationServer() {
-        return Optional.ofNullable(
-            new RestTemplate()
-                .exchange(
-                    resourceServerProperties.getJwt().getKeyUri(),
-                    HttpMethod.GET,
-                    new HttpEntity<Void>(new HttpHeaders()),
-                    Map.class
-                )
-                .getBody()
-                .get("public_key"))
-            .map(publicKey -> String.format("-----BEGIN PUBLIC KEY-----\n%s\n-----END PUBLIC KEY-----", publicKey))
-            .orElse(resourceServerProperties.getJwt().getKeyValue());
+    @Bean
+	@ConditionalOnMissingBean
+    @ConditionalOnProperty("security.oauth2.resource.jwt.key-uri")
+    public JwtAccessTokenConverter jwtAccessTokenConverter(VerifierKeyManager verifierKeyManager) {
+        return new KeyRotatingJwtAccessTokenConverter(verifierKeyManager);
     }
     
+    private String serverBasePath() {
+        String path = properties.getServer().getPath();
+        if (path.endsWith("/*")) {
+            path = path.substring(0, path.length() - 2);
+        }
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
     @Configuration
     @Order(1)
     protected static class ResourceServerConfiguration
         extends ResourceServerConfigurerAdapter {
+      private final ObjectProvider<CachingTokenIntrospectionServices> tokenIntrospectionServices;
+
+      public ResourceServerConfiguration(ObjectProvider<CachingTokenIntrospectionServices> tokenIntrospectionServices) {
+        this.tokenIntrospectionServices = tokenIntrospectionServices;
+      }
+
+      @Override
+      public void configure(ResourceServerSecurityConfigurer resources) throws Exception {
+        CachingTokenIntrospectionServices tokenServices = tokenIntrospectionServices.getIfAvailable();
+        if (tokenServices != null) {
+          resources.tokenServices(tokenServices);
+        }
+      }
+
       @Override
       public void configure(HttpSecurity http) throws Exception {
         http
         	.authorizeRequests()
-        	.antMatchers("/api/metadata").permitAll(); //FHIR capability statement endpoint should be open    
+        	.antMatchers("/api/metadata").permitAll() //FHIR capability statement endpoint should be open    
+        	.antMatchers("/api/.well-known/smart-configuration").permitAll(); //SMART discovery document should be open
       }
     }
 }
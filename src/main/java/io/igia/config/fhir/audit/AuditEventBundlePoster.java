@@ -0,0 +1,58 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.audit;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.dstu3.model.AuditEvent;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.client.RestTemplate;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Store for an {@link AuditEventRecordWriter} that posts each batch of AuditEvent resources
+ * to a FHIR server as a batch bundle. Used from the single audit writer thread only.
+ */
+public class AuditEventBundlePoster implements Consumer<List<AuditEvent>> {
+
+	private static final MediaType FHIR_JSON = MediaType.parseMediaType("application/fhir+json");
+
+	private final IParser parser;
+	private final String serverUrl;
+	private final RestTemplate restTemplate;
+
+	public AuditEventBundlePoster(FhirContext fhirContext, String serverUrl, RestTemplate restTemplate) {
+		this.parser = fhirContext.newJsonParser();
+		this.serverUrl = serverUrl;
+		this.restTemplate = restTemplate;
+	}
+
+	@Override
+	public void accept(List<AuditEvent> events) {
+		Bundle bundle = new Bundle().setType(BundleType.BATCH);
+		for (AuditEvent event : events) {
+			bundle.addEntry().setResource(event).getRequest().setMethod(HTTPVerb.POST).setUrl("AuditEvent");
+		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(FHIR_JSON);
+		restTemplate.postForEntity(serverUrl, new HttpEntity<>(parser.encodeResourceToString(bundle), headers), String.class);
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.audit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.dstu3.model.AuditEvent;
+import org.hl7.fhir.dstu3.model.AuditEvent.AuditEventAction;
+import org.hl7.fhir.dstu3.model.AuditEvent.AuditEventOutcome;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.hl7.fhir.dstu3.model.Reference;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+
+/**
+ * Converts authorization decisions into DSTU3 {@link AuditEvent} resources and hands each
+ * batch to a store, e.g. an AuditEvent resource provider or a FHIR client.
+ */
+public class AuditEventRecordWriter implements AuditRecordWriter {
+
+	private static final String AUDIT_EVENT_TYPE_SYSTEM = "http://hl7.org/fhir/audit-event-type";
+	private static final String RESTFUL_INTERACTION_SYSTEM = "http://hl7.org/fhir/restful-interaction";
+	private static final String OBJECT_ROLE_SYSTEM = "http://hl7.org/fhir/object-role";
+
+	private final String sourceId;
+	private final Consumer<List<AuditEvent>> store;
+
+	public AuditEventRecordWriter(String sourceId, Consumer<List<AuditEvent>> store) {
+		this.sourceId = sourceId;
+		this.store = store;
+	}
+
+	@Override
+	public void write(List<AuthorizationDecision> batch) {
+		List<AuditEvent> events = new ArrayList<>(batch.size());
+		for (AuthorizationDecision decision : batch) {
+			events.add(toAuditEvent(decision));
+		}
+		store.accept(events);
+	}
+
+	protected AuditEvent toAuditEvent(AuthorizationDecision decision) {
+		AuditEvent event = new AuditEvent();
+		event.setType(new Coding(AUDIT_EVENT_TYPE_SYSTEM, "rest", "RESTful Operation"));
+		RestOperationTypeEnum operation = decision.getOperation();
+		if (operation != null) {
+			event.addSubtype(new Coding(RESTFUL_INTERACTION_SYSTEM, operation.getCode(), null));
+		}
+		event.setAction(actionOf(operation));
+		event.setRecorded(new Date(decision.getTimestamp()));
+		event.setOutcome(decision.getOutcome() == PolicyEnum.ALLOW ? AuditEventOutcome._0 : AuditEventOutcome._4);
+		event.setOutcomeDesc(decision.getRule());
+
+		AuditEvent.AuditEventAgentComponent agent = event.addAgent();
+		agent.setRequestor(true);
+		if (decision.getSubject() != null) {
+			agent.setUserId(new Identifier().setValue(decision.getSubject()));
+		}
+		agent.setAltId(decision.getClientId());
+
+		event.getSource().setIdentifier(new Identifier().setValue(sourceId));
+
+		if (decision.getResource() != null) {
+			AuditEvent.AuditEventEntityComponent entity = event.addEntity();
+			entity.setReference(new Reference(decision.getResource()));
+			entity.setRole(new Coding(OBJECT_ROLE_SYSTEM, "4", "Domain Resource"));
+			for (String scope : decision.getScopes()) {
+				entity.addDetail().setType("scope").setValue(scope.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		if (decision.getPatientId() != null) {
+			event.addEntity()
+				.setReference(new Reference("Patient/" + decision.getPatientId()))
+				.setRole(new Coding(OBJECT_ROLE_SYSTEM, "1", "Patient"));
+		}
+		return event;
+	}
+
+	private static AuditEventAction actionOf(RestOperationTypeEnum operation) {
+		if (operation == null) {
+			return AuditEventAction.E;
+		}
+		switch (operation) {
+		case CREATE:
+			return AuditEventAction.C;
+		case READ:
+		case VREAD:
+		case SEARCH_TYPE:
+		case SEARCH_SYSTEM:
+		case HISTORY_INSTANCE:
+		case HISTORY_TYPE:
+		case HISTORY_SYSTEM:
+			return AuditEventAction.R;
+		case UPDATE:
+			return AuditEventAction.U;
+		case DELETE:
+			return AuditEventAction.D;
+		default:
+			return AuditEventAction.E;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.audit;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes batches of authorization decisions; only ever called from the writer thread of
+ * {@link RingBufferAuditSink}.
+ */
+public interface AuditRecordWriter {
+
+	void write(List<AuthorizationDecision> batch) throws IOException;
+
+	default void close() throws IOException {
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.audit;
+
+import java.util.Collections;
+import java.util.Set;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+
+/**
+ * Immutable record of a single allow or deny decision of the authorization interceptor.
+ */
+public final class AuthorizationDecision {
+
+	private final long timestamp;
+	private final String subject;
+	private final String clientId;
+	private final String patientId;
+	private final Set<String> scopes;
+	private final RestOperationTypeEnum operation;
+	private final String resource;
+	private final PolicyEnum outcome;
+	private final String rule;
+
+	public AuthorizationDecision(long timestamp, String subject, String clientId, String patientId, Set<String> scopes,
+			RestOperationTypeEnum operation, String resource, PolicyEnum outcome, String rule) {
+		this.timestamp = timestamp;
+		this.subject = subject;
+		this.clientId = clientId;
+		this.patientId = patientId;
+		this.scopes = scopes == null ? Collections.<String>emptySet() : scopes;
+		this.operation = operation;
+		this.resource = resource;
+		this.outcome = outcome;
+		this.rule = rule;
+	}
+
+	/**
+	 * @return epoch millisecond of the decision
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public String getClientId() {
+		return clientId;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public Set<String> getScopes() {
+		return scopes;
+	}
+
+	public RestOperationTypeEnum getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return the resource id, or the resource type if the decision is not about a single resource
+	 */
+	public String getResource() {
+		return resource;
+	}
+
+	public PolicyEnum getOutcome() {
+		return outcome;
+	}
+
+	/**
+	 * @return name of the rule that decided, or null if no rule matched
+	 */
+	public String getRule() {
+		return rule;
+	}
+
+	@Override
+	public String toString() {
+		return "AuthorizationDecision[" + outcome + " " + operation + " " + resource + " subject=" + subject + " rule=" + rule + "]";
+	}
+}
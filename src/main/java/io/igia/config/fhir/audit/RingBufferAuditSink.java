@@ -0,0 +1,261 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.audit;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * {@link AuditSink} that hands decisions to a single writer thread through a bounded,
+ * lock-free ring buffer.
+ * <p>
+ * Request threads claim a slot with a compare-and-set and never take a lock. The writer
+ * thread drains the buffer in batches, when a batch is full or after the flush interval,
+ * and passes them to an {@link AuditRecordWriter}. When the buffer is full, decisions are
+ * dropped or the request thread waits for free space up to a timeout, depending on the
+ * {@link OverflowPolicy}.
+ */
+public class RingBufferAuditSink implements AuditSink, InitializingBean, DisposableBean {
+
+	public enum OverflowPolicy {
+		/** drop the decision and count it */
+		DROP,
+		/** wait for free space up to the block timeout, then drop */
+		BLOCK
+	}
+
+	private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final Logger log = LoggerFactory.getLogger(RingBufferAuditSink.class);
+
+	private final AuditRecordWriter writer;
+	private final AtomicReferenceArray<AuthorizationDecision> slots;
+	private final int mask;
+	private final int batchSize;
+	private final long flushIntervalNanos;
+	private final OverflowPolicy overflowPolicy;
+	private final long blockTimeoutNanos;
+
+	// next slot to claim, written by request threads
+	private final AtomicLong tail = new AtomicLong();
+	// next slot to drain, written by the writer thread only
+	private final AtomicLong head = new AtomicLong();
+
+	private final LongAdder recordedCount = new LongAdder();
+	private final LongAdder droppedCount = new LongAdder();
+	private final LongAdder blockedCount = new LongAdder();
+	private final LongAdder writtenCount = new LongAdder();
+	private final LongAdder batchCount = new LongAdder();
+	private final LongAdder writeFailureCount = new LongAdder();
+
+	private volatile boolean running;
+	private volatile Thread writerThread;
+
+	public RingBufferAuditSink(AuditRecordWriter writer, int capacity, int batchSize, Duration flushInterval,
+			OverflowPolicy overflowPolicy, Duration blockTimeout) {
+		if (capacity < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("capacity and batchSize must be positive");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.writer = writer;
+		this.slots = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+		this.batchSize = Math.min(batchSize, size);
+		this.flushIntervalNanos = flushInterval.toNanos();
+		this.overflowPolicy = overflowPolicy;
+		this.blockTimeoutNanos = blockTimeout.toNanos();
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		running = true;
+		Thread thread = new Thread(this::drainLoop, "fhir-audit-writer");
+		thread.setDaemon(true);
+		writerThread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Stop accepting decisions and wait up to five seconds for the writer thread to drain the
+	 * buffer. The writer thread closes the record writer once it has drained.
+	 */
+	@Override
+	public void destroy() throws Exception {
+		running = false;
+		Thread thread = writerThread;
+		if (thread == null) {
+			writer.close();
+			return;
+		}
+		LockSupport.unpark(thread);
+		thread.join(TimeUnit.SECONDS.toMillis(5));
+		if (thread.isAlive()) {
+			log.warn("Authorization audit writer is still draining {} records after shutdown timeout", getPendingCount());
+		}
+	}
+
+	@Override
+	public void record(AuthorizationDecision decision) {
+		long deadline = 0;
+		long claimed;
+		while (true) {
+			claimed = tail.get();
+			if (claimed - head.get() >= slots.length()) {
+				if (overflowPolicy != OverflowPolicy.BLOCK || !running) {
+					droppedCount.increment();
+					return;
+				}
+				long now = System.nanoTime();
+				if (deadline == 0) {
+					blockedCount.increment();
+					deadline = now + blockTimeoutNanos;
+				} else if (now - deadline >= 0) {
+					droppedCount.increment();
+					return;
+				}
+				LockSupport.unpark(writerThread);
+				LockSupport.parkNanos(BLOCK_PARK_NANOS);
+				continue;
+			}
+			if (tail.compareAndSet(claimed, claimed + 1)) {
+				break;
+			}
+		}
+		slots.lazySet((int) claimed & mask, decision);
+		recordedCount.increment();
+		if (claimed - head.get() + 1 == batchSize) {
+			LockSupport.unpark(writerThread);
+		}
+	}
+
+	private void drainLoop() {
+		List<AuthorizationDecision> batch = new ArrayList<>(batchSize);
+		try {
+			while (true) {
+				poll(batch);
+				if (!batch.isEmpty()) {
+					write(batch);
+					batch.clear();
+					continue;
+				}
+				if (!running) {
+					if (getPendingCount() == 0) {
+						return;
+					}
+					// a request thread has claimed a slot but not filled it yet
+					Thread.yield();
+					continue;
+				}
+				LockSupport.parkNanos(this, flushIntervalNanos);
+			}
+		} finally {
+			closeWriter();
+		}
+	}
+
+	private void closeWriter() {
+		try {
+			writer.close();
+		} catch (Exception e) {
+			log.warn("Failed to close authorization audit writer: {}", e.toString());
+		}
+	}
+
+	private void poll(List<AuthorizationDecision> batch) {
+		long next = head.get();
+		while (batch.size() < batchSize) {
+			int index = (int) next & mask;
+			AuthorizationDecision decision = slots.get(index);
+			if (decision == null) {
+				break;
+			}
+			slots.lazySet(index, null);
+			batch.add(decision);
+			next++;
+		}
+		head.lazySet(next);
+	}
+
+	private void write(List<AuthorizationDecision> batch) {
+		try {
+			writer.write(batch);
+			writtenCount.add(batch.size());
+			batchCount.increment();
+		} catch (Exception e) {
+			writeFailureCount.add(batch.size());
+			log.warn("Failed to write {} authorization audit records: {}", batch.size(), e.toString());
+		}
+	}
+
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * @return number of decisions accepted into the buffer
+	 */
+	public long getRecordedCount() {
+		return recordedCount.sum();
+	}
+
+	/**
+	 * @return number of decisions dropped because the buffer was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/**
+	 * @return number of decisions whose request thread had to wait for free space
+	 */
+	public long getBlockedCount() {
+		return blockedCount.sum();
+	}
+
+	public long getWrittenCount() {
+		return writtenCount.sum();
+	}
+
+	public long getBatchCount() {
+		return batchCount.sum();
+	}
+
+	/**
+	 * @return number of decisions lost because the writer failed
+	 */
+	public long getWriteFailureCount() {
+		return writeFailureCount.sum();
+	}
+
+	public long getPendingCount() {
+		return tail.get() - head.get();
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.audit;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes authorization decisions as JSON lines to {@code <directory>/<name>.log}.
+ * <p>
+ * When the file grows beyond the maximum size it is renamed to {@code <name>.1.log},
+ * older files are shifted up by one, and files beyond the maximum history are deleted.
+ */
+public class RollingFileAuditRecordWriter implements AuditRecordWriter {
+
+	private final JsonFactory jsonFactory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	private final Path directory;
+	private final String name;
+	private final long maximumFileSize;
+	private final int maximumHistory;
+
+	private OutputStream out;
+	private long size;
+
+	public RollingFileAuditRecordWriter(Path directory, String name, long maximumFileSize, int maximumHistory) {
+		this.directory = directory;
+		this.name = name;
+		this.maximumFileSize = maximumFileSize;
+		this.maximumHistory = maximumHistory;
+	}
+
+	@Override
+	public void write(List<AuthorizationDecision> batch) throws IOException {
+		if (out == null) {
+			open();
+		}
+		CountingOutputStream counting = new CountingOutputStream(out);
+		for (AuthorizationDecision decision : batch) {
+			try (JsonGenerator json = jsonFactory.createGenerator(counting, JsonEncoding.UTF8)) {
+				writeDecision(json, decision);
+			}
+			counting.write('\n');
+		}
+		out.flush();
+		size += counting.count;
+		if (size >= maximumFileSize) {
+			roll();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	Path getFile(int index) {
+		return directory.resolve(index == 0 ? name + ".log" : name + "." + index + ".log");
+	}
+
+	private void open() throws IOException {
+		Files.createDirectories(directory);
+		Path file = getFile(0);
+		out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+		size = Files.size(file);
+	}
+
+	private void roll() throws IOException {
+		close();
+		Files.deleteIfExists(getFile(maximumHistory));
+		for (int index = maximumHistory - 1; index >= 0; index--) {
+			Path file = getFile(index);
+			if (Files.exists(file)) {
+				Files.move(file, getFile(index + 1), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	}
+
+	private static void writeDecision(JsonGenerator json, AuthorizationDecision decision) throws IOException {
+		json.writeStartObject();
+		json.writeStringField("time", Instant.ofEpochMilli(decision.getTimestamp()).toString());
+		json.writeStringField("outcome", String.valueOf(decision.getOutcome()));
+		json.writeStringField("operation", String.valueOf(decision.getOperation()));
+		json.writeStringField("resource", decision.getResource());
+		json.writeStringField("subject", decision.getSubject());
+		json.writeStringField("client", decision.getClientId());
+		json.writeStringField("patient", decision.getPatientId());
+		json.writeArrayFieldStart("scopes");
+		for (String scope : decision.getScopes()) {
+			json.writeString(scope);
+		}
+		json.writeEndArray();
+		json.writeStringField("rule", decision.getRule());
+		json.writeEndObject();
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		private final OutputStream delegate;
+		private long count;
+
+		CountingOutputStream(OutputStream delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			delegate.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			delegate.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			delegate.flush();
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.cache;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Small bounded cache where every entry carries its own expiry time.
+ * <p>
+ * Reads are lock free. Entries are also kept ordered by expiry, so when the cache is full
+ * expired entries are purged first and, if that is not enough, the entry closest to expiry
+ * is evicted, without scanning the cache. The bound is best effort under concurrent writes.
+ */
+public class ExpiringCache<K, V> {
+
+	private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListSet<Entry<K, V>> expiryOrder = new ConcurrentSkipListSet<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final int maximumSize;
+	private final LongSupplier clock;
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+
+	public ExpiringCache(int maximumSize) {
+		this(maximumSize, System::currentTimeMillis);
+	}
+
+	ExpiringCache(int maximumSize, LongSupplier clock) {
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("maximumSize must be positive");
+		}
+		this.maximumSize = maximumSize;
+		this.clock = clock;
+	}
+
+	/**
+	 * @return the cached value, or null if absent or expired
+	 */
+	public V get(K key) {
+		Entry<K, V> entry = entries.get(key);
+		if (entry == null) {
+			missCount.increment();
+			return null;
+		}
+		if (entry.expiresAt <= clock.getAsLong()) {
+			remove(entry);
+			missCount.increment();
+			return null;
+		}
+		hitCount.increment();
+		return entry.value;
+	}
+
+	/**
+	 * Store a value until the given epoch millisecond. Values that are already expired are ignored.
+	 */
+	public void put(K key, V value, long expiresAt) {
+		long now = clock.getAsLong();
+		if (expiresAt <= now) {
+			return;
+		}
+		if (entries.size() >= maximumSize && !entries.containsKey(key)) {
+			evict(now);
+		}
+		Entry<K, V> entry = new Entry<>(key, value, expiresAt, sequence.incrementAndGet());
+		expiryOrder.add(entry);
+		Entry<K, V> previous = entries.put(key, entry);
+		if (previous != null) {
+			expiryOrder.remove(previous);
+		}
+	}
+
+	public void invalidate(K key) {
+		Entry<K, V> entry = entries.remove(key);
+		if (entry != null) {
+			expiryOrder.remove(entry);
+		}
+	}
+
+	public void invalidateAll() {
+		entries.clear();
+		expiryOrder.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	private void evict(long now) {
+		Entry<K, V> first;
+		while ((first = firstOrNull()) != null && first.expiresAt <= now) {
+			if (remove(first)) {
+				evictionCount.increment();
+			}
+		}
+		while (entries.size() >= maximumSize && (first = firstOrNull()) != null) {
+			if (remove(first)) {
+				evictionCount.increment();
+			}
+		}
+	}
+
+	private Entry<K, V> firstOrNull() {
+		Iterator<Entry<K, V>> iterator = expiryOrder.iterator();
+		return iterator.hasNext() ? iterator.next() : null;
+	}
+
+	private boolean remove(Entry<K, V> entry) {
+		expiryOrder.remove(entry);
+		return entries.remove(entry.key, entry);
+	}
+
+	private static final class Entry<K, V> implements Comparable<Entry<K, V>> {
+		private final K key;
+		private final V value;
+		private final long expiresAt;
+		private final long sequence;
+
+		private Entry(K key, V value, long expiresAt, long sequence) {
+			this.key = key;
+			this.value = value;
+			this.expiresAt = expiresAt;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry<K, V> other) {
+			int byExpiry = Long.compare(expiresAt, other.expiresAt);
+			return byExpiry != 0 ? byExpiry : Long.compare(sequence, other.sequence);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.cache;
+
+/**
+ * Count-min sketch of recent access frequencies, with four rows of counters saturating at 15.
+ * All counters are halved once the number of increments reaches ten times the width, so old
+ * popularity fades. Not thread safe.
+ */
+final class FrequencySketch {
+
+	private static final int DEPTH = 4;
+	private static final int MAXIMUM_COUNT = 15;
+	private static final int MAXIMUM_WIDTH = 1 << 24;
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+			0xcbf29ce484222325L };
+
+	private byte[] counters;
+	private int width;
+	private int sampleSize;
+	private int additions;
+
+	FrequencySketch() {
+		resize(16);
+	}
+
+	/**
+	 * Widen the sketch to at least the given number of distinct keys, forgetting what was counted so far.
+	 */
+	void ensureCapacity(int size) {
+		int target = Math.min(MAXIMUM_WIDTH, Integer.highestOneBit(Math.max(16, size - 1)) << 1);
+		if (target > width) {
+			resize(target);
+		}
+	}
+
+	int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int frequency = MAXIMUM_COUNT;
+		for (int row = 0; row < DEPTH; row++) {
+			frequency = Math.min(frequency, counters[index(hash, row)]);
+		}
+		return frequency;
+	}
+
+	void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int row = 0; row < DEPTH; row++) {
+			int index = index(hash, row);
+			if (counters[index] < MAXIMUM_COUNT) {
+				counters[index]++;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			age();
+		}
+	}
+
+	int width() {
+		return width;
+	}
+
+	private void age() {
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] >>>= 1;
+		}
+		additions >>>= 1;
+	}
+
+	private void resize(int newWidth) {
+		width = newWidth;
+		counters = new byte[DEPTH * newWidth];
+		sampleSize = 10 * newWidth;
+		additions = 0;
+	}
+
+	private int index(int hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h += h >>> 32;
+		return row * width + ((int) h & (width - 1));
+	}
+
+	private static int spread(int hash) {
+		int h = hash * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+}
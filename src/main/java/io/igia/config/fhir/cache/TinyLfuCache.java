@@ -0,0 +1,346 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.cache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Cache bounded by the total weight of its values, with W-TinyLFU eviction.
+ * <p>
+ * New entries go to a small LRU window (1% of the weight). Entries leaving the window are
+ * admitted to the main space only if they were requested more often than the entries they
+ * would push out, as estimated by a {@link FrequencySketch} of recent keys, hits and misses
+ * alike. The main space is a segmented LRU: entries hit again move from the probation to the
+ * protected segment (80% of the main space). One-off reads thus cannot flush out the popular
+ * entries.
+ * <p>
+ * Reads are lock free; access order and frequencies are updated only if the lock is free at
+ * that moment, so they are best effort under contention.
+ */
+public class TinyLfuCache<K, V> {
+
+	private enum Segment {
+		WINDOW, PROBATION, PROTECTED
+	}
+
+	private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final FrequencySketch sketch = new FrequencySketch();
+	private final ToIntFunction<V> weigher;
+
+	private final long maximumWeight;
+	private final long windowMaximum;
+	private final long protectedMaximum;
+
+	private final AccessOrder<K, V> window = new AccessOrder<>();
+	private final AccessOrder<K, V> probation = new AccessOrder<>();
+	private final AccessOrder<K, V> protectedSegment = new AccessOrder<>();
+	private long windowWeight;
+	private long probationWeight;
+	private long protectedWeight;
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+	private final LongAdder rejectionCount = new LongAdder();
+
+	public TinyLfuCache(long maximumWeight, ToIntFunction<V> weigher) {
+		if (maximumWeight < 1) {
+			throw new IllegalArgumentException("maximumWeight must be positive");
+		}
+		this.maximumWeight = maximumWeight;
+		this.windowMaximum = Math.max(1, maximumWeight / 100);
+		this.protectedMaximum = (maximumWeight - windowMaximum) * 8 / 10;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * @return the cached value, or null if absent
+	 */
+	public V get(K key) {
+		Node<K, V> node = data.get(key);
+		if (node == null) {
+			missCount.increment();
+		} else {
+			hitCount.increment();
+		}
+		if (lock.tryLock()) {
+			try {
+				sketch.increment(key);
+				if (node != null) {
+					onHit(node);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		return node == null ? null : node.value;
+	}
+
+	/**
+	 * Store a value, which may be evicted right away if it is less popular than what it would replace.
+	 * Values heavier than the whole cache are not stored.
+	 */
+	public void put(K key, V value) {
+		int weight = weigher.applyAsInt(value);
+		lock.lock();
+		try {
+			Node<K, V> existing = data.remove(key);
+			if (existing != null) {
+				unlink(existing);
+			}
+			if (weight > maximumWeight - windowMaximum) {
+				rejectionCount.increment();
+				return;
+			}
+			sketch.increment(key);
+			Node<K, V> node = new Node<>(key, value, weight);
+			data.put(key, node);
+			sketch.ensureCapacity(data.size());
+			node.segment = Segment.WINDOW;
+			window.addLast(node);
+			windowWeight += weight;
+			evict();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void invalidate(K key) {
+		lock.lock();
+		try {
+			Node<K, V> node = data.remove(key);
+			if (node != null) {
+				unlink(node);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove every entry whose key matches, walking all entries.
+	 */
+	public void invalidateIf(Predicate<? super K> predicate) {
+		lock.lock();
+		try {
+			for (Iterator<Map.Entry<K, Node<K, V>>> it = data.entrySet().iterator(); it.hasNext();) {
+				Node<K, V> node = it.next().getValue();
+				if (predicate.test(node.key)) {
+					it.remove();
+					unlink(node);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void invalidateAll() {
+		invalidateIf(key -> true);
+	}
+
+	public int size() {
+		return data.size();
+	}
+
+	public long getWeight() {
+		lock.lock();
+		try {
+			return windowWeight + probationWeight + protectedWeight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	/**
+	 * @return values not stored because they were heavier than the cache
+	 */
+	public long getRejectionCount() {
+		return rejectionCount.sum();
+	}
+
+	private void onHit(Node<K, V> node) {
+		if (node.segment == null) {
+			return;
+		}
+		switch (node.segment) {
+		case WINDOW:
+			window.moveToLast(node);
+			break;
+		case PROBATION:
+			probation.remove(node);
+			probationWeight -= node.weight;
+			node.segment = Segment.PROTECTED;
+			protectedSegment.addLast(node);
+			protectedWeight += node.weight;
+			while (protectedWeight > protectedMaximum) {
+				Node<K, V> demoted = protectedSegment.pollFirst();
+				protectedWeight -= demoted.weight;
+				demoted.segment = Segment.PROBATION;
+				probation.addLast(demoted);
+				probationWeight += demoted.weight;
+			}
+			break;
+		case PROTECTED:
+			protectedSegment.moveToLast(node);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void evict() {
+		while (windowWeight > windowMaximum) {
+			Node<K, V> candidate = window.pollFirst();
+			windowWeight -= candidate.weight;
+			candidate.segment = null;
+			admit(candidate);
+		}
+	}
+
+	/**
+	 * Move a window entry to probation, evicting main entries the candidate is more popular than.
+	 */
+	private void admit(Node<K, V> candidate) {
+		long mainMaximum = maximumWeight - windowMaximum;
+		int candidateFrequency = sketch.frequency(candidate.key);
+		while (probationWeight + protectedWeight + candidate.weight > mainMaximum) {
+			Node<K, V> victim = probation.peekFirst() != null ? probation.peekFirst() : protectedSegment.peekFirst();
+			if (sketch.frequency(victim.key) >= candidateFrequency) {
+				data.remove(candidate.key, candidate);
+				evictionCount.increment();
+				return;
+			}
+			data.remove(victim.key, victim);
+			unlink(victim);
+			evictionCount.increment();
+		}
+		candidate.segment = Segment.PROBATION;
+		probation.addLast(candidate);
+		probationWeight += candidate.weight;
+	}
+
+	private void unlink(Node<K, V> node) {
+		if (node.segment == null) {
+			return;
+		}
+		switch (node.segment) {
+		case WINDOW:
+			window.remove(node);
+			windowWeight -= node.weight;
+			break;
+		case PROBATION:
+			probation.remove(node);
+			probationWeight -= node.weight;
+			break;
+		case PROTECTED:
+			protectedSegment.remove(node);
+			protectedWeight -= node.weight;
+			break;
+		default:
+			break;
+		}
+		node.segment = null;
+	}
+
+	private static final class Node<K, V> {
+		private final K key;
+		private final V value;
+		private final int weight;
+		private Segment segment;
+		private Node<K, V> previous;
+		private Node<K, V> next;
+
+		private Node(K key, V value, int weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Doubly linked list through the nodes, least recently used first.
+	 */
+	private static final class AccessOrder<K, V> {
+		private Node<K, V> first;
+		private Node<K, V> last;
+
+		Node<K, V> peekFirst() {
+			return first;
+		}
+
+		Node<K, V> pollFirst() {
+			Node<K, V> node = first;
+			if (node != null) {
+				remove(node);
+			}
+			return node;
+		}
+
+		void addLast(Node<K, V> node) {
+			node.previous = last;
+			node.next = null;
+			if (last == null) {
+				first = node;
+			} else {
+				last.next = node;
+			}
+			last = node;
+		}
+
+		void moveToLast(Node<K, V> node) {
+			if (node != last) {
+				remove(node);
+				addLast(node);
+			}
+		}
+
+		void remove(Node<K, V> node) {
+			if (node.previous == null) {
+				first = node.next;
+			} else {
+				node.previous.next = node.next;
+			}
+			if (node.next == null) {
+				last = node.previous;
+			} else {
+				node.next.previous = node.previous;
+			}
+			node.previous = null;
+			node.next = null;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.springframework.security.core.GrantedAuthority;
+
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import io.igia.config.fhir.cache.ExpiringCache;
+
+/**
+ * Caches the compiled rule list for a scope set and launch context, so the rules are
+ * built once per token rather than once per request. Entries never outlive the token
+ * they were built for.
+ */
+public class AuthorizationRuleCache {
+
+	private final ExpiringCache<Key, List<IAuthRule>> cache;
+	private final long timeToLiveMillis;
+
+	public AuthorizationRuleCache(int maximumSize, Duration timeToLive) {
+		this.cache = new ExpiringCache<>(maximumSize);
+		this.timeToLiveMillis = timeToLive.toMillis();
+	}
+
+	public List<IAuthRule> get(Key key, Date tokenExpiration, Supplier<List<IAuthRule>> ruleBuilder) {
+		List<IAuthRule> rules = cache.get(key);
+		if (rules == null) {
+			rules = Collections.unmodifiableList(ruleBuilder.get());
+			long expiresAt = System.currentTimeMillis() + timeToLiveMillis;
+			if (tokenExpiration != null) {
+				expiresAt = Math.min(expiresAt, tokenExpiration.getTime());
+			}
+			cache.put(key, rules, expiresAt);
+		}
+		return rules;
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public long getHitCount() {
+		return cache.getHitCount();
+	}
+
+	public long getMissCount() {
+		return cache.getMissCount();
+	}
+
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+	public static Key key(Set<String> scopes, String patientId, String userId, List<GrantedAuthority> authorities) {
+		return new Key(scopes, patientId, userId, authorities);
+	}
+
+	/**
+	 * Scope set plus launch context. Scopes are compared as a set, so the order in
+	 * which the authorization server lists them does not matter.
+	 */
+	public static final class Key {
+		private final Set<String> scopes;
+		private final String patientId;
+		private final String userId;
+		private final List<GrantedAuthority> authorities;
+		private final int hashCode;
+
+		private Key(Set<String> scopes, String patientId, String userId, List<GrantedAuthority> authorities) {
+			this.scopes = scopes == null ? Collections.emptySet() : scopes;
+			this.patientId = patientId;
+			this.userId = userId;
+			this.authorities = authorities == null ? Collections.emptyList() : authorities;
+			this.hashCode = Objects.hash(this.scopes, patientId, userId, this.authorities);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hashCode == other.hashCode
+					&& Objects.equals(patientId, other.patientId)
+					&& Objects.equals(userId, other.userId)
+					&& scopes.equals(other.scopes)
+					&& authorities.equals(other.authorities);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.util.DigestUtils;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IServerConformanceProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.RestfulServerUtils.ResponseEncoding;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+
+/**
+ * Serves {@code /metadata} from capability statements serialized once per encoding,
+ * pretty-print setting and server base.
+ * <p>
+ * The cached bytes are written with a strong {@code ETag} and {@code Cache-Control}, and a
+ * matching {@code If-None-Match} is answered with 304. Requests the cache cannot answer
+ * exactly (HTML, {@code _summary}, {@code _elements} or any other parameter) are left to
+ * the server. {@link #invalidate()} drops the cache; the server calls it when providers
+ * are registered or unregistered.
+ */
+public class CapabilityStatementCacheInterceptor extends InterceptorAdapter {
+
+	private final Map<String, SerializedStatement> statements = new ConcurrentHashMap<>();
+	private final String cacheControl;
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder notModifiedCount = new LongAdder();
+
+	public CapabilityStatementCacheInterceptor(Duration maxAge) {
+		this.cacheControl = "public, max-age=" + maxAge.getSeconds();
+	}
+
+	@Override
+	public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest,
+			HttpServletResponse theResponse) {
+		if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.METADATA
+				|| !(theRequestDetails.getServer() instanceof RestfulServer)) {
+			return true;
+		}
+		RestfulServer server = (RestfulServer) theRequestDetails.getServer();
+		if (!(server.getServerConformanceProvider() instanceof IServerConformanceProvider)) {
+			return true;
+		}
+		EncodingEnum encoding = determineEncoding(theRequestDetails, theRequest);
+		if (encoding == null) {
+			return true;
+		}
+		boolean pretty = determinePrettyPrint(theRequest, server);
+
+		String key = encoding.name() + '|' + pretty + '|' + theRequestDetails.getFhirServerBase();
+		SerializedStatement statement = statements.get(key);
+		if (statement == null) {
+			missCount.increment();
+			statement = serialize(server, theRequest, encoding, pretty);
+			statements.putIfAbsent(key, statement);
+		} else {
+			hitCount.increment();
+		}
+
+		try {
+			write(statement, theRequest, theResponse);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to write the capability statement", e);
+		}
+		return false;
+	}
+
+	/**
+	 * Drop all serialized statements; the next request serializes them again.
+	 */
+	public void invalidate() {
+		statements.clear();
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	public long getNotModifiedCount() {
+		return notModifiedCount.sum();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SerializedStatement serialize(RestfulServer server, HttpServletRequest theRequest, EncodingEnum encoding,
+			boolean pretty) {
+		IServerConformanceProvider<? extends IBaseResource> provider =
+				(IServerConformanceProvider<? extends IBaseResource>) server.getServerConformanceProvider();
+		IBaseResource capabilityStatement = provider.getServerConformance(theRequest);
+		IParser parser = encoding.newParser(server.getFhirContext()).setPrettyPrint(pretty);
+		byte[] body = parser.encodeResourceToString(capabilityStatement).getBytes(StandardCharsets.UTF_8);
+		String etag = '"' + DigestUtils.md5DigestAsHex(body) + '"';
+		return new SerializedStatement(body, etag, encoding.getResourceContentTypeNonLegacy() + Constants.CHARSET_UTF8_CTSUFFIX);
+	}
+
+	private void write(SerializedStatement statement, HttpServletRequest theRequest, HttpServletResponse theResponse)
+			throws IOException {
+		theResponse.setHeader(Constants.HEADER_ETAG, statement.etag);
+		theResponse.setHeader(Constants.HEADER_CACHE_CONTROL, cacheControl);
+		theResponse.setHeader("Vary", Constants.HEADER_ACCEPT);
+		if (matches(theRequest.getHeaders(Constants.HEADER_IF_NONE_MATCH), statement.etag)) {
+			notModifiedCount.increment();
+			theResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		theResponse.setStatus(HttpServletResponse.SC_OK);
+		theResponse.setContentType(statement.contentType);
+		theResponse.setContentLength(statement.body.length);
+		if (!"HEAD".equals(theRequest.getMethod())) {
+			OutputStream out = theResponse.getOutputStream();
+			out.write(statement.body);
+			out.flush();
+		}
+	}
+
+	private static boolean matches(Enumeration<String> ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		while (ifNoneMatch.hasMoreElements()) {
+			for (String candidate : ifNoneMatch.nextElement().split(",")) {
+				String value = candidate.trim();
+				if (value.startsWith("W/")) {
+					value = value.substring(2);
+				}
+				if (value.equals("*") || value.equals(etag)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the response encoding, or null if the response should not come from the cache
+	 */
+	static EncodingEnum determineEncoding(RequestDetails theRequestDetails, HttpServletRequest theRequest) {
+		Map<String, String[]> parameters = theRequest.getParameterMap();
+		for (String name : parameters.keySet()) {
+			if (!Constants.PARAM_FORMAT.equals(name) && !Constants.PARAM_PRETTY.equals(name)) {
+				return null;
+			}
+		}
+		String format = theRequest.getParameter(Constants.PARAM_FORMAT);
+		if (containsHtml(format) || format == null && containsHtml(theRequest.getHeader(Constants.HEADER_ACCEPT))) {
+			return null;
+		}
+		// same negotiation (_format, then Accept with q-values, then the default) as the server
+		ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+		return encoding != null ? encoding.getEncoding() : null;
+	}
+
+	private static boolean containsHtml(String value) {
+		return value != null && value.toLowerCase().contains("html");
+	}
+
+	private static boolean determinePrettyPrint(HttpServletRequest theRequest, RestfulServer server) {
+		String pretty = theRequest.getParameter(Constants.PARAM_PRETTY);
+		if (pretty != null) {
+			return Constants.PARAM_PRETTY_VALUE_TRUE.equals(pretty);
+		}
+		return server.isDefaultPrettyPrint();
+	}
+
+	private static final class SerializedStatement {
+		private final byte[] body;
+		private final String etag;
+		private final String contentType;
+
+		SerializedStatement(byte[] body, String etag, String contentType) {
+			this.body = body;
+			this.etag = etag;
+			this.contentType = contentType;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import ca.uhn.fhir.rest.api.Constants;
+
+/**
+ * Keeps a copy of the body written to the response, up to a maximum size.
+ */
+class CapturingResponse extends HttpServletResponseWrapper {
+
+	private final int maximumSize;
+	private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+	private CapturingStream stream;
+	private PrintWriter writer;
+	private boolean contentEncoded;
+
+	CapturingResponse(HttpServletResponse response, int maximumSize) {
+		super(response);
+		this.maximumSize = maximumSize;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("getWriter() has already been called");
+		}
+		return stream();
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			if (stream != null) {
+				throw new IllegalStateException("getOutputStream() has already been called");
+			}
+			String charset = getCharacterEncoding() == null ? Constants.CHARSET_NAME_UTF8 : getCharacterEncoding();
+			writer = new PrintWriter(new OutputStreamWriter(stream(), Charset.forName(charset)));
+		}
+		return writer;
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		super.setHeader(name, value);
+		contentEncoded |= Constants.HEADER_CONTENT_ENCODING.equalsIgnoreCase(name);
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+		super.addHeader(name, value);
+		contentEncoded |= Constants.HEADER_CONTENT_ENCODING.equalsIgnoreCase(name);
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		copy = new ByteArrayOutputStream();
+		stream = null;
+		writer = null;
+		contentEncoded = false;
+	}
+
+	@Override
+	public void resetBuffer() {
+		super.resetBuffer();
+		copy = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * @return the body written so far, or null if it was larger than the maximum size
+	 */
+	byte[] getBody() {
+		if (writer != null) {
+			writer.flush();
+		}
+		return copy == null ? null : copy.toByteArray();
+	}
+
+	/**
+	 * @return whether the body was encoded before reaching this response, as opposed to by a wrapped response
+	 */
+	boolean isContentEncoded() {
+		return contentEncoded;
+	}
+
+	private CapturingStream stream() throws IOException {
+		if (stream == null) {
+			stream = new CapturingStream(getResponse().getOutputStream());
+		}
+		return stream;
+	}
+
+	private void capture(byte[] b, int off, int len) {
+		if (copy == null) {
+			return;
+		}
+		if (copy.size() + len > maximumSize) {
+			copy = null;
+			return;
+		}
+		copy.write(b, off, len);
+	}
+
+	private class CapturingStream extends ServletOutputStream {
+
+		private final ServletOutputStream delegate;
+
+		CapturingStream(ServletOutputStream delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			delegate.write(b);
+			capture(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			delegate.write(b, off, len);
+			capture(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			delegate.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			delegate.close();
+		}
+
+		@Override
+		public boolean isReady() {
+			return delegate.isReady();
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			delegate.setWriteListener(writeListener);
+		}
+	}
+}
@@ -0,0 +1,505 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.springframework.http.HttpHeaders;
+
+import ca.uhn.fhir.rest.api.Constants;
+
+/**
+ * Buffers the start of a response until the minimum size is reached, then either compresses
+ * the body with a pooled {@link Deflater} or writes it through unchanged. Bodies that end below
+ * the minimum size, that are not text, that already carry a {@code Content-Encoding} or whose
+ * status has no body are written through.
+ */
+class CompressingResponse extends HttpServletResponseWrapper {
+
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+
+	private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private enum State {
+		UNDECIDED, COMPRESSING, IDENTITY, FINISHED, DISCARDED
+	}
+
+	private final ResponseCompressionInterceptor owner;
+	private final String coding;
+	private final DeflaterPool pool;
+	private final byte[] buffer;
+	private final byte[] output = new byte[8192];
+
+	private State state = State.UNDECIDED;
+	private int buffered;
+	private Long contentLength;
+	private CompressionStream stream;
+	private PrintWriter writer;
+	private ServletOutputStream out;
+
+	private Deflater deflater;
+	private final CRC32 crc = new CRC32();
+	private long bytesIn;
+	private long bytesOut;
+	private long cpuNanos;
+	private boolean recorded;
+
+	CompressingResponse(HttpServletResponse response, ResponseCompressionInterceptor owner, String coding,
+			DeflaterPool pool, int minimumSize) {
+		super(response);
+		this.owner = owner;
+		this.coding = coding;
+		this.pool = pool;
+		this.buffer = new byte[Math.max(0, minimumSize)];
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("getWriter() has already been called");
+		}
+		return stream();
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			if (stream != null) {
+				throw new IllegalStateException("getOutputStream() has already been called");
+			}
+			String charset = getCharacterEncoding() == null ? Constants.CHARSET_NAME_UTF8 : getCharacterEncoding();
+			writer = new PrintWriter(new OutputStreamWriter(stream(), Charset.forName(charset)));
+		}
+		return writer;
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		setContentLengthLong(len);
+	}
+
+	@Override
+	public void setContentLengthLong(long len) {
+		if (state == State.COMPRESSING || state == State.FINISHED || state == State.DISCARDED) {
+			return;
+		}
+		if (state == State.IDENTITY) {
+			super.setContentLengthLong(len);
+			return;
+		}
+		contentLength = len;
+		if (len < buffer.length) {
+			try {
+				decide(false);
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to write the response", e);
+			}
+		}
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name) && value != null) {
+			setContentLengthLong(Long.parseLong(value.trim()));
+			return;
+		}
+		super.setHeader(name, value);
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+		if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name) && value != null) {
+			setContentLengthLong(Long.parseLong(value.trim()));
+			return;
+		}
+		super.addHeader(name, value);
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+		if (state == State.UNDECIDED && buffered > 0) {
+			decide(false);
+		}
+		if (stream != null) {
+			stream.flush();
+		}
+		super.flushBuffer();
+	}
+
+	@Override
+	public void resetBuffer() {
+		super.resetBuffer();
+		if (state == State.UNDECIDED) {
+			buffered = 0;
+		}
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		abandon();
+		state = State.UNDECIDED;
+		buffered = 0;
+		contentLength = null;
+		stream = null;
+		writer = null;
+		out = null;
+		bytesIn = 0;
+		bytesOut = 0;
+		cpuNanos = 0;
+		recorded = false;
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+		abandon();
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException {
+		abandon();
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException {
+		abandon();
+		super.sendRedirect(location);
+	}
+
+	/**
+	 * Write out what is buffered or still held by the deflater. Writes after a compressed body has been
+	 * finished fail; writes after a body that was not compressed, or no body at all, go straight through.
+	 */
+	void finish() throws IOException {
+		if (state == State.DISCARDED) {
+			return;
+		}
+		if (writer != null) {
+			writer.flush();
+		}
+		if (state == State.UNDECIDED) {
+			if (buffered == 0) {
+				identity();
+				return;
+			}
+			decide(true);
+		}
+		if (state == State.COMPRESSING) {
+			long start = cpuTime();
+			deflater.finish();
+			while (!deflater.finished()) {
+				writeCompressed(deflater.deflate(output, 0, output.length));
+			}
+			cpuNanos += cpuTime() - start;
+			if (GZIP.equals(coding)) {
+				writeTrailer();
+			}
+			pool.release(deflater);
+			deflater = null;
+			state = State.FINISHED;
+		}
+		if (out != null) {
+			out.flush();
+		}
+		record();
+	}
+
+	/**
+	 * Drop what is held back and write everything from here on uncompressed, for an error response
+	 * that replaces the body. A compressed body already sent cannot be replaced, so writes are then
+	 * dropped.
+	 */
+	void writeThrough() {
+		boolean compressed = isCompressed();
+		abandon();
+		writer = null;
+		stream = null;
+		contentLength = null;
+		HttpServletResponse response = (HttpServletResponse) getResponse();
+		if (compressed) {
+			if (response.isCommitted()) {
+				return;
+			}
+			resetKeepingHeaders(response);
+			out = null;
+		}
+		state = State.IDENTITY;
+	}
+
+	/**
+	 * Reset the wrapped response, keeping its status and headers but not the content coding.
+	 */
+	private static void resetKeepingHeaders(HttpServletResponse response) {
+		int status = response.getStatus();
+		String contentType = response.getContentType();
+		Map<String, Collection<String>> headers = new LinkedHashMap<>();
+		for (String name : response.getHeaderNames()) {
+			if (!HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name) && !HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)
+					&& !HttpHeaders.CONTENT_TYPE.equalsIgnoreCase(name)) {
+				headers.put(name, new ArrayList<>(response.getHeaders(name)));
+			}
+		}
+		response.reset();
+		response.setStatus(status);
+		if (contentType != null) {
+			response.setContentType(contentType);
+		}
+		headers.forEach((name, values) -> values.forEach(value -> response.addHeader(name, value)));
+	}
+
+	/**
+	 * Drop what is buffered and anything written from here on, for a response that is written by someone else.
+	 */
+	void abandon() {
+		if (deflater != null) {
+			pool.release(deflater);
+			deflater = null;
+		}
+		state = State.DISCARDED;
+		buffered = 0;
+		recorded = true;
+	}
+
+	String getCoding() {
+		return coding;
+	}
+
+	boolean isCompressed() {
+		return state == State.COMPRESSING || state == State.FINISHED;
+	}
+
+	long getBytesIn() {
+		return bytesIn;
+	}
+
+	long getBytesOut() {
+		return bytesOut;
+	}
+
+	long getCpuNanos() {
+		return cpuNanos;
+	}
+
+	private ServletOutputStream out() throws IOException {
+		if (out == null) {
+			out = getResponse().getOutputStream();
+		}
+		return out;
+	}
+
+	private CompressionStream stream() {
+		if (stream == null) {
+			stream = new CompressionStream();
+		}
+		return stream;
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		switch (state) {
+		case UNDECIDED:
+			if (buffered + len <= buffer.length) {
+				System.arraycopy(b, off, buffer, buffered, len);
+				buffered += len;
+				return;
+			}
+			decide(false);
+			write(b, off, len);
+			return;
+		case COMPRESSING:
+			long start = cpuTime();
+			if (GZIP.equals(coding)) {
+				crc.update(b, off, len);
+			}
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput()) {
+				writeCompressed(deflater.deflate(output, 0, output.length));
+			}
+			cpuNanos += cpuTime() - start;
+			bytesIn += len;
+			return;
+		case IDENTITY:
+			out().write(b, off, len);
+			return;
+		case DISCARDED:
+			return;
+		default:
+			throw new IOException("The compressed response has already been finished");
+		}
+	}
+
+	/**
+	 * @param complete whether the buffer holds the whole body
+	 */
+	private void decide(boolean complete) throws IOException {
+		HttpServletResponse response = (HttpServletResponse) getResponse();
+		boolean compressible = isCompressible(response.getContentType());
+		if (compressible) {
+			response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		}
+		boolean large = complete ? buffered >= buffer.length : contentLength == null || contentLength >= buffer.length;
+		int status = response.getStatus();
+		if (!compressible || !large || status < 200 || status == HttpServletResponse.SC_NO_CONTENT
+				|| status == HttpServletResponse.SC_NOT_MODIFIED || response.containsHeader(HttpHeaders.CONTENT_ENCODING)
+				|| response.isCommitted()) {
+			identity();
+			return;
+		}
+		response.setHeader(HttpHeaders.CONTENT_ENCODING, coding);
+		String etag = response.getHeader(HttpHeaders.ETAG);
+		if (etag != null && !etag.startsWith("W/")) {
+			response.setHeader(HttpHeaders.ETAG, "W/" + etag);
+		}
+		deflater = pool.acquire();
+		state = State.COMPRESSING;
+		if (GZIP.equals(coding)) {
+			crc.reset();
+			out().write(GZIP_HEADER);
+			bytesOut += GZIP_HEADER.length;
+		}
+		drain();
+	}
+
+	private void identity() throws IOException {
+		state = State.IDENTITY;
+		if (contentLength != null) {
+			super.setContentLengthLong(contentLength);
+		}
+		drain();
+	}
+
+	private void drain() throws IOException {
+		int count = buffered;
+		buffered = 0;
+		if (count > 0) {
+			write(buffer, 0, count);
+		}
+	}
+
+	private void writeCompressed(int count) throws IOException {
+		if (count > 0) {
+			out().write(output, 0, count);
+			bytesOut += count;
+		}
+	}
+
+	private void writeTrailer() throws IOException {
+		byte[] trailer = new byte[8];
+		writeIntLE(trailer, 0, crc.getValue());
+		writeIntLE(trailer, 4, bytesIn);
+		out().write(trailer);
+		bytesOut += trailer.length;
+	}
+
+	private void record() {
+		if (!recorded) {
+			recorded = true;
+			owner.record(this);
+		}
+	}
+
+	private static void writeIntLE(byte[] target, int offset, long value) {
+		for (int i = 0; i < 4; i++) {
+			target[offset + i] = (byte) (value >>> (8 * i));
+		}
+	}
+
+	static boolean isCompressible(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		String type = contentType.toLowerCase(Locale.ROOT);
+		return type.startsWith("text/") || type.contains("json") || type.contains("xml") || type.contains("javascript");
+	}
+
+	/**
+	 * CPU time of the current thread where the JVM measures it, wall time otherwise.
+	 */
+	private static long cpuTime() {
+		if (THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+			long time = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+			if (time >= 0) {
+				return time;
+			}
+		}
+		return System.nanoTime();
+	}
+
+	private class CompressionStream extends ServletOutputStream {
+
+		private final byte[] single = new byte[1];
+
+		@Override
+		public void write(int b) throws IOException {
+			single[0] = (byte) b;
+			CompressingResponse.this.write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			CompressingResponse.this.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (out != null) {
+				out.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			finish();
+			if (out != null) {
+				out.close();
+			}
+		}
+
+		@Override
+		public boolean isReady() {
+			return out == null || out.isReady();
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+			try {
+				out().setWriteListener(writeListener);
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to get the response output stream", e);
+			}
+		}
+	}
+}
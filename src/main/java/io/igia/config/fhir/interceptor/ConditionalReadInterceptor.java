@@ -0,0 +1,178 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.http.HttpHeaders;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.ETagSupportEnum;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationFlagsEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import io.igia.config.fhir.provider.ResourceVersion;
+import io.igia.config.fhir.provider.ResourceVersionLookup;
+
+/**
+ * Answers reads with {@code If-None-Match} or {@code If-Modified-Since} with 304 from the
+ * current version of the resource, as told by its provider's {@link ResourceVersionLookup},
+ * so an unchanged resource is never loaded.
+ * <p>
+ * The 304 is raised as a {@link NotModifiedException} just before the provider method would be
+ * invoked, the same way the server raises it once the resource is loaded. Interceptors
+ * registered before this one have seen the request by then, so it must come after the
+ * authorization interceptors. Authorization interceptors may still defer the decision until the
+ * resource is loaded, as with Patient compartment reads, so such reads are left to the provider.
+ * {@code If-None-Match} is only honoured with ETag support enabled and takes precedence over
+ * {@code If-Modified-Since}.
+ */
+public class ConditionalReadInterceptor extends InterceptorAdapter {
+
+	private final Map<String, ResourceVersionLookup> lookups = new HashMap<>();
+
+	private final LongAdder lookupCount = new LongAdder();
+	private final LongAdder notModifiedCount = new LongAdder();
+
+	/**
+	 * @param resourceProviders providers implementing {@link ResourceVersionLookup} are used, others ignored
+	 */
+	public ConditionalReadInterceptor(FhirContext fhirContext, Collection<? extends IResourceProvider> resourceProviders) {
+		for (IResourceProvider provider : resourceProviders) {
+			if (provider instanceof ResourceVersionLookup) {
+				lookups.put(fhirContext.getResourceDefinition(provider.getResourceType()).getName(),
+						(ResourceVersionLookup) provider);
+			}
+		}
+	}
+
+	/**
+	 * @return whether any provider supports version lookups
+	 */
+	public boolean hasLookups() {
+		return !lookups.isEmpty();
+	}
+
+	@Override
+	public void incomingRequestPreHandled(RestOperationTypeEnum theOperation, ActionRequestDetails theProcessedRequest) {
+		if (theOperation != RestOperationTypeEnum.READ) {
+			return;
+		}
+		RequestDetails requestDetails = theProcessedRequest.getRequestDetails();
+		boolean eTagSupport = requestDetails.getServer().getETagSupport() == ETagSupportEnum.ENABLED;
+		String ifNoneMatch = eTagSupport ? requestDetails.getHeader(Constants.HEADER_IF_NONE_MATCH) : null;
+		String ifModifiedSince = requestDetails.getHeader(HttpHeaders.IF_MODIFIED_SINCE);
+		IIdType id = theProcessedRequest.getId();
+		ResourceVersionLookup lookup = lookups.get(theProcessedRequest.getResourceType());
+		if (ifNoneMatch == null && ifModifiedSince == null || id == null || !id.hasIdPart() || lookup == null
+				|| !isDecidedBeforeLoading(requestDetails, id)) {
+			return;
+		}
+
+		lookupCount.increment();
+		ResourceVersion current = lookup.getCurrentVersion(id.toUnqualifiedVersionless());
+		if (current == null) {
+			return;
+		}
+		boolean notModified = ifNoneMatch != null ? matches(ifNoneMatch, current.getVersionId())
+				: notModifiedSince(ifModifiedSince, current);
+		if (!notModified) {
+			return;
+		}
+		notModifiedCount.increment();
+		NotModifiedException exception = new NotModifiedException("Not Modified");
+		if (current.getVersionId() != null) {
+			exception.addResponseHeader(Constants.HEADER_ETAG, "W/\"" + current.getVersionId() + '"');
+		}
+		if (current.getLastUpdated() != null) {
+			exception.addResponseHeader(HttpHeaders.LAST_MODIFIED, DateTimeFormatter.RFC_1123_DATE_TIME
+					.format(current.getLastUpdated().toInstant().atOffset(ZoneOffset.UTC)));
+		}
+		throw exception;
+	}
+
+	public long getLookupCount() {
+		return lookupCount.sum();
+	}
+
+	public long getNotModifiedCount() {
+		return notModifiedCount.sum();
+	}
+
+	/**
+	 * @return whether no authorization interceptor waits for the loaded resource to decide the read
+	 */
+	static boolean isDecidedBeforeLoading(RequestDetails theRequestDetails, IIdType theId) {
+		if (!(theRequestDetails.getServer() instanceof RestfulServer)) {
+			return true;
+		}
+		for (IServerInterceptor interceptor : ((RestfulServer) theRequestDetails.getServer()).getInterceptors()) {
+			if (interceptor instanceof ScopeBasedAuthorizationInterceptor) {
+				if (!((ScopeBasedAuthorizationInterceptor) interceptor).isReadDecidedBeforeLoading(theRequestDetails, theId)) {
+					return false;
+				}
+			} else if (interceptor instanceof AuthorizationInterceptor && ((AuthorizationInterceptor) interceptor)
+					.getFlags().contains(AuthorizationFlagsEnum.NO_NOT_PROACTIVELY_BLOCK_COMPARTMENT_READ_ACCESS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static boolean matches(String ifNoneMatch, String versionId) {
+		if (versionId == null) {
+			return false;
+		}
+		for (String candidate : ifNoneMatch.split(",")) {
+			String value = candidate.trim();
+			if (value.startsWith("W/")) {
+				value = value.substring(2);
+			}
+			if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+				value = value.substring(1, value.length() - 1);
+			}
+			if (value.equals("*") || value.equals(versionId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static boolean notModifiedSince(String ifModifiedSince, ResourceVersion current) {
+		if (current.getLastUpdated() == null) {
+			return false;
+		}
+		try {
+			long since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+			return current.getLastUpdated().getTime() / 1000 <= since;
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps reset {@link Deflater} instances for reuse, so a compressed response does not allocate
+ * the native compression state. Deflaters released beyond the idle limit are ended.
+ */
+public class DeflaterPool {
+
+	private final int level;
+	private final boolean nowrap;
+	private final BlockingQueue<Deflater> idle;
+
+	private final LongAdder createdCount = new LongAdder();
+
+	/**
+	 * @param nowrap raw deflate data as used inside gzip, instead of the zlib format
+	 */
+	public DeflaterPool(int level, boolean nowrap, int maximumIdle) {
+		this.level = level;
+		this.nowrap = nowrap;
+		this.idle = new ArrayBlockingQueue<>(Math.max(1, maximumIdle));
+	}
+
+	public Deflater acquire() {
+		Deflater deflater = idle.poll();
+		if (deflater == null) {
+			createdCount.increment();
+			deflater = new Deflater(level, nowrap);
+		}
+		return deflater;
+	}
+
+	public void release(Deflater deflater) {
+		deflater.reset();
+		if (!idle.offer(deflater)) {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * End all idle deflaters; deflaters in use are ended when released.
+	 */
+	public void clear() {
+		Deflater deflater;
+		while ((deflater = idle.poll()) != null) {
+			deflater.end();
+		}
+	}
+
+	public long getCreatedCount() {
+		return createdCount.sum();
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+}
@@ -14,34 +14,38 @@ package io.igia.config.fhir.interceptor;
 
 import org.hspconsortium.platform.api.authorization.SmartScope;
 
+/**
+ * HSPC {@link SmartScope} with resource and operation split once at construction.
+ * {@link ScopeBasedAuthorizationInterceptor} uses {@link SmartScopeDescriptor} instead.
+ */
 public class IgiaSmartScope extends SmartScope{
-	private String scope;
+	private final String resource;
+	private final String operation;
 
 	public IgiaSmartScope(String scope) {
 		super(scope);
-		this.scope = scope;
+		//fix logic in base class, and not or
+		if(!isPatientScope() && !isUserScope()) {
+			this.resource = null;
+			this.operation = null;
+		} else {
+			int forwardSlashIndex = scope.indexOf("/");
+			int periodIndex = scope.indexOf(".");
+			if (periodIndex < 0) {
+				periodIndex = scope.length();
+			}
+			this.resource = scope.substring(forwardSlashIndex + 1, periodIndex);
+			this.operation = periodIndex < scope.length() ? scope.substring(periodIndex + 1) : "";
+		}
 	}
 	
 	@Override
     public String getResource(){
-		//fix logic in base class, and not or
-        if(!isPatientScope() && !isUserScope())
-            return null;
-
-        int forwardSlashIndex = this.scope.indexOf("/");
-        int periodIndex = this.scope.indexOf(".");
-
-        return this.scope.substring(forwardSlashIndex + 1, periodIndex);
+        return resource;
     }
 
     @Override
     public String getOperation(){
-    		//fix logic in base class, and not or
-        if(!isPatientScope() && !isUserScope())
-            return null;
-
-        int periodIndex = this.scope.indexOf(".");
-
-        return this.scope.substring(periodIndex + 1);
+        return operation;
     }
 }
@@ -0,0 +1,181 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+
+/**
+ * Patient compartment definitions per resource type, read lazily from the resource
+ * definitions of the {@link ResourceTypeRegistry}'s context and memoized.
+ * <p>
+ * Membership checks only read the reference elements named by the compartment search
+ * parameter paths, resolved once per type into child accessor chains.
+ */
+public class PatientCompartmentDefinitions {
+	public static final String COMPARTMENT_NAME = "Patient";
+	private static final String[] PREFERRED_SEARCH_PARAMETERS = { "patient", "subject" };
+
+	private final ResourceTypeRegistry resourceTypeRegistry;
+	private final Map<Class<? extends IBaseResource>, Optional<String>> searchParameters = new ConcurrentHashMap<>();
+	private final Map<RuntimeResourceDefinition, List<BaseRuntimeChildDefinition[]>> referencePaths = new ConcurrentHashMap<>();
+
+	public PatientCompartmentDefinitions(ResourceTypeRegistry resourceTypeRegistry) {
+		this.resourceTypeRegistry = resourceTypeRegistry;
+	}
+
+	/**
+	 * @return the search parameter that restricts a search of the given type to one patient's
+	 * compartment, {@code _id} for Patient, or null if the type is not in the Patient compartment.
+	 * {@code patient} or {@code subject} is preferred when the type has several, and members
+	 * reachable only through the other parameters do not match it.
+	 */
+	public String getSearchParameter(Class<? extends IBaseResource> resourceType) {
+		return searchParameters.computeIfAbsent(resourceType, this::findSearchParameter).orElse(null);
+	}
+
+	/**
+	 * @return all search parameters that make a resource of the given type a member of the
+	 * Patient compartment, in name order
+	 */
+	public Set<String> getSearchParameters(Class<? extends IBaseResource> resourceType) {
+		RuntimeResourceDefinition definition = resourceTypeRegistry.getFhirContext().getResourceDefinition(resourceType);
+		if (COMPARTMENT_NAME.equals(definition.getName())) {
+			return Collections.singleton("_id");
+		}
+		TreeSet<String> names = new TreeSet<>();
+		for (RuntimeSearchParam searchParam : definition.getSearchParams()) {
+			if (searchParam.getProvidesMembershipInCompartments() != null
+					&& searchParam.getProvidesMembershipInCompartments().contains(COMPARTMENT_NAME)) {
+				names.add(searchParam.getName());
+			}
+		}
+		return Collections.unmodifiableSet(names);
+	}
+
+	/**
+	 * @return the search parameter value that selects the given patient
+	 */
+	public String getSearchParameterValue(String searchParameter, String patientId) {
+		return "_id".equals(searchParameter) ? patientId : COMPARTMENT_NAME + "/" + patientId;
+	}
+
+	/**
+	 * @return true if the resource is the given patient or references the patient through
+	 * one of its compartment paths; false if it is not a member or membership could not be
+	 * decided from the resolvable paths
+	 */
+	public boolean isMember(IBaseResource resource, String patientId) {
+		RuntimeResourceDefinition definition = resourceTypeRegistry.getFhirContext().getResourceDefinition(resource);
+		if (COMPARTMENT_NAME.equals(definition.getName()) && patientId.equals(resource.getIdElement().getIdPart())) {
+			return true;
+		}
+		for (BaseRuntimeChildDefinition[] path : referencePaths.computeIfAbsent(definition, this::compileReferencePaths)) {
+			if (referencesPatient(resource, path, 0, patientId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean referencesPatient(IBase element, BaseRuntimeChildDefinition[] path, int index, String patientId) {
+		for (IBase value : path[index].getAccessor().getValues(element)) {
+			if (index < path.length - 1) {
+				if (referencesPatient(value, path, index + 1, patientId)) {
+					return true;
+				}
+			} else if (value instanceof IBaseReference) {
+				IIdType reference = ((IBaseReference) value).getReferenceElement();
+				if (reference != null && !reference.isAbsolute() && COMPARTMENT_NAME.equals(reference.getResourceType())
+						&& patientId.equals(reference.getIdPart())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private List<BaseRuntimeChildDefinition[]> compileReferencePaths(RuntimeResourceDefinition definition) {
+		List<BaseRuntimeChildDefinition[]> paths = new ArrayList<>();
+		for (RuntimeSearchParam searchParam : definition.getSearchParams()) {
+			if (searchParam.getPath() == null || searchParam.getProvidesMembershipInCompartments() == null
+					|| !searchParam.getProvidesMembershipInCompartments().contains(COMPARTMENT_NAME)) {
+				continue;
+			}
+			for (String path : searchParam.getPath().split("\\|")) {
+				BaseRuntimeChildDefinition[] chain = compilePath(definition, path.trim());
+				if (chain != null) {
+					paths.add(chain);
+				}
+			}
+		}
+		return Collections.unmodifiableList(paths);
+	}
+
+	/**
+	 * @return the child accessor chain for a simple dotted path, or null for paths that use
+	 * functions or choice types
+	 */
+	private static BaseRuntimeChildDefinition[] compilePath(RuntimeResourceDefinition definition, String path) {
+		int where = path.indexOf(".where(");
+		if (where > 0) {
+			path = path.substring(0, where);
+		}
+		String[] segments = path.split("\\.");
+		if (segments.length < 2 || !segments[0].equals(definition.getName())) {
+			return null;
+		}
+		BaseRuntimeChildDefinition[] chain = new BaseRuntimeChildDefinition[segments.length - 1];
+		BaseRuntimeElementCompositeDefinition<?> current = definition;
+		for (int i = 1; i < segments.length; i++) {
+			if (current == null) {
+				return null;
+			}
+			BaseRuntimeChildDefinition child = current.getChildByName(segments[i]);
+			if (child == null) {
+				return null;
+			}
+			chain[i - 1] = child;
+			BaseRuntimeElementDefinition<?> next = child.getChildByName(segments[i]);
+			current = next instanceof BaseRuntimeElementCompositeDefinition ? (BaseRuntimeElementCompositeDefinition<?>) next : null;
+		}
+		return chain;
+	}
+
+	private Optional<String> findSearchParameter(Class<? extends IBaseResource> resourceType) {
+		Set<String> names = getSearchParameters(resourceType);
+		for (String preferred : PREFERRED_SEARCH_PARAMETERS) {
+			if (names.contains(preferred)) {
+				return Optional.of(preferred);
+			}
+		}
+		return names.isEmpty() ? Optional.empty() : Optional.of(names.iterator().next());
+	}
+}
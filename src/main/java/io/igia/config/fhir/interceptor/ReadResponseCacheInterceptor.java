@@ -0,0 +1,383 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.http.HttpHeaders;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.RestfulServerUtils.ResponseEncoding;
+import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.igia.config.fhir.cache.TinyLfuCache;
+
+/**
+ * Serves read and vread responses from their encoded bodies, keyed by resource type, id,
+ * version, content type, pretty-print setting, {@code _summary} and {@code _elements}.
+ * <p>
+ * The body of a read is captured while the server writes it and stored with the resource the
+ * provider returned. Before a stored body is written, the resource is checked by every
+ * {@link AuthorizationInterceptor} of the server, as the server does for the provider's
+ * resource. Updates, patches and deletes passing through the server drop the reads of their
+ * resource, transactions and batches all reads; a read that was running meanwhile is not
+ * stored. Versioned reads stay cached. Requests with other parameters, conditional headers,
+ * {@code Cache-Control: no-cache} or asking for HTML are left to the server.
+ */
+public class ReadResponseCacheInterceptor extends InterceptorAdapter {
+
+	private static final String CAPTURE_KEY = ReadResponseCacheInterceptor.class.getName() + ".capture";
+	private static final Set<String> CACHEABLE_PARAMETERS = new HashSet<>(Arrays.asList(Constants.PARAM_FORMAT,
+			Constants.PARAM_PRETTY, Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS));
+	private static final List<String> STORED_HEADERS = Arrays.asList(HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED,
+			HttpHeaders.CONTENT_LOCATION, HttpHeaders.LOCATION);
+	private static final int STAMPS = 1024;
+
+	private final TinyLfuCache<Key, CachedResponse> cache;
+	private final int maximumBodySize;
+	private final Set<String> resourceTypes;
+
+	/**
+	 * Bumped per resource on every write, so a read that overlapped a write is not stored.
+	 */
+	private final AtomicLongArray stamps = new AtomicLongArray(STAMPS);
+
+	private final LongAdder storedCount = new LongAdder();
+	private final LongAdder invalidationCount = new LongAdder();
+
+	/**
+	 * @param maximumBytes budget for the stored responses, each weighed at twice its body to
+	 *        account for the resource kept for authorization
+	 * @param resourceTypes types to cache, all if empty
+	 */
+	public ReadResponseCacheInterceptor(long maximumBytes, int maximumBodySize, Collection<String> resourceTypes) {
+		this.cache = new TinyLfuCache<>(maximumBytes, response -> 2 * response.body.length);
+		this.maximumBodySize = maximumBodySize;
+		this.resourceTypes = new HashSet<>(resourceTypes);
+	}
+
+	@Override
+	public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest,
+			HttpServletResponse theResponse) {
+		RestOperationTypeEnum operation = theRequestDetails.getRestOperationType();
+		if (isWrite(operation)) {
+			invalidate(operation, theRequestDetails);
+			return true;
+		}
+		if (operation != RestOperationTypeEnum.READ && operation != RestOperationTypeEnum.VREAD
+				|| !(theRequestDetails instanceof ServletRequestDetails)) {
+			return true;
+		}
+		Key key = key(theRequestDetails, theRequest);
+		if (key == null) {
+			return true;
+		}
+		ServletRequestDetails servletRequestDetails = (ServletRequestDetails) theRequestDetails;
+		CachedResponse cached = cache.get(key);
+		if (cached != null) {
+			authorize(theRequestDetails, cached.resource);
+			try {
+				write(cached, servletRequestDetails.getServletResponse());
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to write the cached response", e);
+			}
+			return false;
+		}
+
+		CapturingResponse response = new CapturingResponse(servletRequestDetails.getServletResponse(), maximumBodySize);
+		servletRequestDetails.setServletResponse(response);
+		theRequestDetails.setRespondGzip(false);
+		theRequestDetails.getUserData().put(CAPTURE_KEY, new Capture(key, response, stamps.get(slot(key.resourceType, key.id))));
+		return true;
+	}
+
+	@Override
+	public boolean outgoingResponse(RequestDetails theRequestDetails, IBaseResource theResponseObject,
+			HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+		Object capture = theRequestDetails.getUserData().get(CAPTURE_KEY);
+		if (capture instanceof Capture) {
+			((Capture) capture).resource = theResponseObject;
+		}
+		return true;
+	}
+
+	@Override
+	public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+		RestOperationTypeEnum operation = theRequestDetails.getRestOperationType();
+		if (isWrite(operation)) {
+			invalidate(operation, theRequestDetails);
+			return;
+		}
+		Object capture = theRequestDetails.getUserData().get(CAPTURE_KEY);
+		if (capture instanceof Capture) {
+			store((Capture) capture);
+		}
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public long getWeight() {
+		return cache.getWeight();
+	}
+
+	public long getHitCount() {
+		return cache.getHitCount();
+	}
+
+	public long getMissCount() {
+		return cache.getMissCount();
+	}
+
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+	public long getStoredCount() {
+		return storedCount.sum();
+	}
+
+	public long getInvalidationCount() {
+		return invalidationCount.sum();
+	}
+
+	/**
+	 * @return the cache key, or null if the response should not come from the cache
+	 */
+	Key key(RequestDetails theRequestDetails, HttpServletRequest theRequest) {
+		IIdType id = theRequestDetails.getId();
+		String resourceType = theRequestDetails.getResourceName();
+		if (id == null || !id.hasIdPart() || resourceType == null
+				|| !resourceTypes.isEmpty() && !resourceTypes.contains(resourceType)
+				|| "HEAD".equals(theRequest.getMethod())
+				|| theRequest.getHeader(Constants.HEADER_IF_NONE_MATCH) != null
+				|| theRequest.getHeader(HttpHeaders.IF_MODIFIED_SINCE) != null
+				|| containsIgnoreCase(theRequest.getHeader(Constants.HEADER_CACHE_CONTROL), "no-cache")
+				|| containsIgnoreCase(theRequest.getHeader(Constants.HEADER_ACCEPT), "html")
+				|| !(theRequestDetails.getServer() instanceof RestfulServer)) {
+			return null;
+		}
+		for (String name : theRequestDetails.getParameters().keySet()) {
+			if (!CACHEABLE_PARAMETERS.contains(name)) {
+				return null;
+			}
+		}
+		String[] format = theRequestDetails.getParameters().get(Constants.PARAM_FORMAT);
+		if (format != null && containsIgnoreCase(Arrays.toString(format), "html")) {
+			return null;
+		}
+		ResponseEncoding encoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+		if (encoding == null || encoding.getEncoding() == null) {
+			return null;
+		}
+		boolean pretty = RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails);
+		String version = theRequestDetails.getRestOperationType() == RestOperationTypeEnum.VREAD && id.hasVersionIdPart()
+				? id.getVersionIdPart() : null;
+		return new Key(resourceType, id.getIdPart(), version, encoding.getResourceContentType(), pretty,
+				Arrays.toString(theRequestDetails.getParameters().get(Constants.PARAM_SUMMARY)),
+				Arrays.toString(theRequestDetails.getParameters().get(Constants.PARAM_ELEMENTS)),
+				theRequestDetails.getFhirServerBase());
+	}
+
+	/**
+	 * Check the cached resource as the server checks the resource returned by the provider.
+	 */
+	private static void authorize(RequestDetails theRequestDetails, IBaseResource resource) {
+		for (IServerInterceptor interceptor : ((RestfulServer) theRequestDetails.getServer()).getInterceptors()) {
+			if (interceptor instanceof AuthorizationInterceptor) {
+				((AuthorizationInterceptor) interceptor).outgoingResponse(theRequestDetails, resource);
+			}
+		}
+	}
+
+	private static void write(CachedResponse cached, HttpServletResponse theResponse) throws IOException {
+		theResponse.setStatus(HttpServletResponse.SC_OK);
+		for (String[] header : cached.headers) {
+			theResponse.addHeader(header[0], header[1]);
+		}
+		theResponse.setContentType(cached.contentType);
+		theResponse.setContentLength(cached.body.length);
+		OutputStream out = theResponse.getOutputStream();
+		out.write(cached.body);
+		out.flush();
+	}
+
+	private void store(Capture capture) {
+		CapturingResponse response = capture.response;
+		byte[] body = response.getBody();
+		String contentType = response.getContentType();
+		if (body == null || capture.resource == null || response.getStatus() != HttpServletResponse.SC_OK
+				|| contentType == null || containsIgnoreCase(contentType, "html")
+				|| response.isContentEncoded()) {
+			return;
+		}
+		List<String[]> headers = new ArrayList<>();
+		for (String name : STORED_HEADERS) {
+			for (String value : response.getHeaders(name)) {
+				headers.add(new String[] { name, value });
+			}
+		}
+		Key key = capture.key;
+		int slot = slot(key.resourceType, key.id);
+		if (stamps.get(slot) != capture.stamp) {
+			return;
+		}
+		cache.put(key, new CachedResponse(body, contentType, headers, capture.resource));
+		if (stamps.get(slot) != capture.stamp) {
+			cache.invalidate(key);
+			return;
+		}
+		storedCount.increment();
+	}
+
+	private void invalidate(RestOperationTypeEnum operation, RequestDetails theRequestDetails) {
+		invalidationCount.increment();
+		String resourceType = theRequestDetails.getResourceName();
+		IIdType id = theRequestDetails.getId();
+		if (operation == RestOperationTypeEnum.TRANSACTION || resourceType == null) {
+			for (int i = 0; i < STAMPS; i++) {
+				stamps.incrementAndGet(i);
+			}
+			cache.invalidateIf(key -> key.version == null);
+		} else if (id == null || !id.hasIdPart()) {
+			for (int i = 0; i < STAMPS; i++) {
+				stamps.incrementAndGet(i);
+			}
+			cache.invalidateIf(key -> key.version == null && key.resourceType.equals(resourceType));
+		} else {
+			String idPart = id.getIdPart();
+			stamps.incrementAndGet(slot(resourceType, idPart));
+			cache.invalidateIf(key -> key.version == null && key.resourceType.equals(resourceType) && key.id.equals(idPart));
+		}
+	}
+
+	private static boolean isWrite(RestOperationTypeEnum operation) {
+		if (operation == null) {
+			return false;
+		}
+		switch (operation) {
+		case UPDATE:
+		case PATCH:
+		case DELETE:
+		case TRANSACTION:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static int slot(String resourceType, String id) {
+		int hash = 31 * resourceType.hashCode() + id.hashCode();
+		return (hash ^ (hash >>> 16)) & (STAMPS - 1);
+	}
+
+	private static boolean containsIgnoreCase(String value, String part) {
+		return value != null && value.toLowerCase().contains(part);
+	}
+
+	static final class Key {
+		private final String resourceType;
+		private final String id;
+		private final String version;
+		private final String contentType;
+		private final boolean pretty;
+		private final String summary;
+		private final String elements;
+		private final String serverBase;
+
+		Key(String resourceType, String id, String version, String contentType, boolean pretty, String summary,
+				String elements, String serverBase) {
+			this.resourceType = resourceType;
+			this.id = id;
+			this.version = version;
+			this.contentType = contentType;
+			this.pretty = pretty;
+			this.summary = summary;
+			this.elements = elements;
+			this.serverBase = serverBase;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return pretty == other.pretty && resourceType.equals(other.resourceType) && id.equals(other.id)
+					&& Objects.equals(version, other.version) && Objects.equals(contentType, other.contentType)
+					&& summary.equals(other.summary) && elements.equals(other.elements)
+					&& Objects.equals(serverBase, other.serverBase);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(resourceType, id, version, contentType, pretty, summary, elements, serverBase);
+		}
+	}
+
+	private static final class CachedResponse {
+		private final byte[] body;
+		private final String contentType;
+		private final List<String[]> headers;
+		private final IBaseResource resource;
+
+		CachedResponse(byte[] body, String contentType, List<String[]> headers, IBaseResource resource) {
+			this.body = body;
+			this.contentType = contentType;
+			this.headers = headers;
+			this.resource = resource;
+		}
+	}
+
+	private static final class Capture {
+		private final Key key;
+		private final CapturingResponse response;
+		private final long stamp;
+		private IBaseResource resource;
+
+		Capture(Key key, CapturingResponse response, long stamp) {
+			this.key = key;
+			this.response = response;
+			this.stamp = stamp;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.ConfigurationException;
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Resolves resource names used in SMART scopes to resource classes of the server's FHIR version.
+ * <p>
+ * The table is built once from the version properties of the {@link FhirContext}, without
+ * scanning resource definitions. Lookups are case-insensitive and unknown names are remembered
+ * so that repeated lookups of a bad name are as cheap as good ones.
+ */
+public class ResourceTypeRegistry {
+	private static final String RESOURCE_PROPERTY_PREFIX = "resource.";
+	private static final int MAXIMUM_UNKNOWN_NAMES = 1000;
+
+	private final Logger log = LoggerFactory.getLogger(ResourceTypeRegistry.class);
+
+	private final FhirContext fhirContext;
+	private final Map<String, Class<? extends IBaseResource>> typesByName;
+	private final Map<String, Class<? extends IBaseResource>> typesByLowerCaseName;
+	private final Set<String> unknownNames = ConcurrentHashMap.newKeySet();
+
+	public ResourceTypeRegistry(FhirContext fhirContext) {
+		this.fhirContext = fhirContext;
+
+		Map<String, Class<? extends IBaseResource>> byName = new HashMap<>();
+		Map<String, Class<? extends IBaseResource>> byLowerCaseName = new HashMap<>();
+		ClassLoader classLoader = fhirContext.getClass().getClassLoader();
+		for (Map.Entry<Object, Object> next : loadVersionProperties(fhirContext).entrySet()) {
+			String key = next.getKey().toString();
+			if (!key.startsWith(RESOURCE_PROPERTY_PREFIX)) {
+				continue;
+			}
+			String name = key.substring(RESOURCE_PROPERTY_PREFIX.length());
+			try {
+				Class<?> type = Class.forName(next.getValue().toString(), false, classLoader);
+				if (IBaseResource.class.isAssignableFrom(type)) {
+					Class<? extends IBaseResource> resourceType = type.asSubclass(IBaseResource.class);
+					byName.put(name, resourceType);
+					byLowerCaseName.put(name.toLowerCase(Locale.ROOT), resourceType);
+				}
+			} catch (ClassNotFoundException | LinkageError e) {
+				log.debug("Skipping resource type {}: {}", name, e.toString());
+			}
+		}
+		this.typesByName = Collections.unmodifiableMap(byName);
+		this.typesByLowerCaseName = Collections.unmodifiableMap(byLowerCaseName);
+
+		log.debug("Resource type registry created with {} {} resource types", byName.size(), fhirContext.getVersion().getVersion());
+	}
+
+	/**
+	 * @return the resource class for the given name, or null if the name is not a resource type
+	 */
+	public Class<? extends IBaseResource> getResourceType(String resourceName) {
+		if (resourceName == null) {
+			return null;
+		}
+		Class<? extends IBaseResource> type = typesByName.get(resourceName);
+		if (type != null || unknownNames.contains(resourceName)) {
+			return type;
+		}
+		type = typesByLowerCaseName.get(resourceName.toLowerCase(Locale.ROOT));
+		if (type == null && unknownNames.size() < MAXIMUM_UNKNOWN_NAMES) {
+			unknownNames.add(resourceName);
+		}
+		return type;
+	}
+
+	public boolean isResourceType(String resourceName) {
+		return getResourceType(resourceName) != null;
+	}
+
+	public Set<String> getResourceNames() {
+		return typesByName.keySet();
+	}
+
+	public FhirContext getFhirContext() {
+		return fhirContext;
+	}
+
+	private static Properties loadVersionProperties(FhirContext fhirContext) {
+		Properties properties = new Properties();
+		try (InputStream stream = fhirContext.getVersion().getFhirVersionPropertiesFile()) {
+			properties.load(stream);
+		} catch (IOException e) {
+			throw new ConfigurationException("Failed to load FHIR version properties", e);
+		}
+		return properties;
+	}
+}
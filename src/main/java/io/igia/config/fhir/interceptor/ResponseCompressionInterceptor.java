@@ -0,0 +1,223 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+/**
+ * Compresses response bodies of at least a minimum size with gzip or deflate, as negotiated
+ * with {@code Accept-Encoding}, using pooled deflaters.
+ * <p>
+ * The servlet response of the request is replaced by a {@link CompressingResponse}, which holds
+ * back the first bytes until it knows whether the body is large and compressible enough. The
+ * server calls {@link #finish(HttpServletRequest)} once a request has been handled, so responses
+ * written by interceptors that stop the processing are completed as well. The compression ratio
+ * and the CPU time spent compressing are kept as request attributes and summed over all requests.
+ */
+public class ResponseCompressionInterceptor extends InterceptorAdapter {
+
+	public static final String COMPRESSION_RATIO_ATTRIBUTE = ResponseCompressionInterceptor.class.getName() + ".ratio";
+	public static final String COMPRESSION_CPU_TIME_ATTRIBUTE = ResponseCompressionInterceptor.class.getName() + ".cpuNanos";
+
+	private static final String RESPONSE_ATTRIBUTE = ResponseCompressionInterceptor.class.getName() + ".response";
+
+	private final Logger log = LoggerFactory.getLogger(ResponseCompressionInterceptor.class);
+
+	private final int minimumSize;
+	private final DeflaterPool gzipPool;
+	private final DeflaterPool deflatePool;
+
+	private final LongAdder compressedCount = new LongAdder();
+	private final LongAdder skippedCount = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder cpuNanos = new LongAdder();
+
+	public ResponseCompressionInterceptor(int minimumSize, int level, int poolSize) {
+		this.minimumSize = minimumSize;
+		this.gzipPool = new DeflaterPool(level, true, poolSize);
+		this.deflatePool = new DeflaterPool(level, false, poolSize);
+	}
+
+	@Override
+	public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest,
+			HttpServletResponse theResponse) {
+		if (!(theRequestDetails instanceof ServletRequestDetails) || "HEAD".equals(theRequest.getMethod())
+				|| theRequest.getAttribute(RESPONSE_ATTRIBUTE) != null) {
+			return true;
+		}
+		String coding = negotiate(theRequest.getHeader(HttpHeaders.ACCEPT_ENCODING));
+		if (coding == null) {
+			return true;
+		}
+		ServletRequestDetails servletRequestDetails = (ServletRequestDetails) theRequestDetails;
+		CompressingResponse response = new CompressingResponse(servletRequestDetails.getServletResponse(), this,
+				coding, CompressingResponse.GZIP.equals(coding) ? gzipPool : deflatePool, minimumSize);
+		servletRequestDetails.setServletResponse(response);
+		theRequestDetails.setRespondGzip(false);
+		theRequest.setAttribute(RESPONSE_ATTRIBUTE, response);
+		return true;
+	}
+
+	@Override
+	public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+		try {
+			finish(theRequestDetails.getServletRequest());
+		} catch (IOException e) {
+			log.debug("Failed to finish the compressed response: {}", e.toString());
+		}
+	}
+
+	/**
+	 * The exception handler writes the error through this request's response, so whatever was held
+	 * back is dropped and the error body is written uncompressed.
+	 */
+	@Override
+	public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException,
+			HttpServletRequest theServletRequest, HttpServletResponse theServletResponse)
+			throws ServletException, IOException {
+		Object response = theServletRequest.getAttribute(RESPONSE_ATTRIBUTE);
+		if (response instanceof CompressingResponse) {
+			((CompressingResponse) response).writeThrough();
+		}
+		return true;
+	}
+
+	/**
+	 * Complete the compressed response of a request, if there is one. Calling it again has no effect.
+	 */
+	public static void finish(HttpServletRequest request) throws IOException {
+		Object response = request.getAttribute(RESPONSE_ATTRIBUTE);
+		if (response instanceof CompressingResponse) {
+			CompressingResponse compressingResponse = (CompressingResponse) response;
+			compressingResponse.finish();
+			if (compressingResponse.isCompressed()) {
+				request.setAttribute(COMPRESSION_RATIO_ATTRIBUTE, ratio(compressingResponse.getBytesIn(), compressingResponse.getBytesOut()));
+				request.setAttribute(COMPRESSION_CPU_TIME_ATTRIBUTE, compressingResponse.getCpuNanos());
+			}
+		}
+	}
+
+	void record(CompressingResponse response) {
+		if (!response.isCompressed()) {
+			skippedCount.increment();
+			return;
+		}
+		compressedCount.increment();
+		bytesIn.add(response.getBytesIn());
+		bytesOut.add(response.getBytesOut());
+		cpuNanos.add(response.getCpuNanos());
+		log.debug("Compressed response with {} from {} to {} bytes in {} us", response.getCoding(), response.getBytesIn(),
+				response.getBytesOut(), response.getCpuNanos() / 1000);
+	}
+
+	/**
+	 * @return gzip or deflate, preferring gzip on equal weight, or null if neither is acceptable
+	 */
+	static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		double gzip = -1;
+		double deflate = -1;
+		double any = -1;
+		for (String element : acceptEncoding.split(",")) {
+			String[] parts = element.split(";");
+			double weight = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						weight = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						weight = 0;
+					}
+				}
+			}
+			switch (parts[0].trim().toLowerCase(Locale.ROOT)) {
+			case "gzip":
+			case "x-gzip":
+				gzip = weight;
+				break;
+			case "deflate":
+				deflate = weight;
+				break;
+			case "*":
+				any = weight;
+				break;
+			default:
+				break;
+			}
+		}
+		gzip = gzip < 0 ? any : gzip;
+		deflate = deflate < 0 ? any : deflate;
+		if (gzip > 0 && gzip >= deflate) {
+			return CompressingResponse.GZIP;
+		}
+		return deflate > 0 ? CompressingResponse.DEFLATE : null;
+	}
+
+	/**
+	 * End the pooled deflaters.
+	 */
+	public void close() {
+		gzipPool.clear();
+		deflatePool.clear();
+	}
+
+	private static double ratio(long in, long out) {
+		return out == 0 ? 0 : (double) in / out;
+	}
+
+	public long getCompressedCount() {
+		return compressedCount.sum();
+	}
+
+	public long getSkippedCount() {
+		return skippedCount.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	public long getCpuNanos() {
+		return cpuNanos.sum();
+	}
+
+	/**
+	 * @return uncompressed over compressed size of all compressed responses so far
+	 */
+	public double getCompressionRatio() {
+		return ratio(getBytesIn(), getBytesOut());
+	}
+}
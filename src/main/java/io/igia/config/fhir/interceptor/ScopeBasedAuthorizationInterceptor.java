@@ -12,17 +12,18 @@
  */
 package io.igia.config.fhir.interceptor;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.hl7.fhir.dstu3.model.IdType;
-import org.hl7.fhir.dstu3.model.ResourceFactory;
-import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
-import org.hspconsortium.platform.api.authorization.SmartScope;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.security.oauth2.resource.AuthoritiesExtractor;
 import org.springframework.boot.autoconfigure.security.oauth2.resource.PrincipalExtractor;
@@ -32,9 +33,14 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.client.OAuth2RestTemplate;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
 import org.springframework.security.oauth2.provider.token.TokenStore;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.ResourceBinding;
+import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
 import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationFlagsEnum;
 import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
@@ -43,13 +49,42 @@ import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleBuilder;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleBuilderRuleConditional;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleBuilderRuleOp;
 import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+import ca.uhn.fhir.rest.server.method.BaseMethodBinding;
+import ca.uhn.fhir.rest.server.method.IParameter;
+import ca.uhn.fhir.rest.server.method.SearchParameter;
+import io.igia.config.fhir.audit.AuditSink;
+import io.igia.config.fhir.audit.AuthorizationDecision;
+import io.igia.config.fhir.interceptor.SmartScopeDescriptor.Permission;
+import io.igia.config.fhir.interceptor.VerifiedTokenCache.VerifiedToken;
 
 public class ScopeBasedAuthorizationInterceptor extends AuthorizationInterceptor {
+
+	/**
+	 * How authorization decisions are evaluated. {@code TABLE} puts a {@link ScopePermissionRule}
+	 * in front of the rule list, which decides most requests with a lookup and falls back to the
+	 * rules for everything else. Only {@code TABLE} uses the precomputed compartment membership
+	 * check of {@link PatientCompartmentDefinitions}; {@code RULES} keeps HAPI's compartment rules.
+	 */
+	public enum Evaluator {
+		RULES, TABLE
+	}
+
 	public static final String LAUNCH_CONTEXT_PATIENT_PARAM_NAME = "patient";
+	private static final String VERIFIED_TOKEN_USER_DATA_KEY = ScopeBasedAuthorizationInterceptor.class.getName() + ".verifiedToken";
 	private static final String RULE_PATIENT_SCOPE_DEFAULT_DENY = "DENY ALL patient, resource or operation access if not explicitly granted in authorized scope";
 
 	private TokenStore tokenStore;
+	private ResourceServerTokenServices tokenServices;
 	private final OAuth2RestTemplate oAuth2RestTemplate;
+	private final ResourceTypeRegistry resourceTypeRegistry;
+	private final SmartScopeParser scopeParser;
+	private final PatientCompartmentDefinitions compartmentDefinitions;
+	private AuthorizationRuleCache ruleCache;
+	private VerifiedTokenCache tokenCache;
+	private Evaluator evaluator = Evaluator.RULES;
+	private boolean compartmentSearchNarrowing;
+	private boolean transactionAuthorization;
+	private AuditSink auditSink;
 	
     @Autowired
     private PrincipalExtractor principalExtractor;
@@ -58,13 +93,133 @@ public class ScopeBasedAuthorizationInterceptor extends AuthorizationInterceptor
     private AuthoritiesExtractor authoritiesExtractor;
 
 	public ScopeBasedAuthorizationInterceptor(TokenStore tokenStore, OAuth2RestTemplate oAuth2RestTemplate) {
+		this(tokenStore, oAuth2RestTemplate, new ResourceTypeRegistry(FhirContext.forDstu3()));
+	}
+
+	public ScopeBasedAuthorizationInterceptor(TokenStore tokenStore, OAuth2RestTemplate oAuth2RestTemplate,
+			ResourceTypeRegistry resourceTypeRegistry) {
 		this.tokenStore = tokenStore;
 		this.oAuth2RestTemplate = oAuth2RestTemplate;
+		this.resourceTypeRegistry = resourceTypeRegistry;
+		this.scopeParser = new SmartScopeParser(resourceTypeRegistry);
+		this.compartmentDefinitions = new PatientCompartmentDefinitions(resourceTypeRegistry);
 		// new flag in 3.5.0, allows attempts to perform read operations (read/search/history)
 		// and then checks for matches by the interceptor after the method handler is called 
 		this.setFlags(AuthorizationFlagsEnum.NO_NOT_PROACTIVELY_BLOCK_COMPARTMENT_READ_ACCESS);
 	}
 
+	@Override
+	public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest,
+			HttpServletResponse theResponse) {
+		if (compartmentSearchNarrowing && theRequestDetails.getRestOperationType() == RestOperationTypeEnum.SEARCH_TYPE) {
+			narrowSearchToPatientCompartment(theRequestDetails);
+		}
+		return super.incomingRequestPostProcessed(theRequestDetails, theRequest, theResponse);
+	}
+
+	/**
+	 * Add the Patient compartment search parameter to a search that the token may only perform
+	 * through patient scopes, so providers only load the in-context patient's resources. The
+	 * results are still checked by the rule list.
+	 * <p>
+	 * This runs after HAPI has bound the search method, so nothing is added unless that method
+	 * takes the parameter. Only one compartment parameter is added (see
+	 * {@link PatientCompartmentDefinitions#getSearchParameter(Class)}); for types whose
+	 * compartment has several parameters, resources that reference the patient only through
+	 * another one (e.g. an Observation's {@code performer}) are not returned.
+	 */
+	protected void narrowSearchToPatientCompartment(RequestDetails theRequestDetails) {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		if (!(authentication instanceof OAuth2Authentication)) {
+			return;
+		}
+		Class<? extends IBaseResource> resourceType = resourceTypeRegistry.getResourceType(theRequestDetails.getResourceName());
+		if (resourceType == null) {
+			return;
+		}
+		String searchParameter = compartmentDefinitions.getSearchParameter(resourceType);
+		Map<String, String[]> parameters = theRequestDetails.getParameters();
+		if (searchParameter == null || parameters.containsKey(searchParameter)
+				|| !boundSearchMethodAccepts(theRequestDetails, searchParameter)) {
+			return;
+		}
+
+		VerifiedToken token = readVerifiedToken(oAuth2RestTemplate.getOAuth2ClientContext().getAccessToken().getValue());
+		String patientId = token.getPatientId();
+		if (patientId == null || patientId.isEmpty()) {
+			return;
+		}
+		boolean patientGrant = false;
+		for (SmartScopeDescriptor smartScope : scopeParser.parseAll(token.getScope())) {
+			if (!grantsRead(smartScope) || !(smartScope.isWildcardResource() || smartScope.getResourceType() == resourceType)) {
+				continue;
+			}
+			if (smartScope.isUserScope()) {
+				return;
+			}
+			patientGrant |= smartScope.isPatientScope();
+		}
+		if (patientGrant) {
+			Map<String, String[]> narrowed = new HashMap<>(parameters);
+			narrowed.put(searchParameter, new String[] { compartmentDefinitions.getSearchParameterValue(searchParameter, patientId) });
+			theRequestDetails.setParameters(narrowed);
+		}
+	}
+
+	/**
+	 * @return true if the search method HAPI bound for the request takes the given parameter
+	 */
+	protected boolean boundSearchMethodAccepts(RequestDetails theRequestDetails, String searchParameter) {
+		if (!(theRequestDetails.getServer() instanceof RestfulServer)) {
+			return false;
+		}
+		for (ResourceBinding binding : ((RestfulServer) theRequestDetails.getServer()).getResourceBindings()) {
+			if (!binding.getResourceName().equals(theRequestDetails.getResourceName())) {
+				continue;
+			}
+			BaseMethodBinding<?> method = binding.getMethod(theRequestDetails);
+			if (method == null) {
+				return false;
+			}
+			for (IParameter parameter : method.getParameters()) {
+				if (parameter instanceof SearchParameter && searchParameter.equals(((SearchParameter) parameter).getName())) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Tell whether a read of the resource is allowed or denied without loading it. Reads granted
+	 * only by patient scopes are checked against the loaded resource, since this interceptor does
+	 * not proactively block compartment reads, except reads of the in-context patient itself.
+	 */
+	public boolean isReadDecidedBeforeLoading(RequestDetails theRequestDetails, IIdType theId) {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		if (authentication == null || !(authentication instanceof OAuth2Authentication)) {
+			return true;
+		}
+		VerifiedToken token = readVerifiedToken(oAuth2RestTemplate.getOAuth2ClientContext().getAccessToken().getValue());
+		List<SmartScopeDescriptor> smartScopes = scopeParser.parseAll(token.getScope());
+		boolean isSmartScope = false;
+		for (SmartScopeDescriptor smartScope : smartScopes) {
+			if (!smartScope.isUserScope() && !smartScope.isPatientScope()) {
+				continue;
+			}
+			isSmartScope = true;
+			if (grantsRead(smartScope) && (smartScope.isWildcardResource()
+					|| smartScope.getResource().equals(theId.getResourceType()))) {
+				if (smartScope.isUserScope() || "Patient".equals(theId.getResourceType())
+						&& theId.getIdPart().equals(token.getPatientId())) {
+					return true;
+				}
+			}
+		}
+		return !isSmartScope;
+	}
+
 	@Override
 	public List<IAuthRule> buildRuleList(RequestDetails theRequestDetails) {
 		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
@@ -74,40 +229,233 @@ public class ScopeBasedAuthorizationInterceptor extends AuthorizationInterceptor
 			return new RuleBuilder().allowAll().build();
 		}
 		
-		OAuth2AccessToken accessToken = tokenStore.readAccessToken(
-				oAuth2RestTemplate.getOAuth2ClientContext().getAccessToken().getValue());
+		VerifiedToken token = readVerifiedToken(oAuth2RestTemplate.getOAuth2ClientContext().getAccessToken().getValue());
+		if (auditSink != null) {
+			theRequestDetails.getUserData().put(VERIFIED_TOKEN_USER_DATA_KEY, token);
+		}
+		Set<String> scopes = token.getScope();
+		String patientId = token.getPatientId();
+		String userId = token.getUserId();
+		List<GrantedAuthority> authorities = token.getAuthorities();
+		
+		if (ruleCache == null) {
+			return compileRuleList(scopes, patientId, userId, authorities);
+		}
+		return ruleCache.get(
+				AuthorizationRuleCache.key(scopes, patientId, userId, authorities),
+				token.getExpiration(),
+				() -> compileRuleList(scopes, patientId, userId, authorities));
+	}
+
+	@Override
+	public Verdict applyRulesAndReturnDecision(RestOperationTypeEnum theOperation, RequestDetails theRequestDetails,
+			IBaseResource theInputResource, IIdType theInputResourceId, IBaseResource theOutputResource) {
+		Verdict verdict = super.applyRulesAndReturnDecision(theOperation, theRequestDetails, theInputResource,
+				theInputResourceId, theOutputResource);
+		if (auditSink != null) {
+			auditSink.record(toDecision(verdict, theOperation, theRequestDetails, theInputResource, theInputResourceId,
+					theOutputResource));
+		}
+		return verdict;
+	}
+
+	protected AuthorizationDecision toDecision(Verdict verdict, RestOperationTypeEnum theOperation, RequestDetails theRequestDetails,
+			IBaseResource theInputResource, IIdType theInputResourceId, IBaseResource theOutputResource) {
+		String resource;
+		if (theOutputResource != null && theOutputResource.getIdElement().hasIdPart()) {
+			resource = theOutputResource.getIdElement().toUnqualifiedVersionless().getValue();
+		} else if (theInputResourceId != null && theInputResourceId.hasIdPart()) {
+			resource = theInputResourceId.toUnqualifiedVersionless().getValue();
+		} else if (theInputResource != null && theInputResource.getIdElement().hasIdPart()) {
+			resource = theInputResource.getIdElement().toUnqualifiedVersionless().getValue();
+		} else {
+			resource = theRequestDetails.getResourceName();
+		}
+
+		String subject = null;
+		String clientId = null;
+		String patientId = null;
+		Set<String> scopes = null;
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		if (authentication instanceof OAuth2Authentication) {
+			clientId = ((OAuth2Authentication) authentication).getOAuth2Request().getClientId();
+			subject = authentication.getName();
+		}
+		VerifiedToken token = (VerifiedToken) theRequestDetails.getUserData().get(VERIFIED_TOKEN_USER_DATA_KEY);
+		if (token != null) {
+			subject = token.getUserId() != null ? token.getUserId() : subject;
+			patientId = token.getPatientId();
+			scopes = token.getScope();
+		}
+		IAuthRule rule = verdict.getDecidingRule();
+		return new AuthorizationDecision(System.currentTimeMillis(), subject, clientId, patientId, scopes, theOperation,
+				resource, verdict.getDecision(), rule != null ? rule.getName() : null);
+	}
+
+	protected VerifiedToken readVerifiedToken(String tokenValue) {
+		if (tokenCache == null) {
+			return verifyToken(tokenValue);
+		}
+		return tokenCache.get(tokenValue, this::verifyToken);
+	}
+
+	protected VerifiedToken verifyToken(String tokenValue) {
+		OAuth2AccessToken accessToken = tokenServices != null ? tokenServices.readAccessToken(tokenValue)
+				: tokenStore.readAccessToken(tokenValue);
 		
-		Set<SmartScope> smartScopes = getSmartScopes(accessToken);
+		Map<String, Object> claims = accessToken.getAdditionalInformation();
+
+		String patientId = (String) claims.get(LAUNCH_CONTEXT_PATIENT_PARAM_NAME);
+		String userId = (String) principalExtractor.extractPrincipal(claims);
+		List<GrantedAuthority> authorities = authoritiesExtractor.extractAuthorities(claims);
+		return new VerifiedToken(accessToken, patientId, userId, authorities);
+	}
+
+	protected List<IAuthRule> compileRuleList(Set<String> scopes, String patientId, String userId, List<GrantedAuthority> authorities) {
+		List<SmartScopeDescriptor> smartScopes = scopeParser.parseAll(scopes);
 		
 		IAuthRuleBuilder rules = new RuleBuilder();	
 
 		// if no access limiting scopes, then allow all
 		boolean isSmartScope = false;
-		for (SmartScope smartScope : smartScopes) {
-			if (smartScope.isUserScope() || smartScope.isPatientScope())
+		for (SmartScopeDescriptor smartScope : smartScopes) {
+			if (smartScope.isUserScope() || smartScope.isPatientScope()) {
 				isSmartScope = true;
-				break;				
+				break;
+			}
 		}
 		if(!isSmartScope) {
 			return new RuleBuilder().allowAll().build();
 		}
 		
-		Map<String, Object> claims = accessToken.getAdditionalInformation();
-
-		String patientId = (String) claims.get(LAUNCH_CONTEXT_PATIENT_PARAM_NAME);
-		String userId = (String) principalExtractor.extractPrincipal(claims);
-		List<GrantedAuthority> authorities = authoritiesExtractor.extractAuthorities(claims);
-		
 		rules = filterToUserScopes(rules, userId, authorities, smartScopes);
 		rules = filterToPatientScopes(rules, patientId, smartScopes);
 		
 		rules.allow().metadata().andThen();
+		if (transactionAuthorization) {
+			rules.allow().transaction().withAnyOperation().andApplyNormalRules().andThen();
+		}
 		rules.denyAll(RULE_PATIENT_SCOPE_DEFAULT_DENY).andThen();
-		return rules.build();
+		if (evaluator != Evaluator.TABLE) {
+			return rules.build();
+		}
+
+		List<IAuthRule> ruleList = rules.build();
+		List<IAuthRule> result = new ArrayList<>(ruleList.size() + 1);
+		result.add(new ScopePermissionRule(compilePermissionTable(smartScopes), resourceTypeRegistry, compartmentDefinitions,
+				patientId, transactionAuthorization, RULE_PATIENT_SCOPE_DEFAULT_DENY));
+		result.addAll(ruleList);
+		return result;
+	}
+
+	protected ScopePermissionTable compilePermissionTable(List<SmartScopeDescriptor> smartScopes) {
+		ScopePermissionTable.Builder table = ScopePermissionTable.builder();
+		for (SmartScopeDescriptor smartScope : smartScopes) {
+			int actions = 0;
+			if (grantsRead(smartScope)) {
+				actions |= ScopePermissionTable.READ;
+			}
+			if (grantsWrite(smartScope)) {
+				actions |= ScopePermissionTable.WRITE;
+			}
+			if (grantsDelete(smartScope)) {
+				actions |= ScopePermissionTable.DELETE;
+			}
+			if (actions == 0) {
+				continue;
+			}
+			Class<? extends IBaseResource> resourceType = smartScope.isWildcardResource() ? null : resolveResourceType(smartScope);
+			if (smartScope.isUserScope()) {
+				table.grantUser(resourceType, actions);
+			} else if (smartScope.isPatientScope()) {
+				table.grantPatient(resourceType, actions);
+			}
+		}
+		return table.build();
+	}
+
+	/**
+	 * Add the Patient compartment parameter to searches only granted through patient scopes.
+	 */
+	public void setCompartmentSearchNarrowing(boolean compartmentSearchNarrowing) {
+		this.compartmentSearchNarrowing = compartmentSearchNarrowing;
+	}
+
+	public boolean isCompartmentSearchNarrowing() {
+		return compartmentSearchNarrowing;
+	}
+
+	/**
+	 * Allow transaction and batch bundles whose entries are each allowed by the scopes. With the
+	 * {@link Evaluator#TABLE} evaluator the entries are decided in a single pass.
+	 */
+	public void setTransactionAuthorization(boolean transactionAuthorization) {
+		this.transactionAuthorization = transactionAuthorization;
+	}
+
+	public boolean isTransactionAuthorization() {
+		return transactionAuthorization;
+	}
+
+	/**
+	 * Record every allow and deny decision to the given sink; null disables auditing.
+	 */
+	public void setAuditSink(AuditSink auditSink) {
+		this.auditSink = auditSink;
+	}
+
+	public AuditSink getAuditSink() {
+		return auditSink;
+	}
+
+	public PatientCompartmentDefinitions getCompartmentDefinitions() {
+		return compartmentDefinitions;
+	}
+
+	public void setEvaluator(Evaluator evaluator) {
+		this.evaluator = evaluator;
+	}
+
+	public Evaluator getEvaluator() {
+		return evaluator;
+	}
+
+	/**
+	 * Cache compiled rule lists per scope set and launch context; null disables caching.
+	 */
+	public void setRuleCache(AuthorizationRuleCache ruleCache) {
+		this.ruleCache = ruleCache;
+	}
+
+	public AuthorizationRuleCache getRuleCache() {
+		return ruleCache;
+	}
+
+	/**
+	 * Read access tokens through the given token services (e.g. token introspection) instead
+	 * of the token store; null uses the token store.
+	 */
+	public void setTokenServices(ResourceServerTokenServices tokenServices) {
+		this.tokenServices = tokenServices;
+	}
+
+	public ResourceServerTokenServices getTokenServices() {
+		return tokenServices;
+	}
+
+	/**
+	 * Cache verified access tokens and their extracted claims; null disables caching.
+	 */
+	public void setTokenCache(VerifiedTokenCache tokenCache) {
+		this.tokenCache = tokenCache;
+	}
+
+	public VerifiedTokenCache getTokenCache() {
+		return tokenCache;
 	}
 	
-	protected IAuthRuleBuilder filterToUserScopes(IAuthRuleBuilder rules, String userId, List<GrantedAuthority> authorities, Set<SmartScope> smartScopes) {
-		for (SmartScope smartScope : smartScopes) {
+	protected IAuthRuleBuilder filterToUserScopes(IAuthRuleBuilder rules, String userId, List<GrantedAuthority> authorities, List<SmartScopeDescriptor> smartScopes) {
+		for (SmartScopeDescriptor smartScope : smartScopes) {
 			if (smartScope.isUserScope()) {
 				filterToUserScope(userId, authorities, smartScope, rules);
 			}
@@ -116,86 +464,58 @@ public class ScopeBasedAuthorizationInterceptor extends AuthorizationInterceptor
 		return rules;
 	}
 	
-	protected void filterToUserScope(String userId, List<GrantedAuthority> authorities, SmartScope smartScope, IAuthRuleBuilder rules) {		
-		switch(smartScope.getOperation())
-		{
-		case "*":
+	protected void filterToUserScope(String userId, List<GrantedAuthority> authorities, SmartScopeDescriptor smartScope, IAuthRuleBuilder rules) {		
+		checkSupported(smartScope);
+		if (grantsRead(smartScope)) {
 			applyUserScopeResourceClassifier(rules.allow().read(), userId, authorities, smartScope);
+		}
+		if (grantsWrite(smartScope)) {
 			applyUserScopeResourceClassifier(rules.allow().write(), userId, authorities, smartScope);
-			applyUserScopeResourceClassifier(rules.allow().delete(), userId, authorities, smartScope);
 			applyUserScopeConditionalResourceClassifier(rules.allow().createConditional(), smartScope);
 			applyUserScopeConditionalResourceClassifier(rules.allow().updateConditional(), smartScope);
+		}
+		if (grantsDelete(smartScope)) {
+			applyUserScopeResourceClassifier(rules.allow().delete(), userId, authorities, smartScope);
 			applyUserScopeConditionalResourceClassifier(rules.allow().deleteConditional(), smartScope);
+		}
+		if (smartScope.hasAllPermissions()) {
 			// instance and type level operations may read, alter or delete data, should restrict to "*" scope
 			applyUserScopeOperationResourceClassifier(rules, userId, authorities, smartScope);
-			break; 
-		case "read":
-			applyUserScopeResourceClassifier(rules.allow().read(), userId, authorities, smartScope);			
-			break; 
-		case "write":
-			applyUserScopeResourceClassifier(rules.allow().write(), userId, authorities, smartScope);
-			applyUserScopeResourceClassifier(rules.allow().delete(), userId, authorities, smartScope);
-			applyUserScopeConditionalResourceClassifier(rules.allow().createConditional(), smartScope);
-			applyUserScopeConditionalResourceClassifier(rules.allow().updateConditional(), smartScope);
-			applyUserScopeConditionalResourceClassifier(rules.allow().deleteConditional(), smartScope);
-			break; 
-		default:
-			throw new NotImplementedOperationException("Scope operation " + smartScope.getOperation() + " not supported.");
 		}
 	}
 	
 	protected void applyUserScopeResourceClassifier(IAuthRuleBuilderRuleOp ruleOp, String userId, List<GrantedAuthority> authorities,
-			SmartScope smartScope) {
-		if (smartScope.getResource().equalsIgnoreCase("*")) {
+			SmartScopeDescriptor smartScope) {
+		if (smartScope.isWildcardResource()) {
 			ruleOp.allResources().withAnyId().andThen();
 		} else {
-			Class<? extends IBaseResource> theType;
-			try {
-				theType = ResourceFactory.createResource(smartScope.getResource()).getClass();
-				ruleOp.resourcesOfType(theType).withAnyId().andThen();
-			} catch (FHIRException e) {
-				throw new NotImplementedOperationException(
-					"Scope resource " + smartScope.getResource() + " not supported.");
-			}
+			ruleOp.resourcesOfType(resolveResourceType(smartScope)).withAnyId().andThen();
 		}
 	}
 	
-	protected void applyUserScopeConditionalResourceClassifier(IAuthRuleBuilderRuleConditional ruleOp, SmartScope smartScope) {
-		if (smartScope.getResource().equalsIgnoreCase("*")) {
+	protected void applyUserScopeConditionalResourceClassifier(IAuthRuleBuilderRuleConditional ruleOp, SmartScopeDescriptor smartScope) {
+		if (smartScope.isWildcardResource()) {
 			ruleOp.allResources().andThen();
 		} else {
-			Class<? extends IBaseResource> theType;
-			try {
-				theType = ResourceFactory.createResource(smartScope.getResource()).getClass();
-				ruleOp.resourcesOfType(theType).andThen();
-			} catch (FHIRException e) {
-				throw new NotImplementedOperationException(
-						"Scope resource " + smartScope.getResource() + " not supported.");
-			}
+			ruleOp.resourcesOfType(resolveResourceType(smartScope)).andThen();
 		}
 	}
 	
 	protected void applyUserScopeOperationResourceClassifier(IAuthRuleBuilder rules, String userId, List<GrantedAuthority> authorities,
-			SmartScope smartScope) {
-		if (smartScope.getResource().equalsIgnoreCase("*")) {
+			SmartScopeDescriptor smartScope) {
+		if (smartScope.isWildcardResource()) {
 			rules.allow().operation().withAnyName().atAnyLevel().andThen();
 		} else {
-			Class<? extends IBaseResource> theType;
-			try {
-				theType = ResourceFactory.createResource(smartScope.getResource()).getClass();
-				rules.allow().operation().withAnyName().onType(theType).andThen()
-				.allow().operation().withAnyName().onInstancesOfType(theType).andThen();
-			} catch (FHIRException e) {
-				throw new NotImplementedOperationException(
-						"Scope resource " + smartScope.getResource() + " not supported.");
-			}
+			Class<? extends IBaseResource> theType = resolveResourceType(smartScope);
+			rules.allow().operation().withAnyName().onType(theType).andThen()
+			.allow().operation().withAnyName().onInstancesOfType(theType).andThen();
 		}
 	}
 
-	protected IAuthRuleBuilder filterToPatientScopes(IAuthRuleBuilder rules, String patientId, Set<SmartScope> smartScopes) {
+	protected IAuthRuleBuilder filterToPatientScopes(IAuthRuleBuilder rules, String patientId, List<SmartScopeDescriptor> smartScopes) {
 		IIdType patientIId = new IdType("Patient", patientId);				
 
-		for (SmartScope smartScope : smartScopes) {
+		for (SmartScopeDescriptor smartScope : smartScopes) {
 			if (smartScope.isPatientScope()) {
 				if (patientId == null || patientId.isEmpty()) {
 					throw new SecurityException("For patient scope, a launch context parameter indicating the in-context" +
@@ -209,69 +529,93 @@ public class ScopeBasedAuthorizationInterceptor extends AuthorizationInterceptor
 		return rules;
 	}
 
-	protected void filterToPatientScope(IIdType patientId, SmartScope smartScope, IAuthRuleBuilder rules) {		
-		switch(smartScope.getOperation())
-		{
-		case "*":
+	protected void filterToPatientScope(IIdType patientId, SmartScopeDescriptor smartScope, IAuthRuleBuilder rules) {		
+		checkSupported(smartScope);
+		if (grantsRead(smartScope)) {
 			applyPatientScopeResourceClassifier(rules.allow().read(), patientId, smartScope);
+		}
+		if (grantsWrite(smartScope)) {
 			applyPatientScopeResourceClassifier(rules.allow().write(), patientId, smartScope);
-			applyPatientScopeResourceClassifier(rules.allow().delete(), patientId, smartScope);
 			applyPatientScopeConditionalResourceClassifier(rules.allow().createConditional(), smartScope);
 			applyPatientScopeConditionalResourceClassifier(rules.allow().updateConditional(), smartScope);
+		}
+		if (grantsDelete(smartScope)) {
+			applyPatientScopeResourceClassifier(rules.allow().delete(), patientId, smartScope);
 			applyPatientScopeConditionalResourceClassifier(rules.allow().deleteConditional(), smartScope);
+		}
+		if (smartScope.hasAllPermissions()) {
 			// resource operations (type or instance level) may read, alter or delete data, should restrict to "*" scope
 			applyPatientScopeOperationResourceClassifier(rules, patientId, smartScope);
-			break; 
-		case "read":
-			applyPatientScopeResourceClassifier(rules.allow().read(), patientId, smartScope);			
-			break; 
-		case "write":
-			applyPatientScopeResourceClassifier(rules.allow().write(), patientId, smartScope);
-			applyPatientScopeResourceClassifier(rules.allow().delete(), patientId, smartScope);
-			applyPatientScopeConditionalResourceClassifier(rules.allow().createConditional(), smartScope);
-			applyPatientScopeConditionalResourceClassifier(rules.allow().updateConditional(), smartScope);
-			applyPatientScopeConditionalResourceClassifier(rules.allow().deleteConditional(), smartScope);
-			break; 
-		default:
-			throw new NotImplementedOperationException("Scope operation " + smartScope.getOperation() + " not supported.");
 		}
 	}
 
 	protected void applyPatientScopeResourceClassifier(IAuthRuleBuilderRuleOp ruleOp, IIdType patientId,
-			SmartScope smartScope) {
-		if (smartScope.getResource().equalsIgnoreCase("*")) {
+			SmartScopeDescriptor smartScope) {
+		if (smartScope.isWildcardResource()) {
 			ruleOp.allResources().inCompartment("Patient", patientId).andThen();
 		} else {
-			Class<? extends IBaseResource> theType;
-			try {
-				theType = ResourceFactory.createResource(smartScope.getResource()).getClass();
-				ruleOp.resourcesOfType(theType).inCompartment("Patient", patientId).andThen();
-			} catch (FHIRException e) {
-				throw new NotImplementedOperationException(
-						"Scope resource " + smartScope.getResource() + " not supported.");
-			}
+			ruleOp.resourcesOfType(resolveResourceType(smartScope)).inCompartment("Patient", patientId).andThen();
 		}
 	}
 	
-	protected void applyPatientScopeConditionalResourceClassifier(IAuthRuleBuilderRuleConditional ruleOp, SmartScope smartScope) {
+	protected void applyPatientScopeConditionalResourceClassifier(IAuthRuleBuilderRuleConditional ruleOp, SmartScopeDescriptor smartScope) {
 		return;
 	}
 
 	protected void applyPatientScopeOperationResourceClassifier(IAuthRuleBuilder rules, IIdType patientIdType,
-			SmartScope smartScope) {
+			SmartScopeDescriptor smartScope) {
 		//cannot fully restrict access to type and instance level operations by patient id
-		if (smartScope.getResource().equalsIgnoreCase("Patient")) {
+		if ("Patient".equalsIgnoreCase(smartScope.getResource())) {
 			rules.allow().operation().withAnyName().onInstance(patientIdType).andThen();
 		}
 	}
 
-	private Set<SmartScope> getSmartScopes(OAuth2AccessToken token) {
-		Set<SmartScope> scopes = new HashSet<>();
+	/**
+	 * HAPI read rules cover read, search and history, so either v2 permission grants them.
+	 */
+	protected boolean grantsRead(SmartScopeDescriptor smartScope) {
+		return smartScope.hasPermission(Permission.READ) || smartScope.hasPermission(Permission.SEARCH);
+	}
+
+	/**
+	 * HAPI write rules cover both create and update, so only grant them when the scope allows both.
+	 */
+	protected boolean grantsWrite(SmartScopeDescriptor smartScope) {
+		return smartScope.hasPermission(Permission.CREATE) && smartScope.hasPermission(Permission.UPDATE);
+	}
+
+	protected boolean grantsDelete(SmartScopeDescriptor smartScope) {
+		return smartScope.hasPermission(Permission.DELETE);
+	}
 
-		for (String scope : token.getScope()) {
-			scopes.add(new IgiaSmartScope(scope));
+	protected Class<? extends IBaseResource> resolveResourceType(SmartScopeDescriptor smartScope) {
+		Class<? extends IBaseResource> theType = smartScope.getResourceType();
+		if (theType == null) {
+			throw new NotImplementedOperationException(
+					"Scope resource " + smartScope.getResource() + " not supported.");
 		}
+		return theType;
+	}
 
-		return scopes;
+	public void setPrincipalExtractor(PrincipalExtractor principalExtractor) {
+		this.principalExtractor = principalExtractor;
+	}
+
+	public void setAuthoritiesExtractor(AuthoritiesExtractor authoritiesExtractor) {
+		this.authoritiesExtractor = authoritiesExtractor;
+	}
+
+	public ResourceTypeRegistry getResourceTypeRegistry() {
+		return resourceTypeRegistry;
+	}
+
+	public SmartScopeParser getScopeParser() {
+		return scopeParser;
+	}
+
+	private void checkSupported(SmartScopeDescriptor smartScope) {
+		if (!smartScope.isSupported()) {
+			throw new NotImplementedOperationException("Scope operation " + smartScope.getOperation() + " not supported.");
+		}
 	}
 }
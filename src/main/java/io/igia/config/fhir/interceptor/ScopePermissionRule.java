@@ -0,0 +1,196 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationFlagsEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor.Verdict;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.IRuleApplier;
+import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.bundle.BundleEntryParts;
+
+/**
+ * First rule of a compiled rule list that decides read, write and delete requests with
+ * a {@link ScopePermissionTable} lookup. Resources granted through patient scopes are
+ * allowed when {@link PatientCompartmentDefinitions} finds them in the patient's
+ * compartment. Transaction and batch bundles can be decided in a single pass over their
+ * entries. Requests it cannot decide (other compartment checks, operations, system level
+ * interactions) return null and fall through to the rule list.
+ */
+public class ScopePermissionRule implements IAuthRule {
+	private static final String RULE_NAME = "SMART scope permission table";
+
+	private final IAuthRule allowRule = new RuleBuilder().allowAll(RULE_NAME).build().get(0);
+	private final IAuthRule denyRule;
+	private final ScopePermissionTable table;
+	private final ResourceTypeRegistry resourceTypeRegistry;
+	private final PatientCompartmentDefinitions compartmentDefinitions;
+	private final String patientId;
+	private final boolean transactions;
+
+	public ScopePermissionRule(ScopePermissionTable table, ResourceTypeRegistry resourceTypeRegistry, String denyRuleName) {
+		this(table, resourceTypeRegistry, null, null, false, denyRuleName);
+	}
+
+	/**
+	 * @param compartmentDefinitions used to allow patient scope grants without the rule list, may be null
+	 * @param patientId the in-context patient, may be null
+	 * @param transactions whether to decide transaction and batch bundles in a single pass
+	 */
+	public ScopePermissionRule(ScopePermissionTable table, ResourceTypeRegistry resourceTypeRegistry,
+			PatientCompartmentDefinitions compartmentDefinitions, String patientId, boolean transactions, String denyRuleName) {
+		this.table = table;
+		this.resourceTypeRegistry = resourceTypeRegistry;
+		this.compartmentDefinitions = compartmentDefinitions;
+		this.patientId = patientId;
+		this.transactions = transactions;
+		this.denyRule = new RuleBuilder().denyAll(denyRuleName).build().get(0);
+	}
+
+	@Override
+	public Verdict applyRule(RestOperationTypeEnum theOperation, RequestDetails theRequestDetails, IBaseResource theInputResource,
+			IIdType theInputResourceId, IBaseResource theOutputResource, IRuleApplier theRuleApplier,
+			Set<AuthorizationFlagsEnum> theFlags) {
+		if (theOperation == RestOperationTypeEnum.METADATA) {
+			return allowRule.applyRule(theOperation, theRequestDetails, theInputResource, theInputResourceId, theOutputResource,
+					theRuleApplier, theFlags);
+		}
+		IAuthRule decidingRule;
+		if (theOperation == RestOperationTypeEnum.TRANSACTION) {
+			if (!transactions || !(theInputResource instanceof IBaseBundle) || theOutputResource != null) {
+				return null;
+			}
+			decidingRule = decideTransaction((IBaseBundle) theInputResource);
+		} else {
+			int action = ScopePermissionTable.actionOf(theOperation);
+			if (action == 0) {
+				return null;
+			}
+			Class<? extends IBaseResource> resourceType = resolveResourceType(theRequestDetails, theInputResource,
+					theInputResourceId, theOutputResource);
+			IBaseResource resource = theOutputResource != null ? theOutputResource : theInputResource;
+			decidingRule = decide(resourceType, action, resource);
+		}
+		if (decidingRule == null) {
+			// let the rule list decide
+			return null;
+		}
+		return decidingRule.applyRule(theOperation, theRequestDetails, theInputResource, theInputResourceId, theOutputResource,
+				theRuleApplier, theFlags);
+	}
+
+	/**
+	 * Decide all entries of a transaction or batch at once. Each entry is a table lookup for
+	 * its resource type and action, plus a compartment check for patient scope grants. A
+	 * single denied entry denies the bundle; an entry the table cannot decide hands the whole
+	 * bundle to the rule list.
+	 */
+	private IAuthRule decideTransaction(IBaseBundle bundle) {
+		FhirContext fhirContext = resourceTypeRegistry.getFhirContext();
+		for (BundleEntryParts entry : BundleUtil.toListOfEntries(fhirContext, bundle)) {
+			IBaseResource resource = entry.getResource();
+			String resourceName = resource != null ? fhirContext.getResourceDefinition(resource).getName()
+					: resourceNameFromUrl(entry.getUrl());
+			IAuthRule decision = decide(resourceTypeRegistry.getResourceType(resourceName), actionOf(entry.getRequestType()), resource);
+			if (decision != allowRule) {
+				return decision;
+			}
+		}
+		return allowRule;
+	}
+
+	/**
+	 * @return the allow or deny rule, or null if the rule list has to decide
+	 */
+	private IAuthRule decide(Class<? extends IBaseResource> resourceType, int action, IBaseResource resource) {
+		if (resourceType == null || action == 0) {
+			return null;
+		}
+		if ((table.getUserGrants(resourceType) & action) != 0) {
+			return allowRule;
+		}
+		if ((table.getPatientGrants(resourceType) & action) != 0) {
+			boolean member = resource != null && compartmentDefinitions != null && patientId != null
+					&& compartmentDefinitions.isMember(resource, patientId);
+			return member ? allowRule : null;
+		}
+		return denyRule;
+	}
+
+	private static int actionOf(RequestTypeEnum requestType) {
+		if (requestType == null) {
+			return 0;
+		}
+		switch (requestType) {
+		case GET:
+			return ScopePermissionTable.READ;
+		case POST:
+		case PUT:
+			return ScopePermissionTable.WRITE;
+		case DELETE:
+			return ScopePermissionTable.DELETE;
+		default:
+			return 0;
+		}
+	}
+
+	private static String resourceNameFromUrl(String url) {
+		if (url == null) {
+			return null;
+		}
+		int end = url.length();
+		for (int i = 0; i < url.length(); i++) {
+			char next = url.charAt(i);
+			if (next == '/' || next == '?') {
+				end = i;
+				break;
+			}
+		}
+		return url.substring(0, end);
+	}
+
+	@Override
+	public String getName() {
+		return RULE_NAME;
+	}
+
+	public ScopePermissionTable getTable() {
+		return table;
+	}
+
+	private Class<? extends IBaseResource> resolveResourceType(RequestDetails theRequestDetails, IBaseResource theInputResource,
+			IIdType theInputResourceId, IBaseResource theOutputResource) {
+		String resourceName;
+		if (theOutputResource != null) {
+			resourceName = resourceTypeRegistry.getFhirContext().getResourceDefinition(theOutputResource).getName();
+		} else if (theInputResource != null) {
+			resourceName = resourceTypeRegistry.getFhirContext().getResourceDefinition(theInputResource).getName();
+		} else if (theInputResourceId != null && theInputResourceId.hasResourceType()) {
+			resourceName = theInputResourceId.getResourceType();
+		} else {
+			resourceName = theRequestDetails.getResourceName();
+		}
+		return resourceTypeRegistry.getResourceType(resourceName);
+	}
+}
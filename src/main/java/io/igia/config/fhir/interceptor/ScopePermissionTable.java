@@ -0,0 +1,118 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+
+/**
+ * Granted actions per resource type, compiled from the SMART scopes of a token. User
+ * scope grants apply to any resource of the type; patient scope grants additionally
+ * require compartment membership, which is left to the rule list.
+ */
+public final class ScopePermissionTable {
+	public static final int READ = 1;
+	public static final int WRITE = 1 << 1;
+	public static final int DELETE = 1 << 2;
+
+	private final Map<Class<? extends IBaseResource>, Integer> userGrants;
+	private final Map<Class<? extends IBaseResource>, Integer> patientGrants;
+	private final int userWildcardGrants;
+	private final int patientWildcardGrants;
+
+	private ScopePermissionTable(Builder builder) {
+		this.userGrants = Collections.unmodifiableMap(new HashMap<>(builder.userGrants));
+		this.patientGrants = Collections.unmodifiableMap(new HashMap<>(builder.patientGrants));
+		this.userWildcardGrants = builder.userWildcardGrants;
+		this.patientWildcardGrants = builder.patientWildcardGrants;
+	}
+
+	public int getUserGrants(Class<? extends IBaseResource> resourceType) {
+		return userWildcardGrants | userGrants.getOrDefault(resourceType, 0);
+	}
+
+	public int getPatientGrants(Class<? extends IBaseResource> resourceType) {
+		return patientWildcardGrants | patientGrants.getOrDefault(resourceType, 0);
+	}
+
+	/**
+	 * @return the table action for an operation, or 0 if the table cannot decide the operation
+	 */
+	public static int actionOf(RestOperationTypeEnum operation) {
+		if (operation == null) {
+			return 0;
+		}
+		switch (operation) {
+		case READ:
+		case VREAD:
+		case SEARCH_TYPE:
+		case HISTORY_TYPE:
+		case HISTORY_INSTANCE:
+			return READ;
+		case CREATE:
+		case UPDATE:
+			return WRITE;
+		case DELETE:
+			return DELETE;
+		default:
+			return 0;
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static final class Builder {
+		private final Map<Class<? extends IBaseResource>, Integer> userGrants = new HashMap<>();
+		private final Map<Class<? extends IBaseResource>, Integer> patientGrants = new HashMap<>();
+		private int userWildcardGrants;
+		private int patientWildcardGrants;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param resourceType the resource type, or null for all resource types
+		 */
+		public Builder grantUser(Class<? extends IBaseResource> resourceType, int actions) {
+			if (resourceType == null) {
+				userWildcardGrants |= actions;
+			} else {
+				userGrants.merge(resourceType, actions, (a, b) -> a | b);
+			}
+			return this;
+		}
+
+		/**
+		 * @param resourceType the resource type, or null for all resource types
+		 */
+		public Builder grantPatient(Class<? extends IBaseResource> resourceType, int actions) {
+			if (resourceType == null) {
+				patientWildcardGrants |= actions;
+			} else {
+				patientGrants.merge(resourceType, actions, (a, b) -> a | b);
+			}
+			return this;
+		}
+
+		public ScopePermissionTable build() {
+			return new ScopePermissionTable(this);
+		}
+	}
+}
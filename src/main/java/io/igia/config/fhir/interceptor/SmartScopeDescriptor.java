@@ -0,0 +1,154 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Immutable, pre-split form of a single SMART scope, created by {@link SmartScopeParser}.
+ * <p>
+ * Both SMART v1 operations ({@code read}, {@code write}, {@code *}) and SMART v2
+ * permission strings ({@code .cruds}) are expressed as a set of {@link Permission}s.
+ */
+public final class SmartScopeDescriptor {
+
+	public enum Context {
+		PATIENT, USER, SYSTEM, NONE
+	}
+
+	public enum Permission {
+		CREATE, READ, UPDATE, DELETE, SEARCH;
+
+		private final int mask = 1 << ordinal();
+
+		public int mask() {
+			return mask;
+		}
+	}
+
+	public static final int ALL_PERMISSIONS = (1 << Permission.values().length) - 1;
+
+	private final String scope;
+	private final Context context;
+	private final String resource;
+	private final Class<? extends IBaseResource> resourceType;
+	private final String operation;
+	private final int permissions;
+	private final boolean supported;
+	private final boolean restricted;
+	private final Set<Permission> permissionSet;
+
+	SmartScopeDescriptor(String scope, Context context, String resource, Class<? extends IBaseResource> resourceType,
+			String operation, int permissions, boolean supported, boolean restricted) {
+		this.scope = scope;
+		this.context = context;
+		this.resource = resource;
+		this.resourceType = resourceType;
+		this.operation = operation;
+		this.permissions = permissions;
+		this.supported = supported;
+		this.restricted = restricted;
+		this.permissionSet = toPermissionSet(permissions);
+	}
+
+	public String getScope() {
+		return scope;
+	}
+
+	public Context getContext() {
+		return context;
+	}
+
+	public boolean isPatientScope() {
+		return context == Context.PATIENT;
+	}
+
+	public boolean isUserScope() {
+		return context == Context.USER;
+	}
+
+	/**
+	 * @return the resource name as written in the scope, or null for scopes without a resource
+	 */
+	public String getResource() {
+		return resource;
+	}
+
+	public boolean isWildcardResource() {
+		return "*".equals(resource);
+	}
+
+	/**
+	 * @return the resource class, or null for wildcard and unknown resources
+	 */
+	public Class<? extends IBaseResource> getResourceType() {
+		return resourceType;
+	}
+
+	/**
+	 * @return the operation as written in the scope, e.g. {@code read} or {@code rs}
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	public int getPermissionMask() {
+		return permissions;
+	}
+
+	public Set<Permission> getPermissions() {
+		return permissionSet;
+	}
+
+	public boolean hasPermission(Permission permission) {
+		return (permissions & permission.mask()) != 0;
+	}
+
+	public boolean hasAllPermissions() {
+		return permissions == ALL_PERMISSIONS;
+	}
+
+	/**
+	 * @return false if the operation is not a SMART v1 operation or a valid v2 permission string
+	 */
+	public boolean isSupported() {
+		return supported;
+	}
+
+	/**
+	 * @return true for SMART v2 scopes narrowed by a query (e.g. {@code ?category=laboratory});
+	 * these grant no permissions here as the narrowing cannot be enforced
+	 */
+	public boolean isRestricted() {
+		return restricted;
+	}
+
+	@Override
+	public String toString() {
+		return scope;
+	}
+
+	private static Set<Permission> toPermissionSet(int permissions) {
+		EnumSet<Permission> set = EnumSet.noneOf(Permission.class);
+		for (Permission permission : Permission.values()) {
+			if ((permissions & permission.mask()) != 0) {
+				set.add(permission);
+			}
+		}
+		return Collections.unmodifiableSet(set);
+	}
+}
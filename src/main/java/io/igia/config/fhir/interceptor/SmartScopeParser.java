@@ -0,0 +1,157 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import io.igia.config.fhir.interceptor.SmartScopeDescriptor.Context;
+import io.igia.config.fhir.interceptor.SmartScopeDescriptor.Permission;
+
+/**
+ * Parses SMART scope strings into interned {@link SmartScopeDescriptor}s. Each distinct
+ * scope string is parsed once; later calls return the same descriptor instance.
+ */
+public class SmartScopeParser {
+	private static final int DEFAULT_MAXIMUM_INTERNED = 10000;
+	private static final String V2_PERMISSION_ORDER = "cruds";
+	private static final Permission[] V2_PERMISSIONS = {
+			Permission.CREATE, Permission.READ, Permission.UPDATE, Permission.DELETE, Permission.SEARCH };
+
+	private static final int READ_PERMISSIONS = Permission.READ.mask() | Permission.SEARCH.mask();
+	private static final int WRITE_PERMISSIONS = Permission.CREATE.mask() | Permission.UPDATE.mask() | Permission.DELETE.mask();
+
+	private final ResourceTypeRegistry resourceTypeRegistry;
+	private final ConcurrentHashMap<String, SmartScopeDescriptor> interned = new ConcurrentHashMap<>();
+	private final int maximumInterned;
+
+	public SmartScopeParser(ResourceTypeRegistry resourceTypeRegistry) {
+		this(resourceTypeRegistry, DEFAULT_MAXIMUM_INTERNED);
+	}
+
+	public SmartScopeParser(ResourceTypeRegistry resourceTypeRegistry, int maximumInterned) {
+		this.resourceTypeRegistry = resourceTypeRegistry;
+		this.maximumInterned = maximumInterned;
+	}
+
+	public SmartScopeDescriptor parse(String scope) {
+		SmartScopeDescriptor descriptor = interned.get(scope);
+		if (descriptor == null) {
+			descriptor = doParse(scope);
+			if (interned.size() < maximumInterned) {
+				SmartScopeDescriptor existing = interned.putIfAbsent(scope, descriptor);
+				if (existing != null) {
+					descriptor = existing;
+				}
+			}
+		}
+		return descriptor;
+	}
+
+	public List<SmartScopeDescriptor> parseAll(Collection<String> scopes) {
+		if (scopes == null || scopes.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<SmartScopeDescriptor> descriptors = new ArrayList<>(scopes.size());
+		for (String scope : scopes) {
+			descriptors.add(parse(scope));
+		}
+		return descriptors;
+	}
+
+	public int getInternedCount() {
+		return interned.size();
+	}
+
+	private SmartScopeDescriptor doParse(String scope) {
+		Context context = parseContext(scope);
+		if (context == Context.NONE) {
+			return new SmartScopeDescriptor(scope, context, null, null, null, 0, true, false);
+		}
+
+		int slash = scope.indexOf('/');
+		int period = scope.indexOf('.', slash + 1);
+		if (period < 0) {
+			return new SmartScopeDescriptor(scope, context, scope.substring(slash + 1), null, "", 0, false, false);
+		}
+
+		String resource = scope.substring(slash + 1, period);
+		Class<? extends IBaseResource> resourceType = "*".equals(resource) ? null
+				: resourceTypeRegistry.getResourceType(resource);
+
+		String operation = scope.substring(period + 1);
+		int query = operation.indexOf('?');
+		if (query >= 0) {
+			operation = operation.substring(0, query);
+			boolean valid = parseV2Permissions(operation) > 0;
+			return new SmartScopeDescriptor(scope, context, resource, resourceType, operation, 0, valid, true);
+		}
+
+		int permissions = parsePermissions(operation);
+		return new SmartScopeDescriptor(scope, context, resource, resourceType, operation, Math.max(permissions, 0),
+				permissions > 0, false);
+	}
+
+	private static Context parseContext(String scope) {
+		if (scope.startsWith("patient/")) {
+			return Context.PATIENT;
+		}
+		if (scope.startsWith("user/")) {
+			return Context.USER;
+		}
+		if (scope.startsWith("system/")) {
+			return Context.SYSTEM;
+		}
+		return Context.NONE;
+	}
+
+	private static int parsePermissions(String operation) {
+		switch (operation) {
+		case "*":
+			return SmartScopeDescriptor.ALL_PERMISSIONS;
+		case "read":
+			return READ_PERMISSIONS;
+		case "write":
+			return WRITE_PERMISSIONS;
+		default:
+			return parseV2Permissions(operation);
+		}
+	}
+
+	/**
+	 * SMART v2 permissions are a non-empty subset of "cruds", in that order.
+	 *
+	 * @return the permission mask, or -1 if the string is not a valid permission string
+	 */
+	private static int parseV2Permissions(String operation) {
+		if (operation.isEmpty()) {
+			return -1;
+		}
+		int permissions = 0;
+		int position = 0;
+		for (int i = 0; i < operation.length(); i++) {
+			int index = V2_PERMISSION_ORDER.indexOf(operation.charAt(i), position);
+			if (index < 0) {
+				return -1;
+			}
+			permissions |= V2_PERMISSIONS[index].mask();
+			position = index + 1;
+		}
+		return permissions;
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+
+import io.igia.config.fhir.cache.ExpiringCache;
+import io.igia.config.fhir.cache.TokenDigest;
+
+/**
+ * Caches decoded and verified access tokens together with the principal and authorities
+ * extracted from them, so signature verification runs once per token instead of once per
+ * request. Tokens are keyed by their SHA-256 digest and only the claims needed for
+ * authorization are kept, so the raw token value is never stored.
+ * Entries expire with the token ({@code exp}) and never live longer than the configured
+ * time to live.
+ */
+public class VerifiedTokenCache {
+	private final ExpiringCache<String, VerifiedToken> cache;
+	private final long timeToLiveMillis;
+
+	public VerifiedTokenCache(int maximumSize, Duration timeToLive) {
+		this.cache = new ExpiringCache<>(maximumSize);
+		this.timeToLiveMillis = timeToLive.toMillis();
+	}
+
+	public VerifiedToken get(String tokenValue, Function<String, VerifiedToken> loader) {
+		String key = digest(tokenValue);
+		VerifiedToken token = cache.get(key);
+		if (token == null) {
+			token = loader.apply(tokenValue);
+			long expiresAt = System.currentTimeMillis() + timeToLiveMillis;
+			Date expiration = token.getExpiration();
+			if (expiration != null) {
+				expiresAt = Math.min(expiresAt, expiration.getTime());
+			}
+			cache.put(key, token, expiresAt);
+		}
+		return token;
+	}
+
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public long getHitCount() {
+		return cache.getHitCount();
+	}
+
+	public long getMissCount() {
+		return cache.getMissCount();
+	}
+
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+	static String digest(String tokenValue) {
+		return TokenDigest.sha256(tokenValue);
+	}
+
+	/**
+	 * The scopes, expiry and launch context of a verified access token.
+	 */
+	public static final class VerifiedToken {
+		private final Set<String> scope;
+		private final Date expiration;
+		private final String patientId;
+		private final String userId;
+		private final List<GrantedAuthority> authorities;
+
+		public VerifiedToken(OAuth2AccessToken accessToken, String patientId, String userId, List<GrantedAuthority> authorities) {
+			this.scope = accessToken.getScope() == null ? Collections.emptySet()
+					: Collections.unmodifiableSet(new LinkedHashSet<>(accessToken.getScope()));
+			this.expiration = accessToken.getExpiration() == null ? null : new Date(accessToken.getExpiration().getTime());
+			this.patientId = patientId;
+			this.userId = userId;
+			this.authorities = authorities == null ? Collections.emptyList() : Collections.unmodifiableList(authorities);
+		}
+
+		public Set<String> getScope() {
+			return scope;
+		}
+
+		/**
+		 * @return the token expiry, or null if the token does not expire
+		 */
+		public Date getExpiration() {
+			return expiration == null ? null : new Date(expiration.getTime());
+		}
+
+		public String getPatientId() {
+			return patientId;
+		}
+
+		public String getUserId() {
+			return userId;
+		}
+
+		public List<GrantedAuthority> getAuthorities() {
+			return authorities;
+		}
+	}
+}
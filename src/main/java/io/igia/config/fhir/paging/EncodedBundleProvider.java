@@ -0,0 +1,82 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.paging;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * Result set kept as resources encoded in JSON when it was stored, parsing only the entries of
+ * the requested page.
+ */
+class EncodedBundleProvider implements IBundleProvider {
+
+	private final FhirContext fhirContext;
+	private final MappedResultSet resultSet;
+	private final String uuid;
+
+	EncodedBundleProvider(FhirContext fhirContext, MappedResultSet resultSet, String uuid) {
+		this.fhirContext = fhirContext;
+		this.resultSet = resultSet;
+		this.uuid = uuid;
+	}
+
+	@Override
+	public IPrimitiveType<Date> getPublished() {
+		return resultSet.getPublished();
+	}
+
+	@Override
+	public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+		int from = Math.max(0, theFromIndex);
+		int to = Math.min(theToIndex, resultSet.size());
+		IParser parser = fhirContext.newJsonParser();
+		List<IBaseResource> resources = new ArrayList<>(Math.max(0, to - from));
+		for (int i = from; i < to; i++) {
+			IBaseResource resource = parser.parseResource(new String(resultSet.getEntry(i), StandardCharsets.UTF_8));
+			BundleEntrySearchModeEnum searchMode = resultSet.getSearchMode(i);
+			if (searchMode != null && resource instanceof IAnyResource) {
+				((IAnyResource) resource).setUserData(ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.name(), searchMode);
+			}
+			resources.add(resource);
+		}
+		return resources;
+	}
+
+	@Override
+	public String getUuid() {
+		return uuid;
+	}
+
+	@Override
+	public Integer preferredPageSize() {
+		return resultSet.getPreferredPageSize();
+	}
+
+	@Override
+	public Integer size() {
+		return resultSet.size();
+	}
+}
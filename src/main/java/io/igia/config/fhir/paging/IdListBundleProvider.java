@@ -0,0 +1,107 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.paging;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import io.igia.config.fhir.provider.ResourceBatchLoader;
+
+/**
+ * Result set kept as an id list, loading the resources of a page from their providers when
+ * the page is requested.
+ */
+class IdListBundleProvider implements IBundleProvider {
+
+	private final FhirContext fhirContext;
+	private final Map<String, ResourceBatchLoader> loaders;
+	private final ResourceIds ids;
+	private final String uuid;
+	private final IPrimitiveType<Date> published;
+	private final Integer preferredPageSize;
+
+	IdListBundleProvider(FhirContext fhirContext, Map<String, ResourceBatchLoader> loaders, ResourceIds ids,
+			String uuid, IPrimitiveType<Date> published, Integer preferredPageSize) {
+		this.fhirContext = fhirContext;
+		this.loaders = loaders;
+		this.ids = ids;
+		this.uuid = uuid;
+		this.published = published;
+		this.preferredPageSize = preferredPageSize;
+	}
+
+	@Override
+	public IPrimitiveType<Date> getPublished() {
+		return published;
+	}
+
+	@Override
+	public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+		int from = Math.max(0, theFromIndex);
+		int to = Math.min(theToIndex, ids.size());
+		Map<String, List<IIdType>> idsByType = new LinkedHashMap<>();
+		for (int i = from; i < to; i++) {
+			IIdType id = fhirContext.getVersion().newIdType().setValue(ids.getId(i));
+			idsByType.computeIfAbsent(id.getResourceType(), type -> new ArrayList<>()).add(id);
+		}
+
+		Map<String, IBaseResource> loaded = new HashMap<>();
+		for (Map.Entry<String, List<IIdType>> next : idsByType.entrySet()) {
+			for (IBaseResource resource : loaders.get(next.getKey()).loadResources(next.getValue())) {
+				loaded.put(next.getKey() + '/' + resource.getIdElement().getIdPart(), resource);
+			}
+		}
+
+		List<IBaseResource> resources = new ArrayList<>(Math.max(0, to - from));
+		for (int i = from; i < to; i++) {
+			IBaseResource resource = loaded.get(ids.getId(i));
+			if (resource == null) {
+				continue;
+			}
+			BundleEntrySearchModeEnum searchMode = ids.getSearchMode(i);
+			if (searchMode != null && resource instanceof IAnyResource) {
+				((IAnyResource) resource).setUserData(ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.name(), searchMode);
+			}
+			resources.add(resource);
+		}
+		return resources;
+	}
+
+	@Override
+	public String getUuid() {
+		return uuid;
+	}
+
+	@Override
+	public Integer preferredPageSize() {
+		return preferredPageSize;
+	}
+
+	@Override
+	public Integer size() {
+		return ids.size();
+	}
+}
@@ -0,0 +1,486 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.paging;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.BasePagingProvider;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import io.igia.config.fhir.provider.ResourceBatchLoader;
+
+/**
+ * Keeps search result sets for paging in memory-mapped segment files instead of the heap.
+ * <p>
+ * A result set is appended to the current segment as its entries followed by an index of
+ * entry offsets, so a page is read by offset from the mapped file without reading the pages
+ * before it, and the heap holds a few fields per result set. The result set is read a page at
+ * a time into temporary files first, so storing it only holds up other searches while it is
+ * appended to the segment. Entries are ids, loaded again page by page, when all resources come
+ * from providers implementing {@link ResourceBatchLoader}; otherwise, or when entries are to be
+ * encoded, they are the resources encoded in JSON.
+ * <p>
+ * Result sets not paged through for the time to live expire, and the least recently paged
+ * ones are evicted to stay within the byte budget. Segments without result sets left are
+ * deleted in the background. Result sets of unknown size, or larger than the budget, are not
+ * kept, so their first page has no next link.
+ */
+public class MappedPagingProvider extends BasePagingProvider implements InitializingBean, DisposableBean {
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final String SPILL_PREFIX = "spill-";
+	private static final String SPILL_SUFFIX = ".tmp";
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private final Logger log = LoggerFactory.getLogger(MappedPagingProvider.class);
+
+	private final FhirContext fhirContext;
+	private final Map<String, ResourceBatchLoader> loaders = new HashMap<>();
+	private final Path directory;
+	private final long segmentSize;
+	private final long maximumBytes;
+	private final long timeToLive;
+	private final boolean encodeEntries;
+	private final long cleanupInterval;
+	private final LongSupplier clock;
+
+	/** Ordered from least to most recently paged, so expired result sets come first */
+	private final LinkedHashMap<String, MappedResultSet> resultSets = new LinkedHashMap<>(16, 0.75f, true);
+	private final List<Segment> segments = new ArrayList<>();
+	private long storedBytes;
+
+	private final Object writeLock = new Object();
+	private final AtomicInteger segmentSequence = new AtomicInteger();
+	private Segment currentSegment;
+	private ScheduledExecutorService cleaner;
+
+	private final LongAdder storedCount = new LongAdder();
+	private final LongAdder encodedCount = new LongAdder();
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder expiredCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+	private final LongAdder rejectionCount = new LongAdder();
+	private final LongAdder deletedSegmentCount = new LongAdder();
+
+	/**
+	 * @param resourceProviders providers implementing {@link ResourceBatchLoader} are used, others ignored
+	 * @param segmentSize bytes after which a segment takes no more result sets
+	 * @param maximumBytes bytes of result sets kept across all segments
+	 * @param timeToLive milliseconds a result set is kept after it was last paged
+	 * @param encodeEntries whether to keep encoded resources even where they could be loaded by id
+	 * @param cleanupInterval milliseconds between deletions of unused segments, 0 to leave them to {@link #cleanUp()}
+	 */
+	public MappedPagingProvider(FhirContext fhirContext, Collection<? extends IResourceProvider> resourceProviders,
+			Path directory, long segmentSize, long maximumBytes, long timeToLive, boolean encodeEntries,
+			long cleanupInterval) {
+		this(fhirContext, resourceProviders, directory, segmentSize, maximumBytes, timeToLive, encodeEntries,
+				cleanupInterval, System::currentTimeMillis);
+	}
+
+	MappedPagingProvider(FhirContext fhirContext, Collection<? extends IResourceProvider> resourceProviders,
+			Path directory, long segmentSize, long maximumBytes, long timeToLive, boolean encodeEntries,
+			long cleanupInterval, LongSupplier clock) {
+		if (segmentSize < 1 || maximumBytes < 1) {
+			throw new IllegalArgumentException("segmentSize and maximumBytes must be positive");
+		}
+		this.fhirContext = fhirContext;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maximumBytes = maximumBytes;
+		this.timeToLive = timeToLive;
+		this.encodeEntries = encodeEntries;
+		this.cleanupInterval = cleanupInterval;
+		this.clock = clock;
+		for (IResourceProvider provider : resourceProviders) {
+			if (provider instanceof ResourceBatchLoader) {
+				loaders.put(fhirContext.getResourceDefinition(provider.getResourceType()).getName(),
+						(ResourceBatchLoader) provider);
+			}
+		}
+	}
+
+	/**
+	 * Create the directory and delete segments and temporary files left by an earlier run.
+	 */
+	@Override
+	public void afterPropertiesSet() throws IOException {
+		Files.createDirectories(directory);
+		deleteLeftovers(SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX);
+		deleteLeftovers(SPILL_PREFIX + "*" + SPILL_SUFFIX);
+		if (cleanupInterval > 0) {
+			cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "fhir-paging-cleanup");
+				thread.setDaemon(true);
+				return thread;
+			});
+			cleaner.scheduleWithFixedDelay(this::cleanUp, cleanupInterval, cleanupInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (cleaner != null) {
+			cleaner.shutdownNow();
+		}
+		List<Segment> deleted;
+		synchronized (this) {
+			resultSets.clear();
+			storedBytes = 0;
+			deleted = new ArrayList<>(segments);
+			segments.clear();
+		}
+		synchronized (writeLock) {
+			currentSegment = null;
+		}
+		delete(deleted);
+	}
+
+	@Override
+	public String storeResultList(IBundleProvider theList) {
+		storedCount.increment();
+		Integer size = theList.size();
+		if (size == null) {
+			rejectionCount.increment();
+			return null;
+		}
+		String searchId = UUID.randomUUID().toString();
+		MappedResultSet resultSet;
+		try {
+			resultSet = write(theList, size);
+		} catch (IOException e) {
+			log.warn("Failed to write result set of {} resources to {}: {}", size, directory, e.toString());
+			rejectionCount.increment();
+			return null;
+		}
+		if (resultSet == null) {
+			rejectionCount.increment();
+			return null;
+		}
+		if (resultSet.isEncoded()) {
+			encodedCount.increment();
+		}
+
+		List<Segment> unused;
+		synchronized (this) {
+			long now = clock.getAsLong();
+			expire(now);
+			for (Iterator<MappedResultSet> it = resultSets.values().iterator();
+					storedBytes + resultSet.length() > maximumBytes && it.hasNext();) {
+				remove(it.next());
+				it.remove();
+				evictionCount.increment();
+			}
+			resultSet.setLastPaged(now);
+			resultSets.put(searchId, resultSet);
+			storedBytes += resultSet.length();
+			unused = removeUnusedSegments();
+		}
+		delete(unused);
+		return searchId;
+	}
+
+	/**
+	 * @return the result set, or null if it expired or was evicted
+	 */
+	@Override
+	public IBundleProvider retrieveResultList(String theSearchId) {
+		MappedResultSet resultSet;
+		synchronized (this) {
+			long now = clock.getAsLong();
+			expire(now);
+			resultSet = resultSets.get(theSearchId);
+			if (resultSet == null) {
+				missCount.increment();
+				return null;
+			}
+			try {
+				resultSet.map();
+			} catch (IOException e) {
+				log.warn("Failed to map result set {} from {}: {}", theSearchId, resultSet.getSegment().getFile(),
+						e.toString());
+				missCount.increment();
+				return null;
+			}
+			hitCount.increment();
+			resultSet.setLastPaged(now);
+		}
+		if (resultSet.isEncoded()) {
+			return new EncodedBundleProvider(fhirContext, resultSet, theSearchId);
+		}
+		return new IdListBundleProvider(fhirContext, loaders, resultSet, theSearchId, resultSet.getPublished(),
+				resultSet.getPreferredPageSize());
+	}
+
+	/**
+	 * Expire result sets not paged within the time to live and delete segments left without
+	 * result sets.
+	 */
+	public void cleanUp() {
+		List<Segment> unused;
+		synchronized (this) {
+			expire(clock.getAsLong());
+			unused = removeUnusedSegments();
+		}
+		delete(unused);
+	}
+
+	public synchronized int getResultSetCount() {
+		return resultSets.size();
+	}
+
+	/**
+	 * @return the bytes of the result sets kept
+	 */
+	public synchronized long getStoredBytes() {
+		return storedBytes;
+	}
+
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	/**
+	 * @return the bytes kept as a fraction of the budget
+	 */
+	public double getOccupancy() {
+		return (double) getStoredBytes() / maximumBytes;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return the bytes of all segment files, including result sets no longer kept
+	 */
+	public synchronized long getSegmentBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += segment.length();
+		}
+		return bytes;
+	}
+
+	public long getStoredCount() {
+		return storedCount.sum();
+	}
+
+	/**
+	 * @return the number of result sets kept as encoded resources
+	 */
+	public long getEncodedCount() {
+		return encodedCount.sum();
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	/**
+	 * @return the number of result sets not kept for their unknown size, their size or a write failure
+	 */
+	public long getRejectionCount() {
+		return rejectionCount.sum();
+	}
+
+	public long getDeletedSegmentCount() {
+		return deletedSegmentCount.sum();
+	}
+
+	/**
+	 * Spill the result set to temporary files, then append it to the current segment. Only the
+	 * append holds the write lock. Entries are ids if all resources of the first page can be
+	 * loaded again by id.
+	 *
+	 * @return the result set as written, or null if it is larger than the budget
+	 */
+	private MappedResultSet write(IBundleProvider theList, int size) throws IOException {
+		List<IBaseResource> firstPage = theList.getResources(0, Math.min(getMaximumPageSize(), size));
+		boolean encoded = encodeEntries;
+		for (int i = 0; i < firstPage.size() && !encoded; i++) {
+			encoded = ResourceIdList.loadableId(fhirContext, firstPage.get(i), loaders::containsKey) == null;
+		}
+		try (SpilledEntries entries = spill(theList, size, firstPage, encoded)) {
+			if (entries == null) {
+				return null;
+			}
+			synchronized (writeLock) {
+				Segment segment = currentSegment();
+				long position = segment.length();
+				try {
+					entries.appendTo(segment);
+				} catch (IOException | RuntimeException e) {
+					synchronized (this) {
+						segment.seal();
+					}
+					currentSegment = null;
+					throw e;
+				}
+				synchronized (this) {
+					segment.retain();
+					if (segment.length() >= segmentSize) {
+						segment.seal();
+						currentSegment = null;
+					}
+				}
+				return new MappedResultSet(segment, position, entries.dataLength(), entries.size(),
+						entries.isEncoded(), theList.getPublished(), theList.preferredPageSize());
+			}
+		}
+	}
+
+	/**
+	 * Read the result set a page at a time into temporary files. Should a later page hold
+	 * resources that cannot be loaded again by id, the ids spilled so far are dropped and the
+	 * result set is read again as encoded resources.
+	 *
+	 * @param firstPage the resources of the first page, already read
+	 * @return the spilled entries, or null if the result set is larger than the budget
+	 */
+	private SpilledEntries spill(IBundleProvider theList, int size, List<IBaseResource> firstPage, boolean encoded)
+			throws IOException {
+		long limit = Math.min(maximumBytes, Integer.MAX_VALUE);
+		int chunkSize = getMaximumPageSize();
+		IParser parser = encoded ? fhirContext.newJsonParser() : null;
+		String name = SPILL_PREFIX + UUID.randomUUID();
+		SpilledEntries entries = new SpilledEntries(directory.resolve(name + "-entries" + SPILL_SUFFIX),
+				directory.resolve(name + "-index" + SPILL_SUFFIX), size, WRITE_BUFFER_SIZE, encoded);
+		boolean complete = false;
+		try {
+			for (int from = 0; from < size; from += chunkSize) {
+				int to = (int) Math.min((long) from + chunkSize, size);
+				List<IBaseResource> resources = from == 0 && firstPage != null ? firstPage
+						: theList.getResources(from, to);
+				for (IBaseResource resource : resources.subList(0, Math.min(resources.size(), to - from))) {
+					String entry = encoded ? parser.encodeResourceToString(resource)
+							: ResourceIdList.loadableId(fhirContext, resource, loaders::containsKey);
+					if (entry == null) {
+						entries.close();
+						return spill(theList, size, null, true);
+					}
+					byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+					if (MappedResultSet.length((long) entries.dataLength() + bytes.length, size) > limit) {
+						return null;
+					}
+					entries.add(bytes, (byte) Math.max(0, ResourceIdList.searchModeCode(resource)));
+				}
+			}
+			complete = true;
+			return entries;
+		} finally {
+			if (!complete) {
+				entries.close();
+			}
+		}
+	}
+
+	private void deleteLeftovers(String glob) throws IOException {
+		try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, glob)) {
+			for (Path leftover : leftovers) {
+				Files.deleteIfExists(leftover);
+			}
+		}
+	}
+
+	private Segment currentSegment() throws IOException {
+		if (currentSegment == null) {
+			Segment segment = new Segment(directory.resolve(
+					SEGMENT_PREFIX + segmentSequence.incrementAndGet() + SEGMENT_SUFFIX));
+			synchronized (this) {
+				segments.add(segment);
+			}
+			currentSegment = segment;
+		}
+		return currentSegment;
+	}
+
+	private void expire(long now) {
+		for (Iterator<MappedResultSet> it = resultSets.values().iterator(); it.hasNext();) {
+			MappedResultSet resultSet = it.next();
+			if (resultSet.getLastPaged() + timeToLive > now) {
+				return;
+			}
+			remove(resultSet);
+			it.remove();
+			expiredCount.increment();
+		}
+	}
+
+	private void remove(MappedResultSet resultSet) {
+		storedBytes -= resultSet.length();
+		resultSet.getSegment().release();
+	}
+
+	private List<Segment> removeUnusedSegments() {
+		List<Segment> unused = new ArrayList<>();
+		for (Iterator<Segment> it = segments.iterator(); it.hasNext();) {
+			Segment segment = it.next();
+			if (segment.isUnused()) {
+				it.remove();
+				unused.add(segment);
+			}
+		}
+		return unused;
+	}
+
+	private void delete(List<Segment> unused) {
+		for (Segment segment : unused) {
+			try {
+				segment.delete();
+				deletedSegmentCount.increment();
+			} catch (IOException e) {
+				log.warn("Failed to delete paging segment {}: {}", segment.getFile(), e.toString());
+			}
+		}
+	}
+}
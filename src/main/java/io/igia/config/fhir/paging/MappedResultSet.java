@@ -0,0 +1,120 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.paging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+
+/**
+ * A result set written to a segment as its entries, followed by the offset of every entry and
+ * the search mode of every entry. An entry is read by its offset, straight from the mapped
+ * file, without reading the entries before it.
+ */
+final class MappedResultSet implements ResourceIds {
+
+	private final Segment segment;
+	private final long position;
+	private final int dataLength;
+	private final int count;
+	private final boolean encoded;
+	private final IPrimitiveType<Date> published;
+	private final Integer preferredPageSize;
+
+	/** Guarded by the paging provider */
+	private long lastPaged;
+
+	private volatile ByteBuffer buffer;
+
+	MappedResultSet(Segment segment, long position, int dataLength, int count, boolean encoded,
+			IPrimitiveType<Date> published, Integer preferredPageSize) {
+		this.segment = segment;
+		this.position = position;
+		this.dataLength = dataLength;
+		this.count = count;
+		this.encoded = encoded;
+		this.published = published;
+		this.preferredPageSize = preferredPageSize;
+	}
+
+	static long length(long dataLength, int count) {
+		return dataLength + 4L * (count + 1) + count;
+	}
+
+	Segment getSegment() {
+		return segment;
+	}
+
+	long length() {
+		return length(dataLength, count);
+	}
+
+	/**
+	 * @return whether entries are encoded resources rather than ids
+	 */
+	boolean isEncoded() {
+		return encoded;
+	}
+
+	IPrimitiveType<Date> getPublished() {
+		return published;
+	}
+
+	Integer getPreferredPageSize() {
+		return preferredPageSize;
+	}
+
+	long getLastPaged() {
+		return lastPaged;
+	}
+
+	void setLastPaged(long lastPaged) {
+		this.lastPaged = lastPaged;
+	}
+
+	void map() throws IOException {
+		if (buffer == null) {
+			buffer = segment.map(position, (int) length());
+		}
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	byte[] getEntry(int index) {
+		ByteBuffer entries = buffer.duplicate();
+		int start = entries.getInt(dataLength + 4 * index);
+		int end = entries.getInt(dataLength + 4 * (index + 1));
+		byte[] entry = new byte[end - start];
+		entries.position(start);
+		entries.get(entry);
+		return entry;
+	}
+
+	@Override
+	public String getId(int index) {
+		return new String(getEntry(index), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public BundleEntrySearchModeEnum getSearchMode(int index) {
+		return ResourceIdList.searchMode(buffer.get(dataLength + 4 * (count + 1) + index));
+	}
+}
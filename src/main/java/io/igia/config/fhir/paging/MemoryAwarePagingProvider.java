@@ -0,0 +1,223 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.paging;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.BasePagingProvider;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import io.igia.config.fhir.provider.ResourceBatchLoader;
+
+/**
+ * Keeps search result sets for paging within a budget of estimated bytes.
+ * <p>
+ * Result sets whose resources all come from providers implementing {@link ResourceBatchLoader}
+ * are kept as packed id lists and their pages loaded again on request. Other result sets are
+ * kept as they are and estimated at a fixed size per resource. Result sets not paged through
+ * for the time to live expire, and the least recently paged ones are evicted to make room for
+ * new ones. A result set larger than the whole budget is not kept, so its first page has no
+ * next link.
+ */
+public class MemoryAwarePagingProvider extends BasePagingProvider {
+
+	/** Map entry, id and bookkeeping of a kept result set, roughly */
+	private static final long ENTRY_OVERHEAD = 160;
+
+	private final FhirContext fhirContext;
+	private final Map<String, ResourceBatchLoader> loaders = new HashMap<>();
+	private final long maximumBytes;
+	private final long timeToLive;
+	private final int estimatedResourceSize;
+	private final LongSupplier clock;
+
+	/** Ordered from least to most recently paged, so expired result sets come first */
+	private final LinkedHashMap<String, ResultSet> resultSets = new LinkedHashMap<>(16, 0.75f, true);
+	private long estimatedBytes;
+
+	private final LongAdder storedCount = new LongAdder();
+	private final LongAdder compactedCount = new LongAdder();
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder expiredCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+	private final LongAdder rejectionCount = new LongAdder();
+
+	/**
+	 * @param resourceProviders providers implementing {@link ResourceBatchLoader} are used, others ignored
+	 * @param timeToLive milliseconds a result set is kept after it was last paged
+	 * @param estimatedResourceSize bytes per resource of result sets not kept as id lists
+	 */
+	public MemoryAwarePagingProvider(FhirContext fhirContext, Collection<? extends IResourceProvider> resourceProviders,
+			long maximumBytes, long timeToLive, int estimatedResourceSize) {
+		this(fhirContext, resourceProviders, maximumBytes, timeToLive, estimatedResourceSize, System::currentTimeMillis);
+	}
+
+	MemoryAwarePagingProvider(FhirContext fhirContext, Collection<? extends IResourceProvider> resourceProviders,
+			long maximumBytes, long timeToLive, int estimatedResourceSize, LongSupplier clock) {
+		if (maximumBytes < 1) {
+			throw new IllegalArgumentException("maximumBytes must be positive");
+		}
+		this.fhirContext = fhirContext;
+		this.maximumBytes = maximumBytes;
+		this.timeToLive = timeToLive;
+		this.estimatedResourceSize = estimatedResourceSize;
+		this.clock = clock;
+		for (IResourceProvider provider : resourceProviders) {
+			if (provider instanceof ResourceBatchLoader) {
+				loaders.put(fhirContext.getResourceDefinition(provider.getResourceType()).getName(),
+						(ResourceBatchLoader) provider);
+			}
+		}
+	}
+
+	@Override
+	public String storeResultList(IBundleProvider theList) {
+		String searchId = UUID.randomUUID().toString();
+		ResultSet resultSet = compact(searchId, theList);
+		storedCount.increment();
+		if (resultSet.bytes > maximumBytes) {
+			rejectionCount.increment();
+			return null;
+		}
+		synchronized (this) {
+			long now = clock.getAsLong();
+			expire(now);
+			for (Iterator<ResultSet> it = resultSets.values().iterator();
+					estimatedBytes + resultSet.bytes > maximumBytes && it.hasNext();) {
+				estimatedBytes -= it.next().bytes;
+				it.remove();
+				evictionCount.increment();
+			}
+			resultSet.lastPaged = now;
+			resultSets.put(searchId, resultSet);
+			estimatedBytes += resultSet.bytes;
+		}
+		return searchId;
+	}
+
+	/**
+	 * @return the result set, or null if it expired or was evicted
+	 */
+	@Override
+	public synchronized IBundleProvider retrieveResultList(String theSearchId) {
+		long now = clock.getAsLong();
+		expire(now);
+		ResultSet resultSet = resultSets.get(theSearchId);
+		if (resultSet == null) {
+			missCount.increment();
+			return null;
+		}
+		hitCount.increment();
+		resultSet.lastPaged = now;
+		return resultSet.bundleProvider;
+	}
+
+	public synchronized int getResultSetCount() {
+		return resultSets.size();
+	}
+
+	public synchronized long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+
+	public long getMaximumBytes() {
+		return maximumBytes;
+	}
+
+	/**
+	 * @return the estimated bytes kept as a fraction of the budget
+	 */
+	public double getOccupancy() {
+		return (double) getEstimatedBytes() / maximumBytes;
+	}
+
+	public long getStoredCount() {
+		return storedCount.sum();
+	}
+
+	/**
+	 * @return the number of result sets kept as id lists
+	 */
+	public long getCompactedCount() {
+		return compactedCount.sum();
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	public long getExpiredCount() {
+		return expiredCount.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.sum();
+	}
+
+	/**
+	 * @return the number of result sets not kept for being larger than the budget
+	 */
+	public long getRejectionCount() {
+		return rejectionCount.sum();
+	}
+
+	private ResultSet compact(String searchId, IBundleProvider theList) {
+		Integer size = theList.size();
+		if (size != null && !loaders.isEmpty()) {
+			ResourceIdList ids = ResourceIdList.of(fhirContext, theList, size, getMaximumPageSize(), loaders::containsKey);
+			if (ids != null) {
+				compactedCount.increment();
+				return new ResultSet(new IdListBundleProvider(fhirContext, loaders, ids, searchId,
+						theList.getPublished(), theList.preferredPageSize()), ENTRY_OVERHEAD + ids.estimateBytes());
+			}
+		}
+		int count = size != null ? size : getMaximumPageSize();
+		return new ResultSet(theList, ENTRY_OVERHEAD + (long) count * estimatedResourceSize);
+	}
+
+	private void expire(long now) {
+		for (Iterator<ResultSet> it = resultSets.values().iterator(); it.hasNext();) {
+			ResultSet resultSet = it.next();
+			if (resultSet.lastPaged + timeToLive > now) {
+				return;
+			}
+			estimatedBytes -= resultSet.bytes;
+			it.remove();
+			expiredCount.increment();
+		}
+	}
+
+	private static final class ResultSet {
+		private final IBundleProvider bundleProvider;
+		private final long bytes;
+		private long lastPaged;
+
+		private ResultSet(IBundleProvider bundleProvider, long bytes) {
+			this.bundleProvider = bundleProvider;
+			this.bytes = bytes;
+		}
+	}
+}
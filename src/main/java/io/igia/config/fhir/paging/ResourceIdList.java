@@ -0,0 +1,135 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.paging;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * The ids of a search result set, packed as {@code Type/id} strings in one byte array with
+ * an offset per entry, plus the search mode of each entry when any is set.
+ */
+final class ResourceIdList implements ResourceIds {
+
+	private static final BundleEntrySearchModeEnum[] SEARCH_MODES = BundleEntrySearchModeEnum.values();
+
+	/** Array headers and fields, roughly */
+	private static final int OVERHEAD = 96;
+
+	private final byte[] ids;
+	private final int[] offsets;
+	private final byte[] searchModes;
+
+	ResourceIdList(byte[] ids, int[] offsets, byte[] searchModes) {
+		this.ids = ids;
+		this.offsets = offsets;
+		this.searchModes = searchModes;
+	}
+
+	/**
+	 * Read the result set in chunks, so that no more than one chunk of resources is held at a time.
+	 *
+	 * @param size the number of resources in the result set
+	 * @param loadable tells whether resources of a type can be loaded again by id
+	 * @return the ids of the resources, or null if any of them could not be loaded again as it was
+	 */
+	static ResourceIdList of(FhirContext fhirContext, IBundleProvider resources, int size, int chunkSize,
+			Predicate<String> loadable) {
+		ByteArrayOutputStream ids = new ByteArrayOutputStream(Math.min(size, chunkSize) * 16);
+		int[] offsets = new int[size + 1];
+		byte[] searchModes = null;
+		int count = 0;
+		for (int from = 0; from < size; from += chunkSize) {
+			int to = (int) Math.min((long) from + chunkSize, size);
+			List<IBaseResource> chunk = resources.getResources(from, to);
+			for (IBaseResource resource : chunk.subList(0, Math.min(chunk.size(), to - from))) {
+				String id = loadableId(fhirContext, resource, loadable);
+				int searchMode = searchModeCode(resource);
+				if (id == null || searchMode < 0) {
+					return null;
+				}
+				if (searchMode > 0) {
+					if (searchModes == null) {
+						searchModes = new byte[size];
+					}
+					searchModes[count] = (byte) searchMode;
+				}
+				byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+				ids.write(bytes, 0, bytes.length);
+				offsets[++count] = ids.size();
+			}
+		}
+		return new ResourceIdList(ids.toByteArray(), count < size ? Arrays.copyOf(offsets, count + 1) : offsets,
+				searchModes != null && count < size ? Arrays.copyOf(searchModes, count) : searchModes);
+	}
+
+	/**
+	 * @return the id of the resource as {@code Type/id}, or null if it cannot be loaded again by id
+	 */
+	static String loadableId(FhirContext fhirContext, IBaseResource resource, Predicate<String> loadable) {
+		if (!(resource instanceof IAnyResource) || !resource.getIdElement().hasIdPart()) {
+			return null;
+		}
+		String type = fhirContext.getResourceDefinition(resource).getName();
+		return loadable.test(type) ? type + '/' + resource.getIdElement().getIdPart() : null;
+	}
+
+	/**
+	 * @return 0 if the resource has no search mode, the ordinal of the mode plus one, or -1 if
+	 *         the mode cannot be kept
+	 */
+	static int searchModeCode(IBaseResource resource) {
+		if (!(resource instanceof IAnyResource)) {
+			return 0;
+		}
+		Object searchMode = ((IAnyResource) resource).getUserData(ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.name());
+		if (searchMode == null) {
+			return 0;
+		}
+		return searchMode instanceof BundleEntrySearchModeEnum ? ((BundleEntrySearchModeEnum) searchMode).ordinal() + 1 : -1;
+	}
+
+	static BundleEntrySearchModeEnum searchMode(int code) {
+		return code == 0 ? null : SEARCH_MODES[code - 1];
+	}
+
+	@Override
+	public int size() {
+		return offsets.length - 1;
+	}
+
+	@Override
+	public String getId(int index) {
+		return new String(ids, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public BundleEntrySearchModeEnum getSearchMode(int index) {
+		return searchModes == null ? null : searchMode(searchModes[index]);
+	}
+
+	long estimateBytes() {
+		return OVERHEAD + ids.length + 4L * offsets.length + (searchModes == null ? 0 : searchModes.length);
+	}
+}
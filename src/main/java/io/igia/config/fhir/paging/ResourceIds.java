@@ -0,0 +1,33 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.paging;
+
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+
+/**
+ * The ids of a result set kept for paging, wherever they are kept.
+ */
+interface ResourceIds {
+
+	int size();
+
+	/**
+	 * @return the id of an entry as {@code Type/id}
+	 */
+	String getId(int index);
+
+	/**
+	 * @return the search mode of an entry, or null if none was set
+	 */
+	BundleEntrySearchModeEnum getSearchMode(int index);
+}
@@ -0,0 +1,101 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.paging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file result sets are appended to and mapped from. It takes new result sets until it
+ * reaches the segment size and is deleted once none of its result sets is kept.
+ */
+final class Segment {
+
+	private final Path file;
+	private final FileChannel channel;
+
+	/** Appended by one writer at a time */
+	private volatile long length;
+
+	/** Guarded by the paging provider */
+	private int resultSetCount;
+	private boolean sealed;
+
+	Segment(Path file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	Path getFile() {
+		return file;
+	}
+
+	long length() {
+		return length;
+	}
+
+	void append(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			length += channel.write(buffer, length);
+		}
+	}
+
+	/**
+	 * Append {@code count} bytes of another file, starting at {@code position}.
+	 */
+	void append(FileChannel source, long position, long count) throws IOException {
+		for (long end = position + count; position < end;) {
+			long transferred = channel.transferFrom(source.position(position), length, end - position);
+			if (transferred == 0) {
+				throw new IOException("Source ended before " + count + " bytes were appended to " + file);
+			}
+			position += transferred;
+			length += transferred;
+		}
+	}
+
+	MappedByteBuffer map(long position, int size) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+	}
+
+	void retain() {
+		resultSetCount++;
+	}
+
+	void release() {
+		resultSetCount--;
+	}
+
+	void seal() {
+		sealed = true;
+	}
+
+	boolean isUnused() {
+		return sealed && resultSetCount == 0;
+	}
+
+	/**
+	 * Close and delete the file. Pages already mapped stay readable where the platform allows
+	 * deleting mapped files.
+	 */
+	void delete() throws IOException {
+		channel.close();
+		Files.deleteIfExists(file);
+	}
+}
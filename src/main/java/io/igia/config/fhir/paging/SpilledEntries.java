@@ -0,0 +1,138 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.paging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The entries of a result set being stored, with their offsets and search modes, kept in
+ * temporary files until they are appended to a segment in one go.
+ */
+final class SpilledEntries implements Closeable {
+
+	private final FileChannel data;
+	private final FileChannel index;
+	private final boolean encoded;
+	private final long modesPosition;
+	private final ByteBuffer dataBuffer;
+	private final ByteBuffer offsets;
+	private final ByteBuffer modes;
+	private int dataLength;
+	private long dataWritten;
+	private long offsetsWritten;
+	private long modesWritten;
+	private int count;
+
+	/**
+	 * @param maximumCount the most entries kept
+	 * @param encoded whether entries are encoded resources rather than ids
+	 */
+	SpilledEntries(Path dataFile, Path indexFile, int maximumCount, int bufferSize, boolean encoded) throws IOException {
+		this.data = open(dataFile);
+		try {
+			this.index = open(indexFile);
+		} catch (IOException e) {
+			data.close();
+			throw e;
+		}
+		this.encoded = encoded;
+		this.modesPosition = 4L * (maximumCount + 1);
+		this.dataBuffer = ByteBuffer.allocate(bufferSize);
+		this.offsets = ByteBuffer.allocate(bufferSize);
+		this.modes = ByteBuffer.allocate(bufferSize / 4);
+		putOffset(0);
+	}
+
+	void add(byte[] entry, byte searchMode) throws IOException {
+		if (entry.length > dataBuffer.remaining()) {
+			dataWritten += flush(data, dataBuffer, dataWritten);
+		}
+		if (entry.length > dataBuffer.capacity()) {
+			dataWritten += write(data, ByteBuffer.wrap(entry), dataWritten);
+		} else {
+			dataBuffer.put(entry);
+		}
+		dataLength += entry.length;
+		putOffset(dataLength);
+		if (!modes.hasRemaining()) {
+			modesWritten += flush(index, modes, modesPosition + modesWritten);
+		}
+		modes.put(searchMode);
+		count++;
+	}
+
+	int size() {
+		return count;
+	}
+
+	int dataLength() {
+		return dataLength;
+	}
+
+	boolean isEncoded() {
+		return encoded;
+	}
+
+	/**
+	 * Append the entries, then their offsets, then their search modes, to the segment.
+	 */
+	void appendTo(Segment segment) throws IOException {
+		dataWritten += flush(data, dataBuffer, dataWritten);
+		offsetsWritten += flush(index, offsets, offsetsWritten);
+		modesWritten += flush(index, modes, modesPosition + modesWritten);
+		segment.append(data, 0, dataWritten);
+		segment.append(index, 0, offsetsWritten);
+		segment.append(index, modesPosition, modesWritten);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			data.close();
+		} finally {
+			index.close();
+		}
+	}
+
+	private void putOffset(int offset) throws IOException {
+		if (offsets.remaining() < 4) {
+			offsetsWritten += flush(index, offsets, offsetsWritten);
+		}
+		offsets.putInt(offset);
+	}
+
+	private static int flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		buffer.flip();
+		int length = write(channel, buffer, position);
+		buffer.clear();
+		return length;
+	}
+
+	private static int write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		return length;
+	}
+
+	private static FileChannel open(Path file) throws IOException {
+		return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+	}
+}
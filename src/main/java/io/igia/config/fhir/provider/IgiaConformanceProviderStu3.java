@@ -27,6 +27,13 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.stereotype.Component;
 
+/**
+ * Capability statement with the SMART OAuth URIs and capabilities extensions.
+ * <p>
+ * The decorated statement is built once, normally by {@link io.igia.config.fhir.server.IgiaFhirRestfulServer}
+ * right after servlet initialization, and then published through a volatile field, so
+ * requests read it without locking. The returned statement is shared and must not be modified.
+ */
 @Component
 @ComponentScan(basePackages = {"org.hspconsortium.platform.api.fhir.repository", "org.hspconsortium.platform.api.smart"})
 @ConditionalOnExpression("'${hspc.platform.api.security.mode}'=='secured' || '${hspc.platform.api.security.mode}'=='mock'")
@@ -34,7 +41,7 @@ public class IgiaConformanceProviderStu3 extends ServerCapabilityStatementProvid
 	private static final String CAPABILITIES_EXTENSION_URL = "http://fhir-registry.smarthealthit.org/StructureDefinition/capabilities";
 	private MetadataRepositoryStu3 metadataRepository;
 	private MetadataRepositoryConfig metadataRepositoryConfig;
-	private boolean CONFIGURED = false;
+	private volatile CapabilityStatement capabilityStatement;
 	
 	@Value("${hspc.platform.authorization.smart.capabilities:}")    
 	private String[] capabilities;
@@ -43,6 +50,8 @@ public class IgiaConformanceProviderStu3 extends ServerCapabilityStatementProvid
 		super();
 		this.metadataRepository = metadataRepository;
 		this.metadataRepositoryConfig = metadataRepositoryConfig;
+		// the decorated statement is cached here instead
+		setCache(false);
 	}
 
     public void setMetadataRepository(MetadataRepositoryStu3 metadataRepository) {
@@ -51,14 +60,32 @@ public class IgiaConformanceProviderStu3 extends ServerCapabilityStatementProvid
     
 	@Override
     public CapabilityStatement getServerConformance(HttpServletRequest request) {
-        CapabilityStatement capabilityStatement = super.getServerConformance(request);        
-        if(!CONFIGURED) {
-        		capabilityStatement = this.metadataRepository.addCapabilityStatement(capabilityStatement);
-        		capabilityStatement = addCapabilityExtensions(capabilityStatement);
-        		CONFIGURED = true;
-        }        
-        return capabilityStatement;
+		CapabilityStatement result = capabilityStatement;
+		if (result == null) {
+			result = initialize(request);
+		}
+        return result;
     }
+
+	/**
+	 * Build the decorated capability statement unless it has been built already. The request
+	 * may be null when the server address strategy does not depend on it.
+	 */
+	public synchronized CapabilityStatement initialize(HttpServletRequest request) {
+		if (capabilityStatement == null) {
+			CapabilityStatement result = super.getServerConformance(request);
+			result = this.metadataRepository.addCapabilityStatement(result);
+			capabilityStatement = addCapabilityExtensions(result);
+		}
+		return capabilityStatement;
+	}
+
+	/**
+	 * Drop the built statement, e.g. after providers changed; the next request builds it again.
+	 */
+	public void reset() {
+		capabilityStatement = null;
+	}
 	
     private CapabilityStatement addCapabilityExtensions(CapabilityStatement capabilityStatement) {
 		if(capabilities == null || capabilities.length == 0) {
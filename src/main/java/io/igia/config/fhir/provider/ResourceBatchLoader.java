@@ -0,0 +1,31 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.provider;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+/**
+ * Implemented by resource providers that can load many resources by id in one call. Search
+ * results of their type are then kept for paging as id lists and loaded again page by page.
+ */
+public interface ResourceBatchLoader {
+
+	/**
+	 * @param theIds ids of the resources, without version
+	 * @return the resources found, in any order; resources deleted since the search are left out
+	 */
+	List<? extends IBaseResource> loadResources(List<IIdType> theIds);
+}
@@ -0,0 +1,40 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.provider;
+
+import java.util.Date;
+
+/**
+ * The versionId and lastUpdated of a resource, as in its meta element.
+ */
+public final class ResourceVersion {
+
+	private final String versionId;
+	private final Date lastUpdated;
+
+	/**
+	 * @param lastUpdated may be null if only the version is known
+	 */
+	public ResourceVersion(String versionId, Date lastUpdated) {
+		this.versionId = versionId;
+		this.lastUpdated = lastUpdated == null ? null : new Date(lastUpdated.getTime());
+	}
+
+	public String getVersionId() {
+		return versionId;
+	}
+
+	public Date getLastUpdated() {
+		return lastUpdated == null ? null : new Date(lastUpdated.getTime());
+	}
+}
@@ -0,0 +1,30 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.provider;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+
+/**
+ * Implemented by resource providers that can tell the current version of a resource without
+ * loading it. Reads with {@code If-None-Match} or {@code If-Modified-Since} are then answered
+ * with 304 from the version alone when the client's copy is current.
+ */
+public interface ResourceVersionLookup {
+
+	/**
+	 * @param theId id of the resource, without version
+	 * @return the current version, or null if the resource does not exist or is deleted, so
+	 *         that the read runs as usual
+	 */
+	ResourceVersion getCurrentVersion(IIdType theId);
+}
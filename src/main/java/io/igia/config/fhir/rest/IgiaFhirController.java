@@ -19,6 +19,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
@@ -30,6 +31,7 @@ import io.igia.config.fhir.server.IgiaFhirRestfulServer;
 
 @RestController    	
 @ConditionalOnClass(IResourceProvider.class)
+@ConditionalOnProperty(value = "hapi.fhir.server.registration", havingValue = "controller", matchIfMissing = true)
 public class IgiaFhirController extends ServletWrappingController {    		
 	private final HapiFhirServletContext hapiFhirServletContext;		
 	
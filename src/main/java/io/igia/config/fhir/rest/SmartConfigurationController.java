@@ -0,0 +1,135 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.rest;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.HttpRequestHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.igia.config.fhir.FhirProperties;
+
+/**
+ * SMART App Launch discovery document at {@code [base]/.well-known/smart-configuration}.
+ * <p>
+ * The document is built once from the same {@code hspc.platform.authorization.*} properties
+ * as the OAuth URIs extension of the capability statement, and served as pre-encoded bytes
+ * with an {@code ETag} and long-lived caching headers. When the FHIR servlet is registered
+ * directly with the container, the document is served through this class as an
+ * {@link HttpRequestHandler} mapped on the exact path.
+ */
+@RestController
+@ConditionalOnExpression("'${hspc.platform.api.security.mode}'=='secured' || '${hspc.platform.api.security.mode}'=='mock'")
+public class SmartConfigurationController implements HttpRequestHandler {
+
+	private final Logger log = LoggerFactory.getLogger(SmartConfigurationController.class);
+
+	private final byte[] body;
+	private final String etag;
+	private final CacheControl cacheControl;
+
+	public SmartConfigurationController(
+			@Value("${hspc.platform.authorization.url:}") String authorizationUrl,
+			@Value("${hspc.platform.manifest.override:false}") boolean manifestOverride,
+			@Value("${hspc.platform.manifest.url:}") String manifestUrl,
+			@Value("${hspc.platform.authorization.authorizeUrlPath:}") String authorizeUrlPath,
+			@Value("${hspc.platform.authorization.tokenUrlPath:}") String tokenUrlPath,
+			@Value("${hspc.platform.authorization.tokenCheckUrlPath:}") String tokenCheckUrlPath,
+			@Value("${hspc.platform.authorization.userinfoUrlPath:}") String userinfoUrlPath,
+			@Value("${hspc.platform.authorization.smart.registrationEndpointUrlPath:}") String registrationEndpointUrlPath,
+			@Value("${hspc.platform.authorization.smart.capabilities:}") String[] capabilities,
+			FhirProperties properties) {
+		String baseUrl = manifestOverride ? manifestUrl : authorizationUrl;
+
+		Map<String, Object> document = new LinkedHashMap<>();
+		putUrl(document, "authorization_endpoint", baseUrl, authorizeUrlPath);
+		putUrl(document, "token_endpoint", baseUrl, tokenUrlPath);
+		putUrl(document, "introspection_endpoint", baseUrl, tokenCheckUrlPath);
+		putUrl(document, "userinfo_endpoint", baseUrl, userinfoUrlPath);
+		putUrl(document, "registration_endpoint", baseUrl, registrationEndpointUrlPath);
+		List<String> capabilityList = new ArrayList<>();
+		if (capabilities != null) {
+			for (String capability : capabilities) {
+				if (StringUtils.hasText(capability)) {
+					capabilityList.add(capability.trim());
+				}
+			}
+		}
+		document.put("capabilities", capabilityList);
+
+		try {
+			this.body = new ObjectMapper().writeValueAsBytes(document);
+		} catch (JsonProcessingException e) {
+			throw new IllegalStateException("Failed to encode the SMART configuration", e);
+		}
+		this.etag = '"' + DigestUtils.md5DigestAsHex(body) + '"';
+		Duration maxAge = properties.getSmartConfiguration().getMaxAge();
+		this.cacheControl = CacheControl.maxAge(maxAge.getSeconds(), TimeUnit.SECONDS).cachePublic();
+		log.debug("SMART configuration: {}", document);
+	}
+
+	@GetMapping(value = "${hapi.fhir.server.path}/.well-known/smart-configuration", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<byte[]> smartConfiguration(WebRequest request) {
+		if (request.checkNotModified(etag)) {
+			return null;
+		}
+		return ResponseEntity.ok()
+				.cacheControl(cacheControl)
+				.eTag(etag)
+				.contentType(MediaType.APPLICATION_JSON)
+				.body(body);
+	}
+
+	@Override
+	public void handleRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+			return;
+		}
+		response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl.getHeaderValue());
+		response.setHeader(HttpHeaders.ETAG, etag);
+		response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+
+	private static void putUrl(Map<String, Object> document, String name, String baseUrl, String path) {
+		if (StringUtils.hasText(path)) {
+			document.put(name, (baseUrl == null ? "" : baseUrl) + path.trim());
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.security;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import io.igia.config.fhir.cache.ExpiringCache;
+import io.igia.config.fhir.cache.TokenDigest;
+
+/**
+ * OAuth2 token introspection (RFC 7662) client for opaque access tokens.
+ * <p>
+ * Concurrent lookups of the same token share one remote call. Active results are cached
+ * until the token's {@code exp}, bounded by a maximum time to live; inactive results are
+ * cached briefly. After a number of consecutive remote failures a circuit breaker fails
+ * lookups of uncached tokens fast for a while, then lets a single trial call through.
+ */
+public class CachingTokenIntrospectionServices implements ResourceServerTokenServices {
+
+	private final Logger log = LoggerFactory.getLogger(CachingTokenIntrospectionServices.class);
+
+	private final String introspectionUri;
+	private final String clientId;
+	private final String clientSecret;
+	private final RestTemplate restTemplate;
+	private AccessTokenConverter accessTokenConverter = new DefaultAccessTokenConverter();
+
+	private final ExpiringCache<String, Map<String, Object>> activeTokens;
+	private final ExpiringCache<String, Boolean> inactiveTokens;
+	private final long maximumTimeToLiveMillis;
+	private final long negativeTimeToLiveMillis;
+	private final ConcurrentHashMap<String, CompletableFuture<Map<String, Object>>> inFlight = new ConcurrentHashMap<>();
+
+	private final int failureThreshold;
+	private final long openDurationMillis;
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicBoolean trialInProgress = new AtomicBoolean();
+	private volatile long openUntil;
+
+	private final LongAdder requestCount = new LongAdder();
+	private final LongAdder coalescedCount = new LongAdder();
+	private final LongAdder remoteCallCount = new LongAdder();
+	private final LongAdder failureCount = new LongAdder();
+	private final LongAdder shortCircuitCount = new LongAdder();
+
+	public CachingTokenIntrospectionServices(String introspectionUri, String clientId, String clientSecret, int maximumSize,
+			Duration maximumTimeToLive, Duration negativeTimeToLive, Duration connectTimeout, Duration readTimeout,
+			int failureThreshold, Duration openDuration) {
+		this.introspectionUri = introspectionUri;
+		this.clientId = clientId;
+		this.clientSecret = clientSecret;
+		this.activeTokens = new ExpiringCache<>(maximumSize);
+		this.inactiveTokens = new ExpiringCache<>(maximumSize);
+		this.maximumTimeToLiveMillis = maximumTimeToLive.toMillis();
+		this.negativeTimeToLiveMillis = negativeTimeToLive.toMillis();
+		this.failureThreshold = failureThreshold;
+		this.openDurationMillis = openDuration.toMillis();
+
+		SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+		requestFactory.setConnectTimeout((int) connectTimeout.toMillis());
+		requestFactory.setReadTimeout((int) readTimeout.toMillis());
+		this.restTemplate = new RestTemplate(requestFactory);
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException, InvalidTokenException {
+		return accessTokenConverter.extractAuthentication(introspect(accessToken));
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		return accessTokenConverter.extractAccessToken(accessToken, introspect(accessToken));
+	}
+
+	/**
+	 * @return the claims of an active token
+	 * @throws InvalidTokenException if the token is not active
+	 * @throws ResourceAccessException if the introspection endpoint is unavailable
+	 */
+	public Map<String, Object> introspect(String accessToken) {
+		requestCount.increment();
+		String key = TokenDigest.sha256(accessToken);
+		Map<String, Object> claims = cachedClaims(key);
+		if (claims != null) {
+			return claims;
+		}
+
+		CompletableFuture<Map<String, Object>> call = new CompletableFuture<>();
+		CompletableFuture<Map<String, Object>> existing = inFlight.putIfAbsent(key, call);
+		if (existing != null) {
+			coalescedCount.increment();
+			return await(existing);
+		}
+		try {
+			// a previous call may have completed and left the slot between the lookup above and putIfAbsent
+			claims = cachedClaims(key);
+			if (claims == null) {
+				claims = callRemote(key, accessToken);
+			}
+			call.complete(claims);
+		} catch (RuntimeException e) {
+			call.completeExceptionally(e);
+		} finally {
+			inFlight.remove(key, call);
+		}
+		return await(call);
+	}
+
+	public void setAccessTokenConverter(AccessTokenConverter accessTokenConverter) {
+		this.accessTokenConverter = accessTokenConverter;
+	}
+
+	public boolean isCircuitOpen() {
+		return consecutiveFailures.get() >= failureThreshold && System.currentTimeMillis() < openUntil;
+	}
+
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+
+	public long getCacheHitCount() {
+		return activeTokens.getHitCount() + inactiveTokens.getHitCount();
+	}
+
+	public long getCoalescedCount() {
+		return coalescedCount.sum();
+	}
+
+	public long getRemoteCallCount() {
+		return remoteCallCount.sum();
+	}
+
+	public long getFailureCount() {
+		return failureCount.sum();
+	}
+
+	public long getShortCircuitCount() {
+		return shortCircuitCount.sum();
+	}
+
+	public int getCachedTokenCount() {
+		return activeTokens.size() + inactiveTokens.size();
+	}
+
+	/**
+	 * @return the cached claims of an active token, or null if the token is not cached
+	 * @throws InvalidTokenException if the token is cached as not active
+	 */
+	private Map<String, Object> cachedClaims(String key) {
+		Map<String, Object> claims = activeTokens.get(key);
+		if (claims != null) {
+			return claims;
+		}
+		if (inactiveTokens.get(key) != null) {
+			throw new InvalidTokenException("Token is not active");
+		}
+		return null;
+	}
+
+	private Map<String, Object> callRemote(String key, String accessToken) {
+		boolean trial = acquirePermission();
+		try {
+			remoteCallCount.increment();
+			Map<String, Object> response = postForMap(accessToken);
+			consecutiveFailures.set(0);
+
+			long now = System.currentTimeMillis();
+			if (response == null || response.containsKey("error") || !Boolean.TRUE.equals(response.get("active"))) {
+				inactiveTokens.put(key, Boolean.TRUE, now + negativeTimeToLiveMillis);
+				throw new InvalidTokenException("Token is not active");
+			}
+			Map<String, Object> claims = Collections.unmodifiableMap(new HashMap<>(response));
+			long expiresAt = now + maximumTimeToLiveMillis;
+			Object exp = claims.get(AccessTokenConverter.EXP);
+			if (exp instanceof Number) {
+				expiresAt = Math.min(expiresAt, ((Number) exp).longValue() * 1000L);
+			}
+			activeTokens.put(key, claims, expiresAt);
+			return claims;
+		} catch (InvalidTokenException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			failureCount.increment();
+			if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+				openUntil = System.currentTimeMillis() + openDurationMillis;
+				log.warn("Token introspection failed {} times in a row, failing fast for {} ms: {}",
+						consecutiveFailures.get(), openDurationMillis, e.toString());
+			}
+			throw e;
+		} finally {
+			if (trial) {
+				trialInProgress.set(false);
+			}
+		}
+	}
+
+	/**
+	 * @return true if this call is the single trial call of a half-open circuit
+	 */
+	private boolean acquirePermission() {
+		if (consecutiveFailures.get() < failureThreshold) {
+			return false;
+		}
+		if (System.currentTimeMillis() >= openUntil && trialInProgress.compareAndSet(false, true)) {
+			return true;
+		}
+		shortCircuitCount.increment();
+		throw new ResourceAccessException("Token introspection is unavailable");
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> postForMap(String accessToken) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+		headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+		if (clientId != null) {
+			String credentials = clientId + ":" + (clientSecret == null ? "" : clientSecret);
+			headers.set(HttpHeaders.AUTHORIZATION,
+					"Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+		}
+		MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+		form.add("token", accessToken);
+		return restTemplate.exchange(introspectionUri, HttpMethod.POST, new HttpEntity<>(form, headers), Map.class).getBody();
+	}
+
+	private static Map<String, Object> await(CompletableFuture<Map<String, Object>> call) {
+		try {
+			return call.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.security;
+
+import java.util.Map;
+
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.common.util.JsonParser;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
+
+/**
+ * {@link JwtAccessTokenConverter} that verifies each token with the key named by its
+ * {@code kid} header, as provided by a {@link VerifierKeyManager}. Signing is not supported.
+ */
+public class KeyRotatingJwtAccessTokenConverter extends JwtAccessTokenConverter {
+
+	private final VerifierKeyManager keyManager;
+	private final JsonParser jsonParser = JsonParserFactory.create();
+
+	public KeyRotatingJwtAccessTokenConverter(VerifierKeyManager keyManager) {
+		this.keyManager = keyManager;
+		setVerifier(new SignatureVerifier() {
+			@Override
+			public String algorithm() {
+				return "SHA256withRSA";
+			}
+
+			@Override
+			public void verify(byte[] content, byte[] signature) {
+				keyManager.getVerifier(null).verify(content, signature);
+			}
+		});
+	}
+
+	@Override
+	protected Map<String, Object> decode(String token) {
+		try {
+			Map<String, String> headers = JwtHelper.headers(token);
+			SignatureVerifier verifier = keyManager.getVerifier(headers.get("kid"));
+			Jwt jwt = JwtHelper.decodeAndVerify(token, verifier);
+			Map<String, Object> claims = jsonParser.parseMap(jwt.getClaims());
+			Object exp = claims.get(AccessTokenConverter.EXP);
+			if (exp instanceof Integer) {
+				claims.put(AccessTokenConverter.EXP, Long.valueOf((Integer) exp));
+			}
+			return claims;
+		} catch (InvalidTokenException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new InvalidTokenException("Cannot convert access token to JSON", e);
+		}
+	}
+
+	public VerifierKeyManager getKeyManager() {
+		return keyManager;
+	}
+}
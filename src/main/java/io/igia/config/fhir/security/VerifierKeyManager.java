@@ -0,0 +1,366 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.security;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Keeps the token verification keys of the authorization server.
+ * <p>
+ * Keys are fetched in the background with connect and read timeouts, so a slow
+ * authorization server never delays application startup. On startup the last keys
+ * written to the cache file (or the configured key value) are used until the first
+ * fetch completes. Keys are refreshed on a schedule and when a token names a
+ * {@code kid} that is not known yet; concurrent refreshes are coalesced into a single
+ * call. The key set is swapped atomically, so request threads never block on a lock.
+ * <p>
+ * The key endpoint may return either a JWKS document ({@code keys}) or a Keycloak
+ * realm document with a single {@code public_key}.
+ */
+public class VerifierKeyManager implements InitializingBean, DisposableBean {
+
+	private final Logger log = LoggerFactory.getLogger(VerifierKeyManager.class);
+
+	private final String keyUri;
+	private final String keyValue;
+	private final Path cacheFile;
+	private final Duration refreshInterval;
+	private final Duration minimumRefreshInterval;
+	private final Duration fetchTimeout;
+	private final RestTemplate restTemplate;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private final AtomicReference<KeySet> keys = new AtomicReference<>(KeySet.EMPTY);
+	private final AtomicReference<CompletableFuture<KeySet>> refreshInFlight = new AtomicReference<>();
+	private final AtomicLong lastRefreshStarted = new AtomicLong();
+	private final AtomicLong refreshCount = new AtomicLong();
+	private final AtomicLong refreshFailureCount = new AtomicLong();
+
+	private ScheduledExecutorService scheduler;
+
+	public VerifierKeyManager(String keyUri, String keyValue, Path cacheFile, Duration refreshInterval,
+			Duration minimumRefreshInterval, Duration connectTimeout, Duration readTimeout) {
+		this.keyUri = keyUri;
+		this.keyValue = keyValue;
+		this.cacheFile = cacheFile;
+		this.refreshInterval = refreshInterval;
+		this.minimumRefreshInterval = minimumRefreshInterval;
+		this.fetchTimeout = connectTimeout.plus(readTimeout);
+
+		SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+		requestFactory.setConnectTimeout((int) connectTimeout.toMillis());
+		requestFactory.setReadTimeout((int) readTimeout.toMillis());
+		this.restTemplate = new RestTemplate(requestFactory);
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		KeySet initial = loadCacheFile();
+		if (initial.isEmpty() && keyValue != null && !keyValue.isEmpty()) {
+			initial = KeySet.single(new RsaVerifier(keyValue));
+		}
+		keys.set(initial);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "fhir-verifier-key-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long interval = refreshInterval.toMillis();
+		scheduler.scheduleWithFixedDelay(this::refreshAsync, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Find the verifier for a token's {@code kid}. An unknown {@code kid} triggers a
+	 * (rate limited, coalesced) refresh and waits at most for the fetch timeout.
+	 *
+	 * @throws InvalidTokenException if no key matches
+	 */
+	public SignatureVerifier getVerifier(String kid) {
+		SignatureVerifier verifier = keys.get().find(kid);
+		if (verifier != null) {
+			return verifier;
+		}
+
+		CompletableFuture<KeySet> refresh = refreshIfAllowed();
+		if (refresh != null) {
+			try {
+				verifier = refresh.get(fetchTimeout.toMillis(), TimeUnit.MILLISECONDS).find(kid);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException | TimeoutException e) {
+				log.debug("Verifier key refresh did not complete: {}", e.toString());
+			}
+		}
+		if (verifier == null) {
+			throw new InvalidTokenException("No verifier key found for kid " + kid);
+		}
+		return verifier;
+	}
+
+	/**
+	 * Start a refresh unless one is already running; concurrent callers share the same fetch.
+	 */
+	public CompletableFuture<KeySet> refreshAsync() {
+		CompletableFuture<KeySet> existing = refreshInFlight.get();
+		if (existing != null) {
+			return existing;
+		}
+		CompletableFuture<KeySet> refresh = new CompletableFuture<>();
+		if (!refreshInFlight.compareAndSet(null, refresh)) {
+			return refreshInFlight.get();
+		}
+		lastRefreshStarted.set(System.nanoTime());
+		try {
+			scheduler.execute(() -> doRefresh(refresh));
+		} catch (RuntimeException e) {
+			refreshInFlight.set(null);
+			refresh.completeExceptionally(e);
+		}
+		return refresh;
+	}
+
+	public Map<String, SignatureVerifier> getVerifiers() {
+		return keys.get().byKid;
+	}
+
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	public long getRefreshFailureCount() {
+		return refreshFailureCount.get();
+	}
+
+	private CompletableFuture<KeySet> refreshIfAllowed() {
+		CompletableFuture<KeySet> existing = refreshInFlight.get();
+		if (existing != null) {
+			return existing;
+		}
+		long sinceLastRefresh = System.nanoTime() - lastRefreshStarted.get();
+		if (refreshCount.get() + refreshFailureCount.get() > 0 && sinceLastRefresh < minimumRefreshInterval.toNanos()) {
+			return null;
+		}
+		return refreshAsync();
+	}
+
+	private void doRefresh(CompletableFuture<KeySet> refresh) {
+		try {
+			String document = restTemplate.getForObject(keyUri, String.class);
+			KeySet fetched = parse(document);
+			if (fetched.isEmpty()) {
+				throw new IllegalStateException("No usable keys in response from " + keyUri);
+			}
+			keys.set(fetched);
+			writeCacheFile(document);
+			refreshCount.incrementAndGet();
+			log.debug("Loaded {} verifier key(s) from {}", fetched.size(), keyUri);
+			refresh.complete(fetched);
+		} catch (RuntimeException e) {
+			refreshFailureCount.incrementAndGet();
+			log.warn("Failed to load verifier keys from {}: {}", keyUri, e.toString());
+			refresh.completeExceptionally(e);
+		} finally {
+			refreshInFlight.compareAndSet(refresh, null);
+		}
+	}
+
+	KeySet parse(String document) {
+		Map<String, Object> json;
+		try {
+			json = objectMapper.readValue(document, new TypeReference<Map<String, Object>>() {});
+		} catch (IOException e) {
+			throw new IllegalStateException("Invalid key document", e);
+		}
+
+		Object jwks = json.get("keys");
+		if (jwks instanceof List) {
+			Map<String, SignatureVerifier> byKid = new HashMap<>();
+			List<SignatureVerifier> withoutKid = new ArrayList<>();
+			SignatureVerifier first = null;
+			int count = 0;
+			for (Object next : (List<?>) jwks) {
+				if (!(next instanceof Map)) {
+					continue;
+				}
+				Map<?, ?> jwk = (Map<?, ?>) next;
+				if (!"RSA".equals(jwk.get("kty")) || "enc".equals(jwk.get("use"))) {
+					continue;
+				}
+				Base64.Decoder decoder = Base64.getUrlDecoder();
+				SignatureVerifier verifier = new RsaVerifier(
+						new BigInteger(1, decoder.decode((String) jwk.get("n"))),
+						new BigInteger(1, decoder.decode((String) jwk.get("e"))));
+				if (first == null) {
+					first = verifier;
+				}
+				count++;
+				Object kid = jwk.get("kid");
+				if (kid != null) {
+					byKid.put(kid.toString(), verifier);
+				} else {
+					withoutKid.add(verifier);
+				}
+			}
+			if (count == 1 && withoutKid.isEmpty()) {
+				withoutKid.add(first);
+			}
+			return new KeySet(byKid, withoutKid, count);
+		}
+
+		Object publicKey = json.get("public_key");
+		if (publicKey != null) {
+			return KeySet.single(new RsaVerifier(
+					String.format("-----BEGIN PUBLIC KEY-----\n%s\n-----END PUBLIC KEY-----", publicKey)));
+		}
+		return KeySet.EMPTY;
+	}
+
+	private KeySet loadCacheFile() {
+		if (cacheFile == null || !Files.isReadable(cacheFile)) {
+			return KeySet.EMPTY;
+		}
+		try {
+			KeySet cached = parse(new String(Files.readAllBytes(cacheFile), StandardCharsets.UTF_8));
+			log.info("Using {} cached verifier key(s) from {}", cached.size(), cacheFile);
+			return cached;
+		} catch (IOException | RuntimeException e) {
+			log.warn("Ignoring unreadable verifier key cache file {}: {}", cacheFile, e.toString());
+			return KeySet.EMPTY;
+		}
+	}
+
+	private void writeCacheFile(String document) {
+		if (cacheFile == null) {
+			return;
+		}
+		try {
+			Path temp = Files.createTempFile(cacheFile.toAbsolutePath().getParent(), ".keys", ".tmp");
+			Files.write(temp, document.getBytes(StandardCharsets.UTF_8));
+			Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warn("Failed to write verifier key cache file {}: {}", cacheFile, e.toString());
+		}
+	}
+
+	/**
+	 * Immutable set of verifiers, indexed by {@code kid}. Keys without a {@code kid} (or the
+	 * only key of a set) are used for tokens whose {@code kid} is absent, or unknown when no
+	 * key has a {@code kid}; with several such keys each one is tried in turn.
+	 */
+	static final class KeySet {
+		static final KeySet EMPTY = new KeySet(Collections.emptyMap(), Collections.emptyList(), 0);
+
+		private final Map<String, SignatureVerifier> byKid;
+		private final SignatureVerifier fallback;
+		private final int size;
+
+		KeySet(Map<String, SignatureVerifier> byKid, List<SignatureVerifier> fallback, int size) {
+			this.byKid = Collections.unmodifiableMap(byKid);
+			this.fallback = fallback.isEmpty() ? null
+					: fallback.size() == 1 ? fallback.get(0) : new AnyOfVerifier(new ArrayList<>(fallback));
+			this.size = size;
+		}
+
+		static KeySet single(SignatureVerifier verifier) {
+			return new KeySet(Collections.emptyMap(), Collections.singletonList(verifier), 1);
+		}
+
+		SignatureVerifier find(String kid) {
+			SignatureVerifier verifier = kid == null ? null : byKid.get(kid);
+			if (verifier == null && (kid == null || byKid.isEmpty())) {
+				verifier = fallback;
+			}
+			return verifier;
+		}
+
+		boolean isEmpty() {
+			return byKid.isEmpty() && fallback == null;
+		}
+
+		int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * Accepts a signature that any of the given verifiers accepts.
+	 */
+	private static final class AnyOfVerifier implements SignatureVerifier {
+		private final List<SignatureVerifier> verifiers;
+
+		private AnyOfVerifier(List<SignatureVerifier> verifiers) {
+			this.verifiers = verifiers;
+		}
+
+		@Override
+		public String algorithm() {
+			return verifiers.get(0).algorithm();
+		}
+
+		@Override
+		public void verify(byte[] content, byte[] signature) {
+			InvalidSignatureException failure = null;
+			for (SignatureVerifier verifier : verifiers) {
+				try {
+					verifier.verify(content, signature);
+					return;
+				} catch (InvalidSignatureException e) {
+					failure = e;
+				}
+			}
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,496 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * Puts FHIR requests in asynchronous mode and processes them on an executor, so container
+ * threads are not held while providers wait on downstream stores.
+ * <p>
+ * Every request gets a timeout. When it expires first, the worker is interrupted, the client
+ * gets a 503 if no response was committed yet, and anything the worker writes afterwards is
+ * discarded. A 503 is also returned when the executor rejects the request. The security
+ * context of the container thread is carried over to the worker, and the worker gets its own
+ * request attributes so request scoped beans resolve there. Requests that cannot be
+ * processed asynchronously run on the calling thread.
+ */
+public class AsyncRequestHandler {
+
+	@FunctionalInterface
+	public interface RequestProcessor {
+		void process(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException;
+	}
+
+	private enum State {
+		QUEUED, RUNNING, DONE, ABORTED
+	}
+
+	private final Logger log = LoggerFactory.getLogger(AsyncRequestHandler.class);
+
+	private final Executor executor;
+	private final long timeoutMillis;
+
+	private final LongAdder startedCount = new LongAdder();
+	private final LongAdder completedCount = new LongAdder();
+	private final LongAdder timeoutCount = new LongAdder();
+	private final LongAdder rejectedCount = new LongAdder();
+	private final LongAdder abortedCount = new LongAdder();
+
+	/**
+	 * @param timeout time a request may take before it is answered with 503, or zero for no limit
+	 */
+	public AsyncRequestHandler(Executor executor, Duration timeout) {
+		this.executor = executor;
+		this.timeoutMillis = timeout == null ? 0 : timeout.toMillis();
+	}
+
+	public void handle(HttpServletRequest request, HttpServletResponse response, RequestProcessor processor)
+			throws ServletException, IOException {
+		if (!request.isAsyncSupported() || request.isAsyncStarted() || request.getDispatcherType() != DispatcherType.REQUEST) {
+			processor.process(request, response);
+			return;
+		}
+		AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(timeoutMillis);
+		Exchange exchange = new Exchange(asyncContext, response);
+		asyncContext.addListener(exchange);
+		SecurityContext securityContext = SecurityContextHolder.getContext();
+		startedCount.increment();
+		try {
+			executor.execute(() -> run(exchange, request, processor, securityContext));
+		} catch (RejectedExecutionException e) {
+			rejectedCount.increment();
+			log.warn("FHIR request executor rejected {} {}", request.getMethod(), request.getRequestURI());
+			exchange.reject();
+		}
+	}
+
+	private void run(Exchange exchange, HttpServletRequest request, RequestProcessor processor,
+			SecurityContext securityContext) {
+		if (!exchange.begin()) {
+			return;
+		}
+		SecurityContext previous = SecurityContextHolder.getContext();
+		SecurityContextHolder.setContext(securityContext);
+		// the dispatcher completed the container thread's attributes, so request scoped beans need new ones
+		RequestAttributes previousAttributes = RequestContextHolder.getRequestAttributes();
+		ServletRequestAttributes attributes = new ServletRequestAttributes(request, exchange.response);
+		RequestContextHolder.setRequestAttributes(attributes);
+		try {
+			processor.process(request, exchange.response);
+		} catch (ServletException | IOException | RuntimeException e) {
+			if (!exchange.isAborted()) {
+				log.warn("FHIR request {} {} failed: {}", request.getMethod(), request.getRequestURI(), e.toString());
+				exchange.fail();
+			}
+		} finally {
+			attributes.requestCompleted();
+			RequestContextHolder.setRequestAttributes(previousAttributes);
+			SecurityContextHolder.setContext(previous);
+			exchange.finish();
+		}
+	}
+
+	public long getStartedCount() {
+		return startedCount.sum();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.sum();
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount.sum();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	public long getAbortedCount() {
+		return abortedCount.sum();
+	}
+
+	/**
+	 * State of one asynchronous request, shared by the worker and the container callbacks.
+	 * Header and status changes go through the lock, so none reach the response once the
+	 * request is aborted. Writes only check the state under the lock and do their I/O outside
+	 * it, so a timeout is never held up by a slow client.
+	 */
+	private final class Exchange implements AsyncListener {
+		private final AsyncContext asyncContext;
+		private final GuardedResponse response;
+		private final ReentrantLock lock = new ReentrantLock();
+		private State state = State.QUEUED;
+		private Thread worker;
+
+		Exchange(AsyncContext asyncContext, HttpServletResponse response) {
+			this.asyncContext = asyncContext;
+			this.response = new GuardedResponse(response, this);
+		}
+
+		boolean begin() {
+			lock.lock();
+			try {
+				if (state != State.QUEUED) {
+					return false;
+				}
+				state = State.RUNNING;
+				worker = Thread.currentThread();
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void finish() {
+			lock.lock();
+			try {
+				worker = null;
+				// a pool thread must not carry an interrupt into its next task
+				Thread.interrupted();
+				if (state == State.RUNNING) {
+					state = State.DONE;
+					completedCount.increment();
+					asyncContext.complete();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void fail() {
+			respond(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, false);
+		}
+
+		void reject() {
+			respond(HttpServletResponse.SC_SERVICE_UNAVAILABLE, true);
+		}
+
+		boolean isAborted() {
+			lock.lock();
+			try {
+				return state == State.ABORTED;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			timeoutCount.increment();
+			log.warn("FHIR request timed out after {} ms", timeoutMillis);
+			abort(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			abortedCount.increment();
+			log.debug("FHIR request aborted: {}", String.valueOf(event.getThrowable()));
+			abort(0);
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			// completed by the worker or by abort
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			// not restarted
+		}
+
+		private void abort(int status) {
+			lock.lock();
+			try {
+				if (state == State.DONE || state == State.ABORTED) {
+					return;
+				}
+				state = State.ABORTED;
+				if (worker != null) {
+					worker.interrupt();
+				}
+				if (status > 0) {
+					writeStatus(status);
+				}
+				asyncContext.complete();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void respond(int status, boolean complete) {
+			lock.lock();
+			try {
+				if (state == State.DONE || state == State.ABORTED) {
+					return;
+				}
+				writeStatus(status);
+				if (complete) {
+					state = State.DONE;
+					asyncContext.complete();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void writeStatus(int status) {
+			HttpServletResponse target = (HttpServletResponse) response.getResponse();
+			if (!target.isCommitted()) {
+				target.reset();
+				target.setStatus(status);
+				target.setContentLength(0);
+			}
+		}
+
+		private void checkWritable() throws IOException {
+			if (state == State.ABORTED) {
+				throw new IOException("FHIR request was aborted");
+			}
+		}
+	}
+
+	/**
+	 * Response handed to the worker; changes are dropped and writes fail once the request is aborted.
+	 */
+	private static final class GuardedResponse extends HttpServletResponseWrapper {
+		private final Exchange exchange;
+		private ServletOutputStream outputStream;
+		private PrintWriter writer;
+
+		GuardedResponse(HttpServletResponse response, Exchange exchange) {
+			super(response);
+			this.exchange = exchange;
+		}
+
+		private interface Action {
+			void run() throws IOException;
+		}
+
+		private void whenWritable(Action action) throws IOException {
+			exchange.lock.lock();
+			try {
+				exchange.checkWritable();
+			} finally {
+				exchange.lock.unlock();
+			}
+			action.run();
+		}
+
+		private void unlessAborted(Runnable action) {
+			exchange.lock.lock();
+			try {
+				if (exchange.state != State.ABORTED) {
+					action.run();
+				}
+			} finally {
+				exchange.lock.unlock();
+			}
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (outputStream == null) {
+				outputStream = new GuardedOutputStream(super.getOutputStream());
+			}
+			return outputStream;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				writer = new PrintWriter(new GuardedWriter(super.getWriter()));
+			}
+			return writer;
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			unlessAborted(() -> super.setStatus(sc));
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			whenWritable(() -> super.sendError(sc));
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			whenWritable(() -> super.sendError(sc, msg));
+		}
+
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			whenWritable(() -> super.sendRedirect(location));
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			unlessAborted(() -> super.setHeader(name, value));
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			unlessAborted(() -> super.addHeader(name, value));
+		}
+
+		@Override
+		public void setDateHeader(String name, long date) {
+			unlessAborted(() -> super.setDateHeader(name, date));
+		}
+
+		@Override
+		public void addDateHeader(String name, long date) {
+			unlessAborted(() -> super.addDateHeader(name, date));
+		}
+
+		@Override
+		public void setIntHeader(String name, int value) {
+			unlessAborted(() -> super.setIntHeader(name, value));
+		}
+
+		@Override
+		public void addIntHeader(String name, int value) {
+			unlessAborted(() -> super.addIntHeader(name, value));
+		}
+
+		@Override
+		public void setContentType(String type) {
+			unlessAborted(() -> super.setContentType(type));
+		}
+
+		@Override
+		public void setCharacterEncoding(String charset) {
+			unlessAborted(() -> super.setCharacterEncoding(charset));
+		}
+
+		@Override
+		public void setContentLength(int len) {
+			unlessAborted(() -> super.setContentLength(len));
+		}
+
+		@Override
+		public void setContentLengthLong(long len) {
+			unlessAborted(() -> super.setContentLengthLong(len));
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			whenWritable(() -> super.flushBuffer());
+		}
+
+		@Override
+		public void reset() {
+			unlessAborted(() -> super.reset());
+		}
+
+		@Override
+		public void resetBuffer() {
+			unlessAborted(() -> super.resetBuffer());
+		}
+
+		private final class GuardedOutputStream extends ServletOutputStream {
+			private final ServletOutputStream delegate;
+
+			GuardedOutputStream(ServletOutputStream delegate) {
+				this.delegate = delegate;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				whenWritable(() -> delegate.write(b));
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				whenWritable(() -> delegate.write(b, off, len));
+			}
+
+			@Override
+			public void flush() throws IOException {
+				whenWritable(() -> delegate.flush());
+			}
+
+			@Override
+			public void close() throws IOException {
+				whenWritable(() -> delegate.close());
+			}
+
+			@Override
+			public boolean isReady() {
+				return delegate.isReady();
+			}
+
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+				delegate.setWriteListener(writeListener);
+			}
+		}
+
+		private final class GuardedWriter extends Writer {
+			private final Writer delegate;
+
+			GuardedWriter(Writer delegate) {
+				this.delegate = delegate;
+			}
+
+			@Override
+			public void write(char[] cbuf, int off, int len) throws IOException {
+				whenWritable(() -> delegate.write(cbuf, off, len));
+			}
+
+			@Override
+			public void write(String str, int off, int len) throws IOException {
+				whenWritable(() -> delegate.write(str, off, len));
+			}
+
+			@Override
+			public void flush() throws IOException {
+				whenWritable(() -> delegate.flush());
+			}
+
+			@Override
+			public void close() throws IOException {
+				whenWritable(() -> delegate.close());
+			}
+		}
+	}
+}
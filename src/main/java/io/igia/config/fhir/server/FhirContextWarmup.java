@@ -0,0 +1,153 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.server;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import io.igia.config.fhir.interceptor.ResourceTypeRegistry;
+
+/**
+ * Scans the resource definitions of the {@link FhirContext} and exercises its parsers once
+ * all singletons are created, so the first request for each resource type does not pay for
+ * the reflection. The work is spread over a fork-join pool and the time of each phase is
+ * logged and kept.
+ */
+public class FhirContextWarmup implements SmartInitializingSingleton {
+
+	public enum ResourceTypes {
+		/** the resource types of the registered resource providers */
+		PROVIDERS,
+		/** every resource type of the FHIR version */
+		ALL
+	}
+
+	private final Logger log = LoggerFactory.getLogger(FhirContextWarmup.class);
+
+	private final FhirContext fhirContext;
+	private final ResourceTypeRegistry resourceTypeRegistry;
+	private final List<IResourceProvider> resourceProviders;
+	private final ResourceTypes resourceTypes;
+	private final int parallelism;
+	private final Map<String, Duration> phaseTimings = new LinkedHashMap<>();
+
+	/**
+	 * @param parallelism number of worker threads, or 0 for the number of processors
+	 */
+	public FhirContextWarmup(FhirContext fhirContext, ResourceTypeRegistry resourceTypeRegistry,
+			List<IResourceProvider> resourceProviders, ResourceTypes resourceTypes, int parallelism) {
+		this.fhirContext = fhirContext;
+		this.resourceTypeRegistry = resourceTypeRegistry;
+		this.resourceProviders = resourceProviders == null ? Collections.<IResourceProvider>emptyList() : resourceProviders;
+		this.resourceTypes = resourceTypes;
+		this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void afterSingletonsInstantiated() {
+		warmup();
+	}
+
+	public synchronized Map<String, Duration> warmup() {
+		phaseTimings.clear();
+		long start = System.nanoTime();
+		Set<Class<? extends IBaseResource>> types = resolveResourceTypes();
+		phaseTimings.put("resolve", Duration.ofNanos(System.nanoTime() - start));
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			AtomicInteger failures = new AtomicInteger();
+			timePhase("definitions", pool, types, failures, type -> fhirContext.getResourceDefinition(type));
+			timePhase("parsers", pool, types, failures, this::exerciseParsers);
+			if (failures.get() > 0) {
+				log.warn("FHIR context warm-up failed for {} resource type tasks", failures.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+		phaseTimings.put("total", Duration.ofNanos(System.nanoTime() - start));
+		log.info("Warmed up FHIR context for {} resource types with {} threads: {}", types.size(), parallelism,
+				phaseTimings);
+		return getPhaseTimings();
+	}
+
+	/**
+	 * @return duration of each phase of the last warm-up, in execution order
+	 */
+	public synchronized Map<String, Duration> getPhaseTimings() {
+		return Collections.unmodifiableMap(new LinkedHashMap<>(phaseTimings));
+	}
+
+	private Set<Class<? extends IBaseResource>> resolveResourceTypes() {
+		Set<Class<? extends IBaseResource>> types = new LinkedHashSet<>();
+		if (resourceTypes == ResourceTypes.ALL) {
+			for (String name : resourceTypeRegistry.getResourceNames()) {
+				types.add(resourceTypeRegistry.getResourceType(name));
+			}
+		} else {
+			for (IResourceProvider provider : resourceProviders) {
+				if (provider.getResourceType() != null) {
+					types.add(provider.getResourceType());
+				}
+			}
+		}
+		return types;
+	}
+
+	private void exerciseParsers(Class<? extends IBaseResource> type) {
+		try {
+			IBaseResource resource = type.newInstance();
+			fhirContext.newJsonParser().encodeResourceToString(resource);
+			fhirContext.newXmlParser().encodeResourceToString(resource);
+		} catch (InstantiationException | IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void timePhase(String phase, ForkJoinPool pool, Collection<Class<? extends IBaseResource>> types,
+			AtomicInteger failures, Consumer<Class<? extends IBaseResource>> task) {
+		long start = System.nanoTime();
+		try {
+			pool.submit(() -> types.parallelStream().forEach(type -> {
+				try {
+					task.accept(type);
+				} catch (RuntimeException e) {
+					failures.incrementAndGet();
+					log.debug("Failed to warm up {}: {}", type.getSimpleName(), e.toString());
+				}
+			})).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			log.warn("FHIR context warm-up phase {} failed: {}", phase, e.getCause().toString());
+		}
+		phaseTimings.put(phase, Duration.ofNanos(System.nanoTime() - start));
+	}
+}
@@ -45,6 +45,7 @@ public class HapiFhirServletContext {
 	private final IPagingProvider pagingProvider;
 	private final List<IServerInterceptor> interceptors;
 	private final List<FhirRestfulServerCustomizer> customizers;
+	private final AsyncRequestHandler asyncRequestHandler;
 	
 	public HapiFhirServletContext(
 			FhirProperties properties,
@@ -53,7 +54,8 @@ public class HapiFhirServletContext {
 			ObjectProvider<IServerConformanceProvider<? extends IBaseResource>> conformanceProvider,
 			ObjectProvider<IPagingProvider> pagingProvider,
 			ObjectProvider<List<IServerInterceptor>> interceptors,
-			ObjectProvider<List<FhirRestfulServerCustomizer>> customizers) {
+			ObjectProvider<List<FhirRestfulServerCustomizer>> customizers,
+			ObjectProvider<AsyncRequestHandler> asyncRequestHandler) {
 		
 		log.info("Start igia FHIR Servlet Context");
 		
@@ -64,6 +66,7 @@ public class HapiFhirServletContext {
 		this.pagingProvider = pagingProvider.getIfAvailable();
 		this.interceptors = interceptors.getIfAvailable();
 		this.customizers = customizers.getIfAvailable();
+		this.asyncRequestHandler = asyncRequestHandler.getIfAvailable();
 	}
 	
 	public FhirProperties getProperties() {
@@ -93,4 +96,11 @@ public class HapiFhirServletContext {
 	public List<FhirRestfulServerCustomizer> getCustomizers() {
 		return customizers;
 	}
+
+	/**
+	 * @return the handler that runs requests on the request executor, or null when requests run on container threads
+	 */
+	public AsyncRequestHandler getAsyncRequestHandler() {
+		return asyncRequestHandler;
+	}
 }
@@ -12,8 +12,15 @@
  */
 package io.igia.config.fhir.server;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +30,12 @@ import org.springframework.web.context.support.SpringBeanAutowiringSupport;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
+import io.igia.config.fhir.FhirProperties;
+import io.igia.config.fhir.interceptor.CapabilityStatementCacheInterceptor;
+import io.igia.config.fhir.interceptor.ConditionalReadInterceptor;
+import io.igia.config.fhir.interceptor.ResponseCompressionInterceptor;
+import io.igia.config.fhir.provider.IgiaConformanceProviderStu3;
 
 @ConfigurationProperties("hapi.fhir.rest")
 public class IgiaFhirRestfulServer extends RestfulServer {
@@ -36,6 +49,8 @@ public class IgiaFhirRestfulServer extends RestfulServer {
 	@Autowired
 	private HapiFhirServletContext hapiFhirServletContext;
 
+	private transient AsyncRequestHandler asyncRequestHandler;
+
 	@Override
 	protected void initialize() throws ServletException {
 		
@@ -50,14 +65,114 @@ public class IgiaFhirRestfulServer extends RestfulServer {
 		}
 		setPagingProvider(this.hapiFhirServletContext.getPagingProvider());
 		setInterceptors(this.hapiFhirServletContext.getInterceptors());		
+		this.asyncRequestHandler = this.hapiFhirServletContext.getAsyncRequestHandler();
 
 		customize();
+		registerStreamingBundleInterceptor();
+		registerConditionalReadInterceptor();
+	}
+
+	/**
+	 * Interceptors see the outgoing response in reverse order, so the streaming interceptor goes first
+	 * to write the Bundle only after all others have seen it.
+	 */
+	private void registerStreamingBundleInterceptor() {
+		FhirProperties.StreamingBundles streaming = this.hapiFhirServletContext.getProperties().getRest().getStreaming();
+		if (!streaming.isEnabled()) {
+			return;
+		}
+		List<IServerInterceptor> interceptors = new ArrayList<>();
+		interceptors.add(new StreamingBundleInterceptor(streaming.getMinimumEntries(), streaming.getBufferSize()));
+		interceptors.addAll(getInterceptors());
+		setInterceptors(interceptors);
+	}
+
+	/**
+	 * The conditional read interceptor goes last, so that a 304 is only answered once all other
+	 * interceptors, authorization included, have seen the request. Reads that authorization only
+	 * decides once the resource is loaded are not answered early.
+	 */
+	private void registerConditionalReadInterceptor() {
+		if (!this.hapiFhirServletContext.getProperties().getRest().getConditionalReads().isEnabled()
+				|| getResourceProviders() == null) {
+			return;
+		}
+		ConditionalReadInterceptor interceptor = new ConditionalReadInterceptor(getFhirContext(), getResourceProviders());
+		if (interceptor.hasLookups()) {
+			registerInterceptor(interceptor);
+		}
+	}
+
+	@Override
+	protected void service(HttpServletRequest theReq, HttpServletResponse theResp) throws ServletException, IOException {
+		if (asyncRequestHandler == null) {
+			serviceAndFinish(theReq, theResp);
+			return;
+		}
+		asyncRequestHandler.handle(theReq, theResp, this::serviceAndFinish);
+	}
+
+	/**
+	 * Complete a compressed response also when an interceptor stopped the processing early.
+	 */
+	private void serviceAndFinish(HttpServletRequest theReq, HttpServletResponse theResp) throws ServletException, IOException {
+		try {
+			super.service(theReq, theResp);
+		} finally {
+			ResponseCompressionInterceptor.finish(theReq);
+		}
 	}
 
 	@Override
 	public void init(ServletConfig config) throws ServletException {
 		SpringBeanAutowiringSupport.processInjectionBasedOnServletContext(this, config.getServletContext());
 		super.init(config);		
+		buildCapabilityStatement();
+	}
+
+	/**
+	 * Build the capability statement once all providers are registered, so no request pays for it.
+	 */
+	private void buildCapabilityStatement() {
+		if (!(getServerConformanceProvider() instanceof IgiaConformanceProviderStu3)) {
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			((IgiaConformanceProviderStu3) getServerConformanceProvider()).initialize(null);
+			log.info("Built capability statement in {} ms", (System.nanoTime() - start) / 1_000_000);
+		} catch (RuntimeException e) {
+			log.warn("Capability statement will be built on the first request: {}", e.toString());
+		}
+	}
+
+	@Override
+	public void registerProviders(Collection<? extends Object> theProviders) {
+		super.registerProviders(theProviders);
+		capabilitiesChanged();
+	}
+
+	@Override
+	public void unregisterProviders(Collection<? extends Object> theProviders) {
+		super.unregisterProviders(theProviders);
+		capabilitiesChanged();
+	}
+
+	@Override
+	public void setServerConformanceProvider(Object theServerConformanceProvider) {
+		super.setServerConformanceProvider(theServerConformanceProvider);
+		capabilitiesChanged();
+	}
+
+	private void capabilitiesChanged() {
+		if (getServerConformanceProvider() instanceof IgiaConformanceProviderStu3) {
+			((IgiaConformanceProviderStu3) getServerConformanceProvider()).reset();
+		}
+		for (IServerInterceptor interceptor : getInterceptors()) {
+			if (interceptor instanceof CapabilityStatementCacheInterceptor) {
+				((CapabilityStatementCacheInterceptor) interceptor).invalidate();
+			}
+		}
 	}
 
 	private void customize() {
@@ -0,0 +1,178 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+
+/**
+ * Writes a Bundle to an output stream one entry at a time.
+ * <p>
+ * The envelope (everything but the entries) is encoded first, then each entry is encoded on
+ * its own and written before the next one is encoded, so at most one encoded entry and the
+ * write buffer are held in memory whatever the number of entries. The entries are encoded
+ * as single-entry Bundles by the same parser and cut out of them, so the output is what the
+ * parser would produce for the whole Bundle, in JSON and XML alike.
+ */
+public class StreamingBundleEncoder {
+
+	/**
+	 * Opens the stream to write to, once the Bundle is known to be streamable.
+	 */
+	@FunctionalInterface
+	public interface OutputOpener {
+		OutputStream open() throws IOException;
+	}
+
+	private static final String XML_END_TAG = "</Bundle>";
+
+	private final int bufferSize;
+
+	public StreamingBundleEncoder(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @return false, without opening the output, if the Bundle cannot be streamed with this encoding
+	 */
+	public boolean encode(Bundle bundle, IParser parser, EncodingEnum encoding, OutputOpener opener) throws IOException {
+		if (encoding != EncodingEnum.JSON && encoding != EncodingEnum.XML || bundle.getEntry().isEmpty()
+				|| bundle.hasSignature()) {
+			return false;
+		}
+		boolean json = encoding == EncodingEnum.JSON;
+		Bundle single = new Bundle();
+		EntryLayout first = layout(encodeEntry(single, bundle.getEntry().get(0), parser), json);
+		if (first == null) {
+			return false;
+		}
+		String head = head(encodeEnvelope(bundle, parser), json);
+		if (head == null) {
+			return false;
+		}
+
+		Writer writer = new BufferedWriter(new OutputStreamWriter(opener.open(), StandardCharsets.UTF_8), bufferSize);
+		writer.write(head);
+		if (json) {
+			writer.write(',');
+			writer.write(first.opening);
+		}
+		writer.write(first.content);
+		for (int i = 1; i < bundle.getEntry().size(); i++) {
+			EntryLayout entry = layout(encodeEntry(single, bundle.getEntry().get(i), parser), json);
+			if (entry == null) {
+				throw new IllegalStateException("Unexpected encoding of Bundle entry " + i);
+			}
+			if (json) {
+				writer.write(',');
+			}
+			writer.write(entry.content);
+		}
+		writer.write(first.closing);
+		writer.flush();
+		return true;
+	}
+
+	private static String encodeEnvelope(Bundle bundle, IParser parser) {
+		List<BundleEntryComponent> entries = bundle.getEntry();
+		bundle.setEntry(new ArrayList<>());
+		try {
+			return parser.encodeResourceToString(bundle);
+		} finally {
+			bundle.setEntry(entries);
+		}
+	}
+
+	private static String encodeEntry(Bundle single, BundleEntryComponent entry, IParser parser) {
+		single.getEntry().clear();
+		single.getEntry().add(entry);
+		try {
+			return parser.encodeResourceToString(single);
+		} finally {
+			single.getEntry().clear();
+		}
+	}
+
+	/**
+	 * @return the envelope without its closing, or null if it does not have the expected shape
+	 */
+	static String head(String envelope, boolean json) {
+		int end = json ? envelope.lastIndexOf('}') : envelope.lastIndexOf(XML_END_TAG);
+		if (end < 0) {
+			return null;
+		}
+		return envelope.substring(0, trimEnd(envelope, end));
+	}
+
+	/**
+	 * Splits a single-entry Bundle into the part opening the entries, the entry and the part closing the Bundle.
+	 *
+	 * @return null if the encoded Bundle does not have the expected shape
+	 */
+	static EntryLayout layout(String encoded, boolean json) {
+		int start;
+		int end;
+		String opening = "";
+		if (json) {
+			int key = encoded.indexOf("\"entry\"");
+			int open = key < 0 ? -1 : encoded.indexOf('[', key);
+			int separator = key < 0 ? -1 : encoded.lastIndexOf(',', key);
+			end = encoded.lastIndexOf(']');
+			if (open < 0 || separator < 0 || end < open) {
+				return null;
+			}
+			opening = encoded.substring(separator + 1, open + 1);
+			start = open + 1;
+		} else {
+			int entry = encoded.indexOf("<entry");
+			end = encoded.lastIndexOf(XML_END_TAG);
+			if (entry < 0 || end < entry) {
+				return null;
+			}
+			start = encoded.lastIndexOf('>', entry) + 1;
+		}
+		int contentEnd = trimEnd(encoded, end);
+		return new EntryLayout(opening, encoded.substring(start, contentEnd), encoded.substring(contentEnd));
+	}
+
+	private static int trimEnd(String value, int end) {
+		while (end > 0 && Character.isWhitespace(value.charAt(end - 1))) {
+			end--;
+		}
+		return end;
+	}
+
+	static final class EntryLayout {
+		final String opening;
+		final String content;
+		final String closing;
+
+		EntryLayout(String opening, String content, String closing) {
+			this.opening = opening;
+			this.content = content;
+			this.closing = closing;
+		}
+	}
+}
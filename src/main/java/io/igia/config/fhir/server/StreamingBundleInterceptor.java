@@ -0,0 +1,122 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.RestfulServerUtils.ResponseEncoding;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+
+/**
+ * Writes search, history and paging Bundles with a {@link StreamingBundleEncoder} instead of
+ * letting the server encode them whole. {@link IgiaFhirRestfulServer} registers it so that it
+ * sees the response after every other interceptor. Bundles below the entry threshold, with a
+ * signature, requested as HTML or with a HEAD request are left to the server.
+ */
+public class StreamingBundleInterceptor extends InterceptorAdapter {
+
+	private final StreamingBundleEncoder encoder;
+	private final int minimumEntries;
+
+	private final LongAdder streamedCount = new LongAdder();
+	private final LongAdder streamedEntryCount = new LongAdder();
+
+	public StreamingBundleInterceptor(int minimumEntries, int bufferSize) {
+		this.encoder = new StreamingBundleEncoder(bufferSize);
+		this.minimumEntries = minimumEntries;
+	}
+
+	@Override
+	public boolean outgoingResponse(RequestDetails theRequestDetails, IBaseResource theResponseObject,
+			HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+		if (!(theResponseObject instanceof Bundle) || !isBundleOperation(theRequestDetails.getRestOperationType())
+				|| "HEAD".equals(theServletRequest.getMethod())) {
+			return true;
+		}
+		Bundle bundle = (Bundle) theResponseObject;
+		if (bundle.getEntry().size() < minimumEntries) {
+			return true;
+		}
+		ResponseEncoding responseEncoding = RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+		EncodingEnum encoding = responseEncoding == null ? null : responseEncoding.getEncoding();
+		if (encoding != EncodingEnum.JSON && encoding != EncodingEnum.XML) {
+			return true;
+		}
+		FhirContext fhirContext = theRequestDetails.getServer().getFhirContext();
+		IParser parser = RestfulServerUtils.getNewParser(fhirContext, fhirContext.getVersion().getVersion(), theRequestDetails);
+
+		boolean streamed;
+		try {
+			streamed = encoder.encode(bundle, parser, encoding, () -> {
+				for (Map.Entry<String, List<String>> header : theRequestDetails.getResponse().getHeaders().entrySet()) {
+					for (String value : header.getValue()) {
+						theServletResponse.addHeader(header.getKey(), value);
+					}
+				}
+				theServletResponse.setStatus(HttpServletResponse.SC_OK);
+				theServletResponse.setContentType(responseEncoding.getResourceContentType());
+				theServletResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+				return theServletResponse.getOutputStream();
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to write the Bundle", e);
+		}
+		if (!streamed) {
+			return true;
+		}
+		streamedCount.increment();
+		streamedEntryCount.add(bundle.getEntry().size());
+		return false;
+	}
+
+	public long getStreamedCount() {
+		return streamedCount.sum();
+	}
+
+	public long getStreamedEntryCount() {
+		return streamedEntryCount.sum();
+	}
+
+	private static boolean isBundleOperation(RestOperationTypeEnum operation) {
+		if (operation == null) {
+			return false;
+		}
+		switch (operation) {
+		case SEARCH_TYPE:
+		case SEARCH_SYSTEM:
+		case HISTORY_INSTANCE:
+		case HISTORY_TYPE:
+		case HISTORY_SYSTEM:
+		case GET_PAGE:
+			return true;
+		default:
+			return false;
+		}
+	}
+}
@@ -0,0 +1,324 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.PlatformManagedObject;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Watches FHIR requests running on virtual threads.
+ * <p>
+ * At startup the request components (interceptors, providers) are checked for synchronized
+ * methods, which pin the carrier thread while they block on Java versions before 24. At
+ * runtime, {@code jdk.VirtualThreadPinned} flight recorder events above the threshold are
+ * counted per first application frame, so the pinning hotspots show up in
+ * {@link #getPinningHotspots()}. Carrier thread figures come from the virtual thread scheduler
+ * MXBean when the runtime has it, and are otherwise estimated from the carrier thread states.
+ */
+public class VirtualThreadMonitor implements InitializingBean, DisposableBean {
+
+	static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+	private static final String CARRIER_THREAD_CLASS = "jdk.internal.misc.CarrierThread";
+
+	private final Logger log = LoggerFactory.getLogger(VirtualThreadMonitor.class);
+
+	private final Collection<?> requestComponents;
+	private final boolean pinningDetection;
+	private final Duration pinnedThreshold;
+
+	private final Map<String, LongAdder> pinningHotspots = new ConcurrentHashMap<>();
+	private final LongAdder pinnedCount = new LongAdder();
+	private final LongAdder pinnedNanos = new LongAdder();
+	private final List<String> synchronizedMethods = new ArrayList<>();
+
+	private final Object schedulerBean = schedulerBean();
+	private volatile AutoCloseable recordingStream;
+
+	public VirtualThreadMonitor(Collection<?> requestComponents, boolean pinningDetection, Duration pinnedThreshold) {
+		this.requestComponents = requestComponents == null ? Collections.emptyList() : requestComponents;
+		this.pinningDetection = pinningDetection;
+		this.pinnedThreshold = pinnedThreshold;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		for (Object component : requestComponents) {
+			findSynchronizedMethods(component.getClass());
+		}
+		for (String method : synchronizedMethods) {
+			log.warn("{} is synchronized and pins the carrier thread of a virtual thread while it blocks", method);
+		}
+		if (pinningDetection) {
+			startRecording();
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		AutoCloseable stream = recordingStream;
+		recordingStream = null;
+		if (stream != null) {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @return whether pinned virtual threads are being recorded
+	 */
+	public boolean isRecording() {
+		return recordingStream != null;
+	}
+
+	public long getPinnedCount() {
+		return pinnedCount.sum();
+	}
+
+	public Duration getPinnedTime() {
+		return Duration.ofNanos(pinnedNanos.sum());
+	}
+
+	/**
+	 * @return number of pinning events per application frame, most frequent first
+	 */
+	public Map<String, Long> getPinningHotspots() {
+		List<Map.Entry<String, LongAdder>> entries = new ArrayList<>(pinningHotspots.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()));
+		Map<String, Long> hotspots = new LinkedHashMap<>();
+		for (Map.Entry<String, LongAdder> entry : entries) {
+			hotspots.put(entry.getKey(), entry.getValue().sum());
+		}
+		return hotspots;
+	}
+
+	/**
+	 * @return synchronized methods of the request components, as {@code class#method}
+	 */
+	public List<String> getSynchronizedMethods() {
+		return Collections.unmodifiableList(synchronizedMethods);
+	}
+
+	public int getCarrierParallelism() {
+		Integer parallelism = schedulerValue("getParallelism");
+		if (parallelism != null) {
+			return parallelism;
+		}
+		return Integer.getInteger("jdk.virtualThreadScheduler.parallelism", Runtime.getRuntime().availableProcessors());
+	}
+
+	public int getCarrierPoolSize() {
+		Integer poolSize = schedulerValue("getPoolSize");
+		return poolSize != null ? poolSize : carrierThreads().size();
+	}
+
+	/**
+	 * @return virtual threads mounted on a carrier; without the scheduler MXBean, the carriers that are running or blocked
+	 */
+	public int getMountedVirtualThreadCount() {
+		Integer mounted = schedulerValue("getMountedVirtualThreadCount");
+		if (mounted != null) {
+			return mounted;
+		}
+		int busy = 0;
+		for (Thread carrier : carrierThreads()) {
+			Thread.State state = carrier.getState();
+			if (state == Thread.State.RUNNABLE || state == Thread.State.BLOCKED) {
+				busy++;
+			}
+		}
+		return busy;
+	}
+
+	/**
+	 * @return virtual threads waiting for a carrier, or -1 without the scheduler MXBean
+	 */
+	public long getQueuedVirtualThreadCount() {
+		Long queued = schedulerValue("getQueuedVirtualThreadCount");
+		return queued != null ? queued : -1;
+	}
+
+	/**
+	 * @return mounted virtual threads per carrier the scheduler may use, between 0 and 1
+	 */
+	public double getCarrierUtilization() {
+		int parallelism = getCarrierParallelism();
+		return parallelism > 0 ? Math.min(1.0, (double) getMountedVirtualThreadCount() / parallelism) : 0;
+	}
+
+	void recordPinned(String frame, Duration duration) {
+		pinnedCount.increment();
+		pinnedNanos.add(duration.toNanos());
+		LongAdder count = pinningHotspots.get(frame);
+		if (count == null) {
+			LongAdder created = new LongAdder();
+			count = pinningHotspots.putIfAbsent(frame, created);
+			if (count == null) {
+				count = created;
+				log.warn("Virtual thread pinned its carrier for {} ms at {}", duration.toMillis(), frame);
+			}
+		}
+		count.increment();
+	}
+
+	private void findSynchronizedMethods(Class<?> type) {
+		for (Class<?> current = type; current != null && !isPlatformClass(current.getName()); current = current.getSuperclass()) {
+			for (Method method : current.getDeclaredMethods()) {
+				String name = current.getName() + '#' + method.getName();
+				if (Modifier.isSynchronized(method.getModifiers()) && !synchronizedMethods.contains(name)) {
+					synchronizedMethods.add(name);
+				}
+			}
+		}
+	}
+
+	private void startRecording() {
+		try {
+			PinnedEventReader reader = new PinnedEventReader();
+			Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+			AutoCloseable stream = (AutoCloseable) streamClass.getConstructor().newInstance();
+			Object settings = streamClass.getMethod("enable", String.class).invoke(stream, PINNED_EVENT);
+			Class<?> settingsClass = Class.forName("jdk.jfr.EventSettings");
+			settingsClass.getMethod("withThreshold", Duration.class).invoke(settings, pinnedThreshold);
+			settingsClass.getMethod("withStackTrace").invoke(settings);
+			Consumer<Object> handler = event -> {
+				try {
+					recordPinned(reader.frame(event), reader.duration(event));
+				} catch (ReflectiveOperationException | RuntimeException e) {
+					log.debug("Unreadable {} event: {}", PINNED_EVENT, e.toString());
+				}
+			};
+			streamClass.getMethod("onEvent", String.class, Consumer.class).invoke(stream, PINNED_EVENT, handler);
+			streamClass.getMethod("startAsync").invoke(stream);
+			recordingStream = stream;
+			log.info("Recording virtual threads pinned for more than {} ms", pinnedThreshold.toMillis());
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			log.warn("Pinned virtual threads are not recorded, flight recorder streaming is unavailable: {}", e.toString());
+		}
+	}
+
+	private static List<Thread> carrierThreads() {
+		ThreadGroup root = Thread.currentThread().getThreadGroup();
+		while (root.getParent() != null) {
+			root = root.getParent();
+		}
+		Thread[] threads = new Thread[root.activeCount() + 16];
+		int count = root.enumerate(threads, true);
+		List<Thread> carriers = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			if (CARRIER_THREAD_CLASS.equals(threads[i].getClass().getName())) {
+				carriers.add(threads[i]);
+			}
+		}
+		return carriers;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object schedulerBean() {
+		try {
+			Class<? extends PlatformManagedObject> type = (Class<? extends PlatformManagedObject>) Class
+					.forName("jdk.management.VirtualThreadSchedulerMXBean");
+			return ManagementFactory.getPlatformMXBean(type);
+		} catch (ClassNotFoundException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T schedulerValue(String getter) {
+		if (schedulerBean == null) {
+			return null;
+		}
+		try {
+			return (T) Class.forName("jdk.management.VirtualThreadSchedulerMXBean").getMethod(getter).invoke(schedulerBean);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	static boolean isPlatformClass(String className) {
+		return className.startsWith("java.") || className.startsWith("javax.") || className.startsWith("jdk.")
+				|| className.startsWith("sun.");
+	}
+
+	/**
+	 * Reads the flight recorder event classes, which cannot be referenced while building for Java 8.
+	 */
+	private static final class PinnedEventReader {
+		private final Method getDuration;
+		private final Method getStackTrace;
+		private final Method getFrames;
+		private final Method getMethod;
+		private final Method getLineNumber;
+		private final Method getType;
+		private final Method getMethodName;
+		private final Method getClassName;
+
+		PinnedEventReader() throws ReflectiveOperationException {
+			Class<?> event = Class.forName("jdk.jfr.consumer.RecordedEvent");
+			Class<?> frame = Class.forName("jdk.jfr.consumer.RecordedFrame");
+			Class<?> method = Class.forName("jdk.jfr.consumer.RecordedMethod");
+			getDuration = event.getMethod("getDuration");
+			getStackTrace = event.getMethod("getStackTrace");
+			getFrames = Class.forName("jdk.jfr.consumer.RecordedStackTrace").getMethod("getFrames");
+			getMethod = frame.getMethod("getMethod");
+			getLineNumber = frame.getMethod("getLineNumber");
+			getType = method.getMethod("getType");
+			getMethodName = method.getMethod("getName");
+			getClassName = Class.forName("jdk.jfr.consumer.RecordedClass").getMethod("getName");
+		}
+
+		Duration duration(Object event) throws ReflectiveOperationException {
+			return (Duration) getDuration.invoke(event);
+		}
+
+		/**
+		 * @return the first frame outside the JDK, or the top frame if there is none
+		 */
+		String frame(Object event) throws ReflectiveOperationException {
+			Object stackTrace = getStackTrace.invoke(event);
+			if (stackTrace == null) {
+				return "unknown";
+			}
+			String top = null;
+			for (Object frame : (List<?>) getFrames.invoke(stackTrace)) {
+				Object method = getMethod.invoke(frame);
+				String className = (String) getClassName.invoke(getType.invoke(method));
+				String name = className + '.' + getMethodName.invoke(method) + ':' + getLineNumber.invoke(frame);
+				if (!isPlatformClass(className)) {
+					return name;
+				}
+				if (top == null) {
+					top = name;
+				}
+			}
+			return top == null ? "unknown" : top;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.audit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+import io.igia.config.fhir.audit.RingBufferAuditSink.OverflowPolicy;
+
+public class RingBufferAuditSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<AuthorizationDecision> written = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void writesAllDecisionsFromConcurrentThreads() throws Exception {
+        RingBufferAuditSink sink = new RingBufferAuditSink(written::addAll, 64, 16, Duration.ofMillis(10),
+                OverflowPolicy.BLOCK, Duration.ofSeconds(5));
+        sink.afterPropertiesSet();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 1000; i++) {
+            String id = "Patient/" + i;
+            executor.execute(() -> sink.record(decision(id)));
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        sink.destroy();
+
+        assertThat(written).hasSize(1000);
+        assertThat(sink.getRecordedCount()).isEqualTo(1000);
+        assertThat(sink.getWrittenCount()).isEqualTo(1000);
+        assertThat(sink.getDroppedCount()).isZero();
+        assertThat(sink.getPendingCount()).isZero();
+    }
+
+    @Test
+    public void dropsWhenFull() {
+        RingBufferAuditSink sink = new RingBufferAuditSink(written::addAll, 3, 16, Duration.ofMillis(10),
+                OverflowPolicy.DROP, Duration.ZERO);
+
+        for (int i = 0; i < 6; i++) {
+            sink.record(decision("Patient/" + i));
+        }
+
+        assertThat(sink.getCapacity()).isEqualTo(4);
+        assertThat(sink.getRecordedCount()).isEqualTo(4);
+        assertThat(sink.getDroppedCount()).isEqualTo(2);
+        assertThat(sink.getPendingCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void countsWriterFailures() throws Exception {
+        RingBufferAuditSink sink = new RingBufferAuditSink(batch -> {
+            throw new IOException("disk full");
+        }, 16, 16, Duration.ofMillis(10), OverflowPolicy.DROP, Duration.ZERO);
+        sink.afterPropertiesSet();
+        sink.record(decision("Patient/1"));
+        sink.destroy();
+
+        assertThat(sink.getWriteFailureCount()).isEqualTo(1);
+        assertThat(sink.getWrittenCount()).isZero();
+    }
+
+    @Test
+    public void writerIsClosedAfterTheLastBatch() throws Exception {
+        List<String> events = new CopyOnWriteArrayList<>();
+        AuditRecordWriter writer = new AuditRecordWriter() {
+            @Override
+            public void write(List<AuthorizationDecision> batch) throws IOException {
+                events.add("write");
+            }
+
+            @Override
+            public void close() {
+                events.add("close");
+            }
+        };
+        RingBufferAuditSink sink = new RingBufferAuditSink(writer, 16, 1, Duration.ofMillis(10),
+                OverflowPolicy.DROP, Duration.ZERO);
+        sink.afterPropertiesSet();
+        sink.record(decision("Patient/1"));
+        sink.record(decision("Patient/2"));
+        sink.destroy();
+
+        assertThat(events).containsExactly("write", "write", "close");
+    }
+
+    @Test
+    public void rollingFileWriterWritesJsonLinesAndRolls() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        RollingFileAuditRecordWriter writer = new RollingFileAuditRecordWriter(directory, "audit", 1, 2);
+
+        for (int i = 0; i < 4; i++) {
+            writer.write(Collections.singletonList(decision("Patient/" + i)));
+        }
+        writer.close();
+
+        assertThat(Files.exists(writer.getFile(1))).isTrue();
+        assertThat(Files.exists(writer.getFile(2))).isTrue();
+        assertThat(Files.exists(writer.getFile(3))).isFalse();
+        List<String> lines = Files.readAllLines(writer.getFile(1));
+        assertThat(lines).hasSize(1);
+        assertThat(lines.get(0)).contains("\"outcome\":\"ALLOW\"", "\"resource\":\"Patient/3\"",
+                "\"scopes\":[\"patient/*.read\"]", "\"rule\":\"rule\"");
+    }
+
+    private static AuthorizationDecision decision(String resource) {
+        return new AuthorizationDecision(System.currentTimeMillis(), "user", "client", "123",
+                Collections.singleton("patient/*.read"), RestOperationTypeEnum.READ, resource, PolicyEnum.ALLOW, "rule");
+    }
+}
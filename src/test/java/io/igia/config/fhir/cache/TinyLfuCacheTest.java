@@ -0,0 +1,84 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class TinyLfuCacheTest {
+
+    private final TinyLfuCache<String, byte[]> cache = new TinyLfuCache<>(1000, value -> value.length);
+
+    @Test
+    public void hitAndMissAreCounted() {
+        cache.put("a", new byte[10]);
+
+        assertThat(cache.get("a")).hasSize(10);
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void weightStaysWithinBudget() {
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, new byte[100]);
+        }
+
+        assertThat(cache.getWeight()).isLessThanOrEqualTo(1000);
+        assertThat(cache.size()).isLessThanOrEqualTo(10);
+        assertThat(cache.getEvictionCount()).isEqualTo(100 - cache.size());
+    }
+
+    @Test
+    public void frequentEntriesSurviveOneOffEntries() {
+        for (int i = 0; i < 8; i++) {
+            cache.put("hot" + i, new byte[100]);
+        }
+        for (int i = 0; i < 50; i++) {
+            for (int j = 0; j < 8; j++) {
+                cache.get("hot" + j);
+            }
+            cache.get("cold" + i);
+            cache.put("cold" + i, new byte[100]);
+        }
+
+        for (int i = 0; i < 8; i++) {
+            assertThat(cache.get("hot" + i)).as("hot" + i).isNotNull();
+        }
+    }
+
+    @Test
+    public void heavierValuesThanTheCacheAreRejected() {
+        cache.put("a", new byte[10]);
+        cache.put("a", new byte[5000]);
+
+        assertThat(cache.get("a")).isNull();
+        assertThat(cache.getRejectionCount()).isEqualTo(1);
+        assertThat(cache.getWeight()).isZero();
+    }
+
+    @Test
+    public void invalidateIfRemovesMatchingEntries() {
+        cache.put("patient/1", new byte[10]);
+        cache.put("patient/2", new byte[10]);
+        cache.put("organization/1", new byte[10]);
+
+        cache.invalidateIf(key -> key.startsWith("patient/"));
+
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.getWeight()).isEqualTo(10);
+        assertThat(cache.get("organization/1")).isNotNull();
+    }
+}
@@ -12,6 +12,8 @@
  */
 package io.igia.config.fhir.config;
 
+import static org.assertj.core.api.Assertions.assertThat;
+
 import java.util.List;
 import java.util.Map;
 
@@ -19,13 +21,16 @@ import org.hl7.fhir.dstu3.model.Patient;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.junit.Test;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
 import org.springframework.boot.autoconfigure.AutoConfigurations;
 import org.springframework.boot.autoconfigure.security.oauth2.OAuth2AutoConfiguration;
 import org.springframework.boot.autoconfigure.security.oauth2.resource.AuthoritiesExtractor;
 import org.springframework.boot.autoconfigure.security.oauth2.resource.PrincipalExtractor;
 import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.client.OAuth2ClientContext;
 import org.springframework.security.oauth2.client.OAuth2RestTemplate;
@@ -42,7 +47,12 @@ import ca.uhn.fhir.rest.server.interceptor.CorsInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
 import io.igia.config.fhir.IgiaFhirAutoConfiguration;
+import io.igia.config.fhir.audit.AuditEventRecordWriter;
+import io.igia.config.fhir.audit.AuditRecordWriter;
+import io.igia.config.fhir.audit.AuditSink;
 import io.igia.config.fhir.interceptor.ScopeBasedAuthorizationInterceptor;
+import io.igia.config.fhir.rest.IgiaFhirController;
+import io.igia.config.fhir.rest.SmartConfigurationController;
 import io.igia.config.fhir.server.FhirRestfulServerCustomizer;
 
 public class IgiaFhirAutoConfigurationTest {
@@ -220,6 +230,94 @@ public class IgiaFhirAutoConfigurationTest {
             });
     }
 
+    @Test
+    public void auditEventRecordWriterTest() {
+        this.contextRunner
+            .withUserConfiguration(PatientResourceProviderConfig.class)
+            .withPropertyValues(
+                    "security.oauth2.resource.jwk.key-set-uri:http://jwk-set-uri.com",
+                    "hapi.fhir.authorization.audit.enabled:true",
+                    "hapi.fhir.authorization.audit.writer:audit-event",
+                    "hapi.fhir.authorization.audit.server-url:http://audit.example.com/fhir")
+            .withConfiguration(AutoConfigurations.of(OAuth2AutoConfiguration.class))
+            .run((context) -> {
+                AuditRecordWriter writer = context.getBean(AuditRecordWriter.class);
+                Assert.isInstanceOf(AuditEventRecordWriter.class, writer, "audit-event writer must be an AuditEventRecordWriter");
+                context.getBean(AuditSink.class);
+            });
+    }
+
+    @Test
+    public void servletRegistrationTest() {
+        this.contextRunner
+            .withUserConfiguration(PatientResourceProviderConfig.class)
+            .withUserConfiguration(ControllerConfig.class)
+            .withPropertyValues(
+                    "security.oauth2.resource.jwk.key-set-uri:http://jwk-set-uri.com",
+                    "hspc.platform.api.security.mode:secured",
+                    "hapi.fhir.server.registration:servlet",
+                    "hapi.fhir.server.path:/api/*")
+            .withConfiguration(AutoConfigurations.of(OAuth2AutoConfiguration.class))
+            .run((context) -> {
+                assertThat(((ServletRegistrationBean<?>) context.getBean("igiaFhirRestfulServerRegistration")).getUrlMappings())
+                        .containsExactly("/api/*");
+                assertThat(((ServletRegistrationBean<?>) context.getBean("smartConfigurationServletRegistration")).getUrlMappings())
+                        .containsExactly("/api/.well-known/smart-configuration");
+                assertThat(context.getBeanNamesForType(IgiaFhirController.class, true, false)).isEmpty();
+            });
+    }
+
+    @Test
+    public void servletRegistrationTrimsTrailingSlashTest() {
+        this.contextRunner
+            .withUserConfiguration(PatientResourceProviderConfig.class)
+            .withPropertyValues(
+                    "security.oauth2.resource.jwk.key-set-uri:http://jwk-set-uri.com",
+                    "hapi.fhir.server.registration:servlet",
+                    "hapi.fhir.server.path:/api/")
+            .withConfiguration(AutoConfigurations.of(OAuth2AutoConfiguration.class))
+            .run((context) -> {
+                assertThat(((ServletRegistrationBean<?>) context.getBean("igiaFhirRestfulServerRegistration")).getUrlMappings())
+                        .containsExactly("/api/*");
+                assertThat(context.containsBean("smartConfigurationServletRegistration")).isFalse();
+            });
+    }
+
+    @Test
+    public void controllerRegistrationDefaultTest() {
+        this.contextRunner
+            .withUserConfiguration(PatientResourceProviderConfig.class)
+            .withUserConfiguration(ControllerConfig.class)
+            .withPropertyValues(
+                    "security.oauth2.resource.jwk.key-set-uri:http://jwk-set-uri.com",
+                    "hspc.platform.api.security.mode:secured")
+            .withConfiguration(AutoConfigurations.of(OAuth2AutoConfiguration.class))
+            .run((context) -> {
+                assertThat(context.containsBean("igiaFhirRestfulServerRegistration")).isFalse();
+                assertThat(context.containsBean("smartConfigurationServletRegistration")).isFalse();
+                assertThat(context.getBeanNamesForType(IgiaFhirController.class, true, false)).hasSize(1);
+            });
+    }
+
+    /**
+     * The controllers as component scanning finds them, with the FHIR controller left
+     * uninitialized since its servlet needs a servlet context.
+     */
+    @Configuration
+    @Import({ IgiaFhirController.class, SmartConfigurationController.class })
+    protected static class ControllerConfig {
+
+        @Bean
+        public static BeanFactoryPostProcessor lazyFhirController() {
+            return beanFactory -> {
+                for (String name : beanFactory.getBeanNamesForType(IgiaFhirController.class, true, false)) {
+                    beanFactory.getBeanDefinition(name).setLazyInit(true);
+                }
+            };
+        }
+
+    }
+
     @Configuration
     protected static class PatientResourceProviderConfig {
 
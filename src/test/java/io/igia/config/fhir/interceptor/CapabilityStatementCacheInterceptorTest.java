@@ -0,0 +1,136 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.hl7.fhir.dstu3.model.CapabilityStatement;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IServerConformanceProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+
+public class CapabilityStatementCacheInterceptorTest {
+
+    private final CapabilityStatementCacheInterceptor interceptor = new CapabilityStatementCacheInterceptor(Duration.ofMinutes(10));
+    private IServerConformanceProvider<CapabilityStatement> conformanceProvider;
+    private RequestDetails requestDetails;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        CapabilityStatement capabilityStatement = new CapabilityStatement();
+        capabilityStatement.setPublisher("igia");
+        conformanceProvider = mock(IServerConformanceProvider.class);
+        when(conformanceProvider.getServerConformance(any(HttpServletRequest.class))).thenReturn(capabilityStatement);
+
+        RestfulServer server = new RestfulServer(FhirContext.forDstu3());
+        server.setDefaultResponseEncoding(EncodingEnum.JSON);
+        server.setServerConformanceProvider(conformanceProvider);
+
+        requestDetails = mock(RequestDetails.class);
+        when(requestDetails.getRestOperationType()).thenReturn(RestOperationTypeEnum.METADATA);
+        when(requestDetails.getServer()).thenReturn(server);
+        when(requestDetails.getFhirServerBase()).thenReturn("http://localhost/api");
+    }
+
+    @Test
+    public void servesSerializedStatementOncePerEncoding() throws Exception {
+        MockHttpServletResponse first = get(new MockHttpServletRequest("GET", "/api/metadata"));
+        MockHttpServletResponse second = get(new MockHttpServletRequest("GET", "/api/metadata"));
+
+        assertThat(first.getStatus()).isEqualTo(200);
+        assertThat(first.getContentType()).startsWith("application/fhir+json");
+        assertThat(first.getContentAsString()).contains("\"publisher\":\"igia\"");
+        assertThat(first.getHeader("ETag")).isNotNull().isEqualTo(second.getHeader("ETag"));
+        assertThat(first.getHeader("Cache-Control")).isEqualTo("public, max-age=600");
+        assertThat(second.getContentAsByteArray()).isEqualTo(first.getContentAsByteArray());
+        verify(conformanceProvider, times(1)).getServerConformance(any(HttpServletRequest.class));
+
+        MockHttpServletRequest xml = new MockHttpServletRequest("GET", "/api/metadata");
+        xml.addParameter("_format", "xml");
+        assertThat(get(xml).getContentType()).startsWith("application/fhir+xml");
+        assertThat(interceptor.getMissCount()).isEqualTo(2);
+        assertThat(interceptor.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void negotiatesEncodingWithQualityValues() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/metadata");
+        request.addHeader("Accept", "application/fhir+xml;q=0.5, application/fhir+json");
+        assertThat(get(request).getContentType()).startsWith("application/fhir+json");
+
+        request = new MockHttpServletRequest("GET", "/api/metadata");
+        request.addHeader("Accept", "application/fhir+json;q=0.5, application/fhir+xml");
+        assertThat(get(request).getContentType()).startsWith("application/fhir+xml");
+    }
+
+    @Test
+    public void answersMatchingIfNoneMatchWithNotModified() throws Exception {
+        String etag = get(new MockHttpServletRequest("GET", "/api/metadata")).getHeader("ETag");
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/metadata");
+        request.addHeader("If-None-Match", etag);
+        MockHttpServletResponse response = get(request);
+
+        assertThat(response.getStatus()).isEqualTo(304);
+        assertThat(response.getContentAsByteArray()).isEmpty();
+        assertThat(interceptor.getNotModifiedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void leavesHtmlAndSummaryRequestsToTheServer() {
+        MockHttpServletRequest browser = new MockHttpServletRequest("GET", "/api/metadata");
+        browser.addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        MockHttpServletRequest summary = new MockHttpServletRequest("GET", "/api/metadata");
+        summary.addParameter("_summary", "true");
+
+        assertThat(interceptor.incomingRequestPostProcessed(requestDetails, browser, new MockHttpServletResponse())).isTrue();
+        assertThat(interceptor.incomingRequestPostProcessed(requestDetails, summary, new MockHttpServletResponse())).isTrue();
+    }
+
+    @Test
+    public void invalidateSerializesAgain() {
+        get(new MockHttpServletRequest("GET", "/api/metadata"));
+        interceptor.invalidate();
+        get(new MockHttpServletRequest("GET", "/api/metadata"));
+
+        verify(conformanceProvider, times(2)).getServerConformance(any(HttpServletRequest.class));
+    }
+
+    private MockHttpServletResponse get(MockHttpServletRequest request) {
+        when(requestDetails.getParameters()).thenReturn(request.getParameterMap());
+        when(requestDetails.getHeaders(any())).thenAnswer(invocation -> Collections.list(request.getHeaders(invocation.getArgument(0))));
+        when(requestDetails.getHeader(any())).thenAnswer(invocation -> request.getHeader(invocation.getArgument(0)));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertThat(interceptor.incomingRequestPostProcessed(requestDetails, request, response)).isFalse();
+        return response;
+    }
+}
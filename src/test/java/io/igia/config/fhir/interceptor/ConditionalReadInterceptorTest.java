@@ -0,0 +1,133 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Collections;
+import java.util.Date;
+
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationFlagsEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.igia.config.fhir.provider.ResourceVersion;
+import io.igia.config.fhir.provider.ResourceVersionLookup;
+
+public class ConditionalReadInterceptorTest {
+
+    private static final Date LAST_UPDATED = new Date(1_500_000_000_000L);
+
+    private final FhirContext fhirContext = FhirContext.forDstu3();
+    private final RestfulServer server = new RestfulServer(fhirContext);
+    private final ConditionalReadInterceptor interceptor = new ConditionalReadInterceptor(fhirContext,
+            Collections.singletonList(new PatientProvider()));
+
+    @Test
+    public void answersMatchingETagWithNotModified() {
+        ActionRequestDetails request = read("Patient/1", "If-None-Match", "W/\"3\"");
+
+        assertThatThrownBy(() -> interceptor.incomingRequestPreHandled(RestOperationTypeEnum.READ, request))
+                .isInstanceOf(NotModifiedException.class)
+                .satisfies(e -> assertThat(((NotModifiedException) e).getResponseHeaders().get("ETag"))
+                        .containsExactly("W/\"3\""));
+        assertThat(interceptor.getNotModifiedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void answersUnchangedSinceWithNotModified() {
+        ActionRequestDetails request = read("Patient/1", "If-Modified-Since", "Fri, 14 Jul 2017 02:40:00 GMT");
+
+        assertThatThrownBy(() -> interceptor.incomingRequestPreHandled(RestOperationTypeEnum.READ, request))
+                .isInstanceOf(NotModifiedException.class);
+    }
+
+    @Test
+    public void letsChangedAndUnknownResourcesBeRead() {
+        interceptor.incomingRequestPreHandled(RestOperationTypeEnum.READ, read("Patient/1", "If-None-Match", "W/\"2\""));
+        interceptor.incomingRequestPreHandled(RestOperationTypeEnum.READ,
+                read("Patient/1", "If-Modified-Since", "Fri, 14 Jul 2017 02:39:59 GMT"));
+        interceptor.incomingRequestPreHandled(RestOperationTypeEnum.READ, read("Patient/404", "If-None-Match", "W/\"3\""));
+
+        assertThat(interceptor.getLookupCount()).isEqualTo(3);
+        assertThat(interceptor.getNotModifiedCount()).isZero();
+    }
+
+    @Test
+    public void skipsUnconditionalReadsAndOtherTypes() {
+        interceptor.incomingRequestPreHandled(RestOperationTypeEnum.READ, read("Patient/1", "Accept", "application/fhir+json"));
+        interceptor.incomingRequestPreHandled(RestOperationTypeEnum.READ, read("Observation/1", "If-None-Match", "W/\"3\""));
+        interceptor.incomingRequestPreHandled(RestOperationTypeEnum.VREAD, read("Patient/1", "If-None-Match", "W/\"3\""));
+
+        assertThat(interceptor.getLookupCount()).isZero();
+    }
+
+    @Test
+    public void leavesReadsDecidedOnLoadedResourceToProvider() {
+        AuthorizationInterceptor authorization = new AuthorizationInterceptor();
+        authorization.setFlags(AuthorizationFlagsEnum.NO_NOT_PROACTIVELY_BLOCK_COMPARTMENT_READ_ACCESS);
+        server.registerInterceptor(authorization);
+
+        interceptor.incomingRequestPreHandled(RestOperationTypeEnum.READ, read("Patient/1", "If-None-Match", "*"));
+
+        assertThat(interceptor.getLookupCount()).isZero();
+        assertThat(interceptor.getNotModifiedCount()).isZero();
+    }
+
+    @Test
+    public void parsesEntityTags() {
+        assertThat(ConditionalReadInterceptor.matches("\"3\"", "3")).isTrue();
+        assertThat(ConditionalReadInterceptor.matches("W/\"1\", W/\"3\"", "3")).isTrue();
+        assertThat(ConditionalReadInterceptor.matches("*", "3")).isTrue();
+        assertThat(ConditionalReadInterceptor.matches("W/\"31\"", "3")).isFalse();
+    }
+
+    private ActionRequestDetails read(String id, String header, String value) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/" + id);
+        request.addHeader(header, value);
+        IdType idType = new IdType(id);
+        ServletRequestDetails details = new ServletRequestDetails();
+        details.setServer(server);
+        details.setServletRequest(request);
+        details.setRestOperationType(RestOperationTypeEnum.READ);
+        details.setResourceName(idType.getResourceType());
+        details.setId(idType);
+        return new ActionRequestDetails(details);
+    }
+
+    static class PatientProvider implements IResourceProvider, ResourceVersionLookup {
+
+        @Override
+        public Class<? extends IBaseResource> getResourceType() {
+            return Patient.class;
+        }
+
+        @Override
+        public ResourceVersion getCurrentVersion(IIdType theId) {
+            return "1".equals(theId.getIdPart()) ? new ResourceVersion("3", LAST_UPDATED) : null;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.Encounter;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.ResourceBinding;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.method.IParameter;
+import ca.uhn.fhir.rest.server.method.SearchMethodBinding;
+import ca.uhn.fhir.rest.server.method.SearchParameter;
+import io.igia.config.fhir.interceptor.VerifiedTokenCache.VerifiedToken;
+
+public class PatientCompartmentDefinitionsTest {
+
+    private final ResourceTypeRegistry registry = new ResourceTypeRegistry(FhirContext.forDstu3());
+    private final PatientCompartmentDefinitions definitions = new PatientCompartmentDefinitions(registry);
+
+    @After
+    public void clearSecurityContext() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void prefersPatientSearchParameter() {
+        assertThat(definitions.getSearchParameter(Observation.class)).isEqualTo("patient");
+        assertThat(definitions.getSearchParameter(Encounter.class)).isEqualTo("patient");
+        assertThat(definitions.getSearchParameterValue("patient", "123")).isEqualTo("Patient/123");
+    }
+
+    @Test
+    public void patientIsNarrowedById() {
+        assertThat(definitions.getSearchParameter(Patient.class)).isEqualTo("_id");
+        assertThat(definitions.getSearchParameterValue("_id", "123")).isEqualTo("123");
+    }
+
+    @Test
+    public void typeOutsideCompartmentHasNoSearchParameter() {
+        assertThat(definitions.getSearchParameter(Organization.class)).isNull();
+    }
+
+    @Test
+    public void listsAllCompartmentSearchParameters() {
+        assertThat(definitions.getSearchParameters(Observation.class)).contains("patient", "subject", "performer");
+        assertThat(definitions.getSearchParameters(Patient.class)).containsExactly("_id");
+        assertThat(definitions.getSearchParameters(Organization.class)).isEmpty();
+    }
+
+    @Test
+    public void observationSubjectMakesMember() {
+        Observation observation = new Observation();
+        observation.setSubject(new Reference("Patient/123"));
+
+        assertThat(definitions.isMember(observation, "123")).isTrue();
+        assertThat(definitions.isMember(observation, "456")).isFalse();
+    }
+
+    @Test
+    public void nestedReferencePathMakesMember() {
+        Encounter encounter = new Encounter();
+        encounter.addParticipant().setIndividual(new Reference("Practitioner/1"));
+        encounter.addParticipant().setIndividual(new Reference("Patient/123"));
+
+        assertThat(definitions.isMember(encounter, "123")).isTrue();
+    }
+
+    @Test
+    public void patientIsMemberOfOwnCompartment() {
+        Patient patient = new Patient();
+        patient.setId("Patient/123");
+
+        assertThat(definitions.isMember(patient, "123")).isTrue();
+        assertThat(definitions.isMember(new Organization(), "123")).isFalse();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void patientScopedSearchIsNarrowed() {
+        RequestDetails request = searchRequest("Observation", "code", "patient");
+
+        interceptorWithScopes("patient/Observation.read").narrowSearchToPatientCompartment(request);
+
+        ArgumentCaptor<Map<String, String[]>> parameters = ArgumentCaptor.forClass(Map.class);
+        verify(request).setParameters(parameters.capture());
+        assertThat(parameters.getValue().get("patient")).containsExactly("Patient/123");
+        assertThat(parameters.getValue()).containsKey("code");
+    }
+
+    @Test
+    public void userScopedSearchIsNotNarrowed() {
+        RequestDetails request = searchRequest("Observation", "code", "patient");
+
+        interceptorWithScopes("patient/*.read", "user/Observation.read").narrowSearchToPatientCompartment(request);
+
+        verify(request, never()).setParameters(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void onlyOneParameterOfMultiParameterCompartmentIsAdded() {
+        RequestDetails request = searchRequest("Observation", "code", "patient", "subject", "performer");
+
+        interceptorWithScopes("patient/Observation.read").narrowSearchToPatientCompartment(request);
+
+        ArgumentCaptor<Map<String, String[]>> parameters = ArgumentCaptor.forClass(Map.class);
+        verify(request).setParameters(parameters.capture());
+        assertThat(parameters.getValue()).containsOnlyKeys("code", "patient");
+    }
+
+    @Test
+    public void searchIsNotNarrowedWhenBoundMethodLacksParameter() {
+        RequestDetails request = searchRequest("Observation", "code");
+
+        interceptorWithScopes("patient/Observation.read").narrowSearchToPatientCompartment(request);
+
+        verify(request, never()).setParameters(any());
+    }
+
+    private RequestDetails searchRequest(String resourceName, String... methodParameters) {
+        List<IParameter> parameters = new ArrayList<>();
+        for (String name : methodParameters) {
+            parameters.add(new SearchParameter(name, false));
+        }
+        SearchMethodBinding method = mock(SearchMethodBinding.class);
+        when(method.getParameters()).thenReturn(parameters);
+        ResourceBinding binding = mock(ResourceBinding.class);
+        when(binding.getResourceName()).thenReturn(resourceName);
+        doReturn(method).when(binding).getMethod(any());
+        RestfulServer server = mock(RestfulServer.class);
+        when(server.getResourceBindings()).thenReturn(Collections.singletonList(binding));
+
+        RequestDetails request = mock(RequestDetails.class);
+        when(request.getServer()).thenReturn(server);
+        when(request.getResourceName()).thenReturn(resourceName);
+        when(request.getParameters()).thenReturn(Collections.singletonMap("code", new String[] { "1234-5" }));
+        return request;
+    }
+
+    private ScopeBasedAuthorizationInterceptor interceptorWithScopes(String... scopes) {
+        SecurityContextHolder.getContext().setAuthentication(mock(OAuth2Authentication.class));
+        OAuth2RestTemplate restTemplate = mock(OAuth2RestTemplate.class, RETURNS_DEEP_STUBS);
+        when(restTemplate.getOAuth2ClientContext().getAccessToken().getValue()).thenReturn("token");
+
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken("token");
+        accessToken.setScope(new HashSet<>(Arrays.asList(scopes)));
+        VerifiedToken token = new VerifiedToken(accessToken, "123", null, null);
+        return new ScopeBasedAuthorizationInterceptor(null, restTemplate, registry) {
+            @Override
+            protected VerifiedToken readVerifiedToken(String tokenValue) {
+                return token;
+            }
+        };
+    }
+}
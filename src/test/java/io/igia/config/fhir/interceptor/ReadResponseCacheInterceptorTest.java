@@ -0,0 +1,239 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+public class ReadResponseCacheInterceptorTest {
+
+    private static final String BODY = "{\"resourceType\":\"Patient\",\"id\":\"1\"}";
+
+    private final RestfulServer server = new RestfulServer(FhirContext.forDstu3());
+    private final ReadResponseCacheInterceptor interceptor = new ReadResponseCacheInterceptor(1_000_000, 10_000,
+            Collections.emptyList());
+
+    public ReadResponseCacheInterceptorTest() {
+        server.setDefaultResponseEncoding(EncodingEnum.JSON);
+    }
+
+    @Test
+    public void servesSecondReadFromCache() throws IOException {
+        read(RestOperationTypeEnum.READ, "Patient/1");
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ServletRequestDetails details = details(RestOperationTypeEnum.READ, "Patient/1", response);
+
+        assertThat(interceptor.incomingRequestPostProcessed(details, details.getServletRequest(), response)).isFalse();
+        assertThat(response.getContentAsString()).isEqualTo(BODY);
+        assertThat(response.getHeader("ETag")).isEqualTo("W/\"3\"");
+        assertThat(response.getContentType()).startsWith("application/fhir+json");
+        assertThat(interceptor.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void storesReadCompressedByCompressionInterceptor() throws IOException {
+        ResponseCompressionInterceptor compression = new ResponseCompressionInterceptor(16, 6, 2);
+        MockHttpServletResponse first = new MockHttpServletResponse();
+        ServletRequestDetails read = compressedDetails(compression, first);
+        assertThat(interceptor.incomingRequestPostProcessed(read, read.getServletRequest(), read.getServletResponse()))
+                .isTrue();
+        complete(read);
+        ResponseCompressionInterceptor.finish(read.getServletRequest());
+
+        assertThat(first.getHeader("Content-Encoding")).isEqualTo("gzip");
+        assertThat(interceptor.getStoredCount()).isEqualTo(1);
+
+        MockHttpServletResponse second = new MockHttpServletResponse();
+        ServletRequestDetails hit = compressedDetails(compression, second);
+        assertThat(interceptor.incomingRequestPostProcessed(hit, hit.getServletRequest(), hit.getServletResponse()))
+                .isFalse();
+        ResponseCompressionInterceptor.finish(hit.getServletRequest());
+
+        assertThat(second.getHeader("Content-Encoding")).isEqualTo("gzip");
+        assertThat(inflate(second.getContentAsByteArray())).isEqualTo(BODY);
+        assertThat(interceptor.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void keysBySummaryAndVersion() throws IOException {
+        read(RestOperationTypeEnum.READ, "Patient/1");
+
+        assertThat(lookup(RestOperationTypeEnum.VREAD, "Patient/1/_history/3")).isTrue();
+        ServletRequestDetails summary = details(RestOperationTypeEnum.READ, "Patient/1", new MockHttpServletResponse());
+        summary.setParameters(parameters("_summary", "true"));
+        assertThat(interceptor.incomingRequestPostProcessed(summary, summary.getServletRequest(),
+                summary.getServletResponse())).isTrue();
+    }
+
+    @Test
+    public void authorizesCachedResource() throws IOException {
+        read(RestOperationTypeEnum.READ, "Patient/1");
+        server.registerInterceptor(new AuthorizationInterceptor() {
+            @Override
+            public List<IAuthRule> buildRuleList(RequestDetails theRequestDetails) {
+                return new RuleBuilder().denyAll("no access").build();
+            }
+        });
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ServletRequestDetails details = details(RestOperationTypeEnum.READ, "Patient/1", response);
+
+        assertThatThrownBy(() -> interceptor.incomingRequestPostProcessed(details, details.getServletRequest(), response))
+                .isInstanceOf(ForbiddenOperationException.class);
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    public void updateDropsReadsButKeepsVersionedReads() throws IOException {
+        read(RestOperationTypeEnum.READ, "Patient/1");
+        read(RestOperationTypeEnum.VREAD, "Patient/1/_history/3");
+        read(RestOperationTypeEnum.READ, "Patient/2");
+
+        ServletRequestDetails update = details(RestOperationTypeEnum.UPDATE, "Patient/1", new MockHttpServletResponse());
+        interceptor.incomingRequestPostProcessed(update, update.getServletRequest(), update.getServletResponse());
+
+        assertThat(lookup(RestOperationTypeEnum.READ, "Patient/1")).isTrue();
+        assertThat(lookup(RestOperationTypeEnum.VREAD, "Patient/1/_history/3")).isFalse();
+        assertThat(lookup(RestOperationTypeEnum.READ, "Patient/2")).isFalse();
+        assertThat(interceptor.getInvalidationCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void doesNotStoreReadOverlappingUpdate() throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ServletRequestDetails read = details(RestOperationTypeEnum.READ, "Patient/1", response);
+        interceptor.incomingRequestPostProcessed(read, read.getServletRequest(), response);
+
+        ServletRequestDetails update = details(RestOperationTypeEnum.DELETE, "Patient/1", new MockHttpServletResponse());
+        interceptor.incomingRequestPostProcessed(update, update.getServletRequest(), update.getServletResponse());
+        complete(read);
+
+        assertThat(interceptor.size()).isZero();
+    }
+
+    @Test
+    public void leavesOtherParametersAndConditionalReadsToServer() {
+        ServletRequestDetails count = details(RestOperationTypeEnum.READ, "Patient/1", new MockHttpServletResponse());
+        count.setParameters(parameters("_include", "Patient:organization"));
+        ServletRequestDetails conditional = details(RestOperationTypeEnum.READ, "Patient/1", new MockHttpServletResponse());
+        ((MockHttpServletRequest) conditional.getServletRequest()).addHeader("If-None-Match", "W/\"3\"");
+
+        assertThat(interceptor.key(count, count.getServletRequest())).isNull();
+        assertThat(interceptor.key(conditional, conditional.getServletRequest())).isNull();
+    }
+
+    /**
+     * @return true if the request was left to the server
+     */
+    private boolean lookup(RestOperationTypeEnum operation, String id) {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ServletRequestDetails details = details(operation, id, response);
+        return interceptor.incomingRequestPostProcessed(details, details.getServletRequest(), response);
+    }
+
+    private void read(RestOperationTypeEnum operation, String id) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ServletRequestDetails details = details(operation, id, response);
+        assertThat(interceptor.incomingRequestPostProcessed(details, details.getServletRequest(), response)).isTrue();
+        complete(details);
+    }
+
+    /**
+     * Write the response as the server would.
+     */
+    private void complete(ServletRequestDetails details) throws IOException {
+        Patient patient = new Patient();
+        patient.setId(new IdType("Patient", "1", "3"));
+        interceptor.outgoingResponse(details, patient, details.getServletRequest(), details.getServletResponse());
+        details.getServletResponse().setHeader("ETag", "W/\"3\"");
+        details.getServletResponse().setCharacterEncoding("UTF-8");
+        details.getServletResponse().setContentType("application/fhir+json;charset=UTF-8");
+        PrintWriter writer = details.getServletResponse().getWriter();
+        writer.write(BODY);
+        writer.close();
+        interceptor.processingCompletedNormally(details);
+    }
+
+    private ServletRequestDetails details(RestOperationTypeEnum operation, String id, MockHttpServletResponse response) {
+        IdType idType = new IdType(id);
+        MockHttpServletRequest request = new MockHttpServletRequest(
+                operation == RestOperationTypeEnum.UPDATE ? "PUT" : operation == RestOperationTypeEnum.DELETE ? "DELETE" : "GET",
+                "/api/" + id);
+        ServletRequestDetails details = new ServletRequestDetails();
+        details.setServer(server);
+        details.setServletRequest(request);
+        details.setServletResponse(response);
+        details.setRestOperationType(operation);
+        details.setResourceName(idType.getResourceType());
+        details.setId(idType);
+        details.setFhirServerBase("http://localhost/api");
+        details.setParameters(new HashMap<>());
+        return details;
+    }
+
+    private ServletRequestDetails compressedDetails(ResponseCompressionInterceptor compression,
+            MockHttpServletResponse response) {
+        ServletRequestDetails details = details(RestOperationTypeEnum.READ, "Patient/1", response);
+        ((MockHttpServletRequest) details.getServletRequest()).addHeader("Accept-Encoding", "gzip");
+        compression.incomingRequestPostProcessed(details, details.getServletRequest(), response);
+        return details;
+    }
+
+    private static String inflate(byte[] compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Map<String, String[]> parameters(String name, String value) {
+        Map<String, String[]> parameters = new HashMap<>();
+        parameters.put(name, new String[] { value });
+        return parameters;
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class ResourceTypeRegistryTest {
+
+    private static final ResourceTypeRegistry registry = new ResourceTypeRegistry(FhirContext.forDstu3());
+
+    @Test
+    public void resolvesResourceNames() {
+        assertThat(registry.getResourceType("Patient")).isEqualTo(Patient.class);
+        assertThat(registry.getResourceType("Observation")).isEqualTo(Observation.class);
+    }
+
+    @Test
+    public void resolvesResourceNamesIgnoringCase() {
+        assertThat(registry.getResourceType("patient")).isEqualTo(Patient.class);
+        assertThat(registry.getResourceType("OBSERVATION")).isEqualTo(Observation.class);
+    }
+
+    @Test
+    public void rejectsUnknownNames() {
+        assertThat(registry.getResourceType("NotAResource")).isNull();
+        assertThat(registry.getResourceType("NotAResource")).isNull();
+        assertThat(registry.getResourceType(null)).isNull();
+    }
+}
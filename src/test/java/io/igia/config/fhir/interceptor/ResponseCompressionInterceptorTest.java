@@ -0,0 +1,270 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+public class ResponseCompressionInterceptorTest {
+
+    private static final String BODY = repeat("{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"Smith\"}]}", 200);
+
+    private final ResponseCompressionInterceptor interceptor = new ResponseCompressionInterceptor(1024, 6, 2);
+
+    @Test
+    public void negotiatesEncoding() {
+        assertThat(ResponseCompressionInterceptor.negotiate(null)).isNull();
+        assertThat(ResponseCompressionInterceptor.negotiate("gzip, deflate")).isEqualTo("gzip");
+        assertThat(ResponseCompressionInterceptor.negotiate("deflate, gzip;q=0.5")).isEqualTo("deflate");
+        assertThat(ResponseCompressionInterceptor.negotiate("gzip;q=0, deflate;q=0")).isNull();
+        assertThat(ResponseCompressionInterceptor.negotiate("br, *;q=0.1")).isEqualTo("gzip");
+        assertThat(ResponseCompressionInterceptor.negotiate("identity")).isNull();
+    }
+
+    @Test
+    public void compressesLargeBodiesWithGzip() throws IOException {
+        MockHttpServletRequest request = request("gzip");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setHeader("ETag", "\"1\"");
+
+        write(request, response, "application/fhir+json", BODY);
+
+        assertThat(response.getHeader("Content-Encoding")).isEqualTo("gzip");
+        assertThat(response.getHeader("Vary")).isEqualTo("Accept-Encoding");
+        assertThat(response.getHeader("ETag")).isEqualTo("W/\"1\"");
+        assertThat(inflate(new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray())))).isEqualTo(BODY);
+        assertThat(interceptor.getCompressedCount()).isEqualTo(1);
+        assertThat(interceptor.getBytesIn()).isEqualTo(BODY.length());
+        assertThat(interceptor.getBytesOut()).isEqualTo(response.getContentAsByteArray().length);
+        assertThat(interceptor.getCompressionRatio()).isGreaterThan(10);
+        assertThat(request.getAttribute(ResponseCompressionInterceptor.COMPRESSION_RATIO_ATTRIBUTE)).isNotNull();
+    }
+
+    @Test
+    public void compressesWithDeflate() throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        write(request("deflate"), response, "application/fhir+xml", BODY);
+
+        assertThat(response.getHeader("Content-Encoding")).isEqualTo("deflate");
+        assertThat(inflate(new InflaterInputStream(new ByteArrayInputStream(response.getContentAsByteArray())))).isEqualTo(BODY);
+    }
+
+    @Test
+    public void writesSmallAndBinaryBodiesUnchanged() throws IOException {
+        MockHttpServletResponse small = new MockHttpServletResponse();
+        MockHttpServletResponse binary = new MockHttpServletResponse();
+
+        write(request("gzip"), small, "application/fhir+json", "{\"resourceType\":\"Patient\"}");
+        write(request("gzip"), binary, "image/png", BODY);
+
+        assertThat(small.getHeader("Content-Encoding")).isNull();
+        assertThat(small.getContentAsString()).isEqualTo("{\"resourceType\":\"Patient\"}");
+        assertThat(binary.getHeader("Content-Encoding")).isNull();
+        assertThat(binary.getContentAsString()).isEqualTo(BODY);
+        assertThat(interceptor.getSkippedCount()).isEqualTo(2);
+        assertThat(interceptor.getCompressedCount()).isZero();
+    }
+
+    @Test
+    public void leavesRequestsWithoutAcceptEncodingAlone() {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/Patient");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ServletRequestDetails details = details(request, response);
+
+        interceptor.incomingRequestPostProcessed(details, request, response);
+
+        assertThat(details.getServletResponse()).isSameAs(response);
+    }
+
+    @Test
+    public void reusesDeflaters() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            write(request("gzip"), new MockHttpServletResponse(), "application/fhir+json", BODY);
+        }
+
+        assertThat(interceptor.getCompressedCount()).isEqualTo(3);
+        assertThat(interceptor.getCpuNanos()).isPositive();
+    }
+
+    @Test
+    public void dropsHeldBackBodyOnException() throws Exception {
+        MockHttpServletRequest request = request("gzip");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ServletRequestDetails details = details(request, response);
+        interceptor.incomingRequestPostProcessed(details, request, response);
+        details.getServletResponse().setContentType("application/fhir+json");
+        details.getServletResponse().getWriter().write("{\"partial\":");
+
+        interceptor.handleException(details, null, request, response);
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        response.getWriter().write("{\"resourceType\":\"OperationOutcome\"}");
+        ResponseCompressionInterceptor.finish(request);
+
+        assertThat(response.getContentAsString()).isEqualTo("{\"resourceType\":\"OperationOutcome\"}");
+        assertThat(response.getHeader("Content-Encoding")).isNull();
+    }
+
+    @Test
+    public void writesErrorBodyThroughRequestResponseUncompressed() throws Exception {
+        MockHttpServletRequest request = request("gzip");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ServletRequestDetails details = details(request, response);
+        interceptor.incomingRequestPostProcessed(details, request, response);
+        details.getServletResponse().setContentType("application/fhir+json");
+        details.getServletResponse().getWriter().write("{\"partial\":");
+
+        interceptor.handleException(details, null, request, response);
+        String error = "{\"resourceType\":\"OperationOutcome\",\"text\":\"" + repeat("not found ", 200) + "\"}";
+        HttpServletResponse errorResponse = details.getServletResponse();
+        errorResponse.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        errorResponse.setContentType("application/fhir+json");
+        PrintWriter writer = errorResponse.getWriter();
+        writer.write(error);
+        writer.close();
+        ResponseCompressionInterceptor.finish(request);
+
+        assertThat(response.getStatus()).isEqualTo(HttpServletResponse.SC_NOT_FOUND);
+        assertThat(response.getContentAsString()).isEqualTo(error);
+        assertThat(response.getHeader("Content-Encoding")).isNull();
+    }
+
+    @Test
+    public void replacesStartedCompressedBodyWithErrorBody() throws Exception {
+        MockHttpServletRequest request = request("gzip");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setHeader("X-Request-Id", "1");
+        ServletRequestDetails details = details(request, response);
+        interceptor.incomingRequestPostProcessed(details, request, response);
+        details.getServletResponse().setContentType("application/fhir+json");
+        details.getServletResponse().getOutputStream().write(BODY.substring(0, 2000).getBytes(StandardCharsets.UTF_8));
+        assertThat(response.getHeader("Content-Encoding")).isEqualTo("gzip");
+
+        interceptor.handleException(details, null, request, response);
+        HttpServletResponse errorResponse = details.getServletResponse();
+        errorResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        errorResponse.getOutputStream().write("{\"resourceType\":\"OperationOutcome\"}".getBytes(StandardCharsets.UTF_8));
+        ResponseCompressionInterceptor.finish(request);
+
+        assertThat(response.getContentAsString()).isEqualTo("{\"resourceType\":\"OperationOutcome\"}");
+        assertThat(response.getHeader("Content-Encoding")).isNull();
+        assertThat(response.getHeader("X-Request-Id")).isEqualTo("1");
+        assertThat(response.getContentType()).startsWith("application/fhir+json");
+    }
+
+    @Test
+    public void delegatesWriteListenerToWrappedStream() throws Exception {
+        AtomicReference<WriteListener> listener = new AtomicReference<>();
+        AtomicBoolean ready = new AtomicBoolean(true);
+        ServletOutputStream wrappedStream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public boolean isReady() {
+                return ready.get();
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                listener.set(writeListener);
+            }
+        };
+        MockHttpServletRequest request = request("gzip");
+        HttpServletResponse response = new HttpServletResponseWrapper(new MockHttpServletResponse()) {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return wrappedStream;
+            }
+        };
+        ServletRequestDetails details = new ServletRequestDetails();
+        details.setServletRequest(request);
+        details.setServletResponse(response);
+        interceptor.incomingRequestPostProcessed(details, request, response);
+        ServletOutputStream stream = details.getServletResponse().getOutputStream();
+        WriteListener writeListener = mock(WriteListener.class);
+
+        stream.setWriteListener(writeListener);
+        ready.set(false);
+
+        assertThat(listener.get()).isSameAs(writeListener);
+        assertThat(stream.isReady()).isFalse();
+    }
+
+    private void write(MockHttpServletRequest request, MockHttpServletResponse response, String contentType,
+            String body) throws IOException {
+        ServletRequestDetails details = details(request, response);
+        interceptor.incomingRequestPostProcessed(details, request, response);
+        HttpServletResponse wrapped = details.getServletResponse();
+        wrapped.setCharacterEncoding("UTF-8");
+        wrapped.setContentType(contentType);
+        PrintWriter writer = wrapped.getWriter();
+        writer.write(body);
+        writer.close();
+        interceptor.processingCompletedNormally(details);
+    }
+
+    private static ServletRequestDetails details(MockHttpServletRequest request, MockHttpServletResponse response) {
+        ServletRequestDetails details = new ServletRequestDetails();
+        details.setServletRequest(request);
+        details.setServletResponse(response);
+        return details;
+    }
+
+    private static MockHttpServletRequest request(String acceptEncoding) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/api/Patient");
+        request.addHeader("Accept-Encoding", acceptEncoding);
+        return request;
+    }
+
+    private static String inflate(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(String value, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
@@ -12,6 +12,7 @@
  */
 package io.igia.config.fhir.interceptor;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.authentication;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
@@ -19,6 +20,7 @@ import static org.springframework.test.web.servlet.request.MockMvcRequestBuilder
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -47,6 +49,9 @@ public class ScopeBasedAuthorizationInterceptorTest {
     
     @Autowired
     private ScopeBasedAuthorizationInterceptorTestUtil util;
+
+    @Autowired
+    private ScopeBasedAuthorizationInterceptor authorizationInterceptor;
  
     // patient/*.* scope tests
     @Test
@@ -73,6 +78,34 @@ public class ScopeBasedAuthorizationInterceptorTest {
                 .with(authentication(oauthTestAuthentication))).andExpect(status().isForbidden());
     }
     
+    @Test
+    public void testPatientForbiddenIdConditionalRead() throws Exception {
+        Set<String> scopes = new HashSet<String>();
+        scopes.add("patient/*.read");
+        Authentication oauthTestAuthentication = util.setupAuthentication(scopes, "12345", null);
+
+        util.setupReadPatient("2345");
+        util.setupPatientVersion("3");
+
+        mockMvc.perform(get("/api/Patient/2345").header("If-None-Match", "*")
+                .with(authentication(oauthTestAuthentication))).andExpect(status().isForbidden());
+        mockMvc.perform(get("/api/Patient/2345").header("If-Modified-Since", "Fri, 01 Jan 2100 00:00:00 GMT")
+                .with(authentication(oauthTestAuthentication))).andExpect(status().isForbidden());
+    }
+
+    @Test
+    public void testPatientAllowedConditionalRead() throws Exception {
+        Set<String> scopes = new HashSet<String>();
+        scopes.add("patient/*.read");
+        Authentication oauthTestAuthentication = util.setupAuthentication(scopes, "12345", null);
+
+        util.setupReadPatient("12345");
+        util.setupPatientVersion("3");
+
+        mockMvc.perform(get("/api/Patient/12345").header("If-None-Match", "W/\"3\"")
+                .with(authentication(oauthTestAuthentication))).andExpect(status().isNotModified());
+    }
+
     @Test
     public void testPatientAllowedSearch() throws Exception {
         Set<String> scopes = new HashSet<String>();
@@ -639,6 +672,19 @@ public class ScopeBasedAuthorizationInterceptorTest {
                 .with(authentication(oauthTestAuthentication))).andExpect(status().isOk());
     }
     
+    @Test
+    public void testUserAllowedIdConditionalRead() throws Exception {
+        Set<String> scopes = new HashSet<String>();
+        scopes.add("user/*.read");
+        Authentication oauthTestAuthentication = util.setupAuthentication(scopes, "12345", null);
+
+        util.setupReadPatient("2345");
+        util.setupPatientVersion("3");
+
+        mockMvc.perform(get("/api/Patient/2345").header("If-None-Match", "W/\"3\"")
+                .with(authentication(oauthTestAuthentication))).andExpect(status().isNotModified());
+    }
+
     @Test
     public void testUserAllowedSearch() throws Exception {
         Set<String> scopes = new HashSet<String>();
@@ -1089,4 +1135,63 @@ public class ScopeBasedAuthorizationInterceptorTest {
         mockMvc.perform(get("/api/Patient/$type")
                 .with(authentication(oauthTestAuthentication))).andExpect(status().isForbidden());
     }
+
+    // compiled rule list cache tests
+    @Test
+    public void testRuleCacheReusedForSameScopesAndPatient() throws Exception {
+        AuthorizationRuleCache ruleCache = authorizationInterceptor.getRuleCache();
+        ruleCache.invalidateAll();
+        long misses = ruleCache.getMissCount();
+        long hits = ruleCache.getHitCount();
+        Set<String> scopes = new HashSet<String>();
+        scopes.add("patient/*.read");
+        util.setupReadPatient("12345");
+
+        mockMvc.perform(get("/api/Patient/12345")
+                .with(authentication(util.setupAuthentication(scopes, "12345", null)))).andExpect(status().isOk());
+        mockMvc.perform(get("/api/Patient/12345")
+                .with(authentication(util.setupAuthentication(scopes, "12345", null)))).andExpect(status().isOk());
+
+        assertThat(ruleCache.getMissCount() - misses).isEqualTo(1);
+        assertThat(ruleCache.getHitCount() - hits).isEqualTo(1);
+        assertThat(ruleCache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRuleCacheMissesForOtherLaunchPatient() throws Exception {
+        AuthorizationRuleCache ruleCache = authorizationInterceptor.getRuleCache();
+        ruleCache.invalidateAll();
+        long misses = ruleCache.getMissCount();
+        Set<String> scopes = new HashSet<String>();
+        scopes.add("patient/*.read");
+
+        util.setupReadPatient("12345");
+        mockMvc.perform(get("/api/Patient/12345")
+                .with(authentication(util.setupAuthentication(scopes, "12345", null)))).andExpect(status().isOk());
+        util.setupReadPatient("2345");
+        mockMvc.perform(get("/api/Patient/2345")
+                .with(authentication(util.setupAuthentication(scopes, "2345", null)))).andExpect(status().isOk());
+
+        assertThat(ruleCache.getMissCount() - misses).isEqualTo(2);
+        assertThat(ruleCache.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testRuleCacheEntryDoesNotOutliveToken() throws Exception {
+        AuthorizationRuleCache ruleCache = authorizationInterceptor.getRuleCache();
+        ruleCache.invalidateAll();
+        long misses = ruleCache.getMissCount();
+        Set<String> scopes = new HashSet<String>();
+        scopes.add("patient/*.read");
+        Date expired = new Date(System.currentTimeMillis() - 1000);
+        util.setupReadPatient("12345");
+
+        mockMvc.perform(get("/api/Patient/12345")
+                .with(authentication(util.setupAuthentication(scopes, "12345", null, expired)))).andExpect(status().isOk());
+        mockMvc.perform(get("/api/Patient/12345")
+                .with(authentication(util.setupAuthentication(scopes, "12345", null, expired)))).andExpect(status().isOk());
+
+        assertThat(ruleCache.getMissCount() - misses).isEqualTo(2);
+        assertThat(ruleCache.size()).isZero();
+    }
 }
@@ -20,6 +20,7 @@ import static org.mockito.Mockito.when;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -71,6 +72,8 @@ import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.param.ReferenceParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import io.igia.config.fhir.provider.ResourceVersion;
+import io.igia.config.fhir.provider.ResourceVersionLookup;
 
 @Component
 public class ScopeBasedAuthorizationInterceptorTestUtil {
@@ -110,6 +113,12 @@ public class ScopeBasedAuthorizationInterceptorTestUtil {
         doReturn(patient).when(patientService).readPatient(any());
     }
     
+    // GET /api/Patient/patientid with If-None-Match or If-Modified-Since
+    protected void setupPatientVersion(String versionId) {
+        ResourceVersion version = new ResourceVersion(versionId, new Date(1_500_000_000_000L));
+        doReturn(version).when(patientService).getCurrentVersion(any());
+    }
+
     // GET /api/Patient?identifier=http://igia.io/Patients/Identifier/MRN|patientid
     protected void setupSearchPatientByIdentifier(String patientid) {
         List<Patient> patients = new ArrayList<Patient>();
@@ -197,6 +206,10 @@ public class ScopeBasedAuthorizationInterceptorTestUtil {
     }
 
     protected Authentication setupAuthentication(Set<String> scopes, String patientid, String userid) {
+        return setupAuthentication(scopes, patientid, userid, null);
+    }
+
+    protected Authentication setupAuthentication(Set<String> scopes, String patientid, String userid, Date expiration) {
         OAuth2Authentication oauth2Authentication = (OAuth2Authentication) getOauthTestAuthentication(scopes);
 
         CustomTokenConverter converter = new CustomTokenConverter(patientid, userid);
@@ -205,6 +218,9 @@ public class ScopeBasedAuthorizationInterceptorTestUtil {
         defaultTokenServices.setTokenStore(tokenStore);
         defaultTokenServices.setTokenEnhancer(converter);
         OAuth2AccessToken token = defaultTokenServices.createAccessToken(oauth2Authentication);
+        if (expiration != null) {
+            ((DefaultOAuth2AccessToken) token).setExpiration(expiration);
+        }
 
         when(oauth2ClientContext.getAccessToken()).thenReturn(token);
         when(tokenStore.readAccessToken(any())).thenReturn(token);
@@ -271,12 +287,17 @@ public class ScopeBasedAuthorizationInterceptorTestUtil {
     }
 
     @Component
-    public static class PatientResourceProvider implements IResourceProvider {
+    public static class PatientResourceProvider implements IResourceProvider, ResourceVersionLookup {
         @Override
         public Class<? extends IBaseResource> getResourceType() {
             return Patient.class;
         }
 
+        @Override
+        public ResourceVersion getCurrentVersion(IIdType theId) {
+            return null;
+        }
+
         @Read
         public Patient readPatient(@IdParam IdType theId) {
             return null;
@@ -0,0 +1,152 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.Bundle.HTTPVerb;
+import org.hl7.fhir.dstu3.model.Encounter;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor.Verdict;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+
+public class ScopePermissionRuleTest {
+
+    private final ResourceTypeRegistry registry = new ResourceTypeRegistry(FhirContext.forDstu3());
+    private final SmartScopeParser parser = new SmartScopeParser(registry);
+    private final ScopeBasedAuthorizationInterceptor interceptor = new ScopeBasedAuthorizationInterceptor(null, null, registry);
+
+    @Test
+    public void userScopeGrantIsAllowedWithoutRuleList() {
+        ScopePermissionRule rule = rule("user/Observation.read");
+
+        Verdict verdict = apply(rule, RestOperationTypeEnum.READ, "Observation", new IdType("Observation/1"));
+
+        assertThat(verdict.getDecision()).isEqualTo(PolicyEnum.ALLOW);
+        assertThat(apply(rule, RestOperationTypeEnum.CREATE, "Observation", null).getDecision()).isEqualTo(PolicyEnum.DENY);
+    }
+
+    @Test
+    public void ungrantedResourceTypeIsDenied() {
+        ScopePermissionRule rule = rule("user/Observation.*");
+
+        assertThat(apply(rule, RestOperationTypeEnum.SEARCH_TYPE, "Patient", null).getDecision()).isEqualTo(PolicyEnum.DENY);
+    }
+
+    @Test
+    public void patientScopeFallsBackToRuleList() {
+        ScopePermissionRule rule = rule("patient/*.read");
+
+        assertThat(apply(rule, RestOperationTypeEnum.READ, "Observation", new IdType("Observation/1"))).isNull();
+    }
+
+    @Test
+    public void patientCompartmentMemberIsAllowed() {
+        ScopePermissionTable table = interceptor.compilePermissionTable(parser.parseAll(Collections.singleton("patient/*.read")));
+        ScopePermissionRule rule = new ScopePermissionRule(table, registry, new PatientCompartmentDefinitions(registry), "123", false, "deny");
+        Observation member = new Observation();
+        member.setSubject(new Reference("Patient/123"));
+        Observation other = new Observation();
+        other.setSubject(new Reference("Patient/456"));
+
+        Verdict verdict = rule.applyRule(RestOperationTypeEnum.SEARCH_TYPE, request("Observation"), null, null, member, interceptor,
+                Collections.emptySet());
+
+        assertThat(verdict.getDecision()).isEqualTo(PolicyEnum.ALLOW);
+        assertThat(rule.applyRule(RestOperationTypeEnum.SEARCH_TYPE, request("Observation"), null, null, other, interceptor,
+                Collections.emptySet())).isNull();
+    }
+
+    @Test
+    public void transactionIsDecidedInOnePass() {
+        ScopePermissionTable table = interceptor.compilePermissionTable(
+                parser.parseAll(Arrays.asList("user/Observation.write", "patient/Encounter.write")));
+        ScopePermissionRule rule = new ScopePermissionRule(table, registry, new PatientCompartmentDefinitions(registry), "123", true, "deny");
+
+        Bundle bundle = new Bundle().setType(BundleType.TRANSACTION);
+        for (int i = 0; i < 1000; i++) {
+            bundle.addEntry().setResource(new Observation()).getRequest().setMethod(HTTPVerb.POST).setUrl("Observation");
+        }
+        Encounter encounter = new Encounter().setSubject(new Reference("Patient/123"));
+        bundle.addEntry().setResource(encounter).getRequest().setMethod(HTTPVerb.PUT).setUrl("Encounter/1");
+
+        assertThat(applyTransaction(rule, bundle).getDecision()).isEqualTo(PolicyEnum.ALLOW);
+
+        bundle.addEntry().getRequest().setMethod(HTTPVerb.DELETE).setUrl("Patient/123");
+        assertThat(applyTransaction(rule, bundle).getDecision()).isEqualTo(PolicyEnum.DENY);
+    }
+
+    @Test
+    public void transactionOutsideCompartmentFallsBackToRuleList() {
+        ScopePermissionTable table = interceptor.compilePermissionTable(parser.parseAll(Arrays.asList("patient/Encounter.write")));
+        ScopePermissionRule rule = new ScopePermissionRule(table, registry, new PatientCompartmentDefinitions(registry), "123", true, "deny");
+
+        Bundle bundle = new Bundle().setType(BundleType.TRANSACTION);
+        Encounter encounter = new Encounter().setSubject(new Reference("Patient/456"));
+        bundle.addEntry().setResource(encounter).getRequest().setMethod(HTTPVerb.POST).setUrl("Encounter");
+
+        assertThat(applyTransaction(rule, bundle)).isNull();
+    }
+
+    @Test
+    public void unmappedOperationFallsBackToRuleList() {
+        ScopePermissionRule rule = rule("user/*.*");
+
+        assertThat(apply(rule, RestOperationTypeEnum.EXTENDED_OPERATION_TYPE, "Observation", null)).isNull();
+        assertThat(apply(rule, RestOperationTypeEnum.TRANSACTION, null, null)).isNull();
+    }
+
+    @Test
+    public void outputResourceTypeIsUsed() {
+        ScopePermissionRule rule = rule("user/Patient.read");
+        RequestDetails request = request("Patient");
+
+        Verdict verdict = rule.applyRule(RestOperationTypeEnum.SEARCH_TYPE, request, null, null, new Observation(), interceptor,
+                Collections.emptySet());
+
+        assertThat(verdict.getDecision()).isEqualTo(PolicyEnum.DENY);
+    }
+
+    private ScopePermissionRule rule(String scope) {
+        ScopePermissionTable table = interceptor.compilePermissionTable(parser.parseAll(Collections.singleton(scope)));
+        return new ScopePermissionRule(table, registry, "deny");
+    }
+
+    private Verdict apply(ScopePermissionRule rule, RestOperationTypeEnum operation, String resourceName, IdType id) {
+        return rule.applyRule(operation, request(resourceName), null, id, null, interceptor, Collections.emptySet());
+    }
+
+    private Verdict applyTransaction(ScopePermissionRule rule, Bundle bundle) {
+        return rule.applyRule(RestOperationTypeEnum.TRANSACTION, request(null), bundle, null, null, interceptor, Collections.emptySet());
+    }
+
+    private static RequestDetails request(String resourceName) {
+        RequestDetails request = mock(RequestDetails.class);
+        when(request.getResourceName()).thenReturn(resourceName);
+        return request;
+    }
+}
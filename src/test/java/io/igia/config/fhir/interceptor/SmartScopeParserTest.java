@@ -0,0 +1,89 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.igia.config.fhir.interceptor.SmartScopeDescriptor.Context;
+import io.igia.config.fhir.interceptor.SmartScopeDescriptor.Permission;
+
+public class SmartScopeParserTest {
+
+    private final SmartScopeParser parser = new SmartScopeParser(new ResourceTypeRegistry(FhirContext.forDstu3()));
+
+    @Test
+    public void parsesV1ReadScope() {
+        SmartScopeDescriptor scope = parser.parse("patient/Observation.read");
+
+        assertThat(scope.getContext()).isEqualTo(Context.PATIENT);
+        assertThat(scope.getResource()).isEqualTo("Observation");
+        assertThat(scope.getResourceType()).isEqualTo(Observation.class);
+        assertThat(scope.getOperation()).isEqualTo("read");
+        assertThat(scope.getPermissions()).containsOnly(Permission.READ, Permission.SEARCH);
+        assertThat(scope.isSupported()).isTrue();
+    }
+
+    @Test
+    public void parsesV1WriteAndWildcardScopes() {
+        assertThat(parser.parse("user/Patient.write").getPermissions())
+            .containsOnly(Permission.CREATE, Permission.UPDATE, Permission.DELETE);
+
+        SmartScopeDescriptor all = parser.parse("user/*.*");
+        assertThat(all.isWildcardResource()).isTrue();
+        assertThat(all.getResourceType()).isNull();
+        assertThat(all.hasAllPermissions()).isTrue();
+    }
+
+    @Test
+    public void parsesV2PermissionStrings() {
+        SmartScopeDescriptor scope = parser.parse("patient/Patient.rs");
+
+        assertThat(scope.getResourceType()).isEqualTo(Patient.class);
+        assertThat(scope.getPermissions()).containsOnly(Permission.READ, Permission.SEARCH);
+        assertThat(parser.parse("user/*.cruds").hasAllPermissions()).isTrue();
+    }
+
+    @Test
+    public void rejectsOutOfOrderOrUnknownPermissions() {
+        assertThat(parser.parse("patient/Patient.sr").isSupported()).isFalse();
+        assertThat(parser.parse("patient/Patient.rr").isSupported()).isFalse();
+        assertThat(parser.parse("patient/Patient.foo").isSupported()).isFalse();
+    }
+
+    @Test
+    public void queryRestrictedScopesGrantNothing() {
+        SmartScopeDescriptor scope = parser.parse("patient/Observation.rs?category=laboratory");
+
+        assertThat(scope.isRestricted()).isTrue();
+        assertThat(scope.isSupported()).isTrue();
+        assertThat(scope.getPermissionMask()).isZero();
+    }
+
+    @Test
+    public void nonResourceScopesHaveNoContext() {
+        SmartScopeDescriptor scope = parser.parse("launch/patient");
+
+        assertThat(scope.getContext()).isEqualTo(Context.NONE);
+        assertThat(scope.getResource()).isNull();
+    }
+
+    @Test
+    public void scopesAreInterned() {
+        assertThat(parser.parse(new String("user/Patient.read"))).isSameAs(parser.parse("user/Patient.read"));
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.interceptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+
+import io.igia.config.fhir.interceptor.VerifiedTokenCache.VerifiedToken;
+
+public class VerifiedTokenCacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void secondLookupOfSameTokenIsAHit() {
+        VerifiedTokenCache cache = new VerifiedTokenCache(10, Duration.ofMinutes(5));
+
+        VerifiedToken first = cache.get("token-a", value -> verify(value, null));
+        VerifiedToken second = cache.get("token-a", value -> verify(value, null));
+        cache.get("token-b", value -> verify(value, null));
+
+        assertThat(second).isSameAs(first);
+        assertThat(loads.get()).isEqualTo(2);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getMissCount()).isEqualTo(2);
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void entryExpiresWithTheToken() throws InterruptedException {
+        VerifiedTokenCache cache = new VerifiedTokenCache(10, Duration.ofHours(1));
+        Date expiration = new Date(System.currentTimeMillis() + 200);
+
+        cache.get("token-a", value -> verify(value, expiration));
+        Thread.sleep(300);
+        cache.get("token-a", value -> verify(value, expiration));
+
+        assertThat(loads.get()).isEqualTo(2);
+        assertThat(cache.getHitCount()).isZero();
+    }
+
+    @Test
+    public void alreadyExpiredTokenIsNotCached() {
+        VerifiedTokenCache cache = new VerifiedTokenCache(10, Duration.ofHours(1));
+        Date expiration = new Date(System.currentTimeMillis() - 1000);
+
+        cache.get("token-a", value -> verify(value, expiration));
+
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void tokensAreKeyedByDigest() {
+        String digest = VerifiedTokenCache.digest("token-a");
+
+        assertThat(digest).hasSize(44).doesNotContain("token-a");
+        assertThat(VerifiedTokenCache.digest("token-a")).isEqualTo(digest);
+        assertThat(VerifiedTokenCache.digest("token-b")).isNotEqualTo(digest);
+    }
+
+    @Test
+    public void verifiedTokenKeepsOnlyScopesAndExpiry() {
+        Date expiration = new Date(System.currentTimeMillis() + 60_000);
+        VerifiedToken token = verify("token-a", expiration);
+        expiration.setTime(0);
+
+        assertThat(token.getScope()).containsExactlyInAnyOrder("patient/*.read", "launch/patient");
+        assertThat(token.getExpiration()).isAfter(new Date());
+        assertThat(token.getPatientId()).isEqualTo("123");
+    }
+
+    private VerifiedToken verify(String value, Date expiration) {
+        loads.incrementAndGet();
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken(value);
+        accessToken.setScope(new HashSet<>(Arrays.asList("patient/*.read", "launch/patient")));
+        accessToken.setExpiration(expiration);
+        return new VerifiedToken(accessToken, "123", null, null);
+    }
+}
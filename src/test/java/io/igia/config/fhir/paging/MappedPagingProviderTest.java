@@ -0,0 +1,302 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.paging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import io.igia.config.fhir.provider.ResourceBatchLoader;
+
+public class MappedPagingProviderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FhirContext fhirContext = FhirContext.forDstu3();
+    private final AtomicLong clock = new AtomicLong(1000);
+    private final List<MappedPagingProvider> pagingProviders = new ArrayList<>();
+
+    @After
+    public void destroy() {
+        pagingProviders.forEach(MappedPagingProvider::destroy);
+    }
+
+    @Test
+    public void readsPageOfIdsByOffset() throws IOException {
+        MappedPagingProvider pagingProvider = pagingProvider(1_000_000, 1_000_000, false);
+        List<IBaseResource> resources = patients(0, 30);
+        ((Patient) resources.get(29)).setUserData(ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.name(), BundleEntrySearchModeEnum.INCLUDE);
+
+        IBundleProvider page = pagingProvider.retrieveResultList(pagingProvider.storeResultList(new SimpleBundleProvider(resources)));
+
+        assertThat(page.size()).isEqualTo(30);
+        List<IBaseResource> last = page.getResources(20, 40);
+        assertThat(ids(last)).containsExactly("20", "21", "22", "23", "24", "25", "26", "27", "28", "29");
+        assertThat(((Patient) last.get(9)).getUserData(ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.name()))
+                .isEqualTo(BundleEntrySearchModeEnum.INCLUDE);
+        assertThat(((Patient) last.get(0)).getUserData(ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.name())).isNull();
+        assertThat(pagingProvider.getEncodedCount()).isZero();
+        assertThat(pagingProvider.getSegmentCount()).isEqualTo(1);
+        assertThat(pagingProvider.getSegmentBytes()).isEqualTo(pagingProvider.getStoredBytes());
+    }
+
+    @Test
+    public void encodesResourcesWithoutLoader() throws IOException {
+        MappedPagingProvider pagingProvider = pagingProvider(1_000_000, 1_000_000, false);
+        List<IBaseResource> resources = new ArrayList<>(patients(0, 5));
+        Organization organization = new Organization();
+        organization.setId("Organization/1");
+        organization.setName("Acme");
+        resources.add(organization);
+
+        IBundleProvider page = pagingProvider.retrieveResultList(pagingProvider.storeResultList(new SimpleBundleProvider(resources)));
+
+        List<IBaseResource> last = page.getResources(5, 10);
+        assertThat(last).hasSize(1);
+        assertThat(((Organization) last.get(0)).getName()).isEqualTo("Acme");
+        assertThat(ids(page.getResources(0, 2))).containsExactly("0", "1");
+        assertThat(pagingProvider.getEncodedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void writesResultSetPageByPage() throws IOException {
+        MappedPagingProvider pagingProvider = pagingProvider(1_000_000, 1_000_000, false);
+        pagingProvider.setMaximumPageSize(7);
+        List<Integer> requested = new ArrayList<>();
+        SimpleBundleProvider list = new SimpleBundleProvider(patients(0, 20)) {
+            @Override
+            public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+                requested.add(theToIndex - theFromIndex);
+                return super.getResources(theFromIndex, theToIndex);
+            }
+        };
+
+        IBundleProvider page = pagingProvider.retrieveResultList(pagingProvider.storeResultList(list));
+
+        assertThat(requested).containsExactly(7, 7, 6);
+        assertThat(ids(page.getResources(5, 9))).containsExactly("5", "6", "7", "8");
+        assertThat(segmentFiles()).hasSize(1);
+    }
+
+    @Test
+    public void switchesToEncodedResourcesInLaterPage() throws IOException {
+        MappedPagingProvider pagingProvider = pagingProvider(1_000_000, 1_000_000, false);
+        pagingProvider.setMaximumPageSize(4);
+        List<IBaseResource> resources = new ArrayList<>(patients(0, 10));
+        Organization organization = new Organization();
+        organization.setId("Organization/1");
+        organization.setName("Acme");
+        resources.add(organization);
+
+        IBundleProvider page = pagingProvider.retrieveResultList(pagingProvider.storeResultList(new SimpleBundleProvider(resources)));
+
+        assertThat(ids(page.getResources(0, 11))).containsExactly("0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "1");
+        assertThat(((Organization) page.getResources(10, 11).get(0)).getName()).isEqualTo("Acme");
+        assertThat(pagingProvider.getEncodedCount()).isEqualTo(1);
+        assertThat(pagingProvider.getSegmentBytes()).isEqualTo(pagingProvider.getStoredBytes());
+    }
+
+    @Test
+    public void decidesEncodedResourcesFromFirstPage() throws IOException {
+        MappedPagingProvider pagingProvider = pagingProvider(1_000_000, 1_000_000, false);
+        pagingProvider.setMaximumPageSize(4);
+        Organization organization = new Organization();
+        organization.setId("Organization/1");
+        List<IBaseResource> resources = new ArrayList<>();
+        resources.add(organization);
+        resources.addAll(patients(0, 10));
+        List<Integer> requested = new ArrayList<>();
+        SimpleBundleProvider list = new SimpleBundleProvider(resources) {
+            @Override
+            public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+                requested.add(theFromIndex);
+                return super.getResources(theFromIndex, theToIndex);
+            }
+        };
+
+        IBundleProvider page = pagingProvider.retrieveResultList(pagingProvider.storeResultList(list));
+
+        assertThat(requested).containsExactly(0, 4, 8);
+        assertThat(ids(page.getResources(8, 11))).containsExactly("7", "8", "9");
+        assertThat(pagingProvider.getEncodedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void readsResultSetWithoutHoldingUpOtherSearches() throws Exception {
+        MappedPagingProvider pagingProvider = pagingProvider(1_000_000, 1_000_000, false);
+        pagingProvider.setMaximumPageSize(5);
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        SimpleBundleProvider slow = new SimpleBundleProvider(patients(0, 10)) {
+            @Override
+            public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+                if (theFromIndex > 0) {
+                    reading.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.getResources(theFromIndex, theToIndex);
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> slowSearch = executor.submit(() -> pagingProvider.storeResultList(slow));
+            assertThat(reading.await(10, TimeUnit.SECONDS)).isTrue();
+
+            String fastSearch = pagingProvider.storeResultList(new SimpleBundleProvider(patients(10, 20)));
+
+            assertThat(slowSearch.isDone()).isFalse();
+            release.countDown();
+            assertThat(pagingProvider.retrieveResultList(fastSearch).getResources(0, 1)).hasSize(1);
+            assertThat(pagingProvider.retrieveResultList(slowSearch.get(10, TimeUnit.SECONDS)).size()).isEqualTo(10);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void deletesSegmentsOfExpiredResultSets() throws IOException {
+        MappedPagingProvider pagingProvider = pagingProvider(1, 1_000_000, true);
+        String first = pagingProvider.storeResultList(new SimpleBundleProvider(patients(0, 10)));
+        clock.addAndGet(40_000);
+        String second = pagingProvider.storeResultList(new SimpleBundleProvider(patients(10, 20)));
+        assertThat(segmentFiles()).hasSize(2);
+
+        clock.addAndGet(40_000);
+        pagingProvider.cleanUp();
+
+        assertThat(pagingProvider.retrieveResultList(first)).isNull();
+        assertThat(pagingProvider.retrieveResultList(second)).isNotNull();
+        assertThat(pagingProvider.getExpiredCount()).isEqualTo(1);
+        assertThat(pagingProvider.getDeletedSegmentCount()).isEqualTo(1);
+        assertThat(segmentFiles()).hasSize(1);
+    }
+
+    @Test
+    public void evictsLeastRecentlyPagedBeyondBudget() throws IOException {
+        MappedPagingProvider sizing = pagingProvider(1_000_000, 1_000_000, false);
+        sizing.storeResultList(new SimpleBundleProvider(patients(10, 20)));
+        long bytes = sizing.getStoredBytes();
+        sizing.destroy();
+        MappedPagingProvider pagingProvider = pagingProvider(1_000_000, bytes * 2 + bytes / 2, false);
+        String first = pagingProvider.storeResultList(new SimpleBundleProvider(patients(10, 20)));
+        String second = pagingProvider.storeResultList(new SimpleBundleProvider(patients(20, 30)));
+        pagingProvider.retrieveResultList(first);
+
+        String third = pagingProvider.storeResultList(new SimpleBundleProvider(patients(30, 40)));
+
+        assertThat(pagingProvider.retrieveResultList(first)).isNotNull();
+        assertThat(pagingProvider.retrieveResultList(second)).isNull();
+        assertThat(pagingProvider.retrieveResultList(third).getResources(0, 1)).hasSize(1);
+        assertThat(pagingProvider.getEvictionCount()).isEqualTo(1);
+        assertThat(pagingProvider.getStoredBytes()).isEqualTo(2 * bytes);
+    }
+
+    @Test
+    public void doesNotKeepResultSetLargerThanBudget() throws IOException {
+        MappedPagingProvider pagingProvider = pagingProvider(1_000_000, 100, false);
+
+        assertThat(pagingProvider.storeResultList(new SimpleBundleProvider(patients(0, 100)))).isNull();
+        assertThat(pagingProvider.getRejectionCount()).isEqualTo(1);
+        assertThat(pagingProvider.getStoredBytes()).isZero();
+    }
+
+    @Test
+    public void deletesSegmentsLeftByEarlierRun() throws IOException {
+        Path leftover = Files.createFile(folder.getRoot().toPath().resolve("segment-1.dat"));
+        Path spill = Files.createFile(folder.getRoot().toPath().resolve("spill-1-index.tmp"));
+
+        pagingProvider(1_000_000, 1_000_000, false);
+
+        assertThat(Files.exists(leftover)).isFalse();
+        assertThat(Files.exists(spill)).isFalse();
+    }
+
+    private MappedPagingProvider pagingProvider(long segmentSize, long maximumBytes, boolean encodeEntries) throws IOException {
+        MappedPagingProvider pagingProvider = new MappedPagingProvider(fhirContext, Collections.singletonList(new PatientProvider()),
+                folder.getRoot().toPath(), segmentSize, maximumBytes, 60_000, encodeEntries, 0, clock::get);
+        pagingProvider.afterPropertiesSet();
+        pagingProviders.add(pagingProvider);
+        return pagingProvider;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    private static List<IBaseResource> patients(int from, int to) {
+        List<IBaseResource> resources = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Patient patient = new Patient();
+            patient.setId("Patient/" + i);
+            resources.add(patient);
+        }
+        return resources;
+    }
+
+    private static List<String> ids(List<IBaseResource> resources) {
+        return resources.stream().map(resource -> resource.getIdElement().getIdPart()).collect(Collectors.toList());
+    }
+
+    static class PatientProvider implements IResourceProvider, ResourceBatchLoader {
+
+        @Override
+        public Class<? extends IBaseResource> getResourceType() {
+            return Patient.class;
+        }
+
+        @Override
+        public List<? extends IBaseResource> loadResources(List<IIdType> theIds) {
+            List<IBaseResource> resources = new ArrayList<>();
+            for (IIdType id : theIds) {
+                resources.addAll(patients(Integer.parseInt(id.getIdPart()), Integer.parseInt(id.getIdPart()) + 1));
+            }
+            return resources;
+        }
+    }
+}
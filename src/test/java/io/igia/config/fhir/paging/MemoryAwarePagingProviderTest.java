@@ -0,0 +1,182 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.paging;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.dstu3.model.Organization;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import io.igia.config.fhir.provider.ResourceBatchLoader;
+
+public class MemoryAwarePagingProviderTest {
+
+    private final FhirContext fhirContext = FhirContext.forDstu3();
+    private final AtomicLong clock = new AtomicLong(1000);
+    private final PatientProvider patients = new PatientProvider();
+
+    @Test
+    public void keepsResultSetAsIdListAndLoadsPages() {
+        MemoryAwarePagingProvider pagingProvider = pagingProvider(1_000_000);
+        List<IBaseResource> resources = patients(0, 20);
+        ((Patient) resources.get(19)).setUserData(ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.name(), BundleEntrySearchModeEnum.INCLUDE);
+
+        IBundleProvider page = pagingProvider.retrieveResultList(pagingProvider.storeResultList(new SimpleBundleProvider(resources)));
+        patients.deleted.add("5");
+
+        assertThat(page.size()).isEqualTo(20);
+        assertThat(ids(page.getResources(0, 10))).containsExactly("0", "1", "2", "3", "4", "6", "7", "8", "9");
+        List<IBaseResource> last = page.getResources(15, 25);
+        assertThat(ids(last)).containsExactly("15", "16", "17", "18", "19");
+        assertThat(((Patient) last.get(4)).getUserData(ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.name()))
+                .isEqualTo(BundleEntrySearchModeEnum.INCLUDE);
+        assertThat(pagingProvider.getCompactedCount()).isEqualTo(1);
+        assertThat(pagingProvider.getEstimatedBytes()).isLessThan(1000);
+    }
+
+    @Test
+    public void readsResultSetInPagesWhileCompacting() {
+        MemoryAwarePagingProvider pagingProvider = pagingProvider(1_000_000);
+        pagingProvider.setMaximumPageSize(7);
+        List<Integer> requested = new ArrayList<>();
+        SimpleBundleProvider list = new SimpleBundleProvider(patients(0, 20)) {
+            @Override
+            public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+                requested.add(theToIndex - theFromIndex);
+                return super.getResources(theFromIndex, theToIndex);
+            }
+        };
+
+        IBundleProvider page = pagingProvider.retrieveResultList(pagingProvider.storeResultList(list));
+
+        assertThat(requested).containsExactly(7, 7, 6);
+        assertThat(ids(page.getResources(12, 16))).containsExactly("12", "13", "14", "15");
+        assertThat(pagingProvider.getCompactedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void keepsResultSetWithoutLoaderAsItIs() {
+        MemoryAwarePagingProvider pagingProvider = pagingProvider(1_000_000);
+        List<IBaseResource> resources = new ArrayList<>(patients(0, 2));
+        Organization organization = new Organization();
+        organization.setId("Organization/1");
+        resources.add(organization);
+        SimpleBundleProvider list = new SimpleBundleProvider(resources);
+
+        assertThat(pagingProvider.retrieveResultList(pagingProvider.storeResultList(list))).isSameAs(list);
+        assertThat(pagingProvider.getCompactedCount()).isZero();
+        assertThat(pagingProvider.getEstimatedBytes()).isGreaterThan(3 * 100L);
+    }
+
+    @Test
+    public void evictsLeastRecentlyPagedBeyondBudget() {
+        MemoryAwarePagingProvider sizing = pagingProvider(1_000_000);
+        sizing.storeResultList(new SimpleBundleProvider(patients(10, 20)));
+        long bytes = sizing.getEstimatedBytes();
+        MemoryAwarePagingProvider pagingProvider = pagingProvider(bytes * 2 + bytes / 2);
+        String first = pagingProvider.storeResultList(new SimpleBundleProvider(patients(10, 20)));
+        String second = pagingProvider.storeResultList(new SimpleBundleProvider(patients(20, 30)));
+        pagingProvider.retrieveResultList(first);
+
+        String third = pagingProvider.storeResultList(new SimpleBundleProvider(patients(30, 40)));
+
+        assertThat(pagingProvider.retrieveResultList(first)).isNotNull();
+        assertThat(pagingProvider.retrieveResultList(second)).isNull();
+        assertThat(pagingProvider.retrieveResultList(third)).isNotNull();
+        assertThat(pagingProvider.getEvictionCount()).isEqualTo(1);
+        assertThat(pagingProvider.getEstimatedBytes()).isEqualTo(2 * bytes);
+        assertThat(pagingProvider.getOccupancy()).isLessThanOrEqualTo(1.0);
+    }
+
+    @Test
+    public void expiresResultSetsNotPagedWithinTimeToLive() {
+        MemoryAwarePagingProvider pagingProvider = pagingProvider(1_000_000);
+        String first = pagingProvider.storeResultList(new SimpleBundleProvider(patients(0, 10)));
+        clock.addAndGet(40_000);
+        String second = pagingProvider.storeResultList(new SimpleBundleProvider(patients(10, 20)));
+        clock.addAndGet(40_000);
+        pagingProvider.retrieveResultList(second);
+        clock.addAndGet(40_000);
+
+        assertThat(pagingProvider.retrieveResultList(first)).isNull();
+        assertThat(pagingProvider.retrieveResultList(second)).isNotNull();
+        assertThat(pagingProvider.getExpiredCount()).isEqualTo(1);
+        assertThat(pagingProvider.getResultSetCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void doesNotKeepResultSetLargerThanBudget() {
+        MemoryAwarePagingProvider pagingProvider = pagingProvider(200);
+
+        assertThat(pagingProvider.storeResultList(new SimpleBundleProvider(patients(0, 100)))).isNull();
+        assertThat(pagingProvider.getRejectionCount()).isEqualTo(1);
+        assertThat(pagingProvider.getEstimatedBytes()).isZero();
+    }
+
+    private MemoryAwarePagingProvider pagingProvider(long maximumBytes) {
+        return new MemoryAwarePagingProvider(fhirContext, Collections.singletonList(patients), maximumBytes, 60_000, 1000,
+                clock::get);
+    }
+
+    private static List<IBaseResource> patients(int from, int to) {
+        List<IBaseResource> resources = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Patient patient = new Patient();
+            patient.setId("Patient/" + i);
+            resources.add(patient);
+        }
+        return resources;
+    }
+
+    private static List<String> ids(List<IBaseResource> resources) {
+        return resources.stream().map(resource -> resource.getIdElement().getIdPart()).collect(Collectors.toList());
+    }
+
+    static class PatientProvider implements IResourceProvider, ResourceBatchLoader {
+
+        private final Set<String> deleted = new HashSet<>();
+
+        @Override
+        public Class<? extends IBaseResource> getResourceType() {
+            return Patient.class;
+        }
+
+        @Override
+        public List<? extends IBaseResource> loadResources(List<IIdType> theIds) {
+            List<IBaseResource> resources = new ArrayList<>();
+            for (IIdType id : theIds) {
+                if (!deleted.contains(id.getIdPart())) {
+                    resources.add(0, patients(Integer.parseInt(id.getIdPart()), Integer.parseInt(id.getIdPart()) + 1).get(0));
+                }
+            }
+            return resources;
+        }
+    }
+}
@@ -17,6 +17,9 @@ import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -83,6 +86,38 @@ public class IgiaConformanceProviderStu3Test {
                 });
     }
 
+    @Test
+    public void capabilityStatementIsBuiltOnceTest() {
+        this.contextRunner.withUserConfiguration(ConformanceProviderConfig.class)
+            .withPropertyValues("hspc.platform.api.security.mode:secured", "hspc.platform.manifest.override:false",
+                "hspc.platform.authorization.url: http://keycloak:9080",
+                "hspc.platform.authorization.smart.urisEndpointExtensionUrl: http://fhir-registry.smarthealthit.org/StructureDefinition/oauth-uris",
+                "hspc.platform.authorization.smart.capabilities:launch-standalone, client-public, client-confidential-symmetric, sso-openid-connect, context-standalone-patient, permission-patient, permission-offline")
+                .run((context) -> {
+                    IgiaConformanceProviderStu3 igiaConformanceProviderStu3 = context
+                    .getBean(IgiaConformanceProviderStu3.class);
+                    RestfulServer restfulServer = context.getBean(RestfulServer.class);
+                    restfulServer.setServerConformanceProvider(igiaConformanceProviderStu3);
+
+                    ExecutorService executor = Executors.newFixedThreadPool(8);
+                    List<Future<CapabilityStatement>> results = new ArrayList<>();
+                    for (int i = 0; i < 8; i++) {
+                        results.add(executor.submit(() -> igiaConformanceProviderStu3.getServerConformance(createHttpServletRequest())));
+                    }
+                    CapabilityStatement first = results.get(0).get();
+                    for (Future<CapabilityStatement> result : results) {
+                        Assert.isTrue(result.get() == first, "all requests must share one capability statement");
+                    }
+                    executor.shutdown();
+                    Assert.isTrue(first.getRest().get(0).getSecurity().getExtensionsByUrl(CAPABILITIES_EXTENSION_URL).size() == 7,
+                        "capability extensions must be added exactly once");
+
+                    igiaConformanceProviderStu3.reset();
+                    Assert.isTrue(igiaConformanceProviderStu3.getServerConformance(createHttpServletRequest()) != first,
+                        "reset must rebuild the capability statement");
+                });
+    }
+
     public void AssertHSPCExtension(CapabilityStatement capabilityStatement) {
         List<Extension> extensions = capabilityStatement.getRest().get(0).getSecurity()
         .getExtensionsByUrl(HSPC_EXTENSION_URL).get(0).getExtension();
@@ -0,0 +1,66 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.rest;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import io.igia.config.fhir.FhirProperties;
+
+public class SmartConfigurationControllerTest {
+
+    private static final String PATH = "/api/.well-known/smart-configuration";
+
+    private MockMvc mockMvc;
+
+    @Before
+    public void setup() {
+        SmartConfigurationController controller = new SmartConfigurationController("http://keycloak:9080", false,
+                "http://published:9080", "/auth/realms/igia/protocol/openid-connect/auth",
+                "/auth/realms/igia/protocol/smart-openid-connect/token",
+                "/auth/realms/igia/protocol/openid-connect/token/introspect", "",
+                "/auth/realms/igia/clients-registrations/openid-connect",
+                new String[] { "launch-standalone", " client-public" }, new FhirProperties());
+        mockMvc = MockMvcBuilders.standaloneSetup(controller)
+                .addPlaceholderValue("hapi.fhir.server.path", "/api")
+                .build();
+    }
+
+    @Test
+    public void servesDiscoveryDocument() throws Exception {
+        mockMvc.perform(get(PATH))
+            .andExpect(status().isOk())
+            .andExpect(header().string("Cache-Control", "max-age=86400, public"))
+            .andExpect(header().exists("ETag"))
+            .andExpect(jsonPath("$.authorization_endpoint").value("http://keycloak:9080/auth/realms/igia/protocol/openid-connect/auth"))
+            .andExpect(jsonPath("$.token_endpoint").value("http://keycloak:9080/auth/realms/igia/protocol/smart-openid-connect/token"))
+            .andExpect(jsonPath("$.registration_endpoint").value("http://keycloak:9080/auth/realms/igia/clients-registrations/openid-connect"))
+            .andExpect(jsonPath("$.userinfo_endpoint").doesNotExist())
+            .andExpect(jsonPath("$.capabilities[1]").value("client-public"));
+    }
+
+    @Test
+    public void answersMatchingIfNoneMatchWithNotModified() throws Exception {
+        String etag = mockMvc.perform(get(PATH)).andReturn().getResponse().getHeader("ETag");
+
+        mockMvc.perform(get(PATH).header("If-None-Match", etag))
+            .andExpect(status().isNotModified());
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.security;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class CachingTokenIntrospectionServicesTest {
+
+    private final AtomicInteger status = new AtomicInteger(200);
+    private final AtomicReference<String> response = new AtomicReference<>();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+
+    private HttpServer server;
+    private CachingTokenIntrospectionServices services;
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/introspect", exchange -> {
+            requestCount.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = response.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status.get(), body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        services = new CachingTokenIntrospectionServices("http://localhost:" + server.getAddress().getPort() + "/introspect",
+                "client", "secret", 100, Duration.ofMinutes(5), Duration.ofSeconds(10), Duration.ofSeconds(1),
+                Duration.ofSeconds(5), 2, Duration.ofMinutes(1));
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void activeTokenIsCached() {
+        response.set(activeResponse());
+
+        OAuth2AccessToken token = services.readAccessToken("token-1");
+        services.readAccessToken("token-1");
+
+        assertThat(token.getScope()).containsExactly("patient/*.read");
+        assertThat(token.getAdditionalInformation()).containsEntry("patient", "123");
+        assertThat(requestCount.get()).isEqualTo(1);
+        assertThat(services.getCacheHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void inactiveTokenIsCachedBriefly() {
+        response.set("{\"active\":false}");
+
+        assertThatThrownBy(() -> services.readAccessToken("token-2")).isInstanceOf(InvalidTokenException.class);
+        assertThatThrownBy(() -> services.readAccessToken("token-2")).isInstanceOf(InvalidTokenException.class);
+
+        assertThat(requestCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void concurrentLookupsShareOneCall() throws Exception {
+        response.set(activeResponse());
+        release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<OAuth2AccessToken>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> services.readAccessToken("token-3")));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (services.getCoalescedCount() < 7 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Future<OAuth2AccessToken> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS).getValue()).isEqualTo("token-3");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(requestCount.get()).isEqualTo(1);
+        assertThat(services.getCoalescedCount()).isEqualTo(7);
+    }
+
+    @Test
+    public void circuitOpensAfterConsecutiveFailures() {
+        status.set(500);
+        response.set("{}");
+
+        assertThatThrownBy(() -> services.readAccessToken("token-4")).isInstanceOf(RestClientException.class);
+        assertThatThrownBy(() -> services.readAccessToken("token-5")).isInstanceOf(RestClientException.class);
+        assertThat(services.isCircuitOpen()).isTrue();
+
+        assertThatThrownBy(() -> services.readAccessToken("token-6")).isInstanceOf(ResourceAccessException.class);
+        assertThat(requestCount.get()).isEqualTo(2);
+        assertThat(services.getShortCircuitCount()).isEqualTo(1);
+    }
+
+    private static String activeResponse() {
+        long exp = System.currentTimeMillis() / 1000 + 300;
+        return "{\"active\":true,\"scope\":\"patient/*.read\",\"client_id\":\"client\",\"exp\":" + exp + ",\"patient\":\"123\"}";
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.security;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.RsaSigner;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class KeyRotatingJwtAccessTokenConverterTest {
+
+    private final AtomicReference<String> keyDocument = new AtomicReference<>("{\"keys\":[]}");
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    private HttpServer server;
+    private VerifierKeyManager keyManager;
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/certs", exchange -> {
+            requestCount.incrementAndGet();
+            byte[] body = keyDocument.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        if (keyManager != null) {
+            keyManager.destroy();
+        }
+        server.stop(0);
+    }
+
+    @Test
+    public void tokenSignedWithRotatedKeyIsVerifiedAfterRefresh() throws Exception {
+        KeyPair first = generateKeyPair();
+        KeyPair second = generateKeyPair();
+        keyDocument.set(jwks("k1", first));
+        keyManager = createKeyManager(null);
+
+        KeyRotatingJwtAccessTokenConverter converter = new KeyRotatingJwtAccessTokenConverter(keyManager);
+        OAuth2AccessToken token = converter.extractAccessToken(sign("k1", first), null);
+        assertThat(token.getScope()).containsExactly("patient/*.read");
+
+        keyDocument.set(jwks("k2", second));
+        token = converter.extractAccessToken(sign("k2", second), null);
+        assertThat(token.getScope()).containsExactly("patient/*.read");
+        assertThat(keyManager.getVerifiers()).containsOnlyKeys("k2");
+    }
+
+    @Test
+    public void unknownKidIsRejected() throws Exception {
+        KeyPair first = generateKeyPair();
+        keyDocument.set(jwks("k1", first));
+        keyManager = createKeyManager(null);
+        KeyRotatingJwtAccessTokenConverter converter = new KeyRotatingJwtAccessTokenConverter(keyManager);
+
+        assertThatThrownBy(() -> converter.extractAccessToken(sign("other", generateKeyPair()), null))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void realmPublicKeyIsUsedForAnyKid() throws Exception {
+        KeyPair first = generateKeyPair();
+        keyDocument.set("{\"public_key\":\"" + Base64.getEncoder().encodeToString(first.getPublic().getEncoded()) + "\"}");
+        keyManager = createKeyManager(null);
+        KeyRotatingJwtAccessTokenConverter converter = new KeyRotatingJwtAccessTokenConverter(keyManager);
+
+        assertThat(converter.extractAccessToken(sign("any", first), null).getValue()).isNotNull();
+    }
+
+    @Test
+    public void jwksKeyWithoutKidIsUsed() throws Exception {
+        KeyPair first = generateKeyPair();
+        keyDocument.set("{\"keys\":[" + jwk(null, first) + "]}");
+        keyManager = createKeyManager(null);
+        KeyRotatingJwtAccessTokenConverter converter = new KeyRotatingJwtAccessTokenConverter(keyManager);
+
+        assertThat(converter.extractAccessToken(sign(null, first), null).getValue()).isNotNull();
+        assertThat(converter.extractAccessToken(sign("any", first), null).getValue()).isNotNull();
+    }
+
+    @Test
+    public void mixedJwksKeepsKeysWithoutKid() throws Exception {
+        KeyPair first = generateKeyPair();
+        KeyPair second = generateKeyPair();
+        KeyPair third = generateKeyPair();
+        keyDocument.set("{\"keys\":[" + jwk("k1", first) + "," + jwk(null, second) + "," + jwk(null, third) + "]}");
+        keyManager = createKeyManager(null);
+        KeyRotatingJwtAccessTokenConverter converter = new KeyRotatingJwtAccessTokenConverter(keyManager);
+
+        assertThat(converter.extractAccessToken(sign("k1", first), null).getValue()).isNotNull();
+        assertThat(converter.extractAccessToken(sign(null, second), null).getValue()).isNotNull();
+        assertThat(converter.extractAccessToken(sign(null, third), null).getValue()).isNotNull();
+        assertThatThrownBy(() -> converter.extractAccessToken(sign(null, generateKeyPair()), null))
+            .isInstanceOf(InvalidTokenException.class);
+    }
+
+    @Test
+    public void cachedKeysAreUsedWhenServerIsUnavailable() throws Exception {
+        KeyPair first = generateKeyPair();
+        Path cacheFile = Files.createTempFile("keys", ".json");
+        Files.write(cacheFile, jwks("k1", first).getBytes(StandardCharsets.UTF_8));
+        server.stop(0);
+
+        keyManager = new VerifierKeyManager("http://localhost:1/certs", null, cacheFile, Duration.ofHours(1),
+                Duration.ofHours(1), Duration.ofMillis(200), Duration.ofMillis(200));
+        keyManager.afterPropertiesSet();
+        KeyRotatingJwtAccessTokenConverter converter = new KeyRotatingJwtAccessTokenConverter(keyManager);
+
+        assertThat(converter.extractAccessToken(sign("k1", first), null).getValue()).isNotNull();
+        Files.deleteIfExists(cacheFile);
+    }
+
+    @Test
+    public void concurrentRefreshesShareOneFetch() throws Exception {
+        keyDocument.set(jwks("k1", generateKeyPair()));
+        keyManager = createKeyManager(null);
+        keyManager.refreshAsync().get();
+        int before = requestCount.get();
+
+        keyManager.refreshAsync();
+        keyManager.refreshAsync().get();
+
+        assertThat(requestCount.get() - before).isBetween(1, 2);
+    }
+
+    private VerifierKeyManager createKeyManager(Path cacheFile) {
+        VerifierKeyManager manager = new VerifierKeyManager(
+                "http://localhost:" + server.getAddress().getPort() + "/certs", null, cacheFile,
+                Duration.ofHours(1), Duration.ZERO, Duration.ofSeconds(1), Duration.ofSeconds(1));
+        manager.afterPropertiesSet();
+        return manager;
+    }
+
+    private static KeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    private static String jwks(String kid, KeyPair keyPair) {
+        return "{\"keys\":[" + jwk(kid, keyPair) + "]}";
+    }
+
+    private static String jwk(String kid, KeyPair keyPair) {
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+        return "{" + (kid != null ? "\"kid\":\"" + kid + "\"," : "") + "\"kty\":\"RSA\",\"use\":\"sig\",\"n\":\""
+                + base64Url(publicKey.getModulus()) + "\",\"e\":\"" + base64Url(publicKey.getPublicExponent()) + "\"}";
+    }
+
+    private static String base64Url(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes[0] == 0) {
+            byte[] unsigned = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, unsigned, 0, unsigned.length);
+            bytes = unsigned;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static String sign(String kid, KeyPair keyPair) {
+        long exp = System.currentTimeMillis() / 1000 + 300;
+        String claims = "{\"scope\":[\"patient/*.read\"],\"exp\":" + exp + ",\"client_id\":\"test\"}";
+        RsaSigner signer = new RsaSigner((RSAPrivateKey) keyPair.getPrivate());
+        if (kid == null) {
+            return JwtHelper.encode(claims, signer).getEncoded();
+        }
+        return JwtHelper.encode(claims, signer, Collections.singletonMap("kid", kid)).getEncoded();
+    }
+}
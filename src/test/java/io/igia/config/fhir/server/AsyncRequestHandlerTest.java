@@ -0,0 +1,368 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.aop.scope.ScopedProxyUtils;
+import org.springframework.beans.factory.config.BeanDefinitionHolder;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
+import org.springframework.security.oauth2.client.OAuth2ClientContext;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.client.token.DefaultAccessTokenRequest;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.authentication.OAuth2AuthenticationDetails;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.request.RequestScope;
+
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.igia.config.fhir.interceptor.ScopeBasedAuthorizationInterceptor;
+import io.igia.config.fhir.interceptor.VerifiedTokenCache.VerifiedToken;
+
+public class AsyncRequestHandlerTest {
+
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    private MockHttpServletRequest request;
+
+    private MockHttpServletResponse response;
+
+    @Before
+    public void setUp() {
+        request = new MockHttpServletRequest("GET", "/api/Patient/1");
+        request.setAsyncSupported(true);
+        response = new MockHttpServletResponse();
+    }
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void processesOnExecutorAndCompletes() throws Exception {
+        AsyncRequestHandler handler = new AsyncRequestHandler(tasks::add, Duration.ofSeconds(5));
+
+        handler.handle(request, response, (req, resp) -> resp.getOutputStream().write("ok".getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(request.isAsyncStarted()).isTrue();
+        assertThat(request.getAsyncContext().getTimeout()).isEqualTo(5000);
+        assertThat(response.getContentAsString()).isEmpty();
+
+        tasks.get(0).run();
+
+        assertThat(request.isAsyncStarted()).isFalse();
+        assertThat(response.getContentAsString()).isEqualTo("ok");
+        assertThat(handler.getStartedCount()).isEqualTo(1);
+        assertThat(handler.getCompletedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void processesOnCallingThreadWithoutAsyncSupport() throws Exception {
+        request.setAsyncSupported(false);
+        AsyncRequestHandler handler = new AsyncRequestHandler(tasks::add, Duration.ofSeconds(5));
+
+        handler.handle(request, response, (req, resp) -> resp.setStatus(204));
+
+        assertThat(tasks).isEmpty();
+        assertThat(response.getStatus()).isEqualTo(204);
+        assertThat(handler.getStartedCount()).isZero();
+    }
+
+    @Test
+    public void carriesSecurityContextToWorker() throws Exception {
+        Authentication authentication = new TestingAuthenticationToken("user", "password");
+        SecurityContextHolder.getContext().setAuthentication(authentication);
+        AtomicReference<Authentication> seen = new AtomicReference<>();
+        AsyncRequestHandler handler = new AsyncRequestHandler(tasks::add, Duration.ofSeconds(5));
+
+        handler.handle(request, response,
+                (req, resp) -> seen.set(SecurityContextHolder.getContext().getAuthentication()));
+        Thread worker = new Thread(tasks.get(0));
+        worker.start();
+        worker.join();
+
+        assertThat(seen.get()).isSameAs(authentication);
+    }
+
+    @Test
+    public void runsScopeInterceptorOnWorker() throws Exception {
+        OAuth2Authentication authentication = oauth2Authentication("token-value");
+        SecurityContextHolder.getContext().setAuthentication(authentication);
+        AtomicReference<String> tokenValue = new AtomicReference<>();
+        ScopeBasedAuthorizationInterceptor interceptor = scopeInterceptor(tokenValue);
+        AtomicReference<List<IAuthRule>> rules = new AtomicReference<>();
+        AsyncRequestHandler handler = new AsyncRequestHandler(tasks::add, Duration.ofSeconds(5));
+
+        handler.handle(request, response, (req, resp) -> rules.set(interceptor.buildRuleList(new ServletRequestDetails())));
+        Thread worker = new Thread(tasks.get(0));
+        worker.start();
+        worker.join();
+
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(tokenValue.get()).isEqualTo("token-value");
+        assertThat(rules.get()).isNotEmpty();
+    }
+
+    @Test
+    public void runsScopeInterceptorOnVirtualThread() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isSupported());
+        SecurityContextHolder.getContext().setAuthentication(oauth2Authentication("token-value"));
+        AtomicReference<String> tokenValue = new AtomicReference<>();
+        ScopeBasedAuthorizationInterceptor interceptor = scopeInterceptor(tokenValue);
+        AtomicReference<List<IAuthRule>> rules = new AtomicReference<>();
+        AtomicBoolean virtual = new AtomicBoolean();
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("test-");
+        try {
+            AsyncRequestHandler handler = new AsyncRequestHandler(executor, Duration.ofSeconds(5));
+            handler.handle(request, response, (req, resp) -> {
+                virtual.set(VirtualThreads.isVirtual(Thread.currentThread()));
+                rules.set(interceptor.buildRuleList(new ServletRequestDetails()));
+            });
+        } finally {
+            executor.shutdown();
+            assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        }
+
+        assertThat(virtual).isTrue();
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(tokenValue.get()).isEqualTo("token-value");
+        assertThat(rules.get()).isNotEmpty();
+    }
+
+    @Test
+    public void timeoutIsNotHeldUpByBlockedWrite() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HttpServletResponse slowClient = new HttpServletResponseWrapper(response) {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        writing.countDown();
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return true;
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                    }
+                };
+            }
+        };
+        AsyncRequestHandler handler = new AsyncRequestHandler(tasks::add, Duration.ofSeconds(5));
+        handler.handle(request, slowClient, (req, resp) -> resp.getOutputStream().write(1));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> worker = executor.submit(tasks.get(0));
+            assertThat(writing.await(5, TimeUnit.SECONDS)).isTrue();
+
+            Future<?> timeout = executor.submit(() -> {
+                fireTimeout();
+                return null;
+            });
+            timeout.get(2, TimeUnit.SECONDS);
+            release.countDown();
+            worker.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+
+        assertThat(handler.getTimeoutCount()).isEqualTo(1);
+        assertThat(request.isAsyncStarted()).isFalse();
+    }
+
+    @Test
+    public void timeoutWhileQueuedAnswers503AndSkipsProcessing() throws Exception {
+        AtomicBoolean processed = new AtomicBoolean();
+        AsyncRequestHandler handler = new AsyncRequestHandler(tasks::add, Duration.ofSeconds(5));
+
+        handler.handle(request, response, (req, resp) -> processed.set(true));
+        fireTimeout();
+        tasks.get(0).run();
+
+        assertThat(processed).isFalse();
+        assertThat(response.getStatus()).isEqualTo(503);
+        assertThat(request.isAsyncStarted()).isFalse();
+        assertThat(handler.getTimeoutCount()).isEqualTo(1);
+        assertThat(handler.getCompletedCount()).isZero();
+    }
+
+    @Test
+    public void timeoutWhileRunningInterruptsWorkerAndDiscardsOutput() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        AtomicReference<IOException> writeFailure = new AtomicReference<>();
+        AsyncRequestHandler handler = new AsyncRequestHandler(tasks::add, Duration.ofSeconds(5));
+
+        handler.handle(request, response, (req, resp) -> {
+            running.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+            resp.setStatus(200);
+            resp.setHeader("X-Late", "true");
+            try {
+                resp.getOutputStream().write(1);
+            } catch (IOException e) {
+                writeFailure.set(e);
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> worker = executor.submit(tasks.get(0));
+            assertThat(running.await(5, TimeUnit.SECONDS)).isTrue();
+
+            fireTimeout();
+            worker.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(interrupted).isTrue();
+        assertThat(writeFailure.get()).isNotNull();
+        assertThat(response.getStatus()).isEqualTo(503);
+        assertThat(response.getHeader("X-Late")).isNull();
+        assertThat(response.getContentAsByteArray()).isEmpty();
+    }
+
+    @Test
+    public void rejectedRequestAnswers503() throws Exception {
+        AsyncRequestHandler handler = new AsyncRequestHandler(task -> {
+            throw new RejectedExecutionException("full");
+        }, Duration.ofSeconds(5));
+
+        handler.handle(request, response, (req, resp) -> resp.setStatus(200));
+
+        assertThat(response.getStatus()).isEqualTo(503);
+        assertThat(request.isAsyncStarted()).isFalse();
+        assertThat(handler.getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void failureAnswers500() throws Exception {
+        AsyncRequestHandler handler = new AsyncRequestHandler(tasks::add, Duration.ofSeconds(5));
+
+        handler.handle(request, response, (req, resp) -> {
+            throw new IllegalStateException("provider failed");
+        });
+        tasks.get(0).run();
+
+        assertThat(response.getStatus()).isEqualTo(500);
+        assertThat(request.isAsyncStarted()).isFalse();
+    }
+
+    static OAuth2Authentication oauth2Authentication(String tokenValue) {
+        MockHttpServletRequest authenticated = new MockHttpServletRequest();
+        authenticated.setAttribute(OAuth2AuthenticationDetails.ACCESS_TOKEN_VALUE, tokenValue);
+        OAuth2Request oauth2Request = new OAuth2Request(Collections.emptyMap(), "client", null, true,
+                Collections.singleton("patient/*.read"), null, null, null, null);
+        OAuth2Authentication authentication = new OAuth2Authentication(oauth2Request, null);
+        authentication.setDetails(new OAuth2AuthenticationDetails(authenticated));
+        return authentication;
+    }
+
+    /**
+     * A scope interceptor whose OAuth2RestTemplate uses a request scoped client context,
+     * created from the security context like Spring Boot's resource server configuration does.
+     */
+    static ScopeBasedAuthorizationInterceptor scopeInterceptor(AtomicReference<String> tokenValue) {
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.getBeanFactory().registerScope(WebApplicationContext.SCOPE_REQUEST, new RequestScope());
+        RootBeanDefinition definition = new RootBeanDefinition(OAuth2ClientContext.class, () -> {
+            DefaultOAuth2ClientContext clientContext = new DefaultOAuth2ClientContext(new DefaultAccessTokenRequest());
+            Authentication principal = SecurityContextHolder.getContext().getAuthentication();
+            Object details = principal instanceof OAuth2Authentication ? principal.getDetails() : null;
+            if (details instanceof OAuth2AuthenticationDetails) {
+                clientContext.setAccessToken(new DefaultOAuth2AccessToken(((OAuth2AuthenticationDetails) details).getTokenValue()));
+            }
+            return clientContext;
+        });
+        definition.setScope(WebApplicationContext.SCOPE_REQUEST);
+        BeanDefinitionHolder proxy = ScopedProxyUtils.createScopedProxy(
+                new BeanDefinitionHolder(definition, "oauth2ClientContext"), context, false);
+        context.registerBeanDefinition(proxy.getBeanName(), proxy.getBeanDefinition());
+        context.refresh();
+        OAuth2ClientContext clientContext = context.getBean("oauth2ClientContext", OAuth2ClientContext.class);
+
+        DefaultOAuth2AccessToken accessToken = new DefaultOAuth2AccessToken("verified");
+        accessToken.setScope(Collections.singleton("patient/*.read"));
+        VerifiedToken token = new VerifiedToken(accessToken, "123", null, null);
+        return new ScopeBasedAuthorizationInterceptor(null,
+                new OAuth2RestTemplate(new ClientCredentialsResourceDetails(), clientContext)) {
+            @Override
+            protected VerifiedToken readVerifiedToken(String value) {
+                tokenValue.set(value);
+                return token;
+            }
+        };
+    }
+
+    private void fireTimeout() throws IOException {
+        MockAsyncContext asyncContext = (MockAsyncContext) request.getAsyncContext();
+        for (AsyncListener listener : new ArrayList<>(asyncContext.getListeners())) {
+            listener.onTimeout(new AsyncEvent(asyncContext));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.Observation;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import io.igia.config.fhir.interceptor.ResourceTypeRegistry;
+import io.igia.config.fhir.server.FhirContextWarmup.ResourceTypes;
+
+public class FhirContextWarmupTest {
+
+    @Test
+    public void warmsUpProviderResourceTypes() {
+        FhirContext fhirContext = FhirContext.forDstu3();
+        FhirContextWarmup warmup = new FhirContextWarmup(fhirContext, new ResourceTypeRegistry(fhirContext),
+                Arrays.asList(provider(Patient.class), provider(Observation.class)), ResourceTypes.PROVIDERS, 2);
+
+        Map<String, Duration> timings = warmup.warmup();
+
+        assertThat(timings).containsOnlyKeys("resolve", "definitions", "parsers", "total");
+        assertThat(warmup.getPhaseTimings()).isEqualTo(timings);
+        assertThat(fhirContext.getResourceDefinition(Patient.class).getName()).isEqualTo("Patient");
+    }
+
+    @Test
+    public void warmsUpAllResourceTypesWithoutProviders() {
+        FhirContext fhirContext = FhirContext.forDstu3();
+        FhirContextWarmup warmup = new FhirContextWarmup(fhirContext, new ResourceTypeRegistry(fhirContext), null,
+                ResourceTypes.ALL, 0);
+
+        warmup.afterSingletonsInstantiated();
+
+        assertThat(warmup.getPhaseTimings()).containsKeys("definitions", "parsers");
+    }
+
+    private static IResourceProvider provider(Class<? extends IBaseResource> type) {
+        return () -> type;
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleType;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Signature;
+import org.hl7.fhir.dstu3.model.UriType;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+
+public class StreamingBundleEncoderTest {
+
+    private static final FhirContext FHIR_CONTEXT = FhirContext.forDstu3();
+
+    private final StreamingBundleEncoder encoder = new StreamingBundleEncoder(512);
+
+    @Test
+    public void streamsSameJsonAsParser() throws IOException {
+        assertStreamsSameAsParser(FHIR_CONTEXT.newJsonParser(), EncodingEnum.JSON);
+        assertStreamsSameAsParser(FHIR_CONTEXT.newJsonParser().setPrettyPrint(true), EncodingEnum.JSON);
+    }
+
+    @Test
+    public void streamsSameXmlAsParser() throws IOException {
+        assertStreamsSameAsParser(FHIR_CONTEXT.newXmlParser(), EncodingEnum.XML);
+        assertStreamsSameAsParser(FHIR_CONTEXT.newXmlParser().setPrettyPrint(true), EncodingEnum.XML);
+    }
+
+    @Test
+    public void leavesUnstreamableBundlesToParser() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Bundle empty = new Bundle().setType(BundleType.SEARCHSET);
+        Bundle signed = searchset(2);
+        signed.setSignature(new Signature().setWho(new UriType("urn:signer")));
+
+        assertThat(encoder.encode(empty, FHIR_CONTEXT.newJsonParser(), EncodingEnum.JSON, () -> out)).isFalse();
+        assertThat(encoder.encode(signed, FHIR_CONTEXT.newXmlParser(), EncodingEnum.XML, () -> out)).isFalse();
+        assertThat(encoder.encode(searchset(2), FHIR_CONTEXT.newJsonParser(), EncodingEnum.RDF, () -> out)).isFalse();
+        assertThat(out.size()).isZero();
+    }
+
+    @Test
+    public void restoresEntriesAfterEncoding() throws IOException {
+        Bundle bundle = searchset(3);
+
+        encoder.encode(bundle, FHIR_CONTEXT.newJsonParser(), EncodingEnum.JSON, ByteArrayOutputStream::new);
+
+        assertThat(bundle.getEntry()).hasSize(3);
+        assertThat(bundle.getEntryFirstRep().getResource()).isInstanceOf(Patient.class);
+    }
+
+    private void assertStreamsSameAsParser(IParser parser, EncodingEnum encoding) throws IOException {
+        Bundle bundle = searchset(25);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertThat(encoder.encode(bundle, parser, encoding, () -> out)).isTrue();
+
+        assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(parser.encodeResourceToString(bundle));
+    }
+
+    private static Bundle searchset(int entries) {
+        Bundle bundle = new Bundle();
+        bundle.setId("search-1");
+        bundle.setType(BundleType.SEARCHSET);
+        bundle.setTotal(entries * 2);
+        bundle.addLink().setRelation("self").setUrl("http://localhost/api/Patient?name=smith");
+        bundle.addLink().setRelation("next").setUrl("http://localhost/api?_getpages=search-1&_getpagesoffset=" + entries);
+        for (int i = 0; i < entries; i++) {
+            Patient patient = new Patient();
+            patient.setId("Patient/" + i);
+            patient.addName().setFamily("Smith").addGiven("Entry " + i + " é");
+            bundle.addEntry()
+                .setFullUrl("http://localhost/api/Patient/" + i)
+                .setResource(patient)
+                .getSearch().setMode(Bundle.SearchEntryMode.MATCH);
+        }
+        return bundle;
+    }
+}
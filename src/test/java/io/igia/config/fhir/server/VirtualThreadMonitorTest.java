@@ -0,0 +1,95 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License, v.
+ * 2.0 with a Healthcare Disclaimer.
+ * A copy of the Mozilla Public License, v. 2.0 with the Healthcare Disclaimer can
+ * be found under the top level directory, named LICENSE.
+ * If a copy of the MPL was not distributed with this file, You can obtain one at
+ * http://mozilla.org/MPL/2.0/.
+ * If a copy of the Healthcare Disclaimer was not distributed with this file, You
+ * can obtain one at the project website https://github.com/igia.
+ *
+ * Copyright (C) 2018-2019 Persistent Systems, Inc.
+ */
+package io.igia.config.fhir.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+
+public class VirtualThreadMonitorTest {
+
+    @Test
+    public void findsSynchronizedMethodsOfRequestComponents() throws Exception {
+        VirtualThreadMonitor monitor = new VirtualThreadMonitor(
+                Arrays.asList(new SynchronizedInterceptor(), new SynchronizedInterceptor()), false, Duration.ofMillis(20));
+
+        monitor.afterPropertiesSet();
+
+        assertThat(monitor.getSynchronizedMethods())
+                .containsExactly(SynchronizedInterceptor.class.getName() + "#lookup");
+        assertThat(monitor.isRecording()).isFalse();
+    }
+
+    @Test
+    public void countsPinningEventsPerFrame() {
+        VirtualThreadMonitor monitor = new VirtualThreadMonitor(null, false, Duration.ofMillis(20));
+
+        monitor.recordPinned("a.B.c:1", Duration.ofMillis(30));
+        monitor.recordPinned("d.E.f:2", Duration.ofMillis(40));
+        monitor.recordPinned("d.E.f:2", Duration.ofMillis(50));
+
+        assertThat(monitor.getPinnedCount()).isEqualTo(3);
+        assertThat(monitor.getPinnedTime()).isEqualTo(Duration.ofMillis(120));
+        assertThat(monitor.getPinningHotspots()).containsExactly(
+                entry("d.E.f:2", 2L),
+                entry("a.B.c:1", 1L));
+    }
+
+    @Test
+    public void reportsCarrierFigures() throws Exception {
+        VirtualThreadMonitor monitor = new VirtualThreadMonitor(null, true, Duration.ofMillis(20));
+        monitor.afterPropertiesSet();
+        try {
+            assertThat(monitor.getCarrierParallelism()).isPositive();
+            assertThat(monitor.getCarrierPoolSize()).isNotNegative();
+            assertThat(monitor.getCarrierUtilization()).isBetween(0.0, 1.0);
+        } finally {
+            monitor.destroy();
+        }
+        assertThat(monitor.isRecording()).isFalse();
+    }
+
+    @Test
+    public void createsVirtualThreadExecutorWhenSupported() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            assertThatThrownBy(() -> VirtualThreads.newThreadPerTaskExecutor("test-"))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessageContaining("Java 21");
+            return;
+        }
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("test-");
+        try {
+            assertThat(executor.submit(() -> VirtualThreads.isVirtual(Thread.currentThread())).get(5, TimeUnit.SECONDS))
+                    .isTrue();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    static class SynchronizedInterceptor extends InterceptorAdapter {
+        private int calls;
+
+        synchronized int lookup() {
+            return ++calls;
+        }
+    }
+}